@@ -0,0 +1,195 @@
+// Copyright 2008 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.minijoe.benchmark;
+
+import com.google.minijoe.compiler.CodeGenerationVisitor;
+import com.google.minijoe.compiler.ConstantFoldingVisitor;
+import com.google.minijoe.compiler.DeclarationVisitor;
+import com.google.minijoe.compiler.Lexer;
+import com.google.minijoe.compiler.Parser;
+import com.google.minijoe.compiler.ast.Program;
+import com.google.minijoe.sys.ExecutionStats;
+import com.google.minijoe.sys.JsArray;
+import com.google.minijoe.sys.JsFunction;
+import com.google.minijoe.sys.JsObject;
+import com.google.minijoe.sys.JsSystem;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.InputStreamReader;
+
+/**
+ * Compares the number of instructions dispatched by the interpreter for
+ * code compiled without optimization against code compiled with constant
+ * folding, superinstructions and the peephole optimizer, and against the
+ * register instructions of bytecode format 1. Instructions are counted by
+ * ExecutionStats, which disables the JIT compiler so that all instructions
+ * go through the interpreter. The times are measured in a child VM without
+ * the instrumentation, with the JIT compiler disabled as well.
+ *
+ * Usage: DispatchCountBenchmark [iterations]
+ */
+public class DispatchCountBenchmark {
+
+  static final String SCRIPT =
+      "function loop(n) {\n"
+      + "  var t = 0;\n"
+      + "  for (var i = 0; i < n; i++) {\n"
+      + "    if (i >= 3 * 4) t = t + i % 7;\n"
+      + "  }\n"
+      + "  return t;\n"
+      + "}\n"
+      + "function props(n) {\n"
+      + "  var o = {x: 1, y: 2}, s = 0;\n"
+      + "  while (n-- > 0) {\n"
+      + "    s = s + o.x * o.y + Math.PI;\n"
+      + "  }\n"
+      + "  return s;\n"
+      + "}\n"
+      + "function branches(n) {\n"
+      + "  var c = 0;\n"
+      + "  for (var i = n; i > 0; --i) {\n"
+      + "    if (!(i < 100) && (c, true)) c++;\n"
+      + "    else if (\"a\" + \"b\" == \"ab\") c += 2;\n"
+      + "  }\n"
+      + "  return c;\n"
+      + "}\n";
+
+  static final String[] FUNCTIONS = {"loop", "props", "branches"};
+
+  private static final int WARMUP_ROUNDS = 5;
+
+  private final JsObject global;
+  private final JsArray stack = new JsArray();
+
+  DispatchCountBenchmark(boolean optimize, boolean registers) throws Exception {
+    Program program = new Parser(new Lexer(SCRIPT)).parseProgram();
+    new DeclarationVisitor().visit(program);
+    if (optimize) {
+      new ConstantFoldingVisitor().visit(program);
+    }
+
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    DataOutputStream dos = new DataOutputStream(baos);
+    new CodeGenerationVisitor(dos, optimize, registers).visit(program);
+    dos.flush();
+
+    global = JsSystem.createGlobal();
+    JsFunction.exec(new DataInputStream(
+        new ByteArrayInputStream(baos.toByteArray())), global);
+  }
+
+  /**
+   * Calls the global function with the given name with n as parameter.
+   */
+  void run(String name, int n) {
+    JsFunction fn = (JsFunction) global.getObject(name);
+    stack.setObject(0, global);
+    stack.setObject(1, global);
+    stack.setObject(2, fn);
+    stack.setNumber(3, n);
+    fn.eval(stack, 1, 1);
+  }
+
+  /**
+   * Returns the number of instructions dispatched for one call.
+   */
+  long count(String name, int n) {
+    long start = ExecutionStats.getInstructionCount();
+    run(name, n);
+    return ExecutionStats.getInstructionCount() - start;
+  }
+
+  /**
+   * Returns the time in nanoseconds taken by one call.
+   */
+  long time(String name, int n) {
+    for (int i = 0; i < WARMUP_ROUNDS; i++) {
+      run(name, n);
+    }
+    long t0 = System.nanoTime();
+    run(name, n);
+    return System.nanoTime() - t0;
+  }
+
+  /**
+   * Runs in the child VM: prints the time per iteration of each function
+   * for the three variants, one line per function.
+   */
+  static void child(int iterations) throws Exception {
+    DispatchCountBenchmark plain = new DispatchCountBenchmark(false, false);
+    DispatchCountBenchmark optimized = new DispatchCountBenchmark(true, false);
+    DispatchCountBenchmark register = new DispatchCountBenchmark(true, true);
+    for (int i = 0; i < FUNCTIONS.length; i++) {
+      String name = FUNCTIONS[i];
+      System.out.println(plain.time(name, iterations) / (double) iterations + " -> "
+          + optimized.time(name, iterations) / (double) iterations + " -> "
+          + register.time(name, iterations) / (double) iterations);
+    }
+  }
+
+  /**
+   * Starts a child VM measuring the times and returns its output lines.
+   */
+  static String[] times(int iterations) throws Exception {
+    Process process = new ProcessBuilder(System.getProperty("java.home")
+        + File.separator + "bin" + File.separator + "java",
+        "-cp", System.getProperty("java.class.path"),
+        "-Dminijoe.jit.threshold=-1",
+        DispatchCountBenchmark.class.getName(), "--time",
+        String.valueOf(iterations)).start();
+    BufferedReader reader = new BufferedReader(
+        new InputStreamReader(process.getInputStream()));
+    String[] lines = new String[FUNCTIONS.length];
+    for (int i = 0; i < lines.length; i++) {
+      lines[i] = reader.readLine();
+    }
+    if (process.waitFor() != 0 || lines[lines.length - 1] == null) {
+      throw new IllegalStateException("child VM failed");
+    }
+    return lines;
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (args.length > 1 && args[0].equals("--time")) {
+      child(Integer.parseInt(args[1]));
+      return;
+    }
+    // must be set before ExecutionStats is initialized
+    System.setProperty("minijoe.stats", "true");
+
+    int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+    DispatchCountBenchmark plain = new DispatchCountBenchmark(false, false);
+    DispatchCountBenchmark optimized = new DispatchCountBenchmark(true, false);
+    DispatchCountBenchmark register = new DispatchCountBenchmark(true, true);
+    String[] times = times(iterations);
+
+    for (int i = 0; i < FUNCTIONS.length; i++) {
+      String name = FUNCTIONS[i];
+      long before = plain.count(name, iterations);
+      long after = optimized.count(name, iterations);
+      long registerCount = register.count(name, iterations);
+
+      System.out.println(name + ": " + before + " -> " + after + " -> "
+          + registerCount + " instructions (" + (100 - after * 100 / before)
+          + "% / " + (100 - registerCount * 100 / before) + "% fewer), "
+          + times[i] + " ns/iteration");
+    }
+  }
+}
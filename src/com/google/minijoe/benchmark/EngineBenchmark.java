@@ -0,0 +1,513 @@
+// Copyright 2008 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.minijoe.benchmark;
+
+import com.google.minijoe.compiler.Lexer;
+import com.google.minijoe.compiler.Parser;
+import com.google.minijoe.sys.Eval;
+import com.google.minijoe.sys.JsFunction;
+import com.google.minijoe.sys.JsObject;
+import com.google.minijoe.sys.JsSystem;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.Vector;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Benchmark suite for the compiler and the interpreter, modeled on JMH
+ * (average time mode with the GC profiler):
+ *
+ * <ul>
+ * <li>parse and compile: Lexer and Parser, and the full pipeline through
+ *   CodeGenerationVisitor, for small, medium and large scripts;
+ * <li>exec: JsFunction.exec() of programs calling classic workloads
+ *   (recursive fib, n-body floating point, string building, object
+ *   graphs, array sorting and closures);
+ * <li>createGlobal: Eval.createGlobal() and JsSystem.createGlobal().
+ * </ul>
+ *
+ * Each benchmark runs warmup iterations followed by measurement
+ * iterations of a fixed duration. Besides the time per operation, the
+ * bytes allocated per operation, the allocation rate and the number of
+ * collections are reported. Results can be written as JSON in the format
+ * of JMH (-rf json), so the usual JMH tools can be used for visualization,
+ * and compared against the results of an earlier revision (-compare).
+ *
+ * Usage: EngineBenchmark [-wi warmupIterations] [-i iterations]
+ *   [-r iterationMillis] [-rff result.json] [-compare baseline.json]
+ *   [regex]
+ */
+public class EngineBenchmark {
+
+  static final String WORKLOADS =
+      "function fib(n) {\n"
+      + "  return n < 2 ? n : fib(n - 1) + fib(n - 2);\n"
+      + "}\n"
+      + "function body(x, y, z, vx, vy, vz, mass) {\n"
+      + "  return {x: x, y: y, z: z, vx: vx, vy: vy, vz: vz, mass: mass};\n"
+      + "}\n"
+      + "function nbody(steps) {\n"
+      + "  var bodies = [body(0, 0, 0, 0, 0, 0, 39.47),\n"
+      + "      body(4.84, -1.16, -0.10, 0.60, 2.81, -0.02, 0.037),\n"
+      + "      body(8.34, 4.12, -0.40, -1.01, 1.82, 0.008, 0.011),\n"
+      + "      body(12.89, -15.11, -0.22, 1.08, 0.86, -0.01, 0.0017),\n"
+      + "      body(15.37, -25.91, 0.17, 0.97, 0.59, -0.03, 0.002)];\n"
+      + "  var n = bodies.length, dt = 0.01;\n"
+      + "  for (var s = 0; s < steps; s++) {\n"
+      + "    for (var i = 0; i < n; i++) {\n"
+      + "      var a = bodies[i];\n"
+      + "      for (var j = i + 1; j < n; j++) {\n"
+      + "        var b = bodies[j];\n"
+      + "        var dx = a.x - b.x, dy = a.y - b.y, dz = a.z - b.z;\n"
+      + "        var d2 = dx * dx + dy * dy + dz * dz;\n"
+      + "        var mag = dt / (d2 * Math.sqrt(d2));\n"
+      + "        a.vx -= dx * b.mass * mag;\n"
+      + "        a.vy -= dy * b.mass * mag;\n"
+      + "        a.vz -= dz * b.mass * mag;\n"
+      + "        b.vx += dx * a.mass * mag;\n"
+      + "        b.vy += dy * a.mass * mag;\n"
+      + "        b.vz += dz * a.mass * mag;\n"
+      + "      }\n"
+      + "    }\n"
+      + "    for (var k = 0; k < n; k++) {\n"
+      + "      var c = bodies[k];\n"
+      + "      c.x += dt * c.vx;\n"
+      + "      c.y += dt * c.vy;\n"
+      + "      c.z += dt * c.vz;\n"
+      + "    }\n"
+      + "  }\n"
+      + "  return bodies[0].x;\n"
+      + "}\n"
+      + "function strings(n) {\n"
+      + "  var s = \"\", parts = [];\n"
+      + "  for (var i = 0; i < n; i++) {\n"
+      + "    s += \"item \" + i + \", \";\n"
+      + "    parts.push(i);\n"
+      + "  }\n"
+      + "  return s.length + parts.join(\"-\").length;\n"
+      + "}\n"
+      + "function tree(depth) {\n"
+      + "  return depth == 0 ? {value: 1, left: null, right: null}\n"
+      + "      : {value: depth, left: tree(depth - 1), right: tree(depth - 1)};\n"
+      + "}\n"
+      + "function walk(node) {\n"
+      + "  return node == null ? 0 : node.value + walk(node.left) + walk(node.right);\n"
+      + "}\n"
+      + "function sorting(n) {\n"
+      + "  var a = [], seed = 42;\n"
+      + "  for (var i = 0; i < n; i++) {\n"
+      + "    seed = (seed * 1103515245 + 12345) % 2147483648;\n"
+      + "    a.push(seed % 10000);\n"
+      + "  }\n"
+      + "  a.sort(function(x, y) { return x - y; });\n"
+      + "  return a[0] + a[n - 1];\n"
+      + "}\n"
+      + "function closures(n) {\n"
+      + "  function counter(start) {\n"
+      + "    var c = start;\n"
+      + "    return function() { return ++c; };\n"
+      + "  }\n"
+      + "  var counters = [], sum = 0;\n"
+      + "  for (var i = 0; i < n; i++) {\n"
+      + "    counters.push(counter(i));\n"
+      + "  }\n"
+      + "  for (var j = 0; j < 10; j++) {\n"
+      + "    for (var k = 0; k < n; k++) {\n"
+      + "      sum += counters[k]();\n"
+      + "    }\n"
+      + "  }\n"
+      + "  return sum;\n"
+      + "}\n";
+
+  /** Workload names and the programs executed by the exec benchmarks. */
+  static final String[][] EXEC = {
+    {"fib", "fib(20);"},
+    {"nbody", "nbody(100);"},
+    {"strings", "strings(2000);"},
+    {"objects", "walk(tree(10));"},
+    {"sort", "sorting(2000);"},
+    {"closures", "closures(500);"},
+  };
+
+  static final String SMALL_SCRIPT =
+      "function fib(n) {\n"
+      + "  return n < 2 ? n : fib(n - 1) + fib(n - 2);\n"
+      + "}\n"
+      + "fib(10);\n";
+
+  /** The large script consists of this many copies of the medium script. */
+  static final int LARGE_COPIES = 40;
+
+  static final String PREFIX = EngineBenchmark.class.getName() + ".";
+
+  /** Keeps benchmark results alive, like the JMH Blackhole. */
+  static volatile Object sink;
+
+  int warmupIterations = 5;
+  int iterations = 5;
+  long iterationMillis = 1000;
+
+  /**
+   * A benchmarked operation.
+   */
+  abstract static class Benchmark {
+    final String name;
+    final String paramName;
+    final String param;
+
+    Benchmark(String name, String paramName, String param) {
+      this.name = name;
+      this.paramName = paramName;
+      this.param = param;
+    }
+
+    String label() {
+      return param == null ? name : name + ":" + param;
+    }
+
+    abstract Object run() throws Exception;
+  }
+
+  /**
+   * Measurements of one benchmark; one value per measurement iteration.
+   */
+  static class Result {
+    final Benchmark benchmark;
+    final double[] micros;
+    final double[] bytesPerOp;
+    final double[] allocRate;
+    final double[] gcCount;
+
+    Result(Benchmark benchmark, int iterations) {
+      this.benchmark = benchmark;
+      micros = new double[iterations];
+      bytesPerOp = new double[iterations];
+      allocRate = new double[iterations];
+      gcCount = new double[iterations];
+    }
+  }
+
+  static byte[] compile(String source) throws Exception {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    Eval.compile(source, baos);
+    return baos.toByteArray();
+  }
+
+  static Object exec(byte[] code, JsObject global) throws IOException {
+    return JsFunction.exec(new DataInputStream(new ByteArrayInputStream(code)), global);
+  }
+
+  /**
+   * Returns all benchmarks in the suite.
+   */
+  static Vector createBenchmarks() throws Exception {
+    Vector benchmarks = new Vector();
+
+    StringBuffer large = new StringBuffer();
+    for (int i = 0; i < LARGE_COPIES; i++) {
+      large.append(WORKLOADS);
+    }
+    String[][] scripts = {
+      {"small", SMALL_SCRIPT},
+      {"medium", WORKLOADS},
+      {"large", large.toString()},
+    };
+    for (int i = 0; i < scripts.length; i++) {
+      final String source = scripts[i][1];
+      benchmarks.addElement(new Benchmark("parse", "size", scripts[i][0]) {
+        Object run() throws Exception {
+          return new Parser(new Lexer(source)).parseProgram();
+        }
+      });
+      benchmarks.addElement(new Benchmark("compile", "size", scripts[i][0]) {
+        Object run() throws Exception {
+          return compile(source);
+        }
+      });
+    }
+
+    final JsObject global = JsSystem.createGlobal();
+    exec(compile(WORKLOADS), global);
+    for (int i = 0; i < EXEC.length; i++) {
+      final byte[] code = compile(EXEC[i][1]);
+      benchmarks.addElement(new Benchmark("exec", "workload", EXEC[i][0]) {
+        Object run() throws Exception {
+          return exec(code, global);
+        }
+      });
+    }
+
+    benchmarks.addElement(new Benchmark("createGlobal", "global", "Eval") {
+      Object run() {
+        return Eval.createGlobal();
+      }
+    });
+    benchmarks.addElement(new Benchmark("createGlobal", "global", "JsSystem") {
+      Object run() {
+        return JsSystem.createGlobal();
+      }
+    });
+    return benchmarks;
+  }
+
+  private static long allocatedBytes() {
+    return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+        .getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  private static long gcCount() {
+    long count = 0;
+    for (Iterator i = ManagementFactory.getGarbageCollectorMXBeans().iterator(); i.hasNext();) {
+      count += Math.max(0, ((GarbageCollectorMXBean) i.next()).getCollectionCount());
+    }
+    return count;
+  }
+
+  /**
+   * Runs operations for the iteration time, recording the measurements at
+   * the given index of the result if it is not null.
+   */
+  void iteration(Benchmark benchmark, Result result, int index) throws Exception {
+    long deadline = System.nanoTime() + iterationMillis * 1000000L;
+    long ops = 0;
+    long gc0 = gcCount();
+    long bytes0 = allocatedBytes();
+    long t0 = System.nanoTime();
+    long t1;
+    do {
+      sink = benchmark.run();
+      ops++;
+      t1 = System.nanoTime();
+    } while (t1 < deadline);
+    long bytes = allocatedBytes() - bytes0;
+
+    if (result != null) {
+      result.micros[index] = (t1 - t0) / 1000.0 / ops;
+      result.bytesPerOp[index] = bytes / (double) ops;
+      result.allocRate[index] = bytes / 1048576.0 / ((t1 - t0) / 1e9);
+      result.gcCount[index] = gcCount() - gc0;
+    }
+  }
+
+  Result run(Benchmark benchmark) throws Exception {
+    for (int i = 0; i < warmupIterations; i++) {
+      iteration(benchmark, null, i);
+    }
+    Result result = new Result(benchmark, iterations);
+    for (int i = 0; i < iterations; i++) {
+      iteration(benchmark, result, i);
+    }
+    return result;
+  }
+
+  static double mean(double[] values) {
+    double sum = 0;
+    for (int i = 0; i < values.length; i++) {
+      sum += values[i];
+    }
+    return sum / values.length;
+  }
+
+  /**
+   * Returns the standard deviation of the given values, used as score
+   * error.
+   */
+  static double error(double[] values) {
+    if (values.length < 2) {
+      return Double.NaN;
+    }
+    double mean = mean(values);
+    double sum = 0;
+    for (int i = 0; i < values.length; i++) {
+      sum += (values[i] - mean) * (values[i] - mean);
+    }
+    return Math.sqrt(sum / (values.length - 1));
+  }
+
+  static String number(double d) {
+    return Double.isNaN(d) || Double.isInfinite(d) ? "\"NaN\"" : String.valueOf(d);
+  }
+
+  static void writeMetric(PrintWriter w, String indent, double[] values, String unit) {
+    double score = mean(values);
+    double error = error(values);
+    w.println("{");
+    w.println(indent + "  \"score\" : " + number(score) + ",");
+    w.println(indent + "  \"scoreError\" : " + number(error) + ",");
+    w.println(indent + "  \"scoreConfidence\" : [" + number(score - error) + ", "
+        + number(score + error) + "],");
+    w.println(indent + "  \"scoreUnit\" : \"" + unit + "\",");
+    w.print(indent + "  \"rawData\" : [[");
+    for (int i = 0; i < values.length; i++) {
+      w.print((i == 0 ? "" : ", ") + number(values[i]));
+    }
+    w.println("]]");
+    w.print(indent + "}");
+  }
+
+  /**
+   * Writes the results as JSON in the format of the JMH result files.
+   */
+  void writeJson(Vector results, String file) throws IOException {
+    PrintWriter w = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+    w.println("[");
+    for (int i = 0; i < results.size(); i++) {
+      Result r = (Result) results.elementAt(i);
+      w.println("  {");
+      w.println("    \"benchmark\" : \"" + PREFIX + r.benchmark.name + "\",");
+      w.println("    \"mode\" : \"avgt\",");
+      w.println("    \"threads\" : 1,");
+      w.println("    \"forks\" : 0,");
+      w.println("    \"jdkVersion\" : \"" + System.getProperty("java.version") + "\",");
+      w.println("    \"warmupIterations\" : " + warmupIterations + ",");
+      w.println("    \"warmupTime\" : \"" + iterationMillis + " ms\",");
+      w.println("    \"measurementIterations\" : " + iterations + ",");
+      w.println("    \"measurementTime\" : \"" + iterationMillis + " ms\",");
+      if (r.benchmark.param != null) {
+        w.println("    \"params\" : {");
+        w.println("      \"" + r.benchmark.paramName + "\" : \"" + r.benchmark.param + "\"");
+        w.println("    },");
+      }
+      w.print("    \"primaryMetric\" : ");
+      writeMetric(w, "    ", r.micros, "us/op");
+      w.println(",");
+      w.println("    \"secondaryMetrics\" : {");
+      w.print("      \"\u00b7gc.alloc.rate\" : ");
+      writeMetric(w, "      ", r.allocRate, "MB/sec");
+      w.println(",");
+      w.print("      \"\u00b7gc.alloc.rate.norm\" : ");
+      writeMetric(w, "      ", r.bytesPerOp, "B/op");
+      w.println(",");
+      w.print("      \"\u00b7gc.count\" : ");
+      writeMetric(w, "      ", r.gcCount, "counts");
+      w.println();
+      w.println("    }");
+      w.println(i == results.size() - 1 ? "  }" : "  },");
+    }
+    w.println("]");
+    w.close();
+  }
+
+  /**
+   * Reads the primary scores from a JSON result file written by this class
+   * or by JMH, keyed by benchmark name and parameter as in label().
+   */
+  static Hashtable readScores(String file) throws IOException {
+    InputStream is = new FileInputStream(file);
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    byte[] buf = new byte[8192];
+    int count;
+    while ((count = is.read(buf)) > 0) {
+      baos.write(buf, 0, count);
+    }
+    is.close();
+    String json = new String(baos.toByteArray(), "UTF-8");
+
+    Hashtable scores = new Hashtable();
+    Matcher m = Pattern.compile("\"benchmark\"\\s*:\\s*\"([^\"]*)\"(.*?)"
+        + "\"primaryMetric\"\\s*:\\s*\\{\\s*\"score\"\\s*:\\s*([-0-9.eE]+)",
+        Pattern.DOTALL).matcher(json);
+    Pattern param = Pattern.compile("\"params\"\\s*:\\s*\\{\\s*\"[^\"]*\"\\s*:\\s*\"([^\"]*)\"");
+    while (m.find()) {
+      String name = m.group(1);
+      if (name.startsWith(PREFIX)) {
+        name = name.substring(PREFIX.length());
+      }
+      Matcher p = param.matcher(m.group(2));
+      scores.put(p.find() ? name + ":" + p.group(1) : name, Double.valueOf(m.group(3)));
+    }
+    return scores;
+  }
+
+  static String pad(String s, int width) {
+    StringBuffer buf = new StringBuffer(s);
+    while (buf.length() < width) {
+      buf.append(' ');
+    }
+    return buf.toString();
+  }
+
+  static String format(double d) {
+    return String.valueOf(Math.round(d * 1000) / 1000.0);
+  }
+
+  public static void main(String[] args) throws Exception {
+    EngineBenchmark suite = new EngineBenchmark();
+    String resultFile = null;
+    String baselineFile = null;
+    Pattern filter = null;
+
+    for (int i = 0; i < args.length; i++) {
+      String arg = args[i];
+      if ("-wi".equals(arg)) {
+        suite.warmupIterations = Integer.parseInt(args[++i]);
+      } else if ("-i".equals(arg)) {
+        suite.iterations = Integer.parseInt(args[++i]);
+      } else if ("-r".equals(arg)) {
+        suite.iterationMillis = Long.parseLong(args[++i]);
+      } else if ("-rff".equals(arg)) {
+        resultFile = args[++i];
+      } else if ("-rf".equals(arg)) {
+        // only JSON is supported
+        i++;
+      } else if ("-compare".equals(arg)) {
+        baselineFile = args[++i];
+      } else {
+        filter = Pattern.compile(arg);
+      }
+    }
+
+    Hashtable baseline = baselineFile == null ? null : readScores(baselineFile);
+    Vector benchmarks = createBenchmarks();
+    Vector results = new Vector();
+
+    System.out.println(pad("Benchmark", 24) + pad("us/op", 14) + pad("error", 12)
+        + pad("B/op", 14) + (baseline == null ? "" : "vs. baseline"));
+    for (int i = 0; i < benchmarks.size(); i++) {
+      Benchmark benchmark = (Benchmark) benchmarks.elementAt(i);
+      if (filter != null && !filter.matcher(benchmark.label()).find()) {
+        continue;
+      }
+      Result r = suite.run(benchmark);
+      results.addElement(r);
+
+      double score = mean(r.micros);
+      String line = pad(benchmark.label(), 24) + pad(format(score), 14)
+          + pad(format(error(r.micros)), 12) + pad(format(mean(r.bytesPerOp)), 14);
+      Double old = baseline == null ? null : (Double) baseline.get(benchmark.label());
+      if (old != null) {
+        line += format(score / old.doubleValue()) + "x";
+      }
+      System.out.println(line);
+    }
+
+    if (resultFile != null) {
+      suite.writeJson(results, resultFile);
+    }
+  }
+}
@@ -0,0 +1,173 @@
+// Copyright 2008 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.minijoe.benchmark;
+
+import com.google.minijoe.sys.JsArray;
+import com.google.minijoe.sys.JsJson;
+import com.google.minijoe.sys.JsObject;
+import com.google.minijoe.sys.JsSystem;
+
+import java.lang.management.ManagementFactory;
+import java.util.Enumeration;
+import java.util.Iterator;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Compares the native JSON builtin against the org.json round trip it
+ * replaces: parsing into JSONObject/JSONArray and converting the result to
+ * JsObject/JsArray, and converting a JsObject tree to org.json objects for
+ * toString(). Reports the time and the allocated bytes per document.
+ *
+ * Usage: JsonBenchmark [records] [iterations]
+ */
+public class JsonBenchmark {
+
+  private static final int WARMUP_ROUNDS = 5;
+
+  interface Task {
+    Object run() throws Exception;
+  }
+
+  /**
+   * Returns a document with the given number of records, mixing integers,
+   * fractions, booleans, nested objects and strings with escapes.
+   */
+  static String document(int records) {
+    StringBuffer buf = new StringBuffer("[");
+    for (int i = 0; i < records; i++) {
+      if (i > 0) {
+        buf.append(',');
+      }
+      buf.append("{\"id\":").append(i)
+          .append(",\"name\":\"user ").append(i).append("\"")
+          .append(",\"score\":").append(i * 1.25)
+          .append(",\"active\":").append(i % 2 == 0)
+          .append(",\"tags\":[\"alpha\",\"beta\\n\\\"quoted\\\"\",null]")
+          .append(",\"position\":[").append(i % 90).append(',').append(-i % 180)
+          .append("],\"address\":{\"street\":\"Main Street ").append(i)
+          .append("\",\"zip\":\"").append(10000 + i).append("\",\"city\":\"Z\\u00fcrich\"}}");
+    }
+    return buf.append(']').toString();
+  }
+
+  /** Converts an org.json value to the corresponding JS value. */
+  static Object toJs(Object value) {
+    if (value instanceof JSONObject) {
+      JSONObject json = (JSONObject) value;
+      JsObject object = new JsObject(JsObject.OBJECT_PROTOTYPE);
+      for (Iterator i = json.keys(); i.hasNext();) {
+        String key = (String) i.next();
+        object.addVar(key.intern(), toJs(json.opt(key)));
+      }
+      return object;
+    }
+    if (value instanceof JSONArray) {
+      JSONArray json = (JSONArray) value;
+      JsArray array = new JsArray();
+      for (int i = 0; i < json.length(); i++) {
+        array.setObject(i, toJs(json.opt(i)));
+      }
+      return array;
+    }
+    if (value instanceof Number) {
+      return JsSystem.valueOf(((Number) value).doubleValue());
+    }
+    return value == JSONObject.NULL ? JsSystem.JS_NULL : value;
+  }
+
+  /** Converts a JS value to the corresponding org.json value. */
+  static Object fromJs(Object value) throws Exception {
+    if (value instanceof JsArray) {
+      JsArray array = (JsArray) value;
+      JSONArray json = new JSONArray();
+      for (int i = 0; i < array.size(); i++) {
+        json.put(fromJs(array.getObject(i)));
+      }
+      return json;
+    }
+    if (value instanceof JsObject) {
+      JsObject object = (JsObject) value;
+      JSONObject json = new JSONObject();
+      for (Enumeration e = object.keys(); e.hasMoreElements();) {
+        String key = (String) e.nextElement();
+        json.put(key, fromJs(object.getObject(key)));
+      }
+      return json;
+    }
+    return value == JsSystem.JS_NULL ? JSONObject.NULL : value;
+  }
+
+  /**
+   * Runs the task the given number of times after warming up; prints and
+   * returns the time per run in microseconds.
+   */
+  static double measure(String name, Task task, int iterations) throws Exception {
+    for (int round = 0; round <= WARMUP_ROUNDS; round++) {
+      long bytes = allocatedBytes();
+      long t0 = System.nanoTime();
+      for (int i = 0; i < iterations; i++) {
+        task.run();
+      }
+      if (round == WARMUP_ROUNDS) {
+        double us = (System.nanoTime() - t0) / 1000.0 / iterations;
+        long allocated = (allocatedBytes() - bytes) / iterations;
+        System.out.println(name + ": " + Math.round(us) + " us/op, "
+            + allocated / 1024 + " KB/op");
+        return us;
+      }
+    }
+    throw new IllegalStateException();
+  }
+
+  private static long allocatedBytes() {
+    return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+        .getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  public static void main(String[] args) throws Exception {
+    int records = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+    int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+    final String text = document(records);
+    final Object tree = JsJson.parse(text);
+    System.out.println("document: " + records + " records, " + text.length() + " chars");
+
+    double orgJson = measure("parse org.json", new Task() {
+      public Object run() throws Exception {
+        return toJs(new JSONArray(text));
+      }
+    }, iterations);
+    double builtin = measure("parse JSON", new Task() {
+      public Object run() {
+        return JsJson.parse(text);
+      }
+    }, iterations);
+    System.out.println("parse speedup: " + Math.round(orgJson / builtin * 10) / 10.0 + "x");
+
+    orgJson = measure("stringify org.json", new Task() {
+      public Object run() throws Exception {
+        return fromJs(tree).toString();
+      }
+    }, iterations);
+    builtin = measure("stringify JSON", new Task() {
+      public Object run() {
+        return JsJson.stringify(tree, null);
+      }
+    }, iterations);
+    System.out.println("stringify speedup: " + Math.round(orgJson / builtin * 10) / 10.0 + "x");
+  }
+}
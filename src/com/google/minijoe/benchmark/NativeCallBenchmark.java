@@ -0,0 +1,153 @@
+// Copyright 2008 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.minijoe.benchmark;
+
+import com.google.minijoe.sys.JsArray;
+import com.google.minijoe.sys.JsDate;
+import com.google.minijoe.sys.JsFunction;
+import com.google.minijoe.sys.JsObject;
+import com.google.minijoe.sys.JsSystem;
+import com.google.minijoe.sys.NativeMethod;
+
+/**
+ * Compares the per-call overhead of natives dispatched by id through the
+ * evalNative() methods of the receiver's class hierarchy against natives
+ * bound to a NativeMethod. Both variants run the same Java code, on a
+ * receiver three classes below JsObject, so the difference is the cost of
+ * the dispatch alone. The built-in natives are measured as well; they are
+ * all bound.
+ *
+ * Usage: NativeCallBenchmark [calls]
+ */
+public class NativeCallBenchmark {
+
+  static final int ID_INCREMENT = 1000;
+  static final int ID_BASE_NAME = 1001;
+  static final int ID_MIDDLE_NAME = 2000;
+  static final int ID_MIDDLE_SIZE = 2001;
+  static final int ID_LEAF_NAME = 3000;
+  static final int ID_LEAF_SIZE = 3001;
+
+  private static final int WARMUP_ROUNDS = 5;
+
+  /** Adds one to the first parameter. */
+  static void increment(JsArray stack, int sp) {
+    stack.setNumber(sp, stack.getNumber(sp + 2) + 1);
+  }
+
+  static class Base extends JsObject {
+    Base() {
+      super(OBJECT_PROTOTYPE);
+    }
+
+    public void evalNative(int index, JsArray stack, int sp, int parCount) {
+      switch (index) {
+        case ID_INCREMENT:
+          increment(stack, sp);
+          break;
+        case ID_BASE_NAME:
+          stack.setObject(sp, "base");
+          break;
+        default:
+          super.evalNative(index, stack, sp, parCount);
+      }
+    }
+  }
+
+  static class Middle extends Base {
+    public void evalNative(int index, JsArray stack, int sp, int parCount) {
+      switch (index) {
+        case ID_MIDDLE_NAME:
+          stack.setObject(sp, "middle");
+          break;
+        case ID_MIDDLE_SIZE:
+          stack.setNumber(sp, 2);
+          break;
+        default:
+          super.evalNative(index, stack, sp, parCount);
+      }
+    }
+  }
+
+  static class Leaf extends Middle {
+    public void evalNative(int index, JsArray stack, int sp, int parCount) {
+      switch (index) {
+        case ID_LEAF_NAME:
+          stack.setObject(sp, "leaf");
+          break;
+        case ID_LEAF_SIZE:
+          stack.setNumber(sp, 3);
+          break;
+        default:
+          super.evalNative(index, stack, sp, parCount);
+      }
+    }
+  }
+
+  static final class Increment extends NativeMethod {
+    public void invoke(JsObject thisPtr, JsArray stack, int sp, int parCount) {
+      increment(stack, sp);
+    }
+  }
+
+  private final JsArray stack = new JsArray();
+
+  /**
+   * Calls fn the given number of times with the given receiver and one
+   * parameter; returns the time taken per call in nanoseconds.
+   */
+  double time(JsObject thisPtr, JsFunction fn, Object parameter, int calls) {
+    for (int round = 0; round <= WARMUP_ROUNDS; round++) {
+      long t0 = System.nanoTime();
+      for (int i = 0; i < calls; i++) {
+        stack.setObject(0, thisPtr);
+        stack.setObject(1, fn);
+        stack.setObject(2, parameter);
+        fn.eval(stack, 0, 1);
+      }
+      if (round == WARMUP_ROUNDS) {
+        return (System.nanoTime() - t0) / (double) calls;
+      }
+    }
+    throw new IllegalStateException();
+  }
+
+  public static void main(String[] args) throws Exception {
+    int calls = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+    NativeCallBenchmark benchmark = new NativeCallBenchmark();
+    Double one = new Double(1);
+
+    Leaf leaf = new Leaf();
+    double byId = benchmark.time(leaf, new JsFunction(ID_INCREMENT, 1), one, calls);
+    double bound = benchmark.time(leaf, new JsFunction(new Increment(), 1), one, calls);
+    System.out.println("increment on a third level receiver: " + byId
+        + " ns/call by id -> " + bound + " ns/call bound");
+
+    JsObject global = JsSystem.createGlobal();
+    JsObject math = (JsObject) global.getObject("Math");
+    JsDate date = new JsDate(JsDate.DATE_PROTOTYPE);
+    Object[][] builtins = {
+        {"Math.abs", math, math.getObject("abs"), one},
+        {"isNaN", global, global.getObject("isNaN"), one},
+        {"Date.prototype.getTime", date, date.getObject("getTime"), null},
+    };
+    for (int i = 0; i < builtins.length; i++) {
+      Object[] builtin = builtins[i];
+      System.out.println(builtin[0] + ": " + benchmark.time((JsObject) builtin[1],
+          (JsFunction) builtin[2], builtin[3], calls) + " ns/call");
+    }
+  }
+}
@@ -0,0 +1,142 @@
+// Copyright 2008 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.minijoe.benchmark;
+
+import com.google.minijoe.sys.NumberConversion;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Compares NumberConversion against the conversions JsSystem used before,
+ * Long.toString()/Double.toString() for numbers and Double.parseDouble()
+ * for strings, on integers, large integers and fractions. Reports the time
+ * and the allocated bytes per conversion.
+ *
+ * Usage: NumberConversionBenchmark [conversions]
+ */
+public class NumberConversionBenchmark {
+
+  private static final int WARMUP_ROUNDS = 5;
+
+  /** Number of distinct inputs per workload. */
+  private static final int INPUTS = 4096;
+
+  /** Prevents the conversions from being optimized away. */
+  static int sink;
+
+  static String legacyToString(double d) {
+    if (d == (long) d) {
+      return Long.toString((long) d);
+    }
+    return Double.toString(d);
+  }
+
+  static double legacyToNumber(String s) {
+    try {
+      return Double.parseDouble(s);
+    } catch (NumberFormatException e) {
+      return Double.NaN;
+    }
+  }
+
+  abstract static class Workload {
+    final String name;
+
+    Workload(String name) {
+      this.name = name;
+    }
+
+    abstract void run(int i);
+  }
+
+  /**
+   * Runs the workload the given number of times after warming up; returns
+   * the time per conversion in nanoseconds and prints it with the
+   * allocation rate.
+   */
+  static double measure(Workload workload, int conversions) {
+    for (int round = 0; round <= WARMUP_ROUNDS; round++) {
+      long bytes = allocatedBytes();
+      long t0 = System.nanoTime();
+      for (int i = 0; i < conversions; i++) {
+        workload.run(i & (INPUTS - 1));
+      }
+      if (round == WARMUP_ROUNDS) {
+        double ns = (System.nanoTime() - t0) / (double) conversions;
+        double allocated = (allocatedBytes() - bytes) / (double) conversions;
+        System.out.println("  " + workload.name + ": " + Math.round(ns * 10) / 10.0
+            + " ns, " + Math.round(allocated) + " bytes");
+        return ns;
+      }
+    }
+    throw new IllegalStateException();
+  }
+
+  private static long allocatedBytes() {
+    return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+        .getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  static void compare(String title, Workload legacy, Workload current, int conversions) {
+    System.out.println(title);
+    double before = measure(legacy, conversions);
+    double after = measure(current, conversions);
+    System.out.println("  speedup: " + Math.round(before / after * 10) / 10.0 + "x");
+  }
+
+  public static void main(String[] args) {
+    int conversions = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+
+    final double[][] numbers = new double[3][INPUTS];
+    final String[][] strings = new String[3][INPUTS];
+    java.util.Random random = new java.util.Random(1);
+    for (int i = 0; i < INPUTS; i++) {
+      numbers[0][i] = i % 1000;
+      numbers[1][i] = 1000000 + random.nextInt(Integer.MAX_VALUE - 1000000);
+      numbers[2][i] = random.nextInt(1000000) / 100.0;
+      for (int j = 0; j < 3; j++) {
+        strings[j][i] = NumberConversion.toString(numbers[j][i]);
+      }
+    }
+    String[] names = {"small integers", "large integers", "fractions"};
+
+    for (int j = 0; j < 3; j++) {
+      final double[] input = numbers[j];
+      compare("number to string, " + names[j], new Workload("legacy") {
+        void run(int i) {
+          sink += legacyToString(input[i]).length();
+        }
+      }, new Workload("NumberConversion") {
+        void run(int i) {
+          sink += NumberConversion.toString(input[i]).length();
+        }
+      }, conversions);
+    }
+
+    for (int j = 0; j < 3; j++) {
+      final String[] input = strings[j];
+      compare("string to number, " + names[j], new Workload("legacy") {
+        void run(int i) {
+          sink += (int) legacyToNumber(input[i]);
+        }
+      }, new Workload("NumberConversion") {
+        void run(int i) {
+          sink += (int) NumberConversion.toNumber(input[i]);
+        }
+      }, conversions);
+    }
+  }
+}
@@ -0,0 +1,109 @@
+// Copyright 2008 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.minijoe.benchmark;
+
+import com.google.minijoe.sys.Eval;
+import com.google.minijoe.sys.JsArray;
+import com.google.minijoe.sys.JsFunction;
+import com.google.minijoe.sys.JsObject;
+import com.google.minijoe.sys.JsSystem;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Measures time and heap allocation per iteration of numeric loops: a plain
+ * for loop over local variables and a Number.times() callback as in
+ * test/Number.times.js. Both should not allocate at all per iteration,
+ * since numbers stay unboxed on the operand stack.
+ *
+ * The allocation is determined as the difference between a short and a
+ * long run, so fixed costs such as the call itself cancel out.
+ *
+ * Usage: NumberLoopBenchmark [iterations]
+ */
+public class NumberLoopBenchmark {
+
+  static final String SCRIPT =
+      "function loop(n) {\n"
+      + "  var t = 0;\n"
+      + "  for (var i = 0; i < n; i++) {\n"
+      + "    t = t + i % 7;\n"
+      + "    if (t == 1000) t = t - 1;\n"
+      + "  }\n"
+      + "  return t;\n"
+      + "}\n"
+      + "function times(n) {\n"
+      + "  Number(n).times(function(i) { var x = i * 2; x++; return x; });\n"
+      + "}\n";
+
+  private static final int WARMUP_ROUNDS = 20;
+
+  private final JsObject global;
+  private final JsArray stack = new JsArray();
+
+  NumberLoopBenchmark() throws Exception {
+    global = JsSystem.createGlobal();
+    Eval.eval(SCRIPT, global);
+  }
+
+  /**
+   * Calls the global function with the given name with n as parameter.
+   */
+  void run(String name, int n) {
+    JsFunction fn = (JsFunction) global.getObject(name);
+    stack.setObject(0, global);
+    stack.setObject(1, global);
+    stack.setObject(2, fn);
+    stack.setNumber(3, n);
+    fn.eval(stack, 1, 1);
+  }
+
+  private static long allocatedBytes() {
+    return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+        .getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  /**
+   * Returns the number of bytes allocated by one call with n iterations.
+   */
+  long measureAllocation(String name, int n) {
+    long start = allocatedBytes();
+    run(name, n);
+    return allocatedBytes() - start;
+  }
+
+  void report(String name, int iterations) {
+    for (int i = 0; i < WARMUP_ROUNDS; i++) {
+      run(name, iterations);
+    }
+
+    long t0 = System.nanoTime();
+    run(name, iterations);
+    long nanos = System.nanoTime() - t0;
+
+    long shortRun = measureAllocation(name, 10);
+    long longRun = measureAllocation(name, iterations + 10);
+
+    System.out.println(name + ": " + (nanos / (double) iterations) + " ns/iteration, "
+        + ((longRun - shortRun) / (double) iterations) + " bytes/iteration");
+  }
+
+  public static void main(String[] args) throws Exception {
+    int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+    NumberLoopBenchmark benchmark = new NumberLoopBenchmark();
+    benchmark.report("loop", iterations);
+    benchmark.report("times", iterations);
+  }
+}
@@ -0,0 +1,191 @@
+// Copyright 2008 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+
+package com.google.minijoe.benchmark;
+
+import com.google.minijoe.sys.Eval;
+import com.google.minijoe.sys.JsSystem;
+import com.google.minijoe.sys.Realm;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Measures the cost of setting up a global environment. Cold start runs
+ * child VMs that create the first global and the first realm; the warm
+ * numbers are the per-operation cost of JsSystem.createGlobal(),
+ * Eval.createGlobal() and new Realm(). Finally compares a realm that
+ * evaluates a library script itself with one that finds the library in the
+ * shared global because it was given as bootstrap script.
+ *
+ * Usage: StartupBenchmark [cold runs] [iterations]
+ */
+public class StartupBenchmark {
+
+  private static final int WARMUP_ROUNDS = 5;
+
+  /** Library for the bootstrap comparison. */
+  static final String LIBRARY = library(200);
+
+  interface Task {
+    Object run() throws Exception;
+  }
+
+  static String library(int functions) {
+    StringBuffer buf = new StringBuffer("var lib = {};\n");
+    for (int i = 0; i < functions; i++) {
+      buf.append("lib.f").append(i).append(" = function(a, b) { var s = 0; ")
+          .append("for (var i = a; i < b; i++) { s += i * ").append(i)
+          .append("; } return s; };\n");
+    }
+    return buf.toString();
+  }
+
+  /**
+   * Runs in the child VM: prints the milliseconds spent on the first
+   * global, the first realm including the shared builtins, and the first
+   * script evaluation.
+   */
+  static void child() throws Exception {
+    long t0 = System.nanoTime();
+    Eval.createGlobal();
+    long t1 = System.nanoTime();
+    Realm.freezeBuiltins();
+    Realm realm = new Realm();
+    long t2 = System.nanoTime();
+    realm.eval("lib.f1(0, 10)");
+    long t3 = System.nanoTime();
+    System.out.println((t1 - t0) / 1000000.0 + " " + (t2 - t1) / 1000000.0 + " "
+        + (t3 - t2) / 1000000.0);
+  }
+
+  /**
+   * Starts the given number of child VMs and prints the average times of
+   * their first global, realm and evaluation, and of the whole process.
+   */
+  static void cold(int runs, String bootstrap) throws Exception {
+    String java = System.getProperty("java.home") + File.separator + "bin"
+        + File.separator + "java";
+    double[] sums = new double[4];
+    for (int run = 0; run < runs; run++) {
+      long t0 = System.nanoTime();
+      Process process = new ProcessBuilder(java,
+          "-cp", System.getProperty("java.class.path"),
+          "-Dminijoe.bootstrap=" + bootstrap,
+          StartupBenchmark.class.getName(), "--child").start();
+      BufferedReader reader = new BufferedReader(
+          new InputStreamReader(process.getInputStream()));
+      String line = null;
+      String last = null;
+      while ((line = reader.readLine()) != null) {
+        last = line;
+      }
+      if (process.waitFor() != 0 || last == null) {
+        throw new IllegalStateException("child VM failed");
+      }
+      sums[3] += (System.nanoTime() - t0) / 1000000.0;
+      String[] parts = last.split(" ");
+      for (int i = 0; i < 3; i++) {
+        sums[i] += Double.parseDouble(parts[i]);
+      }
+    }
+    String[] names = {"first Eval.createGlobal", "first Realm", "first eval", "process"};
+    for (int i = 0; i < 4; i++) {
+      System.out.println("cold " + names[i] + ": " + Math.round(sums[i] / runs * 10) / 10.0
+          + " ms");
+    }
+  }
+
+  /**
+   * Runs the task the given number of times after warming up; prints and
+   * returns the time per run in microseconds.
+   */
+  static double measure(String name, Task task, int iterations) throws Exception {
+    for (int round = 0; round <= WARMUP_ROUNDS; round++) {
+      long bytes = allocatedBytes();
+      long t0 = System.nanoTime();
+      for (int i = 0; i < iterations; i++) {
+        task.run();
+      }
+      if (round == WARMUP_ROUNDS) {
+        double us = (System.nanoTime() - t0) / 1000.0 / iterations;
+        long allocated = (allocatedBytes() - bytes) / iterations;
+        System.out.println(name + ": " + Math.round(us * 10) / 10.0 + " us/op, "
+            + allocated / 1024 + " KB/op");
+        return us;
+      }
+    }
+    throw new IllegalStateException();
+  }
+
+  private static long allocatedBytes() {
+    return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+        .getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (args.length > 0 && args[0].equals("--child")) {
+      child();
+      return;
+    }
+    int runs = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+    int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+
+    File file = File.createTempFile("bootstrap", ".js");
+    file.deleteOnExit();
+    OutputStream out = new FileOutputStream(file);
+    out.write(LIBRARY.getBytes("UTF-8"));
+    out.close();
+
+    cold(runs, file.getPath());
+
+    System.setProperty("minijoe.bootstrap", file.getPath());
+    Realm.freezeBuiltins();
+    measure("JsSystem.createGlobal", new Task() {
+      public Object run() {
+        return JsSystem.createGlobal();
+      }
+    }, iterations);
+    measure("Eval.createGlobal", new Task() {
+      public Object run() {
+        return Eval.createGlobal();
+      }
+    }, iterations);
+    measure("new Realm", new Task() {
+      public Object run() {
+        return new Realm();
+      }
+    }, iterations);
+
+    double perRealm = measure("realm evaluating the library", new Task() {
+      public Object run() throws Exception {
+        Realm realm = new Realm();
+        realm.eval(LIBRARY);
+        return realm.eval("lib.f1(0, 10)");
+      }
+    }, iterations);
+    double shared = measure("realm with bootstrap library", new Task() {
+      public Object run() throws Exception {
+        return new Realm().eval("lib.f1(0, 10)");
+      }
+    }, iterations);
+    System.out.println("bootstrap speedup: " + Math.round(perRealm / shared * 10) / 10.0 + "x");
+  }
+}
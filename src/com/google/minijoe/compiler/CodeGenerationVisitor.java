@@ -48,6 +48,7 @@ import com.google.minijoe.compiler.ast.ObjectLiteral;
 import com.google.minijoe.compiler.ast.ObjectLiteralProperty;
 import com.google.minijoe.compiler.ast.Program;
 import com.google.minijoe.compiler.ast.PropertyExpression;
+import com.google.minijoe.compiler.ast.RegExpLiteral;
 import com.google.minijoe.compiler.ast.ReturnStatement;
 import com.google.minijoe.compiler.ast.Statement;
 import com.google.minijoe.compiler.ast.StringLiteral;
@@ -84,6 +85,7 @@ public class CodeGenerationVisitor implements Visitor {
   public static final byte BLOCK_STRING_LITERALS = (byte) 0x30;
   public static final byte BLOCK_REGEX_LITERALS = (byte) 0x40;
   public static final byte BLOCK_FUNCTION_LITERALS = (byte) 0x50;
+  public static final byte BLOCK_INDEXED_FUNCTION_LITERALS = (byte) 0x51;
   public static final byte BLOCK_LOCAL_VARIABLE_NAMES = (byte) 0x60;
   public static final byte BLOCK_CODE = (byte) 0x80;
   public static final byte BLOCK_LINENUMBER = (byte) 0xE0;
@@ -102,6 +104,7 @@ public class CodeGenerationVisitor implements Visitor {
   private Vector functionLiterals = new Vector();
   private Vector numberLiterals = new Vector();
   private Vector stringLiterals = new Vector();
+  private Vector regExpLiterals = new Vector();
 
   private Hashtable localVariableTable = new Hashtable();
 
@@ -122,6 +125,15 @@ public class CodeGenerationVisitor implements Visitor {
   
   private boolean enableLocalsOptimization = false;
 
+  /** Set if the generated code is run through the peephole optimizer. */
+  private boolean optimize = true;
+
+  /**
+   * Set if register instructions are generated for functions with fast
+   * locals (bytecode format 1).
+   */
+  private boolean registers = Config.REGISTER_BYTECODE;
+
   CodeGenerationVisitor parent;
 
   private class LineNumber {
@@ -140,6 +152,26 @@ public class CodeGenerationVisitor implements Visitor {
     this.globalStringTable = new Vector();
   }
 
+  /**
+   * Creates a code generator; if optimize is false, the code is not run
+   * through the peephole optimizer. Used to measure the effect of the
+   * optimizer.
+   */
+  public CodeGenerationVisitor(DataOutputStream stream, boolean optimize) {
+    this(stream);
+    this.optimize = optimize;
+  }
+
+  /**
+   * Creates a code generator that generates register instructions if
+   * registers is set, independent of the system property.
+   */
+  public CodeGenerationVisitor(DataOutputStream stream, boolean optimize,
+      boolean registers) {
+    this(stream, optimize);
+    this.registers = registers;
+  }
+
   public CodeGenerationVisitor( CodeGenerationVisitor parent, FunctionLiteral function,
       DataOutputStream dos) throws CompilerException {
     this.parent = parent;
@@ -147,6 +179,8 @@ public class CodeGenerationVisitor implements Visitor {
     this.globalStringTable = parent.globalStringTable;
     this.dos = dos;
     this.enableLocalsOptimization = function.enableLocalsOptimization;
+    this.optimize = parent.optimize;
+    this.registers = parent.registers;
 
     for (int i = 0; i < function.variables.length; i++) {
       Identifier variable = function.variables[i];
@@ -174,12 +208,16 @@ public class CodeGenerationVisitor implements Visitor {
 
     // TODO remove this magic numbers.
     int flags = Config.FASTLOCALS && function.enableLocalsOptimization ? 0x01 : 0x00;
+    if (flags == 0x00 && !function.usesArguments) {
+      flags |= 0x02;
+    }
 
     if (function.name != null) {
       writeCommentBlock("function " + function.name.string);
     }
 
     writeStringLiteralBlock();
+    writeRegExpLiteralBlock();
     writeNumberLiteralBlock();
     writeFunctionLiteralBlock();
     writeLocalVariableNameBlock(function.variables);
@@ -201,7 +239,8 @@ public class CodeGenerationVisitor implements Visitor {
       dos.write('J');
       dos.write('o');
       dos.write('e');
-      dos.write(0x00); // version
+      // version
+      dos.write(registers ? JsFunction.FORMAT_REGISTER : JsFunction.FORMAT_STACK);
     } catch (IOException e) {
       throw new CompilerException(e);
     }
@@ -261,6 +300,25 @@ public class CodeGenerationVisitor implements Visitor {
     }
   }
 
+  /**
+   * Writes the regular expression literals as indices into the global string
+   * table; each string holds the pattern, followed by a slash and the flags.
+   */
+  private void writeRegExpLiteralBlock() throws CompilerException {
+    try {
+      if (regExpLiterals.size() > 0) {
+        dos.write(BLOCK_REGEX_LITERALS);
+        dos.writeShort(regExpLiterals.size());
+        for (int i = 0; i < regExpLiterals.size(); i++) {
+          dos.writeShort((short) ((Integer) globalStringMap.get(regExpLiterals
+              .elementAt(i))).intValue());
+        }
+      }
+    } catch (IOException e) {
+      throw new CompilerException(e);
+    }
+  }
+
   private void writeLocalVariableNameBlock(Identifier[] variables) throws CompilerException {
     try {
       if (variables != null) {
@@ -275,11 +333,22 @@ public class CodeGenerationVisitor implements Visitor {
     }
   }
 
+  /**
+   * Writes the nested function literals, preceded by an index of their
+   * offsets relative to the first literal and the offset of the end, so
+   * the loader can skip them and decode each literal when it is needed.
+   */
   private void writeFunctionLiteralBlock() throws CompilerException {
     try {
       if (functionLiterals.size() > 0) {
-        dos.write(BLOCK_FUNCTION_LITERALS);
+        dos.write(BLOCK_INDEXED_FUNCTION_LITERALS);
         dos.writeShort(functionLiterals.size());
+        int offset = 0;
+        for (int i = 0; i < functionLiterals.size(); i++) {
+          dos.writeInt(offset);
+          offset += ((byte[]) functionLiterals.elementAt(i)).length;
+        }
+        dos.writeInt(offset);
         for (int i = 0; i < functionLiterals.size(); i++) {
           dos.write((byte[]) functionLiterals.elementAt(i));
         }
@@ -292,12 +361,6 @@ public class CodeGenerationVisitor implements Visitor {
   private void writeCodeBlock(int localVariableCount, int paramenterCount,
       int flags, byte[] code) throws CompilerException {
     try {
-      dos.write(BLOCK_CODE);
-      dos.writeShort(localVariableCount);
-      dos.writeShort(paramenterCount);
-      dos.write(flags);
-      dos.writeShort(code.length);
-
       for (int i = 0; i < unresolvedJumps.size(); i += 2) {
         String label = (String) unresolvedJumps.elementAt(i);
         int address = ((Integer) unresolvedJumps.elementAt(i + 1)).intValue();
@@ -313,6 +376,29 @@ public class CodeGenerationVisitor implements Visitor {
         code[address + 1] = (byte) (delta & 255);
       }
 
+      if (optimize) {
+        int[] pcs = new int[lineNumberVector.size()];
+        for (int i = 0; i < pcs.length; i++) {
+          pcs[i] = ((LineNumber) lineNumberVector.elementAt(i)).programCounter;
+        }
+        code = PeepholeOptimizer.optimize(code, pcs);
+        if (registers && (flags & 0x01) != 0) {
+          // temporaries are allocated after the local variables
+          int[] registerCount = new int[1];
+          code = RegisterCodeGenerator.generate(code, localVariableCount, pcs,
+              registerCount);
+          localVariableCount = registerCount[0];
+        }
+        for (int i = 0; i < pcs.length; i++) {
+          ((LineNumber) lineNumberVector.elementAt(i)).programCounter = pcs[i];
+        }
+      }
+
+      dos.write(BLOCK_CODE);
+      dos.writeShort(localVariableCount);
+      dos.writeShort(paramenterCount);
+      dos.write(flags);
+      dos.writeShort(code.length);
       dos.write(code);
     } catch (IOException e) {
       throw new CompilerException(e);
@@ -541,8 +627,9 @@ public class CodeGenerationVisitor implements Visitor {
   /** value must be on stack, is kept on stack */
   private void writeVarDef(String name, boolean initialize) {
     if (initialize) {
-      writeXop(JsFunction.XOP_PUSH_STR, getStringLiteralIndex(name));
-      writeOp(JsFunction.OP_CTX_SET);
+      Identifier identifier = new Identifier(name);
+      Identifier localVariable = (Identifier) localVariableTable.get(identifier);
+      writeOpSet(localVariable != null ? localVariable : identifier);
     }
   }
 
@@ -563,6 +650,17 @@ public class CodeGenerationVisitor implements Visitor {
     return i;
   }
 
+  /**
+   * Returns the index of a new regular expression literal. Each literal gets
+   * its own entry, since it is also the cache slot for the compiled pattern
+   * of this site.
+   */
+  private int addRegExpLiteral(String literal) {
+    addToGlobalStringTable(literal);
+    regExpLiterals.addElement(literal);
+    return regExpLiterals.size() - 1;
+  }
+
   //
   // nodes
   //
@@ -579,6 +677,7 @@ public class CodeGenerationVisitor implements Visitor {
     writeMagic();
     writeGlobalStringTableBlock();
     writeStringLiteralBlock();
+    writeRegExpLiteralBlock();
     writeNumberLiteralBlock();
     writeFunctionLiteralBlock();
     writeCodeBlock(0, 0, 0x00, codeStream.toByteArray());
@@ -686,9 +785,7 @@ public class CodeGenerationVisitor implements Visitor {
     writeJump(JsFunction.XOP_NEXT, statement, "break");
 
     if (statement.variable instanceof Identifier) {
-      writeXop(JsFunction.XOP_PUSH_STR,
-               getStringLiteralIndex(((Identifier) statement.variable).string));
-      writeOp(JsFunction.OP_CTX_SET);
+      writeVarDef(((Identifier) statement.variable).string, true);
     } else if (statement.variable instanceof VariableDeclaration) {
       writeVarDef(((VariableDeclaration) statement.variable).identifier.string, true);
     } else {
@@ -997,6 +1094,12 @@ public class CodeGenerationVisitor implements Visitor {
 
   public Expression visit(BinaryOperatorExpression expression) throws CompilerException {
     expression.leftExpression.visitExpression(this);
+    if (expression.operator == Token.OPERATOR_COMMA) {
+      // drop the left value right away instead of swapping it to the top
+      writeOp(JsFunction.OP_DROP);
+      expression.rightExpression.visitExpression(this);
+      return expression;
+    }
     expression.rightExpression.visitExpression(this);
     writeBinaryOperator(expression.operator);
     return expression;
@@ -1228,7 +1331,8 @@ public class CodeGenerationVisitor implements Visitor {
 
   public Expression visit(NumberLiteral literal) {
     double v = literal.value;
-    if (32767 >= v && v >= -32767 && v == Math.floor(v)) {
+    // -0 is kept as a number literal, since there is no negative integer zero
+    if (32767 >= v && v >= -32767 && v == Math.floor(v) && (v != 0 || 1 / v > 0)) {
       writeXop(JsFunction.XOP_PUSH_INT, (int) v);
     } else {
       Double d = new Double(v);
@@ -1248,6 +1352,12 @@ public class CodeGenerationVisitor implements Visitor {
     return literal;
   }
 
+  public Expression visit(RegExpLiteral literal) {
+    writeXop(JsFunction.XOP_PUSH_REGEX,
+        addRegExpLiteral(literal.pattern + "/" + literal.flags));
+    return literal;
+  }
+
   public Expression visit(ArrayLiteral literal) throws CompilerException {
     writeOp(JsFunction.OP_NEW_ARR);
     for (int i = 0; i < literal.elements.length; i++) {
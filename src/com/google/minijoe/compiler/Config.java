@@ -54,4 +54,19 @@ public class Config {
    * Line number support.
    */
   public static final boolean LINENUMBER = true;
+
+  /**
+   * Generate register instructions (bytecode format 1) for functions with
+   * fast locals; set by the system property "minijoe.bytecode=register".
+   * Code in both formats can be run.
+   */
+  public static final boolean REGISTER_BYTECODE =
+      "register".equals(System.getProperty("minijoe.bytecode"));
+
+  /**
+   * Version of the code generator. Must be incremented whenever the byte
+   * code generated for a given source changes, since it is part of the key
+   * of compiled scripts cached on disk.
+   */
+  public static final int COMPILER_VERSION = 5;
 }
@@ -0,0 +1,222 @@
+// Copyright 2008 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.minijoe.compiler;
+
+import com.google.minijoe.compiler.ast.BinaryOperatorExpression;
+import com.google.minijoe.compiler.ast.BooleanLiteral;
+import com.google.minijoe.compiler.ast.ConditionalExpression;
+import com.google.minijoe.compiler.ast.EmptyStatement;
+import com.google.minijoe.compiler.ast.Expression;
+import com.google.minijoe.compiler.ast.IfStatement;
+import com.google.minijoe.compiler.ast.LogicalAndExpression;
+import com.google.minijoe.compiler.ast.LogicalOrExpression;
+import com.google.minijoe.compiler.ast.NullLiteral;
+import com.google.minijoe.compiler.ast.NumberLiteral;
+import com.google.minijoe.compiler.ast.Statement;
+import com.google.minijoe.compiler.ast.StringLiteral;
+import com.google.minijoe.compiler.ast.UnaryOperatorExpression;
+
+/**
+ * Evaluates operators with constant operands at compile time, and removes
+ * branches of conditionals with a constant condition. Must run after the
+ * DeclarationVisitor, so declarations in removed branches are still taken
+ * into account.
+ *
+ * Constants are folded exactly as the interpreter would evaluate them; mixed
+ * type operands, which would require the runtime number formatting, are
+ * left alone.
+ */
+public class ConstantFoldingVisitor extends TraversalVisitor {
+
+  public ConstantFoldingVisitor() {
+    super();
+    visitor = this;
+  }
+
+  //
+  // utilities
+  //
+
+  private static boolean isConstant(Expression e) {
+    return e instanceof NumberLiteral || e instanceof StringLiteral
+        || e instanceof BooleanLiteral || e instanceof NullLiteral;
+  }
+
+  /** Returns the truth value of the given constant, as JsSystem.toBoolean(). */
+  private static boolean toBoolean(Expression e) {
+    if (e instanceof BooleanLiteral) {
+      return ((BooleanLiteral) e).value;
+    }
+    if (e instanceof NumberLiteral) {
+      double d = ((NumberLiteral) e).value;
+      return d != 0 && !Double.isNaN(d);
+    }
+    if (e instanceof StringLiteral) {
+      return ((StringLiteral) e).string.length() > 0;
+    }
+    return false;
+  }
+
+  /** Converts to int as JsArray.getInt(). */
+  private static int toInt32(double d) {
+    return Double.isInfinite(d) || Double.isNaN(d) ? 0 : (int) (long) d;
+  }
+
+  private static Expression fold(Token op, double a, double b) {
+    if (op == Token.OPERATOR_PLUS) {
+      return new NumberLiteral(a + b);
+    } else if (op == Token.OPERATOR_MINUS) {
+      return new NumberLiteral(a - b);
+    } else if (op == Token.OPERATOR_MULTIPLY) {
+      return new NumberLiteral(a * b);
+    } else if (op == Token.OPERATOR_DIVIDE) {
+      return new NumberLiteral(a / b);
+    } else if (op == Token.OPERATOR_MODULO) {
+      return new NumberLiteral(a % b);
+    } else if (op == Token.OPERATOR_BITWISEAND) {
+      return new NumberLiteral(toInt32(a) & toInt32(b));
+    } else if (op == Token.OPERATOR_BITWISEOR) {
+      return new NumberLiteral(toInt32(a) | toInt32(b));
+    } else if (op == Token.OPERATOR_BITWISEXOR) {
+      return new NumberLiteral(toInt32(a) ^ toInt32(b));
+    } else if (op == Token.OPERATOR_SHIFTLEFT) {
+      return new NumberLiteral(toInt32(a) << (toInt32(b) & 0x1f));
+    } else if (op == Token.OPERATOR_SHIFTRIGHT) {
+      return new NumberLiteral(toInt32(a) >> (toInt32(b) & 0x1f));
+    } else if (op == Token.OPERATOR_SHIFTRIGHTUNSIGNED) {
+      return new NumberLiteral((toInt32(a) & 0xffffffffL) >>> (toInt32(b) & 0x1f));
+    } else if (op == Token.OPERATOR_LESSTHAN) {
+      return new BooleanLiteral(a < b);
+    } else if (op == Token.OPERATOR_GREATERTHAN) {
+      return new BooleanLiteral(a > b);
+    } else if (op == Token.OPERATOR_LESSTHANOREQUAL) {
+      // compiled as !(a > b)
+      return new BooleanLiteral(!(a > b));
+    } else if (op == Token.OPERATOR_GREATERTHANOREQUAL) {
+      return new BooleanLiteral(!(a < b));
+    } else if (op == Token.OPERATOR_EQUALEQUAL || op == Token.OPERATOR_EQUALEQUALEQUAL) {
+      return new BooleanLiteral(a == b);
+    } else if (op == Token.OPERATOR_NOTEQUAL || op == Token.OPERATOR_NOTEQUALEQUAL) {
+      return new BooleanLiteral(a != b);
+    }
+    return null;
+  }
+
+  private static Expression fold(Token op, String a, String b) {
+    if (op == Token.OPERATOR_PLUS) {
+      return new StringLiteral(a + b);
+    } else if (op == Token.OPERATOR_EQUALEQUAL || op == Token.OPERATOR_EQUALEQUALEQUAL) {
+      return new BooleanLiteral(a.equals(b));
+    } else if (op == Token.OPERATOR_NOTEQUAL || op == Token.OPERATOR_NOTEQUALEQUAL) {
+      return new BooleanLiteral(!a.equals(b));
+    } else if (op == Token.OPERATOR_LESSTHAN) {
+      return new BooleanLiteral(a.compareTo(b) < 0);
+    } else if (op == Token.OPERATOR_GREATERTHAN) {
+      return new BooleanLiteral(a.compareTo(b) > 0);
+    }
+    return null;
+  }
+
+  //
+  // expressions
+  //
+
+  public Expression visit(BinaryOperatorExpression expression) throws CompilerException {
+    super.visit(expression);
+
+    Expression left = expression.leftExpression;
+    Expression right = expression.rightExpression;
+    Expression result = null;
+
+    if (left instanceof NumberLiteral && right instanceof NumberLiteral) {
+      result = fold(expression.operator, ((NumberLiteral) left).value,
+          ((NumberLiteral) right).value);
+    } else if (left instanceof StringLiteral && right instanceof StringLiteral) {
+      result = fold(expression.operator, ((StringLiteral) left).string,
+          ((StringLiteral) right).string);
+    } else if (expression.operator == Token.OPERATOR_COMMA && isConstant(left)) {
+      result = right;
+    }
+    return result == null ? expression : result;
+  }
+
+  public Expression visit(UnaryOperatorExpression expression) throws CompilerException {
+    super.visit(expression);
+
+    Expression sub = expression.subExpression;
+    Token op = expression.operator;
+
+    if (op == Token.OPERATOR_LOGICALNOT && isConstant(sub)) {
+      return new BooleanLiteral(!toBoolean(sub));
+    }
+    if (sub instanceof NumberLiteral) {
+      double d = ((NumberLiteral) sub).value;
+      if (op == Token.OPERATOR_MINUS) {
+        return new NumberLiteral(-d);
+      } else if (op == Token.OPERATOR_PLUS) {
+        // adding 0 as the interpreter does turns -0 into 0
+        return new NumberLiteral(d + 0);
+      } else if (op == Token.OPERATOR_BITWISENOT) {
+        return new NumberLiteral(~toInt32(d));
+      }
+    }
+    return expression;
+  }
+
+  public Expression visit(LogicalAndExpression expression) throws CompilerException {
+    super.visit(expression);
+
+    Expression left = expression.leftExpression;
+    if (isConstant(left)) {
+      return toBoolean(left) ? expression.rightExpression : left;
+    }
+    return expression;
+  }
+
+  public Expression visit(LogicalOrExpression expression) throws CompilerException {
+    super.visit(expression);
+
+    Expression left = expression.leftExpression;
+    if (isConstant(left)) {
+      return toBoolean(left) ? left : expression.rightExpression;
+    }
+    return expression;
+  }
+
+  public Expression visit(ConditionalExpression expression) throws CompilerException {
+    super.visit(expression);
+
+    if (isConstant(expression.expression)) {
+      return toBoolean(expression.expression)
+          ? expression.trueExpression : expression.falseExpression;
+    }
+    return expression;
+  }
+
+  //
+  // statements
+  //
+
+  public Statement visit(IfStatement statement) throws CompilerException {
+    super.visit(statement);
+
+    if (isConstant(statement.expression)) {
+      Statement branch = toBoolean(statement.expression)
+          ? statement.trueStatement : statement.falseStatement;
+      return branch == null ? new EmptyStatement() : branch;
+    }
+    return statement;
+  }
+}
@@ -30,6 +30,8 @@ import com.google.minijoe.compiler.ast.VariableExpression;
 import com.google.minijoe.compiler.ast.VariableStatement;
 import com.google.minijoe.compiler.ast.WithStatement;
 
+import java.util.Enumeration;
+import java.util.Hashtable;
 import java.util.Vector;
 
 /**
@@ -42,7 +44,16 @@ public class DeclarationVisitor extends TraversalVisitor {
   private Vector variableVector;
   private boolean hasWithStatement = false;
   private boolean hasArgumentsVariable = false;
-  private boolean hasFunctionLiteral = false;
+  private boolean hasEval = false;
+
+  /** Names referenced in the current function literal, including nested ones. */
+  private Hashtable referencedNames;
+  /** Free names of the function literals nested in the current one. */
+  private Hashtable nestedFreeNames;
+  /** Set if a nested function literal calls eval and may see any local. */
+  private boolean nestedHasEval = false;
+  /** Name of the function literal currently visited; not a reference. */
+  private Identifier literalName;
 
   public DeclarationVisitor() {
     super();
@@ -75,12 +86,20 @@ public class DeclarationVisitor extends TraversalVisitor {
     Vector oldVariableVector = variableVector;
     boolean oldHasWithStatement = hasWithStatement;
     boolean oldHasArgumentsVariable = hasArgumentsVariable;
+    boolean oldHasEval = hasEval;
+    Hashtable oldReferencedNames = referencedNames;
+    Hashtable oldNestedFreeNames = nestedFreeNames;
+    boolean oldNestedHasEval = nestedHasEval;
 
     functionVector = new Vector();
     variableVector = new Vector();
     hasWithStatement = false;
     hasArgumentsVariable = false;
-    hasFunctionLiteral = false;
+    hasEval = false;
+    referencedNames = new Hashtable();
+    nestedFreeNames = new Hashtable();
+    nestedHasEval = false;
+    literalName = literal.name;
 
     Identifier[] parameters = literal.parameters;
     for (int i = 0; i < parameters.length; i++) {
@@ -92,22 +111,55 @@ public class DeclarationVisitor extends TraversalVisitor {
     literal.functions = Util.vectorToStatementArray(functionVector);
     literal.variables = Util.vectorToIdentifierArray(variableVector);
 
+    // Escape analysis: a local escapes if a nested function literal refers
+    // to it by name, or if a nested literal calls eval.
+    boolean localsEscape = nestedHasEval;
+    for (Enumeration e = nestedFreeNames.keys(); e.hasMoreElements() && !localsEscape;) {
+      localsEscape = variableVector.contains(new Identifier((String) e.nextElement()));
+    }
+
     // if this function literal:
-    // * contains a function literal
+    // * contains a function literal referring to its locals
     // * contains a 'with' statement
-    // * contains a reference to 'arguments'
+    // * contains a reference to 'arguments' or 'eval'
     //
     // then we need to disable the "access locals by index" optimisation for
     // this function literal.
 
     literal.enableLocalsOptimization =
-        !(hasWithStatement | hasArgumentsVariable | hasFunctionLiteral);
+        !(hasWithStatement | hasArgumentsVariable | hasEval | localsEscape);
+    literal.usesArguments = hasArgumentsVariable | hasEval;
+
+    Hashtable freeNames = new Hashtable();
+    for (Enumeration e = referencedNames.keys(); e.hasMoreElements();) {
+      String name = (String) e.nextElement();
+      if (!variableVector.contains(new Identifier(name))) {
+        freeNames.put(name, name);
+      }
+    }
+    boolean hasEvalInside = hasEval | nestedHasEval;
 
     functionVector = oldFunctionVector;
     variableVector = oldVariableVector;
     hasWithStatement = oldHasWithStatement;
     hasArgumentsVariable = oldHasArgumentsVariable;
-    hasFunctionLiteral = true;
+    hasEval = oldHasEval;
+    referencedNames = oldReferencedNames;
+    nestedFreeNames = oldNestedFreeNames;
+    nestedHasEval = oldNestedHasEval | hasEvalInside;
+
+    if (referencedNames != null) {
+      for (Enumeration e = freeNames.keys(); e.hasMoreElements();) {
+        Object name = e.nextElement();
+        referencedNames.put(name, name);
+        nestedFreeNames.put(name, name);
+      }
+    }
+
+    // the function name is stored in the enclosing scope
+    if (literal.name != null && variableVector != null) {
+      addVariable(literal.name);
+    }
 
     return literal;
   }
@@ -189,8 +241,19 @@ public class DeclarationVisitor extends TraversalVisitor {
   public Expression visit(Identifier identifier) throws CompilerException {
     identifier = (Identifier) super.visit(identifier);
 
+    if (identifier == literalName) {
+      literalName = null;
+      return identifier;
+    }
+
     if (identifier.string.equals("arguments")) {
       hasArgumentsVariable = true;
+    } else if (identifier.string.equals("eval")) {
+      hasEval = true;
+    }
+
+    if (referencedNames != null) {
+      referencedNames.put(identifier.string, identifier.string);
     }
 
     return identifier;
@@ -14,6 +14,8 @@
 
 package com.google.minijoe.compiler;
 
+import com.google.minijoe.sys.JsFunction;
+
 import java.io.DataInputStream;
 import java.io.IOException;
 
@@ -78,14 +80,26 @@ public class Disassembler {
     "PUSH_GLOBAL"
   };
 
-  static final int XCODE_START = 0xEA;
+  static final int XCODE_START = 0xD2;
 
   static final String[] XCODES = {
+    "UNLESS_GT",
+    "UNLESS_LT",
+    "IF_GT",
+    "IF_LT",
+    "UNLESS",
+    "LCL_DEC",
+    "LCL_INC",
+    "LCL_STORE",
+    "GET_PROP",
+    "GET_VAR",
+    "TRY_CALL",
+    "ADD",
     "PUSH_FN",
     "PUSH_NUM",
     "GO", "IF",
     "CALL",
-    "LINE",
+    "PUSH_REGEX",
     "LCL_GET",
     "LCL_SET",
     "NEXT",
@@ -98,6 +112,7 @@ public class Disassembler {
   String[] globalStringTable;
   String indent = "";
   String[] stringLiterals;
+  String[] regExpLiterals;
   double[] numberLiterals;
   String[] localVariableNames;
 
@@ -179,16 +194,25 @@ public class Disassembler {
           case 0x40:
             count = dis.readUnsignedShort();
             System.out.println("Regex Literals (" + count + " entries)");
-            stringLiterals = new String[count];
+            regExpLiterals = new String[count];
             for (int i = 0; i < count; i++) {
               int index = dis.readUnsignedShort();
               System.out.println(indent + "  " + i + " -> " + index + ": \"" + globalStringTable[index] + "\"");
+              regExpLiterals[i] = globalStringTable[index];
             }
             break;
 
           case 0x50:
+          case 0x51:
             count = dis.readUnsignedShort();
             System.out.println("Function Literals (" + count + " entries)");
+            if (type == 0x51) {
+              System.out.print(indent + "  offsets:");
+              for (int i = 0; i <= count; i++) {
+                System.out.print(" " + dis.readInt());
+              }
+              System.out.println();
+            }
             for (int i = 0; i < count; i++) {
               System.out.println(indent + "  function literal " + i + ": ");
               new Disassembler(dis, globalStringTable, indent + "    ").dumpTables();
@@ -241,6 +265,41 @@ public class Disassembler {
       }
   }
 
+  /**
+   * Returns the mnemonic of the given opcode byte, or null if the opcode is
+   * unknown.
+   */
+  public static String getOpcodeName(int opcode) {
+    opcode = (byte) opcode;
+    if (opcode >= JsFunction.ROP_BINARY) {
+      return getRegisterOpcodeName(opcode);
+    }
+    if (opcode >= 0) {
+      return opcode < OPCODES.length ? OPCODES[opcode] : null;
+    }
+    int index = ((opcode & 0x0ff) - XCODE_START) >> 1;
+    return index >= 0 && index < XCODES.length ? XCODES[index] : null;
+  }
+
+  private static String getRegisterOpcodeName(int opcode) {
+    if (opcode >= JsFunction.ROP_BRANCH && opcode <= JsFunction.ROP_LAST) {
+      return ((opcode & JsFunction.ROP_BRANCH_UNLESS) == 0 ? "R_IF_" : "R_UNLESS_")
+          + OPCODES[JsFunction.REGISTER_CONDITIONS[(opcode - JsFunction.ROP_BRANCH) >> 2]];
+    } else if (opcode == JsFunction.ROP_MOVE) {
+      return "R_MOVE";
+    } else if (opcode == JsFunction.ROP_LOAD_INT) {
+      return "R_LOAD_INT";
+    } else if (opcode < JsFunction.ROP_MOVE
+        && (opcode & 0x0f) < JsFunction.REGISTER_OPERATORS.length) {
+      return "R_" + OPCODES[JsFunction.REGISTER_OPERATORS[opcode & 0x0f]];
+    }
+    return null;
+  }
+
+  private static String register(int r) {
+    return r == JsFunction.REGISTER_PUSH ? "push" : "r" + r;
+  }
+
   void printHex(int i) {
     System.out.print(HEX_DIGITS.charAt((i >> 4) & 15));
     System.out.print(HEX_DIGITS.charAt(i & 15));
@@ -252,7 +311,7 @@ public class Disassembler {
     while (i < code.length) {
       int opcode;
 
-      String name = null;
+      String name;
 
       System.out.print(indent + "  ");
 
@@ -262,17 +321,14 @@ public class Disassembler {
       
       printHex(opcode = code[i++]);
       System.out.print(' ');
-      if (opcode >= 0) {
+      if (opcode >= JsFunction.ROP_BINARY) {
+        i = disassembleRegisterInstruction(code, i, opcode);
+      } else if (opcode >= 0) {
         System.out.print("     ");
-        if (opcode < OPCODES.length) {
-          name = OPCODES[opcode];
-        }
+        name = getOpcodeName(opcode);
         System.out.print(name == null ? "???" : name);
       } else {
-        int index = ((opcode & 0x0ff) - XCODE_START) >>> 1;
-        if (index < XCODES.length) {
-          name = XCODES[index];
-        }
+        name = getOpcodeName(opcode);
         printHex(code[i]);
         int imm;
         if ((opcode & 1) == 0) {
@@ -292,12 +348,61 @@ public class Disassembler {
           case 0xEC:
             System.out.print(" -> " + numberLiterals[imm]);
             break;
+          case 0xF4:
+            System.out.print(" -> /" + regExpLiterals[imm]);
+            break;
+          case 0xE2:
+          case 0xE4:
           case 0xFE:
             System.out.print(" -> \"" + stringLiterals[imm] + "\"");
             break;
+          default:
+            if (PeepholeOptimizer.isJump((opcode & 0xfe) >>> 1 | 0x100)) {
+              System.out.print(" -> ");
+              printHex((i + imm) >> 8);
+              printHex(i + imm);
+            }
         }
       }
       System.out.println();
     }
   }
+
+  /**
+   * Prints the operands of the register instruction with the given opcode,
+   * starting at index i of the code. Returns the index after the
+   * instruction.
+   */
+  private int disassembleRegisterInstruction(byte[] code, int i, int opcode) {
+    String name = getRegisterOpcodeName(opcode);
+    System.out.print("      ");
+    System.out.print(name == null ? "???" : name);
+    System.out.print(' ');
+    if (name == null) {
+      return i;
+    }
+    if (opcode >= JsFunction.ROP_BRANCH) {
+      int offset = (code[i + 2] << 8) | (code[i + 3] & 0xff);
+      System.out.print(register(code[i] & 0xff) + ", ");
+      System.out.print((opcode & JsFunction.ROP_BRANCH_IMM) != 0
+          ? "#" + code[i + 1] : register(code[i + 1] & 0xff));
+      i += 4;
+      System.out.print(" -> ");
+      printHex((i + offset) >> 8);
+      printHex(i + offset);
+    } else if (opcode == JsFunction.ROP_MOVE) {
+      System.out.print(register(code[i] & 0xff) + ", " + register(code[i + 1] & 0xff));
+      i += 2;
+    } else if (opcode == JsFunction.ROP_LOAD_INT) {
+      System.out.print(register(code[i] & 0xff) + ", #"
+          + ((code[i + 1] << 8) | (code[i + 2] & 0xff)));
+      i += 3;
+    } else {
+      System.out.print(register(code[i] & 0xff) + ", " + register(code[i + 1] & 0xff) + ", ");
+      System.out.print(opcode >= JsFunction.ROP_BINARY_IMM
+          ? "#" + code[i + 2] : register(code[i + 2] & 0xff));
+      i += 3;
+    }
+    return i;
+  }
 }
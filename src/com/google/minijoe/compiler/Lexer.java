@@ -14,6 +14,8 @@
 
 package com.google.minijoe.compiler;
 
+import java.io.IOException;
+import java.io.Reader;
 import java.util.Hashtable;
 
 /**
@@ -22,10 +24,13 @@ import java.util.Hashtable;
  * <p>This lexical analyzer handles all parts of the ECMAScript v3
  * specification, except for:
  * <ul>
- * <li>no support for regular expressions
  * <li>limited Unicode character support
  * </ul>
  *
+ * <p>The input can be a string or a reader. When reading from a reader,
+ * only the current token is kept in memory, so scripts of any size can be
+ * tokenized with memory bounded by the longest token.
+ *
  * @see <a href="http://wiki.corp.google.com/twiki/bin/view/Main/MiniJoe">MiniJoe</a>
  * @see <a href="http://www.mozilla.org/js/language/E262-3.pdf">ECMAScript v3 Specification</a>
  *
@@ -55,10 +60,24 @@ public class Lexer {
   private static final int TOKENIZENUMERIC_RETURN_HEXADECIMAL   = 17;
   private static final int TOKENIZENUMERIC_RETURN_OPERATOR_DOT  = 18;
 
+  /** Number of characters requested from the reader at a time. */
+  private static final int BUFFER_SIZE = 4096;
+
   private Hashtable keywords = null;
-  private String input = null;
+
+  /** Source of further input; null for strings and at the end of input. */
+  private Reader reader;
+
+  /**
+   * Holds the input from position bufferStart to bufferEnd. When reading
+   * from a reader, the characters before the start of the current token
+   * are dropped when the buffer is refilled.
+   */
+  private char[] buffer;
+  private int bufferStart;
+  private int bufferEnd;
+
   int lineNumber = 1;
-  int maxPosition;
   int curPosition;
   int oldPosition;
   int c;
@@ -75,17 +94,36 @@ public class Lexer {
 
     // initialization
 
-    this.input = input;
+    buffer = input.toCharArray();
+    bufferEnd = buffer.length;
 
     initKeywords();
 
     // prime the main loop
 
-    maxPosition = input.length();
     oldPosition = 0;
     curPosition = 0;
 
-    c = curPosition < maxPosition ? input.charAt(curPosition) : -1;
+    c = curPosition < bufferEnd ? buffer[curPosition] : -1;
+  }
+
+  /**
+   * Creates a Lexer reading the source from the given reader. The reader is
+   * not closed by the lexer.
+   *
+   * @param reader the reader providing the characters to tokenize
+   */
+  public Lexer(Reader reader) throws CompilerException {
+    if (reader == null) {
+      throw new IllegalArgumentException();
+    }
+
+    this.reader = reader;
+    this.buffer = new char[BUFFER_SIZE];
+
+    initKeywords();
+
+    c = fillBuffer() ? buffer[0] : -1;
   }
 
   /**
@@ -247,16 +285,57 @@ public class Lexer {
   /**
    * Consumes the current character and reads the next.
    */
-  private void readChar() {
+  private void readChar() throws CompilerException {
     curPosition++;
 
-    if (curPosition < maxPosition) {
-      c = input.charAt(curPosition);
+    if (curPosition < bufferEnd || fillBuffer()) {
+      c = buffer[curPosition - bufferStart];
     } else {
       c = -1;
     }
   }
 
+  /**
+   * Reads more input from the reader, keeping the current token in the
+   * buffer. Returns false if the end of the input has been reached.
+   */
+  private boolean fillBuffer() throws CompilerException {
+    while (reader != null) {
+      int keep = bufferEnd - oldPosition;
+      char[] target = buffer;
+      if (keep + BUFFER_SIZE / 2 > buffer.length) {
+        target = new char[Math.max(buffer.length * 2, keep + BUFFER_SIZE)];
+      }
+      System.arraycopy(buffer, oldPosition - bufferStart, target, 0, keep);
+      buffer = target;
+      bufferStart = oldPosition;
+
+      int count;
+      try {
+        count = reader.read(buffer, keep, buffer.length - keep);
+      } catch (IOException e) {
+        throw new CompilerException(e);
+      }
+
+      if (count == -1) {
+        reader = null;
+      } else {
+        bufferEnd += count;
+        if (curPosition < bufferEnd) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns the characters of the current token.
+   */
+  private String getTokenText() {
+    return new String(buffer, oldPosition - bufferStart, curPosition - oldPosition);
+  }
+
   /**
    * Unread the current character.  This MUST NOT be used to unread past a
    * line terminator character.
@@ -266,7 +345,7 @@ public class Lexer {
       if (isLineTerminator()) {
         throw new CompilerException("current character must not be a line terminator");
       }
-      c = input.charAt(--curPosition);
+      c = buffer[--curPosition - bufferStart];
     } else {
       c = -1;
     }
@@ -443,7 +522,7 @@ public class Lexer {
   /**
    * Tokenizes whitespace.
    */
-  private Token tokenizeWhitespace() {
+  private Token tokenizeWhitespace() throws CompilerException {
     do {
       readChar();
     } while (isWhitespace());
@@ -472,7 +551,7 @@ public class Lexer {
   /**
    * Tokenizes a single line comment.
    */
-  private Token tokenizeSingleLineComment() {
+  private Token tokenizeSingleLineComment() throws CompilerException {
     do {
       readChar();
     }  while (!isEOF() && !isLineTerminator());
@@ -684,19 +763,19 @@ public class Lexer {
 
         // floating literal
         case TOKENIZENUMERIC_RETURN_FLOAT:
-          return new Token(Token.TYPE_FLOAT, input.substring(oldPosition, curPosition));
+          return new Token(Token.TYPE_FLOAT, getTokenText());
 
         // decimal literal
         case TOKENIZENUMERIC_RETURN_DECIMAL:
-          return new Token(Token.TYPE_DECIMAL, input.substring(oldPosition, curPosition));
+          return new Token(Token.TYPE_DECIMAL, getTokenText());
 
         // octal literal
         case TOKENIZENUMERIC_RETURN_OCTAL:
-          return new Token(Token.TYPE_OCTAL, input.substring(oldPosition, curPosition));
+          return new Token(Token.TYPE_OCTAL, getTokenText());
 
         // hexadecimal literal
         case TOKENIZENUMERIC_RETURN_HEXADECIMAL:
-          return new Token(Token.TYPE_HEXADECIMAL, input.substring(oldPosition, curPosition));
+          return new Token(Token.TYPE_HEXADECIMAL, getTokenText());
 
         // '.' operator
         case TOKENIZENUMERIC_RETURN_OPERATOR_DOT:
@@ -739,6 +818,53 @@ public class Lexer {
     return new Token(Token.TYPE_STRING, buffer.toString());
   }
 
+  /**
+   * Tokenizes a regular expression literal. A slash may start a division
+   * or a regular expression, which only the parser can tell apart; so the
+   * parser calls this method after nextToken() has returned a division
+   * operator in a position where an expression is expected. The value of
+   * the returned token is the pattern, followed by a slash and the flags.
+   *
+   * @param operator the division operator returned by nextToken()
+   */
+  public Token nextRegExpToken(Token operator) throws CompilerException {
+    StringBuffer buffer = new StringBuffer();
+    boolean inClass = false;
+
+    if (operator == Token.OPERATOR_DIVIDEASSIGNMENT) {
+      buffer.append('=');
+    }
+
+    while (inClass || c != '/') {
+      if (isEOF() || isLineTerminator()) {
+        throwCompilerException("Unterminated regular expression literal");
+      } else if (c == '\\') {
+        buffer.append((char) c);
+        readChar();
+        if (isEOF() || isLineTerminator()) {
+          throwCompilerException("Unterminated regular expression literal");
+        }
+      } else if (c == '[') {
+        inClass = true;
+      } else if (c == ']') {
+        inClass = false;
+      }
+      buffer.append((char) c);
+      readChar();
+    }
+
+    // skip the trailing slash
+    readChar();
+    buffer.append('/');
+
+    while (isIdentifierPart()) {
+      buffer.append((char) c);
+      readChar();
+    }
+
+    return new Token(Token.TYPE_REGEX, buffer.toString());
+  }
+
   /**
    * Tokenizes a ECMAScript identifier.  On entry the current character must
    * be a valid identifier start character.
@@ -1000,10 +1126,10 @@ public class Lexer {
   /**
    * Tokenizes an unknown character.
    */
-  private Token tokenizeUnknown() {
+  private Token tokenizeUnknown() throws CompilerException {
     readChar();
 
-    return new Token(Token.TYPE_UNKNOWN, input.substring(oldPosition, curPosition));
+    return new Token(Token.TYPE_UNKNOWN, getTokenText());
   }
 
   /**
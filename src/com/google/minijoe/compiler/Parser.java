@@ -47,6 +47,7 @@ import com.google.minijoe.compiler.ast.ObjectLiteral;
 import com.google.minijoe.compiler.ast.ObjectLiteralProperty;
 import com.google.minijoe.compiler.ast.Program;
 import com.google.minijoe.compiler.ast.PropertyExpression;
+import com.google.minijoe.compiler.ast.RegExpLiteral;
 import com.google.minijoe.compiler.ast.ReturnStatement;
 import com.google.minijoe.compiler.ast.Statement;
 import com.google.minijoe.compiler.ast.StringLiteral;
@@ -60,6 +61,7 @@ import com.google.minijoe.compiler.ast.VariableExpression;
 import com.google.minijoe.compiler.ast.VariableStatement;
 import com.google.minijoe.compiler.ast.WhileStatement;
 import com.google.minijoe.compiler.ast.WithStatement;
+import com.google.minijoe.sys.NumberConversion;
 
 import java.util.Vector;
 
@@ -97,6 +99,15 @@ public class Parser {
   // Statements
   //
 
+  /**
+   * Parses the next source element of a program, or returns null at the
+   * end of the input. Allows compiling and running large programs one
+   * top-level statement at a time.
+   */
+  public Statement parseNextSourceElement() throws CompilerException {
+    return nextToken == Token.EOF ? null : parseSourceElement();
+  }
+
   public Statement parseSourceElement() throws CompilerException {
     if (nextToken == Token.KEYWORD_FUNCTION) {
       return parseFunctionDeclaration();
@@ -896,10 +907,17 @@ public class Parser {
         readToken(Token.OPERATOR_CLOSESQUARE);
         expression = new PropertyExpression(expression, property);
       } else if (nextToken == Token.OPERATOR_DOT) {
-        // transform x.bar to x["bar"]
+        // transform x.bar to x["bar"]; reserved words are valid property
+        // names here, as in ES5 (promise.catch())
         readToken(Token.OPERATOR_DOT);
-        Identifier identifier = parseIdentifier();
-        expression = new PropertyExpression(expression, new StringLiteral(identifier.string));
+        String name;
+        if (nextToken.getType() == Token.TYPE_KEYWORD) {
+          name = nextToken.getValue();
+          readToken();
+        } else {
+          name = parseIdentifier().string;
+        }
+        expression = new PropertyExpression(expression, new StringLiteral(name));
       } else {
         return expression;
       }
@@ -962,6 +980,10 @@ public class Parser {
     } else if (nextToken.isNumericLiteral()) {
       return parseNumericLiteral();
 
+    } else if (nextToken == Token.OPERATOR_DIVIDE
+        || nextToken == Token.OPERATOR_DIVIDEASSIGNMENT) {
+      return parseRegExpLiteral();
+
     } else {
       throwCompilerException("identifier or literal expected at token: " + nextToken);
       
@@ -1108,17 +1130,24 @@ public class Parser {
     return new StringLiteral(string);
   }
 
+  private RegExpLiteral parseRegExpLiteral() throws CompilerException {
+    String value = lexer.nextRegExpToken(nextToken).getValue();
+    int cut = value.lastIndexOf('/');
+
+    readToken();
+
+    return new RegExpLiteral(value.substring(0, cut), value.substring(cut + 1));
+  }
+
   private NumberLiteral parseNumericLiteral() throws CompilerException {
     double value = 0.0;
 
     try {
       switch (nextToken.getType()) {
         case Token.TYPE_FLOAT:
-          value = Double.parseDouble(nextToken.getValue());
-          break;
-
         case Token.TYPE_DECIMAL:
-          value = Long.parseLong(nextToken.getValue());
+          String text = nextToken.getValue();
+          value = NumberConversion.parseNumber(text, 0, text.length());
           break;
 
         case Token.TYPE_OCTAL:
@@ -0,0 +1,467 @@
+// Copyright 2008 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.minijoe.compiler;
+
+import com.google.minijoe.sys.JsFunction;
+
+/**
+ * Peephole optimizer for the byte code of a single function, run by the code
+ * generator after all jumps have been resolved. The code is decoded into a
+ * list of instructions with absolute jump targets, rewritten, and encoded
+ * again with the shortest possible jump offsets.
+ *
+ * The optimizations performed are:
+ * <ul>
+ * <li>jump threading: jumps to unconditional jumps go to the final target
+ *     directly; jumps to the next instruction are removed,
+ * <li>removal of unreachable code and of branches on constants,
+ * <li>replacement of common instruction sequences by superinstructions:
+ *     compare-and-branch, negated branches, local increment and store, and
+ *     variable and property access by a constant name.
+ * </ul>
+ * Instruction sequences are only combined if no jump leads into the middle
+ * of the sequence.
+ */
+final class PeepholeOptimizer {
+
+  /** Marks extended opcodes, taking an immediate parameter. */
+  private static final int XOP = 0x100;
+
+  private static final int GO = XOP | JsFunction.XOP_GO;
+  private static final int IF = XOP | JsFunction.XOP_IF;
+  private static final int UNLESS = XOP | JsFunction.XOP_UNLESS;
+  private static final int LCL_GET = XOP | JsFunction.XOP_LCL_GET;
+  private static final int LCL_SET = XOP | JsFunction.XOP_LCL_SET;
+  private static final int PUSH_STR = XOP | JsFunction.XOP_PUSH_STR;
+
+  private int count;
+  private int[] ops;
+  private int[] imms;
+  private int[] pcs;
+  /** Index of the target instruction for jumps; count for the end. */
+  private int[] targets;
+  private boolean[] removed;
+  private boolean[] isTarget;
+  /** Instruction the removed parts of a superinstruction were merged into. */
+  private int[] mergedInto;
+
+  private PeepholeOptimizer() {
+  }
+
+  /**
+   * Optimizes the given code. The given line number table, containing
+   * program counters, is updated to the positions in the optimized code.
+   */
+  static byte[] optimize(byte[] code, int[] lineNumberPcs) {
+    PeepholeOptimizer optimizer = new PeepholeOptimizer();
+    if (!optimizer.decode(code)) {
+      return code;
+    }
+    boolean changed = true;
+    for (int pass = 0; changed && pass < 8; pass++) {
+      optimizer.findTargets();
+      changed = optimizer.threadJumps();
+      optimizer.findTargets();
+      changed |= optimizer.removeUnreachable();
+      optimizer.findTargets();
+      changed |= optimizer.combine();
+    }
+    return optimizer.encode(lineNumberPcs);
+  }
+
+  static boolean isJump(int op) {
+    switch (op) {
+      case XOP | JsFunction.XOP_GO:
+      case XOP | JsFunction.XOP_IF:
+      case XOP | JsFunction.XOP_NEXT:
+      case XOP | JsFunction.XOP_UNLESS:
+      case XOP | JsFunction.XOP_IF_LT:
+      case XOP | JsFunction.XOP_IF_GT:
+      case XOP | JsFunction.XOP_UNLESS_LT:
+      case XOP | JsFunction.XOP_UNLESS_GT:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  private static boolean isTerminal(int op) {
+    return op == GO || op == JsFunction.OP_RET || op == JsFunction.OP_THROW;
+  }
+
+  //
+  // decoding
+  //
+
+  private boolean decode(byte[] code) {
+    int end = code.length;
+    ops = new int[end];
+    imms = new int[end];
+    pcs = new int[end + 1];
+    targets = new int[end];
+    int[] indexOf = new int[end + 1];
+    for (int i = 0; i <= end; i++) {
+      indexOf[i] = -1;
+    }
+
+    int pc = 0;
+    while (pc < end) {
+      int start = pc;
+      int opcode = code[pc++];
+      int imm = 0;
+      if (opcode < 0) {
+        if ((opcode & 1) == 0) {
+          imm = code[pc++];
+        } else {
+          imm = (code[pc] << 8) | (code[pc + 1] & 255);
+          pc += 2;
+        }
+        ops[count] = XOP | ((opcode & 0x0ff) >>> 1);
+      } else {
+        ops[count] = opcode;
+      }
+      indexOf[start] = count;
+      pcs[count] = start;
+      imms[count] = imm;
+      targets[count] = pc + imm;
+      count++;
+    }
+    indexOf[end] = count;
+    pcs[count] = end;
+
+    for (int i = 0; i < count; i++) {
+      if (isJump(ops[i])) {
+        int target = targets[i];
+        if (target < 0 || target > end || indexOf[target] == -1) {
+          // should not happen; leave the code alone
+          return false;
+        }
+        targets[i] = indexOf[target];
+      }
+    }
+
+    removed = new boolean[count + 1];
+    mergedInto = new int[count + 1];
+    for (int i = 0; i <= count; i++) {
+      mergedInto[i] = -1;
+    }
+    return true;
+  }
+
+  /**
+   * Returns the first instruction at or after i that has not been removed,
+   * which is where control continues when i is reached.
+   */
+  private int resolve(int i) {
+    while (i < count && removed[i]) {
+      i++;
+    }
+    return i;
+  }
+
+  private int next(int i) {
+    return resolve(i + 1);
+  }
+
+  private void findTargets() {
+    isTarget = new boolean[count + 1];
+    for (int i = 0; i < count; i++) {
+      if (!removed[i] && isJump(ops[i])) {
+        targets[i] = resolve(targets[i]);
+        isTarget[targets[i]] = true;
+      }
+    }
+  }
+
+  private void remove(int i) {
+    removed[i] = true;
+  }
+
+  //
+  // optimizations
+  //
+
+  /**
+   * Makes jumps to unconditional jumps go to the final target, and removes
+   * jumps to the next instruction.
+   */
+  private boolean threadJumps() {
+    boolean changed = false;
+    for (int i = 0; i < count; i++) {
+      if (removed[i] || !isJump(ops[i])) {
+        continue;
+      }
+      int t = targets[i];
+      for (int hops = 0; t < count && ops[t] == GO && t != i && hops < count; hops++) {
+        t = resolve(targets[t]);
+      }
+      if (t != targets[i]) {
+        targets[i] = t;
+        changed = true;
+      }
+      if (t == next(i)) {
+        if (ops[i] == GO) {
+          remove(i);
+          changed = true;
+        } else if (ops[i] == IF || ops[i] == UNLESS) {
+          // the condition is still evaluated, but the result is not needed
+          ops[i] = JsFunction.OP_DROP;
+          changed = true;
+        }
+      }
+    }
+    return changed;
+  }
+
+  /**
+   * Removes instructions following an unconditional jump, return or throw
+   * that are not the target of any jump.
+   */
+  private boolean removeUnreachable() {
+    boolean changed = false;
+    boolean reachable = true;
+    for (int i = 0; i < count; i++) {
+      if (removed[i]) {
+        continue;
+      }
+      if (isTarget[i]) {
+        reachable = true;
+      }
+      if (!reachable) {
+        remove(i);
+        changed = true;
+        continue;
+      }
+      reachable = !isTerminal(ops[i]);
+    }
+    return changed;
+  }
+
+  /**
+   * Replaces instruction sequences by equivalent shorter ones.
+   */
+  private boolean combine() {
+    boolean changed = false;
+    for (int i = 0; i < count; i++) {
+      if (removed[i]) {
+        continue;
+      }
+      int i1 = next(i);
+      if (i1 >= count || isTarget[i1]) {
+        continue;
+      }
+      int op = ops[i];
+      int op1 = ops[i1];
+
+      if ((op == JsFunction.OP_PUSH_TRUE && op1 == IF)
+          || (op == JsFunction.OP_PUSH_FALSE && op1 == UNLESS)) {
+        // branch never taken
+        remove(i);
+        remove(i1);
+        changed = true;
+      } else if ((op == JsFunction.OP_PUSH_FALSE && op1 == IF)
+          || (op == JsFunction.OP_PUSH_TRUE && op1 == UNLESS)) {
+        // branch always taken
+        merge(i, i1, GO, 0);
+        changed = true;
+      } else if (op == JsFunction.OP_NOT && (op1 == IF || op1 == UNLESS)) {
+        merge(i, i1, op1 == IF ? UNLESS : IF, 0);
+        changed = true;
+      } else if ((op == JsFunction.OP_LT || op == JsFunction.OP_GT)
+          && (op1 == IF || op1 == UNLESS)) {
+        int fused;
+        if (op == JsFunction.OP_LT) {
+          fused = op1 == IF ? JsFunction.XOP_IF_LT : JsFunction.XOP_UNLESS_LT;
+        } else {
+          fused = op1 == IF ? JsFunction.XOP_IF_GT : JsFunction.XOP_UNLESS_GT;
+        }
+        merge(i, i1, XOP | fused, 0);
+        changed = true;
+      } else if (op == PUSH_STR && op1 == JsFunction.OP_CTX_GET) {
+        merge(i, i1, XOP | JsFunction.XOP_GET_VAR, imms[i]);
+        changed = true;
+      } else if (op == PUSH_STR && op1 == JsFunction.OP_GET) {
+        merge(i, i1, XOP | JsFunction.XOP_GET_PROP, imms[i]);
+        changed = true;
+      } else if (op == JsFunction.OP_DUP && op1 == JsFunction.OP_DROP) {
+        remove(i);
+        remove(i1);
+        changed = true;
+      } else if (op == LCL_GET && combineIncrement(i, i1)) {
+        changed = true;
+      } else if (op == LCL_SET && op1 == JsFunction.OP_DROP) {
+        merge(i, i1, XOP | JsFunction.XOP_LCL_STORE, imms[i]);
+        changed = true;
+      }
+    }
+    return changed;
+  }
+
+  /**
+   * Replaces LCL_GET n, INC, LCL_SET n, DROP by LCL_INC n, including the
+   * variant for a post increment with an additional DEC before the DROP,
+   * and the corresponding decrement sequences.
+   */
+  private boolean combineIncrement(int i, int i1) {
+    int op1 = ops[i1];
+    if (op1 != JsFunction.OP_INC && op1 != JsFunction.OP_DEC) {
+      return false;
+    }
+    int i2 = next(i1);
+    if (i2 >= count || isTarget[i2] || ops[i2] != LCL_SET || imms[i2] != imms[i]) {
+      return false;
+    }
+    int i3 = next(i2);
+    if (i3 >= count || isTarget[i3]) {
+      return false;
+    }
+    int i4 = -1;
+    if (ops[i3] == JsFunction.OP_INC || ops[i3] == JsFunction.OP_DEC) {
+      // the value of the post increment is a number and is dropped
+      i4 = next(i3);
+      if (i4 >= count || isTarget[i4] || ops[i4] != JsFunction.OP_DROP) {
+        return false;
+      }
+    } else if (ops[i3] != JsFunction.OP_DROP) {
+      return false;
+    }
+
+    merge(i, i1, XOP | (op1 == JsFunction.OP_INC
+        ? JsFunction.XOP_LCL_INC : JsFunction.XOP_LCL_DEC), imms[i]);
+    merge(i, i2, ops[i], imms[i]);
+    merge(i, i3, ops[i], imms[i]);
+    if (i4 != -1) {
+      merge(i, i4, ops[i], imms[i]);
+    }
+    return true;
+  }
+
+  /**
+   * Replaces instruction i by the given instruction and removes the
+   * instruction j following it. The jump target of j, if any, is taken over.
+   */
+  private void merge(int i, int j, int op, int imm) {
+    ops[i] = op;
+    imms[i] = imm;
+    if (isJump(ops[j])) {
+      targets[i] = targets[j];
+    }
+    ops[j] = JsFunction.OP_NOP;
+    remove(j);
+    mergedInto[j] = i;
+  }
+
+  //
+  // encoding
+  //
+
+  private static boolean fitsByte(int imm) {
+    return (imm & 0x0ff80) == 0 || (imm & 0x0ff80) == 0xff80;
+  }
+
+  private byte[] encode(int[] lineNumberPcs) {
+    int[] sizes = new int[count];
+    int[] positions = new int[count + 1];
+    for (int i = 0; i < count; i++) {
+      if (removed[i]) {
+        sizes[i] = 0;
+      } else if (ops[i] < XOP) {
+        sizes[i] = 1;
+      } else if (isJump(ops[i])) {
+        sizes[i] = 2;
+      } else {
+        sizes[i] = fitsByte(imms[i]) ? 2 : 3;
+      }
+    }
+
+    // jumps start short and are widened until all offsets fit; since
+    // instructions only grow, this terminates
+    boolean changed = true;
+    while (changed) {
+      int pos = 0;
+      for (int i = 0; i < count; i++) {
+        positions[i] = pos;
+        pos += sizes[i];
+      }
+      positions[count] = pos;
+      changed = false;
+      for (int i = 0; i < count; i++) {
+        if (!removed[i] && isJump(ops[i]) && sizes[i] == 2
+            && !fitsByte(positions[resolve(targets[i])] - positions[i] - 2)) {
+          sizes[i] = 3;
+          changed = true;
+        }
+      }
+    }
+
+    byte[] result = new byte[positions[count]];
+    int pos = 0;
+    for (int i = 0; i < count; i++) {
+      if (removed[i]) {
+        continue;
+      }
+      int op = ops[i];
+      if (op < XOP) {
+        result[pos++] = (byte) op;
+        continue;
+      }
+      int imm = isJump(op)
+          ? positions[resolve(targets[i])] - positions[i] - sizes[i] : imms[i];
+      if (sizes[i] == 2) {
+        result[pos++] = (byte) ((op & 0x0ff) << 1);
+        result[pos++] = (byte) imm;
+      } else {
+        result[pos++] = (byte) (((op & 0x0ff) << 1) | 1);
+        result[pos++] = (byte) (imm >> 8);
+        result[pos++] = (byte) imm;
+      }
+    }
+
+    // map the line numbers to the new positions
+    for (int k = 0; k < lineNumberPcs.length; k++) {
+      lineNumberPcs[k] = positions[newIndex(indexAt(lineNumberPcs[k]))];
+    }
+    return result;
+  }
+
+  /**
+   * Returns the index of the instruction at the given pc of the original
+   * code.
+   */
+  private int indexAt(int pc) {
+    int i = 0;
+    while (i < count && pcs[i] < pc) {
+      i++;
+    }
+    return i;
+  }
+
+  /**
+   * Returns the index of the instruction that the given instruction of the
+   * original code is part of after the optimization.
+   */
+  private int newIndex(int i) {
+    if (i < count && mergedInto[i] != -1) {
+      i = mergedInto[i];
+      while (mergedInto[i] != -1) {
+        i = mergedInto[i];
+      }
+      if (!removed[i]) {
+        return i;
+      }
+    }
+    return resolve(i);
+  }
+}
@@ -0,0 +1,552 @@
+// Copyright 2008 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.minijoe.compiler;
+
+import com.google.minijoe.sys.JsFunction;
+
+import java.util.Vector;
+
+/**
+ * Code generator for the register instructions of bytecode format 1. It
+ * translates the optimized stack code of a function with fast locals,
+ * where the local variables are the registers, into code using three
+ * address instructions for arithmetic, comparisons and moves on locals,
+ * temporaries and small integer constants.
+ *
+ * The translation simulates the operand stack: local variable reads,
+ * integer constants and results of register instructions are not pushed,
+ * but kept as pending operands on a symbolic stack. Binary operators and
+ * conditional branches on pending operands become register instructions;
+ * their intermediate results are stored in temporary registers following
+ * the local variables. All other instructions, jump targets and writes to
+ * a local that is still pending force the pending operands onto the real
+ * stack first, so at every jump target, the stack is the same as in the
+ * stack code.
+ */
+final class RegisterCodeGenerator {
+
+  /** Marks extended opcodes, taking an immediate parameter. */
+  private static final int XOP = 0x100;
+  /** Marks register instructions. */
+  private static final int ROP = 0x200;
+
+  private static final int IF = XOP | JsFunction.XOP_IF;
+  private static final int UNLESS = XOP | JsFunction.XOP_UNLESS;
+  private static final int LCL_GET = XOP | JsFunction.XOP_LCL_GET;
+  private static final int LCL_SET = XOP | JsFunction.XOP_LCL_SET;
+  private static final int LCL_STORE = XOP | JsFunction.XOP_LCL_STORE;
+  private static final int PUSH_INT = XOP | JsFunction.XOP_PUSH_INT;
+
+  /** Registers above this limit cannot be encoded. */
+  private static final int MAX_REGISTER = 254;
+
+  /** Kinds of pending operands. */
+  private static final int REGISTER = 0;
+  private static final int CONSTANT = 1;
+
+  /** An instruction of the input or output code. */
+  private static final class Instruction {
+    int op;
+    int imm;
+    /** Index of the target instruction of the input code for jumps. */
+    int target = -1;
+    int d;
+    int a;
+    int b;
+
+    Instruction(int op, int imm) {
+      this.op = op;
+      this.imm = imm;
+    }
+  }
+
+  // input code
+  private int count;
+  private Instruction[] code;
+  private int[] pcs;
+  private boolean[] isTarget;
+
+  // output code
+  private final Vector out = new Vector();
+  /** Index of the output instruction for each instruction of the input. */
+  private int[] firstOut;
+
+  // symbolic stack
+  private final int tempBase;
+  private int pending;
+  private int[] kinds = new int[16];
+  private int[] values = new int[16];
+  private int registerCount;
+
+  private RegisterCodeGenerator(int localCount) {
+    this.tempBase = localCount;
+    this.registerCount = localCount;
+  }
+
+  /**
+   * Translates the given code of a function with the given number of local
+   * variables, including parameters. The given line number table,
+   * containing program counters, is updated to the positions in the new
+   * code. Returns the new code, or the original code if it cannot be
+   * translated. In the first case, the number of registers needed is
+   * stored in registers[0]; it is at least the local variable count.
+   */
+  static byte[] generate(byte[] code, int localCount, int[] lineNumberPcs,
+      int[] registers) {
+    registers[0] = localCount;
+    if (localCount > MAX_REGISTER) {
+      return code;
+    }
+    RegisterCodeGenerator generator = new RegisterCodeGenerator(localCount);
+    if (!generator.decode(code)) {
+      return code;
+    }
+    generator.translate();
+    registers[0] = generator.registerCount;
+    return generator.encode(lineNumberPcs);
+  }
+
+  //
+  // decoding
+  //
+
+  private boolean decode(byte[] bytes) {
+    int end = bytes.length;
+    code = new Instruction[end];
+    pcs = new int[end + 1];
+    int[] indexOf = new int[end + 1];
+    for (int i = 0; i <= end; i++) {
+      indexOf[i] = -1;
+    }
+
+    int pc = 0;
+    while (pc < end) {
+      int start = pc;
+      int opcode = bytes[pc++];
+      int imm = 0;
+      int op = opcode;
+      if (opcode < 0) {
+        if ((opcode & 1) == 0) {
+          imm = bytes[pc++];
+        } else {
+          imm = (bytes[pc] << 8) | (bytes[pc + 1] & 255);
+          pc += 2;
+        }
+        op = XOP | ((opcode & 0x0ff) >>> 1);
+      } else if (opcode > JsFunction.OP_PUSH_GLOBAL) {
+        // already contains register instructions
+        return false;
+      }
+      Instruction instruction = new Instruction(op, imm);
+      if (PeepholeOptimizer.isJump(op)) {
+        instruction.target = pc + imm;
+      }
+      indexOf[start] = count;
+      pcs[count] = start;
+      code[count++] = instruction;
+    }
+    indexOf[end] = count;
+    pcs[count] = end;
+
+    isTarget = new boolean[count + 1];
+    for (int i = 0; i < count; i++) {
+      int target = code[i].target;
+      if (target != -1) {
+        if (target < 0 || target > end || indexOf[target] == -1) {
+          return false;
+        }
+        code[i].target = indexOf[target];
+        isTarget[indexOf[target]] = true;
+      }
+    }
+    return true;
+  }
+
+  //
+  // translation
+  //
+
+  private void translate() {
+    firstOut = new int[count + 1];
+    for (int i = 0; i < count; i++) {
+      if (isTarget[i]) {
+        flush();
+      }
+      firstOut[i] = out.size();
+
+      Instruction instruction = code[i];
+      int op = instruction.op;
+      int imm = instruction.imm;
+      int operator = registerOperator(op);
+
+      if (op == LCL_GET) {
+        push(REGISTER, imm);
+      } else if (op == PUSH_INT) {
+        push(CONSTANT, imm);
+      } else if (op == JsFunction.OP_DROP && pending > 0) {
+        pending--;
+      } else if (op == JsFunction.OP_DUP && pending > 0) {
+        push(kinds[pending - 1], values[pending - 1]);
+      } else if ((op == LCL_SET || op == LCL_STORE) && pending > 0) {
+        store(imm, op == LCL_SET);
+      } else if (operator != -1 && pending >= 2) {
+        int i1 = i + 1;
+        int op1 = i1 < count && !isTarget[i1] ? code[i1].op : -1;
+        if ((operator == JsFunction.OP_EQEQ || operator == JsFunction.OP_EQEQEQ)
+            && (op1 == IF || op1 == UNLESS)) {
+          // comparison and branch; the branch becomes part of this instruction
+          firstOut[i1] = out.size();
+          branch(operator, op1 == UNLESS, code[i1].target);
+          i++;
+        } else {
+          binary(operator);
+        }
+      } else if (pending >= 2 && isCompareAndBranch(op)) {
+        branch(op == (XOP | JsFunction.XOP_IF_LT) || op == (XOP | JsFunction.XOP_UNLESS_LT)
+            ? JsFunction.OP_LT : JsFunction.OP_GT,
+            op == (XOP | JsFunction.XOP_UNLESS_LT) || op == (XOP | JsFunction.XOP_UNLESS_GT),
+            instruction.target);
+      } else {
+        // pending reads of a local come before any write to it here
+        flush();
+        out.addElement(instruction);
+      }
+    }
+    flush();
+    firstOut[count] = out.size();
+  }
+
+  /**
+   * Returns the stack opcode of the binary operator with the given opcode if
+   * it has a register instruction, -1 otherwise.
+   */
+  private static int registerOperator(int op) {
+    for (int i = 0; i < JsFunction.REGISTER_OPERATORS.length; i++) {
+      if (JsFunction.REGISTER_OPERATORS[i] == op) {
+        return op;
+      }
+    }
+    return -1;
+  }
+
+  private static int indexOf(int[] table, int op) {
+    int i = 0;
+    while (table[i] != op) {
+      i++;
+    }
+    return i;
+  }
+
+  private static boolean isCompareAndBranch(int op) {
+    return op == (XOP | JsFunction.XOP_IF_LT) || op == (XOP | JsFunction.XOP_IF_GT)
+        || op == (XOP | JsFunction.XOP_UNLESS_LT) || op == (XOP | JsFunction.XOP_UNLESS_GT);
+  }
+
+  private void push(int kind, int value) {
+    if (pending == kinds.length) {
+      int[] newKinds = new int[pending * 2];
+      int[] newValues = new int[pending * 2];
+      System.arraycopy(kinds, 0, newKinds, 0, pending);
+      System.arraycopy(values, 0, newValues, 0, pending);
+      kinds = newKinds;
+      values = newValues;
+    }
+    kinds[pending] = kind;
+    values[pending++] = value;
+  }
+
+  /**
+   * Returns the temporary register for the pending operand at the given
+   * position, or -1 if it would exceed the register limit.
+   */
+  private int temp(int position) {
+    int r = tempBase + position;
+    if (r > MAX_REGISTER) {
+      return -1;
+    }
+    registerCount = Math.max(registerCount, r + 1);
+    return r;
+  }
+
+  /**
+   * Emits the given register instruction.
+   */
+  private Instruction emit(int opcode, int d, int a, int b) {
+    Instruction instruction = new Instruction(ROP | opcode, 0);
+    instruction.d = d;
+    instruction.a = a;
+    instruction.b = b;
+    out.addElement(instruction);
+    return instruction;
+  }
+
+  /**
+   * Moves the pending operand at the given position to a register, so it
+   * can be used as first operand. Returns false if no register is
+   * available.
+   */
+  private boolean toRegister(int position) {
+    if (kinds[position] == REGISTER) {
+      return true;
+    }
+    int r = temp(position);
+    if (r == -1) {
+      return false;
+    }
+    emit(JsFunction.ROP_LOAD_INT, r, values[position], 0);
+    kinds[position] = REGISTER;
+    values[position] = r;
+    return true;
+  }
+
+  /**
+   * Prepares the two topmost pending operands for a register instruction.
+   * Returns false if they must be pushed instead.
+   */
+  private boolean prepareOperands() {
+    int a = pending - 2;
+    int b = pending - 1;
+    if (kinds[b] == CONSTANT && (values[b] < -128 || values[b] > 127)
+        && !toRegister(b)) {
+      return false;
+    }
+    return toRegister(a);
+  }
+
+  private void binary(int operator) {
+    int a = pending - 2;
+    int r = temp(a);
+    if (r == -1 || !prepareOperands()) {
+      flush();
+      out.addElement(new Instruction(operator, 0));
+      return;
+    }
+    int index = indexOf(JsFunction.REGISTER_OPERATORS, operator);
+    int b = pending - 1;
+    if (kinds[b] == CONSTANT) {
+      emit(JsFunction.ROP_BINARY_IMM + index, r, values[a], values[b]);
+    } else {
+      emit(JsFunction.ROP_BINARY + index, r, values[a], values[b]);
+    }
+    pending--;
+    kinds[a] = REGISTER;
+    values[a] = r;
+  }
+
+  private void branch(int operator, boolean unless, int target) {
+    Instruction instruction;
+    // other pending operands would have to be pushed before the branch
+    if (pending > 2 || !prepareOperands()) {
+      flush();
+      if (operator == JsFunction.OP_LT || operator == JsFunction.OP_GT) {
+        int fused;
+        if (operator == JsFunction.OP_LT) {
+          fused = unless ? JsFunction.XOP_UNLESS_LT : JsFunction.XOP_IF_LT;
+        } else {
+          fused = unless ? JsFunction.XOP_UNLESS_GT : JsFunction.XOP_IF_GT;
+        }
+        instruction = new Instruction(XOP | fused, 0);
+      } else {
+        out.addElement(new Instruction(operator, 0));
+        instruction = new Instruction(unless ? UNLESS : IF, 0);
+      }
+      out.addElement(instruction);
+    } else {
+      int a = pending - 2;
+      int b = pending - 1;
+      int opcode = JsFunction.ROP_BRANCH
+          + (indexOf(JsFunction.REGISTER_CONDITIONS, operator) << 2)
+          + (unless ? JsFunction.ROP_BRANCH_UNLESS : 0)
+          + (kinds[b] == CONSTANT ? JsFunction.ROP_BRANCH_IMM : 0);
+      instruction = emit(opcode, 0, values[a], values[b]);
+      pending = 0;
+    }
+    instruction.target = target;
+  }
+
+  /**
+   * Stores the topmost pending operand in the given local variable. If keep
+   * is set, the value remains on the stack.
+   */
+  private void store(int local, boolean keep) {
+    int top = pending - 1;
+    if (references(local, top)) {
+      // the old value of the local is still needed; push everything below
+      int kind = kinds[top];
+      int value = values[top];
+      pending--;
+      flush();
+      push(kind, value);
+      top = 0;
+    }
+    Instruction last = out.size() == 0 ? null : (Instruction) out.lastElement();
+    if (kinds[top] == CONSTANT) {
+      emit(JsFunction.ROP_LOAD_INT, local, values[top], 0);
+    } else {
+      if (values[top] >= tempBase && last != null && last.op >= ROP
+          && last.op < (ROP | JsFunction.ROP_MOVE) && last.d == values[top]
+          && !references(values[top], top)) {
+        // the result of the last instruction goes to the local directly
+        last.d = local;
+      } else if (values[top] != local) {
+        emit(JsFunction.ROP_MOVE, local, values[top], 0);
+      }
+      // the temporary may belong to another position after the flush above
+      values[top] = local;
+    }
+    if (!keep) {
+      pending--;
+    }
+  }
+
+  /**
+   * Returns true if a pending operand below the given position reads the
+   * given register.
+   */
+  private boolean references(int register, int limit) {
+    for (int i = 0; i < limit; i++) {
+      if (kinds[i] == REGISTER && values[i] == register) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Pushes all pending operands on the real stack, in order.
+   */
+  private void flush() {
+    if (pending == 1 && kinds[0] == REGISTER && values[0] >= tempBase
+        && out.size() > 0) {
+      Instruction last = (Instruction) out.lastElement();
+      if (last.op >= ROP && last.op < (ROP | JsFunction.ROP_MOVE)
+          && last.d == values[0]) {
+        // the last instruction pushes its result directly
+        last.d = JsFunction.REGISTER_PUSH;
+        pending = 0;
+        return;
+      }
+    }
+    for (int i = 0; i < pending; i++) {
+      if (kinds[i] == CONSTANT) {
+        out.addElement(new Instruction(PUSH_INT, values[i]));
+      } else {
+        out.addElement(new Instruction(LCL_GET, values[i]));
+      }
+    }
+    pending = 0;
+  }
+
+  //
+  // encoding
+  //
+
+  private static boolean fitsByte(int imm) {
+    return (imm & 0x0ff80) == 0 || (imm & 0x0ff80) == 0xff80;
+  }
+
+  private static int size(Instruction instruction) {
+    int op = instruction.op;
+    if (op < XOP) {
+      return 1;
+    } else if (op < ROP) {
+      return PeepholeOptimizer.isJump(op) || fitsByte(instruction.imm) ? 2 : 3;
+    } else if ((op & 0xff) >= JsFunction.ROP_BRANCH) {
+      return 5;
+    } else {
+      return (op & 0xff) == JsFunction.ROP_MOVE ? 3 : 4;
+    }
+  }
+
+  private byte[] encode(int[] lineNumberPcs) {
+    int n = out.size();
+    int[] sizes = new int[n];
+    int[] positions = new int[n + 1];
+    for (int i = 0; i < n; i++) {
+      sizes[i] = size((Instruction) out.elementAt(i));
+    }
+
+    // stack jumps start short and are widened until all offsets fit
+    boolean changed = true;
+    while (changed) {
+      int pos = 0;
+      for (int i = 0; i < n; i++) {
+        positions[i] = pos;
+        pos += sizes[i];
+      }
+      positions[n] = pos;
+      changed = false;
+      for (int i = 0; i < n; i++) {
+        Instruction instruction = (Instruction) out.elementAt(i);
+        if (instruction.op < ROP && instruction.target != -1 && sizes[i] == 2
+            && !fitsByte(positions[firstOut[instruction.target]] - positions[i] - 2)) {
+          sizes[i] = 3;
+          changed = true;
+        }
+      }
+    }
+
+    byte[] result = new byte[positions[n]];
+    int pos = 0;
+    for (int i = 0; i < n; i++) {
+      Instruction instruction = (Instruction) out.elementAt(i);
+      int op = instruction.op;
+      int offset = instruction.target == -1 ? 0
+          : positions[firstOut[instruction.target]] - positions[i] - sizes[i];
+      if (op < XOP) {
+        result[pos++] = (byte) op;
+      } else if (op < ROP) {
+        int imm = instruction.target == -1 ? instruction.imm : offset;
+        if (sizes[i] == 2) {
+          result[pos++] = (byte) ((op & 0x0ff) << 1);
+          result[pos++] = (byte) imm;
+        } else {
+          result[pos++] = (byte) (((op & 0x0ff) << 1) | 1);
+          result[pos++] = (byte) (imm >> 8);
+          result[pos++] = (byte) imm;
+        }
+      } else {
+        int opcode = op & 0xff;
+        result[pos++] = (byte) opcode;
+        if (opcode >= JsFunction.ROP_BRANCH) {
+          result[pos++] = (byte) instruction.a;
+          result[pos++] = (byte) instruction.b;
+          result[pos++] = (byte) (offset >> 8);
+          result[pos++] = (byte) offset;
+        } else if (opcode == JsFunction.ROP_LOAD_INT) {
+          result[pos++] = (byte) instruction.d;
+          result[pos++] = (byte) (instruction.a >> 8);
+          result[pos++] = (byte) instruction.a;
+        } else {
+          result[pos++] = (byte) instruction.d;
+          result[pos++] = (byte) instruction.a;
+          if (opcode != JsFunction.ROP_MOVE) {
+            result[pos++] = (byte) instruction.b;
+          }
+        }
+      }
+    }
+
+    // map the line numbers to the new positions
+    for (int k = 0; k < lineNumberPcs.length; k++) {
+      int i = 0;
+      while (i < count && pcs[i] < lineNumberPcs[k]) {
+        i++;
+      }
+      lineNumberPcs[k] = positions[firstOut[i]];
+    }
+    return result;
+  }
+}
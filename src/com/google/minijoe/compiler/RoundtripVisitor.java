@@ -47,6 +47,7 @@ import com.google.minijoe.compiler.ast.ObjectLiteral;
 import com.google.minijoe.compiler.ast.ObjectLiteralProperty;
 import com.google.minijoe.compiler.ast.Program;
 import com.google.minijoe.compiler.ast.PropertyExpression;
+import com.google.minijoe.compiler.ast.RegExpLiteral;
 import com.google.minijoe.compiler.ast.ReturnStatement;
 import com.google.minijoe.compiler.ast.Statement;
 import com.google.minijoe.compiler.ast.StringLiteral;
@@ -530,6 +531,11 @@ public class RoundtripVisitor implements Visitor {
     return literal;
   }
 
+  public Expression visit(RegExpLiteral literal) throws CompilerException {
+    write("/" + literal.pattern + "/" + literal.flags);
+    return literal;
+  }
+
   public Expression visit(ArrayLiteral literal) throws CompilerException {
     write("[");
     for (int i = 0; i < literal.elements.length; i++) {
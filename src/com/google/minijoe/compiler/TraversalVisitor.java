@@ -48,6 +48,7 @@ import com.google.minijoe.compiler.ast.ObjectLiteral;
 import com.google.minijoe.compiler.ast.ObjectLiteralProperty;
 import com.google.minijoe.compiler.ast.Program;
 import com.google.minijoe.compiler.ast.PropertyExpression;
+import com.google.minijoe.compiler.ast.RegExpLiteral;
 import com.google.minijoe.compiler.ast.ReturnStatement;
 import com.google.minijoe.compiler.ast.Statement;
 import com.google.minijoe.compiler.ast.StringLiteral;
@@ -397,6 +398,10 @@ public class TraversalVisitor implements Visitor {
     return stringLiteral;
   }
 
+  public Expression visit(RegExpLiteral regExpLiteral) throws CompilerException {
+    return regExpLiteral;
+  }
+
   public Expression visit(ArrayLiteral arrayLiteral) throws CompilerException {
     arrayLiteral.elements = visitExpressionArray(arrayLiteral.elements);
 
@@ -47,6 +47,7 @@ import com.google.minijoe.compiler.ast.ObjectLiteral;
 import com.google.minijoe.compiler.ast.ObjectLiteralProperty;
 import com.google.minijoe.compiler.ast.Program;
 import com.google.minijoe.compiler.ast.PropertyExpression;
+import com.google.minijoe.compiler.ast.RegExpLiteral;
 import com.google.minijoe.compiler.ast.ReturnStatement;
 import com.google.minijoe.compiler.ast.Statement;
 import com.google.minijoe.compiler.ast.StringLiteral;
@@ -124,6 +125,7 @@ public interface Visitor {
   public abstract Expression visit(BooleanLiteral literal) throws CompilerException;
   public abstract Expression visit(NumberLiteral literal) throws CompilerException;
   public abstract Expression visit(StringLiteral literal) throws CompilerException;
+  public abstract Expression visit(RegExpLiteral literal) throws CompilerException;
   public abstract Expression visit(ArrayLiteral literal) throws CompilerException;
   public abstract Expression visit(FunctionLiteral literal) throws CompilerException;
   public abstract Expression visit(ObjectLiteral literal) throws CompilerException;
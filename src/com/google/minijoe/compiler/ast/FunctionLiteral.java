@@ -27,6 +27,7 @@ public class FunctionLiteral extends Expression {
   public Statement[] functions;
   public Statement[] statements;
   public boolean enableLocalsOptimization;
+  public boolean usesArguments = true;
 
   public int index;
 
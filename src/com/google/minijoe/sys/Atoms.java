@@ -0,0 +1,70 @@
+// Copyright 2008 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.minijoe.sys;
+
+/**
+ * Canonical string instances ("atoms") for property names. The string
+ * tables of loaded code, shape keys and the builtin names (Java string
+ * literals, which the JVM interns already) all resolve to the same String
+ * object per name, so property lookups succeed on the reference comparison
+ * in Shape.indexOf() and the inline caches, and the hash code cached by
+ * String is computed only once per name. The JVM string pool serves as
+ * the atom table, so atoms that are no longer used can be collected.
+ *
+ * Also provides shared strings for small non-negative integers (array
+ * indices, arguments keys and number to string conversion) and single
+ * characters (charAt and fromCharCode).
+ */
+final class Atoms {
+
+  private static final String[] INDEX_KEYS = new String[1024];
+
+  private static final String[] CHARS = new String[256];
+
+  static {
+    for (int i = 0; i < INDEX_KEYS.length; i++) {
+      INDEX_KEYS[i] = Integer.toString(i).intern();
+    }
+    for (int i = 0; i < CHARS.length; i++) {
+      CHARS[i] = String.valueOf((char) i).intern();
+    }
+  }
+
+  private Atoms() {
+  }
+
+  /**
+   * Returns the atom for the given string.
+   */
+  static String intern(String s) {
+    return s.intern();
+  }
+
+  /**
+   * Returns the decimal representation of i, shared for small non-negative
+   * values.
+   */
+  static String indexKey(int i) {
+    return i >= 0 && i < INDEX_KEYS.length ? INDEX_KEYS[i] : Integer.toString(i);
+  }
+
+  /**
+   * Returns a string consisting of the given character, shared for
+   * characters up to 0xff.
+   */
+  static String charString(char c) {
+    return c < CHARS.length ? CHARS[c] : String.valueOf(c);
+  }
+}
@@ -0,0 +1,63 @@
+// Copyright 2008 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.minijoe.sys;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Input stream reading from a private view of a byte buffer, which may be
+ * a memory mapped file. Reports its absolute position in the buffer, which
+ * the loader uses to record the offsets of nested function literals.
+ */
+final class ByteBufferInputStream extends InputStream {
+
+  final ByteBuffer buffer;
+
+  ByteBufferInputStream(ByteBuffer source, int position) {
+    buffer = source.duplicate();
+    buffer.position(position);
+  }
+
+  int position() {
+    return buffer.position();
+  }
+
+  public int read() {
+    return buffer.hasRemaining() ? buffer.get() & 255 : -1;
+  }
+
+  public int read(byte[] b, int off, int len) {
+    if (len == 0) {
+      return 0;
+    }
+    if (!buffer.hasRemaining()) {
+      return -1;
+    }
+    len = Math.min(len, buffer.remaining());
+    buffer.get(b, off, len);
+    return len;
+  }
+
+  public long skip(long n) {
+    int count = (int) Math.max(0, Math.min(n, buffer.remaining()));
+    buffer.position(buffer.position() + count);
+    return count;
+  }
+
+  public int available() {
+    return buffer.remaining();
+  }
+}
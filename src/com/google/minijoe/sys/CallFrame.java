@@ -0,0 +1,60 @@
+// Copyright 2008 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.minijoe.sys;
+
+/**
+ * Saved interpreter state of a calling function while the interpreter
+ * executes a script function it called. JsFunction.eval() keeps these
+ * records in an array instead of calling itself recursively, so script
+ * recursion depth is limited by the heap only. Records are reused for
+ * subsequent calls at the same depth.
+ */
+final class CallFrame {
+
+  /** The calling function. */
+  JsFunction function;
+
+  /** Program counter after the call instruction. */
+  int pc;
+
+  /** Base pointer (index of parameter 0) of the caller. */
+  int bp;
+
+  /** Stack index of the called function's this pointer; receives the result. */
+  int sp;
+
+  /** Stack pointer of the caller after the local variables. */
+  int initialSp;
+
+  JsObject context;
+
+  JsObject thisPtr;
+
+  /** Number of parameters the caller was called with. */
+  int parameterCount;
+
+  /** Profiler shadow stack of the caller and its index there, if profiled. */
+  Profiler.Stack profile;
+  int profileFrame;
+
+  /** Last opcode executed by the caller, for ExecutionStats. */
+  int previousOpcode;
+
+  /**
+   * Set for XOP_TRY_CALL, which receives exceptions thrown by the callee as
+   * an error object and a success flag instead of the result.
+   */
+  boolean tryCall;
+}
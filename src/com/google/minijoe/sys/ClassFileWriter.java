@@ -0,0 +1,344 @@
+// Copyright 2008 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.minijoe.sys;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Hashtable;
+import java.util.Vector;
+
+/**
+ * Minimal writer for JVM class files, used by the JIT compiler. Supports a
+ * single class with methods containing straight line code, branches and
+ * exception handlers. The class file version is 49, so no stack map frames
+ * need to be generated; the JVM falls back to type inference verification.
+ */
+final class ClassFileWriter {
+
+  static final int ACC_PUBLIC = 0x0001;
+  static final int ACC_FINAL = 0x0010;
+  static final int ACC_SUPER = 0x0020;
+
+  static final int ACONST_NULL = 0x01;
+  static final int ICONST_0 = 0x03;
+  static final int DCONST_0 = 0x0e;
+  static final int DCONST_1 = 0x0f;
+  static final int BIPUSH = 0x10;
+  static final int SIPUSH = 0x11;
+  static final int LDC_W = 0x13;
+  static final int LDC2_W = 0x14;
+  static final int ILOAD = 0x15;
+  static final int DLOAD = 0x18;
+  static final int ALOAD = 0x19;
+  static final int ISTORE = 0x36;
+  static final int DSTORE = 0x39;
+  static final int ASTORE = 0x3a;
+  static final int AALOAD = 0x32;
+  static final int POP = 0x57;
+  static final int POP2 = 0x58;
+  static final int DUP2 = 0x5c;
+  static final int IADD = 0x60;
+  static final int DADD = 0x63;
+  static final int DSUB = 0x67;
+  static final int DMUL = 0x6b;
+  static final int DDIV = 0x6f;
+  static final int DREM = 0x73;
+  static final int DNEG = 0x77;
+  static final int I2D = 0x87;
+  static final int L2D = 0x8a;
+  static final int DCMPL = 0x97;
+  static final int DCMPG = 0x98;
+  static final int IFEQ = 0x99;
+  static final int IFNE = 0x9a;
+  static final int IFLT = 0x9b;
+  static final int IFGE = 0x9c;
+  static final int IFGT = 0x9d;
+  static final int IFLE = 0x9e;
+  static final int GOTO = 0xa7;
+  static final int RETURN = 0xb1;
+  static final int GETSTATIC = 0xb2;
+  static final int GETFIELD = 0xb4;
+  static final int INVOKEVIRTUAL = 0xb6;
+  static final int INVOKESPECIAL = 0xb7;
+  static final int INVOKESTATIC = 0xb8;
+  static final int ATHROW = 0xbf;
+
+  private final String name;
+  private final String superName;
+
+  private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+  private final DataOutputStream poolOut = new DataOutputStream(pool);
+  private final Hashtable poolMap = new Hashtable();
+  private int poolCount = 1;
+
+  private final ByteArrayOutputStream methods = new ByteArrayOutputStream();
+  private final DataOutputStream methodsOut = new DataOutputStream(methods);
+  private int methodCount;
+
+  /** Code of the method currently being generated. */
+  private ByteArrayOutputStream code;
+  private int[] labels;
+  private int labelCount;
+  private Vector fixups;
+  private Vector exceptionTable;
+
+  ClassFileWriter(String name, String superName) {
+    this.name = name;
+    this.superName = superName;
+  }
+
+  //
+  // constant pool
+  //
+
+  private int constant(String key, int tag, Object a, Object b) {
+    Integer index = (Integer) poolMap.get(key);
+    if (index != null) {
+      return index.intValue();
+    }
+    int result = poolCount;
+    try {
+      poolOut.writeByte(tag);
+      switch (tag) {
+        case 1:
+          poolOut.writeUTF((String) a);
+          poolCount++;
+          break;
+        case 6:
+          poolOut.writeDouble(((Double) a).doubleValue());
+          poolCount += 2;
+          break;
+        default:
+          poolOut.writeShort(((Integer) a).intValue());
+          if (b != null) {
+            poolOut.writeShort(((Integer) b).intValue());
+          }
+          poolCount++;
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(e.toString());
+    }
+    poolMap.put(key, new Integer(result));
+    return result;
+  }
+
+  int utf8(String s) {
+    return constant("U" + s, 1, s, null);
+  }
+
+  int classRef(String className) {
+    return constant("C" + className, 7, new Integer(utf8(className)), null);
+  }
+
+  int doubleConstant(double d) {
+    return constant("D" + Double.doubleToLongBits(d), 6, new Double(d), null);
+  }
+
+  private int nameAndType(String name, String desc) {
+    return constant("N" + name + ' ' + desc, 12, new Integer(utf8(name)),
+        new Integer(utf8(desc)));
+  }
+
+  int methodRef(String owner, String name, String desc) {
+    return constant("M" + owner + '.' + name + desc, 10,
+        new Integer(classRef(owner)), new Integer(nameAndType(name, desc)));
+  }
+
+  int fieldRef(String owner, String name, String desc) {
+    return constant("F" + owner + '.' + name + desc, 9,
+        new Integer(classRef(owner)), new Integer(nameAndType(name, desc)));
+  }
+
+  //
+  // code generation
+  //
+
+  /**
+   * Starts generating code for a new method.
+   */
+  void beginCode() {
+    code = new ByteArrayOutputStream();
+    labels = new int[16];
+    labelCount = 0;
+    fixups = new Vector();
+    exceptionTable = new Vector();
+  }
+
+  /**
+   * Returns the current code offset.
+   */
+  int position() {
+    return code.size();
+  }
+
+  void op(int op) {
+    code.write(op);
+  }
+
+  void op1(int op, int value) {
+    code.write(op);
+    code.write(value);
+  }
+
+  void op2(int op, int value) {
+    code.write(op);
+    code.write(value >> 8);
+    code.write(value);
+  }
+
+  /**
+   * Emits a local variable instruction, using the wide form where needed.
+   */
+  void local(int op, int index) {
+    if (index > 255) {
+      code.write(0xc4);
+      op2(op, index);
+    } else {
+      op1(op, index);
+    }
+  }
+
+  void pushInt(int value) {
+    if (value >= -1 && value <= 5) {
+      op(ICONST_0 + value);
+    } else if (value >= -128 && value <= 127) {
+      op1(BIPUSH, value & 255);
+    } else if (value >= -32768 && value <= 32767) {
+      op2(SIPUSH, value & 0xffff);
+    } else {
+      throw new IllegalArgumentException("int constant out of range");
+    }
+  }
+
+  void pushDouble(double d) {
+    if (d == 0 && 1 / d > 0) {
+      op(DCONST_0);
+    } else if (d == 1) {
+      op(DCONST_1);
+    } else {
+      op2(LDC2_W, doubleConstant(d));
+    }
+  }
+
+  void invoke(int op, String owner, String name, String desc) {
+    op2(op, methodRef(owner, name, desc));
+  }
+
+  /**
+   * Creates a new, unbound label.
+   */
+  int newLabel() {
+    if (labelCount == labels.length) {
+      int[] newLabels = new int[labelCount * 2];
+      System.arraycopy(labels, 0, newLabels, 0, labelCount);
+      labels = newLabels;
+    }
+    labels[labelCount] = -1;
+    return labelCount++;
+  }
+
+  void bind(int label) {
+    labels[label] = code.size();
+  }
+
+  /**
+   * Emits a branch instruction to the given label.
+   */
+  void jump(int op, int label) {
+    fixups.addElement(new int[]{code.size(), label});
+    op2(op, 0);
+  }
+
+  void addExceptionHandler(int start, int end, int handler, String type) {
+    exceptionTable.addElement(
+        new int[]{start, end, handler, type == null ? 0 : classRef(type)});
+  }
+
+  /**
+   * Completes the current method and adds it to the class.
+   *
+   * @return false if the method could not be encoded, e.g. because it is too
+   *     large.
+   */
+  boolean endCode(int access, String name, String desc, int maxStack,
+      int maxLocals) {
+    byte[] bytes = code.toByteArray();
+    if (bytes.length > 32767) {
+      return false;
+    }
+    for (int i = 0; i < fixups.size(); i++) {
+      int[] fixup = (int[]) fixups.elementAt(i);
+      int offset = labels[fixup[1]] - fixup[0];
+      bytes[fixup[0] + 1] = (byte) (offset >> 8);
+      bytes[fixup[0] + 2] = (byte) offset;
+    }
+
+    try {
+      methodsOut.writeShort(access);
+      methodsOut.writeShort(utf8(name));
+      methodsOut.writeShort(utf8(desc));
+      methodsOut.writeShort(1);
+      methodsOut.writeShort(utf8("Code"));
+      methodsOut.writeInt(12 + bytes.length + exceptionTable.size() * 8);
+      methodsOut.writeShort(maxStack);
+      methodsOut.writeShort(maxLocals);
+      methodsOut.writeInt(bytes.length);
+      methodsOut.write(bytes);
+      methodsOut.writeShort(exceptionTable.size());
+      for (int i = 0; i < exceptionTable.size(); i++) {
+        int[] entry = (int[]) exceptionTable.elementAt(i);
+        for (int j = 0; j < 4; j++) {
+          methodsOut.writeShort(entry[j]);
+        }
+      }
+      methodsOut.writeShort(0);
+    } catch (IOException e) {
+      throw new RuntimeException(e.toString());
+    }
+    methodCount++;
+    code = null;
+    return true;
+  }
+
+  /**
+   * Returns the complete class file.
+   */
+  byte[] toByteArray() {
+    int thisIndex = classRef(name);
+    int superIndex = classRef(superName);
+
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    DataOutputStream dos = new DataOutputStream(baos);
+    try {
+      dos.writeInt(0xcafebabe);
+      dos.writeShort(0);
+      dos.writeShort(49);
+      dos.writeShort(poolCount);
+      dos.write(pool.toByteArray());
+      dos.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+      dos.writeShort(thisIndex);
+      dos.writeShort(superIndex);
+      dos.writeShort(0);
+      dos.writeShort(0);
+      dos.writeShort(methodCount);
+      dos.write(methods.toByteArray());
+      dos.writeShort(0);
+    } catch (IOException e) {
+      throw new RuntimeException(e.toString());
+    }
+    return baos.toByteArray();
+  }
+}
@@ -15,17 +15,19 @@
 package com.google.minijoe.sys;
 
 import com.google.minijoe.compiler.CodeGenerationVisitor;
+import com.google.minijoe.compiler.ConstantFoldingVisitor;
 import com.google.minijoe.compiler.CompilerException;
 import com.google.minijoe.compiler.Config;
 import com.google.minijoe.compiler.DeclarationVisitor;
-import com.google.minijoe.compiler.Disassembler;
 import com.google.minijoe.compiler.Lexer;
 import com.google.minijoe.compiler.Parser;
 import com.google.minijoe.compiler.RoundtripVisitor;
 import com.google.minijoe.compiler.ast.Program;
+import com.google.minijoe.compiler.ast.Statement;
 import com.guilhermechapiewski.fluentmail.email.EmailMessage;
 import com.guilhermechapiewski.fluentmail.transport.EmailTransportConfiguration;
 import com.squareup.okhttp.Cache;
+import com.squareup.okhttp.Callback;
 import com.squareup.okhttp.MediaType;
 import com.squareup.okhttp.OkHttpClient;
 import com.squareup.okhttp.Request;
@@ -47,12 +49,14 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.Reader;
 import java.io.Writer;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.Properties;
+import java.util.Vector;
 
 import org.eclipse.swt.SWT;
 import org.eclipse.swt.SWTError;
@@ -112,43 +116,103 @@ public class Eval extends JsObject {
   static final int ID_SNAPPY = 171;
   static final int ID_OPENBROWSER = 172;
   static final int ID_HELP = 173;
+  static final int ID_PROFILE = 174;
+  static final int ID_STATS = 175;
+  static final int ID_HTTP_GET_ASYNC = 176;
+  static final int ID_POST_JSON_ASYNC = 177;
+  static final int ID_EXTRACT_TEXT_ASYNC = 178;
+  static final int ID_LOAD_STREAMING = 179;
+
+  private static OkHttpClient asyncClient;
+
+  /** Number of top-level statements compiled together by eval(Reader). */
+  static final int STATEMENTS_PER_CHUNK = 64;
 
   static final JsObject COMPILER_PROTOTYPE = new JsObject(OBJECT_PROTOTYPE);
 
+  /**
+   * Creates a global object for a realm. All builtins are looked up in the
+   * given shared (frozen) global via the scope chain.
+   */
+  Eval(Eval builtins) {
+    super(COMPILER_PROTOTYPE);
+    scopeChain = builtins;
+  }
+
   public Eval() {
     super(COMPILER_PROTOTYPE);
     scopeChain = JsSystem.createGlobal();
-    addVar("eval", new JsFunction(ID_EVAL, 2));
-    addVar("httpGet", new JsFunction(ID_HTTP_GET,1, "httpGet(url)通过OKHttp获取网页内容"));
-    addVar("postJson", new JsFunction(ID_POST_JSON,2));
-    addVar("startCrawler", new JsFunction(ID_CRAWLER, 1));
-    addVar("curl", new JsFunction(ID_CURL,1));
-    addVar("extractHTML", new JsFunction(ID_EXTRACT_HTML, 1));
+    addVar("eval", new JsFunction(new Native(ID_EVAL), 2));
+    addVar("httpGet", new JsFunction(new Native(ID_HTTP_GET), 1, "httpGet(url)通过OKHttp获取网页内容"));
+    addVar("postJson", new JsFunction(new Native(ID_POST_JSON), 2));
+    addVar("startCrawler", new JsFunction(new Native(ID_CRAWLER), 1));
+    addVar("curl", new JsFunction(new Native(ID_CURL), 1));
+    addVar("extractHTML", new JsFunction(new Native(ID_EXTRACT_HTML), 1));
     
-    addVar("compile", new JsFunction(ID_COMPILE,1));
-    addVar("load", new JsFunction(ID_LOAD,1));
-    addVar("genSiteMap", new JsFunction(ID_GEN_SITEMAP, 1));
-    addVar("whois", new JsFunction(ID_WHOIS, 1));
-    addVar("pagerank", new JsFunction(ID_PAGERANK, 1));
-    addVar("sendTwitter", new JsFunction(ID_SEND_TWITTER, 1));
-    addVar("extractText", new JsFunction(ID_EXTRACT_TEXT, 2));
-    addVar("listLinks", new JsFunction(ID_LIST_LINKS, 0));
-    addVar("log", new JsFunction(ID_LOG, 1));
-    addVar("sendMail", new JsFunction(ID_SEND_MAIL, 5));
+    addVar("compile", new JsFunction(new Native(ID_COMPILE), 1));
+    addVar("load", new JsFunction(new Native(ID_LOAD), 1));
+    addVar("loadStreaming", new JsFunction(new Native(ID_LOAD_STREAMING), 1,
+        "loadStreaming(file) runs a large script in chunks while reading it;"
+        + " functions are only hoisted within their chunk"));
+    addVar("genSiteMap", new JsFunction(new Native(ID_GEN_SITEMAP), 1));
+    addVar("whois", new JsFunction(new Native(ID_WHOIS), 1));
+    addVar("pagerank", new JsFunction(new Native(ID_PAGERANK), 1));
+    addVar("sendTwitter", new JsFunction(new Native(ID_SEND_TWITTER), 1));
+    addVar("extractText", new JsFunction(new Native(ID_EXTRACT_TEXT), 2));
+    addVar("listLinks", new JsFunction(new Native(ID_LIST_LINKS), 0));
+    addVar("log", new JsFunction(new Native(ID_LOG), 1));
+    addVar("sendMail", new JsFunction(new Native(ID_SEND_MAIL), 5));
     //怎么创建一个服务器呢？
     //addVar("HttpServer", new JsHttpServer());
-    addVar("snappy", new JsFunction(ID_SNAPPY, 0));
+    addVar("snappy", new JsFunction(new Native(ID_SNAPPY), 0));
     
     addVar("levelDb", new JsLevelDB());
-    addVar("openBrowser", new JsFunction(ID_OPENBROWSER,1, "openBrowser(url)打开浏览器"));
-    addVar("help", new JsFunction(ID_HELP,1));
+    addVar("openBrowser", new JsFunction(new Native(ID_OPENBROWSER), 1, "openBrowser(url)打开浏览器"));
+    addVar("help", new JsFunction(new Native(ID_HELP), 1));
+    addVar("profile", new JsFunction(new Native(ID_PROFILE), 1,
+        "profile(cmd) start/stop/reset/stacks/hotspots"));
+    addVar("stats", new JsFunction(new Native(ID_STATS), 1, "stats(cmd) report/reset"));
+    addVar("httpGetAsync", new JsFunction(new Native(ID_HTTP_GET_ASYNC), 1,
+        "httpGetAsync(url) returns a Promise for the page content"));
+    addVar("postJsonAsync", new JsFunction(new Native(ID_POST_JSON_ASYNC), 2,
+        "postJsonAsync(url, json) returns a Promise for the response"));
+    addVar("extractTextAsync", new JsFunction(new Native(ID_EXTRACT_TEXT_ASYNC), 2,
+        "extractTextAsync(url, selector) returns a Promise for the text"));
   }
 
   public static JsObject createGlobal() {
     return new Eval();
   }
 
+  /**
+   * Native method of the global object of the shell, bound to its JsFunction at registration.
+   */
+  static final class Native extends NativeMethod {
+    private final int id;
+
+    Native(int id) {
+      this.id = id;
+    }
+
+    public void invoke(JsObject thisPtr, JsArray stack, int sp, int parCount) {
+      if (!(thisPtr instanceof Eval)
+          || !((Eval) thisPtr).evalGlobalNative(id, stack, sp, parCount)) {
+        // other receivers and ids keep the behavior of the id based dispatch
+        thisPtr.evalNative(id, stack, sp, parCount);
+      }
+    }
+  }
+
+  /**
+   * Dispatches the ids of natives not bound to a NativeMethod.
+   */
   public void evalNative(int index, JsArray stack, int sp, int parCount) {
+    if (!evalGlobalNative(index, stack, sp, parCount)) {
+      super.evalNative(index, stack, sp, parCount);
+    }
+  }
+
+  final boolean evalGlobalNative(int index, JsArray stack, int sp, int parCount) {
     switch (index) {
     case ID_HTTP_GET:
 		try {
@@ -224,13 +288,13 @@ public class Eval extends JsObject {
     	  
       case ID_COMPILE:
     	  try{
-    	    File file = new File(stack.getString(sp+2));
-    	    DataInputStream dis = new DataInputStream(new FileInputStream(file));
-    	    byte[] data = new byte[(int) file.length()];
-    	    dis.readFully(data);
-    	    String code = new String(data, "UTF-8");
-    	    Eval.compile(code, System.out);  
-    	    dis.close();
+    	    Reader reader = new InputStreamReader(
+    	        new FileInputStream(stack.getString(sp+2)), "UTF-8");
+    	    try {
+    	      Eval.compile(reader, System.out);
+    	    } finally {
+    	      reader.close();
+    	    }
     	  }catch(Exception ex){
     		  ex.printStackTrace();
     	  }
@@ -242,10 +306,22 @@ public class Eval extends JsObject {
       	    DataInputStream dis = new DataInputStream(new FileInputStream(file));
       	    byte[] data = new byte[(int) file.length()];
       	    dis.readFully(data);
-      	    String code = new String(data, "UTF-8");    	
-      	    //����xxx.js�ļ�
-      	    Eval.eval(code, Eval.createGlobal());
       	    dis.close();
+      	    Eval.eval(new String(data, "UTF-8"), Eval.createGlobal());
+    	  }catch(Exception ex){
+    		  ex.printStackTrace();
+    	  }
+    	break;
+
+      case ID_LOAD_STREAMING:
+    	  try{
+      	    Reader reader = new InputStreamReader(
+      	        new FileInputStream(stack.getString(sp+2)), "UTF-8");
+      	    try {
+      	      Eval.eval(reader, Eval.createGlobal());
+      	    } finally {
+      	      reader.close();
+      	    }
     	  }catch(Exception ex){
     		  ex.printStackTrace();
     	  }
@@ -352,20 +428,7 @@ public class Eval extends JsObject {
 				Document doc = Jsoup.connect(url).userAgent("okhttp")
 						.timeout(5 * 1000).get();
 
-				HtmlToPlainText formatter = new HtmlToPlainText();
-
-				if (selector != null) {
-					Elements elements = doc.select(selector);
-					StringBuffer sb = new StringBuffer();
-					for (Element element : elements) {
-						String plainText = formatter.getPlainText(element);
-						sb.append(plainText);
-					}
-					stack.setObject(sp, sb.toString());
-				} else {
-					stack.setObject(sp, formatter.getPlainText(doc));
-
-				}
+				stack.setObject(sp, extractText(doc, selector));
 			} catch (Exception ex) {
 				ex.printStackTrace();
 			}
@@ -468,10 +531,114 @@ public class Eval extends JsObject {
     		  }
     	  }
     	  break;
+
+      case ID_PROFILE:
+        stack.setObject(sp, Profiler.command(stack.getString(sp + 2)));
+        break;
+
+      case ID_STATS:
+        stack.setObject(sp, ExecutionStats.command(stack.getString(sp + 2)));
+        break;
+
+      case ID_HTTP_GET_ASYNC:
+        stack.setObject(sp, enqueue(
+            new Request.Builder().url(stack.getString(sp + 2)).build(), null));
+        break;
+
+      case ID_POST_JSON_ASYNC:
+        RequestBody body = RequestBody.create(
+            MediaType.parse("application/json; charset=utf-8"), stack.getString(sp + 3));
+        stack.setObject(sp, enqueue(
+            new Request.Builder().url(stack.getString(sp + 2)).post(body).build(), null));
+        break;
+
+      case ID_EXTRACT_TEXT_ASYNC:
+        stack.setObject(sp, enqueue(
+            new Request.Builder().url(stack.getString(sp + 2)).build(),
+            stack.isNull(sp + 3) ? "" : stack.getString(sp + 3)));
+        break;
           
       default:
-        super.evalNative(index, stack, sp, parCount);
+        return false;
+    }
+    return true;
+  }
+
+  /**
+   * Returns the plain text of the given document, or of the elements
+   * matching the selector if it is not null or empty.
+   */
+  static String extractText(Document doc, String selector) {
+    HtmlToPlainText formatter = new HtmlToPlainText();
+    if (selector == null || selector.length() == 0) {
+      return formatter.getPlainText(doc);
+    }
+    StringBuffer sb = new StringBuffer();
+    for (Element element : doc.select(selector)) {
+      sb.append(formatter.getPlainText(element));
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Returns the client used by the asynchronous natives. Its dispatcher
+   * keeps up to minijoe.http.maxRequests requests (default 256) in flight,
+   * and up to minijoe.http.maxRequestsPerHost (default 32) per host.
+   */
+  static synchronized OkHttpClient getAsyncClient() {
+    if (asyncClient == null) {
+      asyncClient = new OkHttpClient();
+      asyncClient.getDispatcher().setMaxRequests(
+          Integer.getInteger("minijoe.http.maxRequests", 256).intValue());
+      asyncClient.getDispatcher().setMaxRequestsPerHost(
+          Integer.getInteger("minijoe.http.maxRequestsPerHost", 32).intValue());
     }
+    return asyncClient;
+  }
+
+  /**
+   * Enqueues the given request on the dispatcher of the asynchronous client
+   * and returns a promise for the response body, or for its text content if
+   * selector is not null. The promise is settled on the event loop of the
+   * calling thread; the script thread does not block while the request is
+   * in flight.
+   */
+  static JsPromise enqueue(Request request, final String selector) {
+    final JsPromise promise = new JsPromise();
+    final EventLoop loop = EventLoop.current();
+    final int generation = loop.begin();
+    getAsyncClient().newCall(request).enqueue(new Callback() {
+      public void onFailure(Request request, IOException e) {
+        fail(e);
+      }
+
+      public void onResponse(Response response) {
+        final Object result;
+        try {
+          String body = response.body().string();
+          result = selector == null ? body
+              : extractText(Jsoup.parse(body, response.request().urlString()), selector);
+        } catch (Throwable e) {
+          // errors included: the loop would wait forever for a lost completion
+          fail(e instanceof Exception ? (Exception) e : new RuntimeException(e));
+          return;
+        }
+        loop.complete(generation, new Runnable() {
+          public void run() {
+            promise.resolve(result);
+          }
+        });
+      }
+
+      private void fail(final Exception e) {
+        loop.complete(generation, new Runnable() {
+          public void run() {
+            promise.reject(new JsError(e));
+          }
+        });
+      }
+    });
+    return promise;
   }
 
   private void openBrowser() {
@@ -500,11 +667,18 @@ public class Eval extends JsObject {
 	}
 
   public static void compile(String input, OutputStream os) throws CompilerException, IOException {
-    Lexer lexer = new Lexer(input);
-    Parser parser = new Parser(lexer);
+    compile(new Parser(new Lexer(input)).parseProgram(), os);
+  }
 
-    Program program = parser.parseProgram();
+  /**
+   * Compiles the program read from the given reader. The source text is
+   * never held in memory as a whole.
+   */
+  public static void compile(Reader input, OutputStream os) throws CompilerException, IOException {
+    compile(new Parser(new Lexer(input)).parseProgram(), os);
+  }
 
+  private static void compile(Program program, OutputStream os) throws CompilerException, IOException {
     if (Config.DEBUG_SOURCE) {
       Writer w = new OutputStreamWriter(System.out);
       new RoundtripVisitor(w).visit(program);
@@ -513,22 +687,56 @@ public class Eval extends JsObject {
 
     // handle variable and function declarations
     new DeclarationVisitor().visit(program);
+    new ConstantFoldingVisitor().visit(program);
 
     DataOutputStream dos = new DataOutputStream(os);
     new CodeGenerationVisitor(dos).visit(program);
     dos.flush();
   }
   
+  /**
+   * Compiles and runs the given source in the given context. Compiled
+   * scripts are cached in ScriptCache.getDefault().
+   */
   public static Object eval(String input, JsObject context) throws CompilerException, IOException {
-    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-    compile(input, baos);
-    byte[] code = baos.toByteArray();
-
-    if (Config.DEBUG_DISSASSEMBLY) {
-      new Disassembler(new DataInputStream(new ByteArrayInputStream(code))).dump();
-    }
+    return ScriptCache.getDefault().eval(input, context);
+  }
 
-    return JsFunction.exec(new DataInputStream(new ByteArrayInputStream(code)), context);
+  /**
+   * Compiles and runs the program read from the given reader in chunks of
+   * up to STATEMENTS_PER_CHUNK top-level statements, so execution starts
+   * before the input has been read completely, and memory use is bounded
+   * by the size of a chunk instead of the size of the script. Function
+   * declarations are hoisted within their chunk only; unlike in a program
+   * compiled as a whole, they are not available to earlier chunks. Returns
+   * the value of the last statement. Scripts executed this way are not
+   * cached.
+   */
+  public static Object eval(Reader input, JsObject context) throws CompilerException, IOException {
+    Parser parser = new Parser(new Lexer(input));
+    Vector pending = new Vector();
+    Object result = null;
+
+    Statement statement;
+    do {
+      statement = parser.parseNextSourceElement();
+      if (statement != null) {
+        pending.addElement(statement);
+      }
+      if (pending.size() >= STATEMENTS_PER_CHUNK
+          || (statement == null && !pending.isEmpty())) {
+        Statement[] statements = new Statement[pending.size()];
+        pending.copyInto(statements);
+        pending.removeAllElements();
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        compile(new Program(statements), baos);
+        result = JsFunction.exec(
+            new DataInputStream(new ByteArrayInputStream(baos.toByteArray())), context);
+      }
+    } while (statement != null);
+
+    return result;
   }
   
   
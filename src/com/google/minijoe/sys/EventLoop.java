@@ -0,0 +1,266 @@
+// Copyright 2008 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.minijoe.sys;
+
+import java.util.Hashtable;
+import java.util.Vector;
+
+/**
+ * Event loop of a script thread. All callbacks of a script -- timers,
+ * promise reactions and the completions of asynchronous natives -- run on
+ * the thread executing the script, one at a time, so scripts never need
+ * locking even with many operations in flight.
+ *
+ * Each thread has its own loop, returned by current(). While a realm is
+ * executing, current() returns the loop of the realm instead, so callbacks
+ * scheduled by one realm never run in another realm that later uses the
+ * same thread. Asynchronous
+ * operations are started on the script thread with begin() and deliver
+ * their result from any thread with complete(); the loop runs the
+ * completion task on the script thread. run() processes events until no
+ * timers or operations are left; it is called by the shell and by
+ * Realm.eval() after the script itself has finished.
+ *
+ * Promise reactions are microtasks: they run after the current task, before
+ * any other timer or completion.
+ */
+public final class EventLoop {
+
+  private static final ThreadLocal CURRENT = new ThreadLocal();
+
+  /** Completion tasks posted by other threads; guarded by this. */
+  private final Vector tasks = new Vector();
+
+  /** Number of started operations that have not completed; guarded by this. */
+  private int pending;
+
+  /**
+   * Incremented by clear(); completions of operations begun in an earlier
+   * generation are dropped. Guarded by this.
+   */
+  private int generation;
+
+  /** Pending timers, ordered by due time; only used by the loop thread. */
+  private final Vector timers = new Vector();
+
+  /** Pending timers by id. */
+  private final Hashtable timerIds = new Hashtable();
+
+  private int nextTimerId = 1;
+
+  /** Promise reactions waiting to run; only used by the loop thread. */
+  private Vector microtasks = new Vector();
+
+  private boolean running;
+
+  EventLoop() {
+  }
+
+  static final class Timer {
+    final int id;
+    final JsObject global;
+    final JsFunction function;
+    final Object[] arguments;
+    /** Interval for repeating timers, or -1. */
+    final int interval;
+    long due;
+
+    Timer(int id, JsObject global, JsFunction function, Object[] arguments,
+        int interval, long due) {
+      this.id = id;
+      this.global = global;
+      this.function = function;
+      this.arguments = arguments;
+      this.interval = interval;
+      this.due = due;
+    }
+  }
+
+  /**
+   * Returns the event loop of the current thread.
+   */
+  public static EventLoop current() {
+    Realm realm = Realm.current();
+    if (realm != null) {
+      return realm.loop;
+    }
+    EventLoop loop = (EventLoop) CURRENT.get();
+    if (loop == null) {
+      loop = new EventLoop();
+      CURRENT.set(loop);
+    }
+    return loop;
+  }
+
+  /**
+   * Schedules the given function to be called with the given global object
+   * as "this" after delay milliseconds, and then every delay milliseconds if
+   * repeat is set. Returns the id of the timer for clearTimer().
+   */
+  int setTimer(JsObject global, JsFunction function, Object[] arguments,
+      int delay, boolean repeat) {
+    delay = Math.max(0, delay);
+    Timer timer = new Timer(nextTimerId++, global, function, arguments,
+        repeat ? Math.max(1, delay) : -1, System.currentTimeMillis() + delay);
+    timerIds.put(new Integer(timer.id), timer);
+    schedule(timer);
+    return timer.id;
+  }
+
+  /**
+   * Cancels the timer with the given id. Unknown ids are ignored.
+   */
+  void clearTimer(int id) {
+    Timer timer = (Timer) timerIds.remove(new Integer(id));
+    if (timer != null) {
+      synchronized (this) {
+        timers.removeElement(timer);
+      }
+    }
+  }
+
+  private synchronized void schedule(Timer timer) {
+    // timers with the same due time fire in the order they were scheduled
+    int i = timers.size();
+    while (i > 0 && ((Timer) timers.elementAt(i - 1)).due > timer.due) {
+      i--;
+    }
+    timers.insertElementAt(timer, i);
+  }
+
+  /**
+   * Registers the start of an asynchronous operation. Must be called on the
+   * thread of this loop; the operation must call complete() exactly once,
+   * with the generation returned here. run() does not return while
+   * operations are pending.
+   */
+  synchronized int begin() {
+    pending++;
+    return generation;
+  }
+
+  /**
+   * Completes an operation registered with begin(). The given task is run
+   * on the thread of this loop, unless the loop has been cleared since the
+   * operation began; then the task is dropped. May be called from any
+   * thread.
+   */
+  synchronized void complete(int generation, Runnable task) {
+    if (generation != this.generation) {
+      return;
+    }
+    pending--;
+    tasks.addElement(task);
+    notifyAll();
+  }
+
+  /**
+   * Adds a promise reaction, to be run after the current task.
+   */
+  void enqueueMicrotask(Runnable task) {
+    microtasks.addElement(task);
+  }
+
+  /**
+   * Discards all timers, completion tasks and promise reactions. Operations
+   * that are still in flight are no longer waited for, and their
+   * completions are dropped.
+   */
+  synchronized void clear() {
+    generation++;
+    pending = 0;
+    timers.removeAllElements();
+    timerIds.clear();
+    tasks.removeAllElements();
+    microtasks = new Vector();
+  }
+
+  /**
+   * Returns true if there are no timers, tasks or pending operations.
+   */
+  public synchronized boolean isIdle() {
+    return pending == 0 && tasks.isEmpty() && timers.isEmpty()
+        && microtasks.isEmpty();
+  }
+
+  /**
+   * Runs callbacks until no timers or pending operations are left. Must be
+   * called on the thread of this loop. Exceptions thrown by timer callbacks
+   * propagate to the caller; the remaining events stay queued and are
+   * processed by the next call. Nested calls, e.g. from a script loaded
+   * by a callback, return immediately.
+   */
+  public void run() {
+    if (running) {
+      return;
+    }
+    running = true;
+    try {
+      while (true) {
+        runMicrotasks();
+        Runnable task = null;
+        Timer timer = null;
+        synchronized (this) {
+          long now = System.currentTimeMillis();
+          if (!tasks.isEmpty()) {
+            task = (Runnable) tasks.elementAt(0);
+            tasks.removeElementAt(0);
+          } else if (!timers.isEmpty() && ((Timer) timers.elementAt(0)).due <= now) {
+            timer = (Timer) timers.elementAt(0);
+            timers.removeElementAt(0);
+          } else if (timers.isEmpty() && pending == 0) {
+            return;
+          } else {
+            try {
+              wait(timers.isEmpty() ? 0 : ((Timer) timers.elementAt(0)).due - now);
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+              return;
+            }
+            continue;
+          }
+        }
+        if (task != null) {
+          task.run();
+        } else {
+          fire(timer);
+        }
+      }
+    } finally {
+      running = false;
+    }
+  }
+
+  private void fire(Timer timer) {
+    if (timer.interval >= 0) {
+      // rescheduled first, so clearInterval() in the callback works
+      timer.due += timer.interval;
+      schedule(timer);
+    } else {
+      timerIds.remove(new Integer(timer.id));
+    }
+    timer.function.call(timer.global, timer.arguments);
+  }
+
+  private void runMicrotasks() {
+    while (!microtasks.isEmpty()) {
+      Vector batch = microtasks;
+      microtasks = new Vector();
+      for (int i = 0; i < batch.size(); i++) {
+        ((Runnable) batch.elementAt(i)).run();
+      }
+    }
+  }
+}
@@ -0,0 +1,275 @@
+// Copyright 2008 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.minijoe.sys;
+
+import com.google.minijoe.compiler.Disassembler;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.Hashtable;
+
+import javax.management.ObjectName;
+
+/**
+ * Execution statistics of the interpreter: executions per opcode and per
+ * pair of consecutive opcodes, the number of objects visited by prototype
+ * chain lookups, the number of scopes walked by OP_CTX_GET (and its fused
+ * form XOP_GET_VAR) and calls and cumulative wall time per native function.
+ *
+ * The statistics are only collected in the instrumented build, enabled by
+ * setting the system property minijoe.stats to true. Otherwise ENABLED is
+ * a constant false and the JIT compiler of the JVM removes the
+ * instrumentation completely. The instrumented build disables the JIT compiler, so
+ * that all instructions are counted. Counters are not synchronized; with
+ * several interpreter threads, counts are approximate.
+ *
+ * The statistics are available via JMX (com.google.minijoe:type=
+ * ExecutionStats) and the stats() native.
+ */
+public final class ExecutionStats implements ExecutionStatsMBean {
+
+  public static final boolean ENABLED = Boolean.getBoolean("minijoe.stats");
+
+  public static final String OBJECT_NAME = "com.google.minijoe:type=ExecutionStats";
+
+  static final int MAX_DEPTH = 16;
+
+  private static final int MAX_PAIRS = 50;
+
+  private static long[] opcodes = new long[256];
+  private static long[] pairs = new long[256 * 256];
+  private static long[] prototypeDepths = new long[MAX_DEPTH];
+  private static long[] scopeDepths = new long[MAX_DEPTH];
+
+  /** Native function name to {calls, nanoseconds}. */
+  private static Hashtable natives = new Hashtable();
+
+  static {
+    if (ENABLED) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(
+            new ExecutionStats(), new ObjectName(OBJECT_NAME));
+      } catch (Exception e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  private ExecutionStats() {
+  }
+
+  /**
+   * Counts the execution of opcode, following the given previous opcode
+   * (-1 at function entry).
+   */
+  static void opcode(int previous, int opcode) {
+    opcodes[opcode & 255]++;
+    if (previous != -1) {
+      pairs[((previous & 255) << 8) | (opcode & 255)]++;
+    }
+  }
+
+  /**
+   * Returns the number of instructions executed by the interpreter so far,
+   * the sum of the counts per opcode; always 0 unless ENABLED is set.
+   */
+  public static long getInstructionCount() {
+    long[] counts = opcodes;
+    long sum = 0;
+    for (int i = 0; i < counts.length; i++) {
+      sum += counts[i];
+    }
+    return sum;
+  }
+
+  /**
+   * Records a prototype chain lookup that visited depth + 1 objects.
+   */
+  static void prototypeLookup(int depth) {
+    prototypeDepths[Math.min(depth, MAX_DEPTH - 1)]++;
+  }
+
+  /**
+   * Records the number of scopes an OP_CTX_GET for the given key has to
+   * walk from the given context until an object with the property is found
+   * (or the end of the scope chain is reached).
+   */
+  static void scopeLookup(JsObject context, String key) {
+    int depth = 0;
+    for (JsObject scope = context; scope != null; scope = scope.scopeChain) {
+      for (JsObject o = scope; o != null; o = o.__proto__) {
+        if (o.hasOwnProperty(key)) {
+          scopeDepths[Math.min(depth, MAX_DEPTH - 1)]++;
+          return;
+        }
+      }
+      depth++;
+    }
+    scopeDepths[Math.min(depth, MAX_DEPTH - 1)]++;
+  }
+
+  /**
+   * Records a call of the given native function that took the given
+   * time.
+   */
+  static void nativeCall(JsFunction fn, long nanos) {
+    String name = fn.name != null ? fn.name : "native#" + fn.index;
+    synchronized (natives) {
+      long[] entry = (long[]) natives.get(name);
+      if (entry == null) {
+        entry = new long[2];
+        natives.put(name, entry);
+      }
+      entry[0]++;
+      entry[1] += nanos;
+    }
+  }
+
+  /**
+   * Executes the stats() native: returns the report, or resets the
+   * statistics if called with "reset".
+   */
+  static String command(String cmd) {
+    if (!ENABLED) {
+      return "statistics disabled; run with -Dminijoe.stats=true";
+    }
+    if ("reset".equals(cmd)) {
+      doReset();
+      return "statistics reset";
+    }
+    return report();
+  }
+
+  static void doReset() {
+    opcodes = new long[256];
+    pairs = new long[256 * 256];
+    prototypeDepths = new long[MAX_DEPTH];
+    scopeDepths = new long[MAX_DEPTH];
+    synchronized (natives) {
+      natives.clear();
+    }
+  }
+
+  static String opcodeName(int opcode) {
+    String name = Disassembler.getOpcodeName(opcode);
+    return name == null ? "0x" + Integer.toHexString(opcode) : name;
+  }
+
+  static String report() {
+    StringBuffer buf = new StringBuffer("opcodes:\n");
+    Integer[] order = sortByCount(opcodes);
+    for (int i = 0; i < order.length; i++) {
+      int op = order[i].intValue();
+      if (opcodes[op] == 0) {
+        break;
+      }
+      buf.append("  ").append(opcodeName(op)).append(' ').append(opcodes[op]).append('\n');
+    }
+    buf.append("opcode pairs:\n").append(pairReport());
+    buf.append("prototype lookup depths:\n");
+    histogram(buf, prototypeDepths);
+    buf.append("scope chain depths (CTX_GET, GET_VAR):\n");
+    histogram(buf, scopeDepths);
+    buf.append("natives (calls, ms):\n").append(nativeReport());
+    return buf.toString();
+  }
+
+  private static void histogram(StringBuffer buf, long[] counts) {
+    for (int i = 0; i < counts.length; i++) {
+      if (counts[i] != 0) {
+        buf.append("  ").append(i).append(i == counts.length - 1 ? "+ " : " ")
+            .append(counts[i]).append('\n');
+      }
+    }
+  }
+
+  private static String pairReport() {
+    StringBuffer buf = new StringBuffer();
+    long[] pairs = ExecutionStats.pairs;
+    Integer[] order = sortByCount(pairs);
+    for (int i = 0; i < MAX_PAIRS && pairs[order[i].intValue()] != 0; i++) {
+      int pair = order[i].intValue();
+      buf.append("  ").append(opcodeName(pair >> 8)).append(' ')
+          .append(opcodeName(pair & 255)).append(' ').append(pairs[pair]).append('\n');
+    }
+    return buf.toString();
+  }
+
+  private static String nativeReport() {
+    StringBuffer buf = new StringBuffer();
+    synchronized (natives) {
+      String[] names = new String[natives.size()];
+      int i = 0;
+      for (Enumeration e = natives.keys(); e.hasMoreElements();) {
+        names[i++] = (String) e.nextElement();
+      }
+      Arrays.sort(names);
+      for (i = 0; i < names.length; i++) {
+        long[] entry = (long[]) natives.get(names[i]);
+        buf.append("  ").append(names[i]).append(' ').append(entry[0]).append(' ')
+            .append(entry[1] / 1000000.0).append('\n');
+      }
+    }
+    return buf.toString();
+  }
+
+  /**
+   * Returns the indices of the given array, sorted by descending value.
+   */
+  private static Integer[] sortByCount(final long[] counts) {
+    Integer[] order = new Integer[counts.length];
+    for (int i = 0; i < order.length; i++) {
+      order[i] = new Integer(i);
+    }
+    Arrays.sort(order, new Comparator() {
+      public int compare(Object a, Object b) {
+        long ca = counts[((Integer) a).intValue()];
+        long cb = counts[((Integer) b).intValue()];
+        return ca > cb ? -1 : ca < cb ? 1 : 0;
+      }
+    });
+    return order;
+  }
+
+  public long[] getOpcodeCounts() {
+    return (long[]) opcodes.clone();
+  }
+
+  public long[] getPrototypeDepths() {
+    return (long[]) prototypeDepths.clone();
+  }
+
+  public long[] getScopeDepths() {
+    return (long[]) scopeDepths.clone();
+  }
+
+  public String getOpcodePairs() {
+    return pairReport();
+  }
+
+  public String getNativeTimes() {
+    return nativeReport();
+  }
+
+  public String getReport() {
+    return report();
+  }
+
+  public void reset() {
+    doReset();
+  }
+}
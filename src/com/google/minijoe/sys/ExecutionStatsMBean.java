@@ -0,0 +1,40 @@
+// Copyright 2008 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.minijoe.sys;
+
+/**
+ * JMX management interface of the interpreter execution statistics. The
+ * arrays are indexed by opcode (0..255, extended opcodes unsigned) and by
+ * walk length; the last histogram bucket collects all longer walks.
+ */
+public interface ExecutionStatsMBean {
+
+  long[] getOpcodeCounts();
+
+  long[] getPrototypeDepths();
+
+  long[] getScopeDepths();
+
+  /** Returns the most frequent opcode pairs, one per line. */
+  String getOpcodePairs();
+
+  /** Returns calls and wall time per native function, one per line. */
+  String getNativeTimes();
+
+  /** Returns all statistics as a text report. */
+  String getReport();
+
+  void reset();
+}
@@ -0,0 +1,275 @@
+// Copyright 2008 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.minijoe.sys;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Code of a function literal: bytecode, constant tables, debug information
+ * and the inline caches of its instructions. A template is decoded once and
+ * shared by all closures created from the literal, which only add their
+ * evaluation context (see JsFunction). Apart from the caches filled on
+ * first use, templates are not modified after decoding. Templates are
+ * shared by realms running on different threads, so the caches are atomic
+ * arrays: an entry is published with all its fields initialized, and
+ * threads racing to fill it agree on a single instance.
+ */
+final class FunctionTemplate {
+
+  /** Function name from the comment block, if any; used by the profiler. */
+  String name;
+
+  /** Number of declared parameters. */
+  int parameterCount;
+
+  /** Number of local variables  */
+  int varCount;
+
+  /** Byte code containing the implementation of this function */
+  byte[] byteCode;
+
+  /** 
+   * Inline caches (InlineCache) for property access instructions, indexed
+   * by pc and created on first execution.
+   */
+  AtomicReferenceArray inlineCaches;
+
+  /**
+   * Invocation counter and compiled code; null if the JIT compiler is
+   * disabled.
+   */
+  JitProfile jit;
+
+  /**
+   * Names of parameters and local variables, held in a context object; null
+   * if they are kept on the stack.
+   */
+  String[] localNames;
+
+  /** 
+   * Set if the context object for a call needs no arguments object, i.e. the
+   * function neither refers to arguments nor calls eval.
+   */
+  boolean noArguments;
+
+  /** String literal table, used when putting strings on the stack. */
+  String[] stringLiterals;
+
+  /** Regular expression literal table: pattern, slash and flags. */
+  String[] regExpLiterals;
+
+  /**
+   * Compiled regular expression literals (RegExpPattern), created on first
+   * execution of the literal.
+   */
+  AtomicReferenceArray regExpPatterns;
+
+  /** Templates (FunctionTemplate) of nested function literals. */
+  AtomicReferenceArray functionLiterals;
+
+  /** Function literals not decoded yet; null if all have been decoded. */
+  LazyFunctionLiterals lazyLiterals;
+
+  /** number literal table, used when putting strings on the stack. */
+  double[] numberLiterals;
+
+  int[] lineNumbers;
+
+  /**
+   * Decodes a function literal from the serialized binary form, see
+   * JsFunction(DataInputStream, String[]). If source is not null, it must be
+   * the stream underlying dis; indexed nested function literals are then
+   * skipped and decoded from the buffer of the source on first use.
+   */
+  FunctionTemplate(DataInputStream dis, String[] globalStringTable,
+      ByteBufferInputStream source) throws IOException {
+    int flags = 0;
+
+    loop:
+    while (true){
+      int blockType = dis.read();
+      int count;
+      switch(blockType){
+      case JsFunction.BLOCK_COMMENT:
+        String comment = dis.readUTF();
+        if (comment.startsWith("function ")) {
+          name = comment.substring(9);
+        }
+        break;
+      case JsFunction.BLOCK_GLOBAL_STRING_TABLE:
+        count = dis.readUnsignedShort();
+        globalStringTable = new String[count];
+        for (int i = 0; i < count; i++){
+          globalStringTable[i] = Atoms.intern(dis.readUTF());
+        }
+        break;
+      case JsFunction.BLOCK_STRING_LITERALS:
+        count = dis.readUnsignedShort();
+        stringLiterals = new String[count];
+        for (int i = 0; i < count; i++){
+          stringLiterals[i] = globalStringTable[dis.readShort()];
+        }
+        break;
+      case JsFunction.BLOCK_REGEX_LITERALS:
+        count = dis.readUnsignedShort();
+        regExpLiterals = new String[count];
+        regExpPatterns = new AtomicReferenceArray(count);
+        for (int i = 0; i < count; i++){
+          regExpLiterals[i] = globalStringTable[dis.readShort()];
+        }
+        break;
+      case JsFunction.BLOCK_NUMBER_LITERALS:
+        count = dis.readUnsignedShort();
+        numberLiterals = new double[count];
+        for (int i = 0; i < count; i++){
+          numberLiterals[i] = dis.readDouble();
+        }
+        break;
+      case JsFunction.BLOCK_FUNCTION_LITERALS:
+        count = dis.readUnsignedShort();
+        functionLiterals = new AtomicReferenceArray(count);
+        for (int i = 0; i < count; i++){
+          functionLiterals.set(i, new FunctionTemplate(dis, globalStringTable, null));
+        }
+        break;
+      case JsFunction.BLOCK_INDEXED_FUNCTION_LITERALS:
+        // offsets of the literals relative to the first one, plus the end
+        count = dis.readUnsignedShort();
+        int[] offsets = new int[count + 1];
+        for (int i = 0; i <= count; i++) {
+          offsets[i] = dis.readInt();
+        }
+        functionLiterals = new AtomicReferenceArray(count);
+        if (source != null) {
+          int base = source.position();
+          for (int i = 0; i <= count; i++) {
+            offsets[i] += base;
+          }
+          lazyLiterals = new LazyFunctionLiterals(source.buffer, offsets, globalStringTable);
+          dis.skipBytes(offsets[count] - base);
+        } else {
+          for (int i = 0; i < count; i++) {
+            functionLiterals.set(i, new FunctionTemplate(dis, globalStringTable, null));
+          }
+        }
+        break;
+      case JsFunction.BLOCK_LOCAL_VARIABLE_NAMES:
+        count = dis.readUnsignedShort();
+        localNames = new String[count];
+        for (int i = 0; i < count; i++) {
+          localNames[i] = globalStringTable[dis.readShort()];
+        }
+        break;
+      case JsFunction.BLOCK_BYTE_CODE:
+        varCount = dis.readUnsignedShort();
+        parameterCount = dis.readUnsignedShort();
+        varCount -= parameterCount;
+        flags = dis.read();
+        byteCode = new byte[dis.readShort()];
+        dis.readFully(byteCode);
+        inlineCaches = new AtomicReferenceArray(byteCode.length);
+        if (JitCompiler.THRESHOLD >= 0) {
+          jit = new JitProfile();
+        }
+        break;
+      case JsFunction.BLOCK_LINE_NUMBERS:
+        count = dis.readUnsignedShort();
+        lineNumbers = new int[count * 2];
+        for (int i = 0; i < count; i++) {
+          lineNumbers[i << 1] = dis.readUnsignedShort();
+          lineNumbers[(i << 1) + 1] = dis.readUnsignedShort();
+        }
+        break;
+      case JsFunction.END_MARKER:
+        break loop;
+      default:
+        throw new IOException("Illegal Block type "
+            + Integer.toString(blockType, 16));
+      }
+    }
+
+    if ((flags & 1) == 0) {
+      if (localNames == null) {
+        localNames = new String[0];
+      }
+      noArguments = (flags & 2) != 0;
+    } else {
+      localNames = null;
+    }
+  }
+
+  /**
+   * Returns the compiled pattern of the regular expression literal with the
+   * given index, compiling it on first use.
+   */
+  RegExpPattern getRegExpPattern(int index) {
+    RegExpPattern pattern = (RegExpPattern) regExpPatterns.get(index);
+    if (pattern == null) {
+      String literal = regExpLiterals[index];
+      int cut = literal.lastIndexOf('/');
+      pattern = RegExpPattern.compile(literal.substring(0, cut), literal.substring(cut + 1));
+      if (!regExpPatterns.compareAndSet(index, null, pattern)) {
+        pattern = (RegExpPattern) regExpPatterns.get(index);
+      }
+    }
+    return pattern;
+  }
+
+  /**
+   * Returns the inline cache for the property access instruction at the
+   * given pc, creating it if necessary.
+   */
+  InlineCache getInlineCache(int pc) {
+    InlineCache ic = (InlineCache) inlineCaches.get(pc);
+    if (ic == null) {
+      ic = new InlineCache();
+      if (!inlineCaches.compareAndSet(pc, null, ic)) {
+        ic = (InlineCache) inlineCaches.get(pc);
+      }
+    }
+    return ic;
+  }
+
+  /**
+   * Returns the function literal with the given index, decoding it first
+   * if necessary.
+   */
+  FunctionTemplate getFunctionLiteral(int i) {
+    FunctionTemplate literal = (FunctionTemplate) functionLiterals.get(i);
+    return literal != null ? literal : lazyLiterals.get(functionLiterals, i);
+  }
+
+  int getLineNumber(int pc) {
+    if(lineNumbers != null && lineNumbers.length > 0) {
+      int i = 0;
+      while(i + 2 < lineNumbers.length && lineNumbers[i+2] <= pc) {
+        i += 2;
+      }
+      return lineNumbers[i + 1];
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the number of stack slots used for parameters and local
+   * variables; 0 if they are held in a context object.
+   */
+  int getFrameSize() {
+    return localNames == null ? parameterCount + varCount : 0;
+  }
+}
@@ -0,0 +1,383 @@
+// Copyright 2008 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.minijoe.sys;
+
+/**
+ * Inline cache for a single property access site (OP_GET, OP_SET, OP_SET_KC
+ * or OP_CTX_GET) in the byte code of a function literal.
+ *
+ * Each entry maps a receiver shape to the object holding the property and
+ * the slot of the property in that object. For lookups falling through to
+ * the scope chain, the scope objects visited and their shapes are recorded
+ * as well. A site starts monomorphic and accepts up to MAX_ENTRIES shapes;
+ * after that, it is considered megamorphic and no longer updated.
+ *
+ * Entries depending on prototype objects are invalidated by comparing the
+ * JsObject.prototypeEpoch counter, which is incremented on each structural
+ * change of an object that is used as prototype.
+ *
+ * Sites may be used by several threads at once. Entries are immutable and
+ * published by replacing the entry array, so a racing update may at worst
+ * lose an entry.
+ *
+ * The cache never changes semantics: whenever a cached entry does not apply
+ * exactly, the caller falls back to the regular lookup.
+ */
+final class InlineCache {
+
+  /** Maximum number of receiver shapes per site. */
+  static final int MAX_ENTRIES = 4;
+
+  private static final JsObject[] NO_SCOPES = new JsObject[0];
+  private static final Shape[] NO_SHAPES = new Shape[0];
+
+  private static final Entry[] NO_ENTRIES = new Entry[0];
+
+  /** Marks a megamorphic site. */
+  private static final Entry[] MEGAMORPHIC = new Entry[0];
+
+  /**
+   * The entries of this site. Sites are shared by all closures of a
+   * function literal and thus potentially by several threads, so the array
+   * is never modified; it is replaced as a whole when an entry is added.
+   */
+  private volatile Entry[] entries = NO_ENTRIES;
+
+  /** A single cached lookup; immutable. */
+  private static final class Entry {
+    /** The property name. */
+    final String key;
+    /** Prototype epoch the entry is valid for. */
+    final int epoch;
+    final Shape shape;
+    final JsObject[] scopes;
+    final Shape[] scopeShapes;
+    /** Object holding the property; null for own properties of the receiver. */
+    final JsObject holder;
+    final int slot;
+    /** Shape after adding the property, for OP_SET entries; null for updates. */
+    final Shape target;
+
+    Entry(String key, int epoch, Shape shape, JsObject[] scopes,
+        Shape[] scopeShapes, JsObject holder, int slot, Shape target) {
+      this.key = key;
+      this.epoch = epoch;
+      this.shape = shape;
+      this.scopes = scopes;
+      this.scopeShapes = scopeShapes;
+      this.holder = holder;
+      this.slot = slot;
+      this.target = target;
+    }
+  }
+
+  /**
+   * Returns the shape describing the lookup for the value at the given stack
+   * index, or null if the value is not cacheable. Primitive strings, numbers
+   * and booleans map to the root shape of the corresponding prototype, so
+   * no wrapper object needs to be created.
+   */
+  private static Shape receiverShape(Object raw, JsArray stack, int index) {
+    if (raw instanceof JsObject) {
+      return raw instanceof JsArguments ? null : ((JsObject) raw).shape;
+    } else if (raw instanceof String || raw instanceof JsRope) {
+      return JsObject.STRING_PROTOTYPE.getDerivedRoot();
+    } else if (raw instanceof Boolean) {
+      return JsObject.BOOLEAN_PROTOTYPE.getDerivedRoot();
+    } else if (raw != null && stack.isNumber(index)) {
+      return JsObject.NUMBER_PROTOTYPE.getDerivedRoot();
+    }
+    return null;
+  }
+
+  /**
+   * Returns the entry for the given key and shape that is valid in the
+   * current prototype epoch, or null if there is none.
+   */
+  private static Entry find(Entry[] entries, String key, Shape shape) {
+    int epoch = JsObject.prototypeEpoch;
+    for (int i = 0; i < entries.length; i++) {
+      Entry e = entries[i];
+      if (e.shape == shape && e.key == key && e.epoch == epoch) {
+        return e;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Checks whether the scope chain of the given object still matches the
+   * scope chain recorded for the given entry.
+   */
+  private static boolean scopesMatch(Entry e, JsObject o) {
+    JsObject[] scopes = e.scopes;
+    Shape[] scopeShapes = e.scopeShapes;
+    for (int j = 0; j < scopes.length; j++) {
+      o = o.scopeChain;
+      if (o != scopes[j] || o.shape != scopeShapes[j]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Checks whether this site can be used for the given key, disabling the
+   * site when it sees more than one key.
+   */
+  private boolean acceptsKey(Entry[] entries, Object k) {
+    if (entries == MEGAMORPHIC) {
+      return false;
+    }
+    if (!(k instanceof String) || (entries.length > 0 && entries[0].key != k)) {
+      // the site sees computed keys; don't bother caching
+      this.entries = MEGAMORPHIC;
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Adds a new entry, dropping entries from older prototype epochs, or marks
+   * the site megamorphic if it is full. Returns the entry or null.
+   */
+  private Entry add(Entry e) {
+    Entry[] old = entries;
+    if (old == MEGAMORPHIC) {
+      return null;
+    }
+    int count = 0;
+    for (int i = 0; i < old.length; i++) {
+      if (old[i].epoch == e.epoch) {
+        count++;
+      }
+    }
+    if (count == MAX_ENTRIES) {
+      entries = MEGAMORPHIC;
+      return null;
+    }
+    Entry[] updated = new Entry[count + 1];
+    int j = 0;
+    for (int i = 0; i < old.length; i++) {
+      if (old[i].epoch == e.epoch) {
+        updated[j++] = old[i];
+      }
+    }
+    updated[j] = e;
+    entries = updated;
+    return e;
+  }
+
+  /**
+   * Performs a cached property read. The receiver is at stack index
+   * objIndex, the property name at keyIndex; the result is stored at
+   * valueIndex. Returns false if the regular lookup must be performed
+   * instead; in that case, the cache is updated for the next execution and
+   * the stack remains untouched.
+   */
+  boolean get(JsArray stack, int objIndex, int keyIndex, int valueIndex) {
+    Object raw = stack.getRawObject(objIndex);
+    return get(raw, receiverShape(raw, stack, objIndex), stack, keyIndex,
+        valueIndex);
+  }
+
+  /**
+   * Performs a cached variable read in the given context, replacing the
+   * name at stack index keyIndex with the value.
+   */
+  boolean get(JsObject context, JsArray stack, int keyIndex) {
+    return get(context, context.shape, stack, keyIndex, keyIndex);
+  }
+
+  private boolean get(Object raw, Shape shape, JsArray stack, int keyIndex,
+      int valueIndex) {
+    Entry[] entries = this.entries;
+    Object k = stack.getRawObject(keyIndex);
+    if (shape == null || !acceptsKey(entries, k)) {
+      return false;
+    }
+    String key = (String) k;
+
+    Entry e = find(entries, key, shape);
+    if (e == null) {
+      if (raw instanceof JsArray && stack.isArrayIndex(keyIndex)) {
+        this.entries = MEGAMORPHIC;
+        return false;
+      }
+      e = addLookup(key, shape, raw instanceof JsObject ? (JsObject) raw : null);
+      if (e == null) {
+        return false;
+      }
+    }
+    if (e.scopes.length != 0 && !scopesMatch(e, (JsObject) raw)) {
+      return false;
+    }
+
+    JsObject holder = e.holder == null ? (JsObject) raw : e.holder;
+    Object v = holder.slots[e.slot];
+    if (v == null
+        || (v instanceof JsFunction && ((JsFunction) v).getParameterCount() == -1)) {
+      return false;
+    }
+    stack.setObject(valueIndex, v);
+    return true;
+  }
+
+  /**
+   * Resolves the key for a receiver with the given shape in the same order
+   * as JsObject.getObject() and records the result. The receiver is null
+   * for primitive values. Returns the new entry or null if the lookup
+   * result is not cacheable.
+   */
+  private Entry addLookup(String key, Shape shape, JsObject receiver) {
+    // read the epoch first, so changes during the lookup invalidate the entry
+    int epoch = JsObject.prototypeEpoch;
+    JsObject scope = receiver;
+    JsObject start = receiver == null ? shape.proto : receiver;
+    int depth = 0;
+
+    while (true) {
+      // scope objects are validated by their shape, so they can't be
+      // dictionaries; prototypes are covered by the prototype epoch
+      if (receiver != null && start.shape == null) {
+        return null;
+      }
+      for (JsObject p = start; p != null; p = p.__proto__) {
+        if (p instanceof JsArguments) {
+          return null;
+        }
+        Shape pShape = p.shape;
+        if (pShape == null) {
+          if (p.hasOwnProperty(key)) {
+            return null;
+          }
+          continue;
+        }
+        int slot = pShape.indexOf(key);
+        if (slot != -1) {
+          Object v = p.slots[slot];
+          if (v == null) {
+            if (p == start) {
+              // a declared local holding undefined ends the lookup
+              return null;
+            }
+            // undefined in a prototype: the regular lookup continues in
+            // the scope chain
+            break;
+          }
+          if (v instanceof JsFunction
+              && ((JsFunction) v).getParameterCount() == -1) {
+            return null;
+          }
+          JsObject[] entryScopes = NO_SCOPES;
+          Shape[] entryShapes = NO_SHAPES;
+          if (depth > 0) {
+            entryScopes = new JsObject[depth];
+            entryShapes = new Shape[depth];
+            JsObject o = receiver;
+            for (int j = 0; j < depth; j++) {
+              o = o.scopeChain;
+              entryScopes[j] = o;
+              entryShapes[j] = o.shape;
+            }
+          }
+          // own properties are read from the actual receiver
+          return add(new Entry(key, epoch, shape, entryScopes, entryShapes,
+              p == receiver ? null : p, slot, null));
+        }
+      }
+      if (scope == null || scope.scopeChain == null) {
+        return null;
+      }
+      scope = scope.scopeChain;
+      start = scope;
+      depth++;
+    }
+  }
+
+  /**
+   * Performs a cached property write. The receiver is at stack index
+   * objIndex, the property name at keyIndex and the value at valueIndex.
+   * Returns false if the regular JsObject.vmSetOperation() must be performed
+   * instead; in that case, the cache is updated for the next execution.
+   */
+  boolean set(JsArray stack, int objIndex, int keyIndex, int valueIndex) {
+    Entry[] entries = this.entries;
+    Object k = stack.getRawObject(keyIndex);
+    if (!acceptsKey(entries, k)) {
+      return false;
+    }
+    String key = (String) k;
+    Object raw = stack.getRawObject(objIndex);
+    if (!(raw instanceof JsObject) || raw instanceof JsArguments) {
+      return false;
+    }
+    JsObject o = (JsObject) raw;
+    Shape shape = o.shape;
+    if (shape == null || o.scopeChain != null || o.frozen) {
+      return false;
+    }
+
+    Entry e = find(entries, key, shape);
+    if (e == null) {
+      if (raw instanceof JsArray && stack.isArrayIndex(keyIndex)) {
+        this.entries = MEGAMORPHIC;
+        return false;
+      }
+      addStore(key, shape);
+      return false;
+    }
+
+    if (e.target == null) {
+      int slot = e.slot;
+      Object old = o.slots[slot];
+      if (old instanceof JsFunction
+          && ((JsFunction) old).getParameterCount() == -1) {
+        return false;
+      }
+      o.slots[slot] = stack.getObject(valueIndex);
+    } else {
+      o.addSlot(e.target, stack.getObject(valueIndex));
+    }
+    return true;
+  }
+
+  /**
+   * Records how JsObject.setObject() treats the key for an object with the
+   * given shape and no scope chain.
+   */
+  private void addStore(String key, Shape shape) {
+    int epoch = JsObject.prototypeEpoch;
+    int slot = shape.indexOf(key);
+    if (slot != -1) {
+      add(new Entry(key, epoch, shape, NO_SCOPES, NO_SHAPES, null, slot, null));
+      return;
+    }
+    for (JsObject p = shape.proto; p != null; p = p.__proto__) {
+      if (p.hasOwnProperty(key)) {
+        Object v = p.getRawInPrototypeChain(key);
+        if (v instanceof JsFunction
+            && ((JsFunction) v).getParameterCount() == -1) {
+          return;
+        }
+        break;
+      }
+    }
+    Shape target = shape.addProperty(key);
+    if (target != null) {
+      add(new Entry(key, epoch, shape, NO_SCOPES, NO_SHAPES, null, -1, target));
+    }
+  }
+}
@@ -0,0 +1,32 @@
+// Copyright 2008 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.minijoe.sys;
+
+/**
+ * Class loader for a class generated by the JIT compiler. Each compiled
+ * function is defined by a loader of its own: a class can only be unloaded
+ * together with its loader, so a shared loader would keep the code of all
+ * functions ever compiled alive.
+ */
+final class JitClassLoader extends ClassLoader {
+
+  JitClassLoader() {
+    super(JitClassLoader.class.getClassLoader());
+  }
+
+  Class define(String name, byte[] classFile) {
+    return defineClass(name, classFile, 0, classFile.length);
+  }
+}
@@ -0,0 +1,33 @@
+// Copyright 2008 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.minijoe.sys;
+
+/**
+ * Base class of the classes generated by the JIT compiler. This class is
+ * public because generated classes live in their own class loader; it is not
+ * intended to be used by applications.
+ */
+public abstract class JitCode {
+
+  /** String literals of the compiled function. */
+  protected String[] strings;
+
+  /**
+   * Executes the compiled function body. The parameters correspond to the
+   * state of JsFunction.eval() after the function prologue.
+   */
+  public abstract void run(JsFunction fn, JsArray stack, int bp, int sp,
+      JsObject context, JsObject thisPtr, int actualParameterCount);
+}
@@ -0,0 +1,1340 @@
+// Copyright 2008 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.minijoe.sys;
+
+/**
+ * Translates the byte code of hot functions to JVM byte code.
+ *
+ * The generated code keeps using the shared JsArray stack, but the stack
+ * depth of each instruction is resolved at compile time, so there is no
+ * instruction dispatch and no stack pointer arithmetic at run time. Numeric
+ * intermediate results are kept in JVM double variables and only stored to
+ * the JsArray stack when needed by an instruction that is not compiled
+ * inline, or at the end of a basic block. Local variables of functions with
+ * fast locals that provably always hold numbers are kept in JVM double
+ * variables as well.
+ *
+ * Functions containing instructions that are not supported (such as
+ * OP_WITH_START) or with an inconsistent stack depth are left to the
+ * interpreter.
+ *
+ * The compile threshold is set by the system property
+ * "minijoe.jit.threshold" (default: 1000 invocations plus backward jumps).
+ * 0 compiles all functions on their first call; a negative value disables
+ * the compiler.
+ */
+final class JitCompiler {
+
+  /**
+   * Invocations plus backward jumps before a function gets compiled.
+   * Disabled in the instrumented build, so all instructions are counted.
+   */
+  static final int THRESHOLD = ExecutionStats.ENABLED ? -1
+      : Integer.getInteger("minijoe.jit.threshold", 1000).intValue();
+
+  /**
+   * Maximum number of compiled functions running on one stack at the same
+   * time. Compiled code calls functions through the Java stack, so deeper
+   * calls are left to the interpreter, which keeps its callers on the heap
+   * instead; deep script recursion thus doesn't overflow the Java stack.
+   */
+  static final int MAX_DEPTH = 100;
+
+  private static final String CODE = "com/google/minijoe/sys/JitCode";
+  private static final String FUNCTION = "com/google/minijoe/sys/JsFunction";
+  private static final String ARRAY = "com/google/minijoe/sys/JsArray";
+  private static final String OBJECT = "com/google/minijoe/sys/JsObject";
+  private static final String RUNTIME = "com/google/minijoe/sys/JitRuntime";
+
+  private static final String L_ARRAY = "L" + ARRAY + ";";
+  private static final String L_FUNCTION = "L" + FUNCTION + ";";
+  private static final String L_OBJECT = "L" + OBJECT + ";";
+
+  private static final String STACK_OP = "(" + L_ARRAY + "I)V";
+
+  // Local variables of the generated run() method
+  private static final int THIS = 0;
+  private static final int FN = 1;
+  private static final int STACK = 2;
+  private static final int BP = 3;
+  private static final int SP = 4;
+  private static final int CONTEXT = 5;
+  private static final int THIS_PTR = 6;
+  private static final int PARAMETER_COUNT = 7;
+  private static final int PC = 8;
+  private static final int EXCEPTION = 9;
+  private static final int FIRST_FREE = 10;
+
+  /** Offset used to distinguish XOPs from OPs in the decoded op array. */
+  private static final int XOP = 0x100;
+
+  private static final byte ANY = 0;
+  private static final byte NUM = 1;
+
+  private static int classCount;
+
+  private final JsFunction fn;
+  private final byte[] byteCode;
+
+  // decoded instructions
+  private int count;
+  private int[] pcs;
+  private int[] ends;
+  private int[] ops;
+  private int[] imms;
+  private int[] targets;
+  /** Maps a pc to the instruction index, -1 if not an instruction start. */
+  private int[] indexOf;
+  private boolean[] isTarget;
+
+  // stack depth and type analysis
+  private int[] depths;
+  private byte[][] types;
+  private boolean[][] assigned;
+  private int exitDepth = -1;
+  private int maxDepth;
+  private boolean[] numericLocals;
+  private int[] localSlots;
+
+  // code generation state
+  private ClassFileWriter cw;
+  private int[] labels;
+  private int endLabel;
+  private int stackBase;
+  private int depth;
+  private byte[] stackTypes;
+  private boolean[] unboxed;
+
+  private JitCompiler(JsFunction fn) {
+    this.fn = fn;
+    this.byteCode = fn.template.byteCode;
+  }
+
+  /**
+   * Compiles the given function, storing the result in the given profile.
+   * If the function can't be compiled, the profile is marked as failed.
+   */
+  static void compile(JsFunction fn, JitProfile profile) {
+    synchronized (profile) {
+      if (profile.code != null || profile.failed) {
+        return;
+      }
+      JitCode code = null;
+      try {
+        code = new JitCompiler(fn).compile();
+      } catch (RuntimeException e) {
+        // fall through: leave this function to the interpreter
+      } catch (LinkageError e) {
+        // dito
+      }
+      if (code == null) {
+        profile.failed = true;
+      } else {
+        profile.code = code;
+      }
+    }
+  }
+
+  private JitCode compile() {
+    if (!decode() || !computeDepths()) {
+      return null;
+    }
+    computeNumericLocals();
+    byte[] classFile = generate();
+    if (classFile == null) {
+      return null;
+    }
+
+    // a loader per function, so the class can be unloaded together with
+    // the FunctionTemplate holding the compiled code
+    Class c = new JitClassLoader().define(className.replace('/', '.'), classFile);
+    try {
+      JitCode code = (JitCode) c.newInstance();
+      code.strings = fn.template.stringLiterals;
+      return code;
+    } catch (InstantiationException e) {
+      return null;
+    } catch (IllegalAccessException e) {
+      return null;
+    }
+  }
+
+  private String className;
+
+  //
+  // analysis
+  //
+
+  /**
+   * Decodes the byte code. Superinstructions are expanded to the sequence of
+   * basic instructions they stand for, so the analysis and code generation
+   * only need to deal with the latter; all parts of a superinstruction share
+   * its pc.
+   */
+  private boolean decode() {
+    int end = byteCode.length;
+    // a superinstruction of two bytes expands to up to four instructions
+    int max = 2 * end + 1;
+    pcs = new int[max];
+    ends = new int[max];
+    ops = new int[max];
+    imms = new int[max];
+    targets = new int[max];
+    indexOf = new int[end + 1];
+    for (int i = 0; i <= end; i++) {
+      indexOf[i] = -1;
+    }
+
+    int pc = 0;
+    while (pc < end) {
+      int start = pc;
+      int opcode = byteCode[pc++];
+      int op;
+      int imm = 0;
+      if (opcode < 0) {
+        if ((opcode & 1) == 0) {
+          imm = byteCode[pc++];
+        } else {
+          if (pc + 2 > end) {
+            return false;
+          }
+          imm = (byteCode[pc] << 8) | (byteCode[pc + 1] & 255);
+          pc += 2;
+        }
+        op = XOP | ((opcode & 0x0ff) >>> 1);
+      } else {
+        op = opcode;
+      }
+      indexOf[start] = count;
+      if (opcode >= JsFunction.ROP_BINARY) {
+        pc = expandRegisterInstruction(start, pc, op);
+        if (pc == -1) {
+          return false;
+        }
+        continue;
+      }
+      switch (op) {
+        case XOP | JsFunction.XOP_GET_VAR:
+          add(start, pc, XOP | JsFunction.XOP_PUSH_STR, imm);
+          add(start, pc, JsFunction.OP_CTX_GET, 0);
+          break;
+        case XOP | JsFunction.XOP_GET_PROP:
+          add(start, pc, XOP | JsFunction.XOP_PUSH_STR, imm);
+          add(start, pc, JsFunction.OP_GET, 0);
+          break;
+        case XOP | JsFunction.XOP_LCL_STORE:
+          add(start, pc, XOP | JsFunction.XOP_LCL_SET, imm);
+          add(start, pc, JsFunction.OP_DROP, 0);
+          break;
+        case XOP | JsFunction.XOP_LCL_INC:
+        case XOP | JsFunction.XOP_LCL_DEC:
+          add(start, pc, XOP | JsFunction.XOP_LCL_GET, imm);
+          add(start, pc, op == (XOP | JsFunction.XOP_LCL_INC)
+              ? JsFunction.OP_INC : JsFunction.OP_DEC, 0);
+          add(start, pc, XOP | JsFunction.XOP_LCL_SET, imm);
+          add(start, pc, JsFunction.OP_DROP, 0);
+          break;
+        case XOP | JsFunction.XOP_UNLESS:
+          add(start, pc, JsFunction.OP_NOT, 0);
+          add(start, pc, XOP | JsFunction.XOP_IF, imm);
+          break;
+        case XOP | JsFunction.XOP_IF_LT:
+        case XOP | JsFunction.XOP_IF_GT:
+        case XOP | JsFunction.XOP_UNLESS_LT:
+        case XOP | JsFunction.XOP_UNLESS_GT:
+          add(start, pc, op == (XOP | JsFunction.XOP_IF_LT)
+              || op == (XOP | JsFunction.XOP_UNLESS_LT)
+              ? JsFunction.OP_LT : JsFunction.OP_GT, 0);
+          if (op == (XOP | JsFunction.XOP_UNLESS_LT)
+              || op == (XOP | JsFunction.XOP_UNLESS_GT)) {
+            add(start, pc, JsFunction.OP_NOT, 0);
+          }
+          add(start, pc, XOP | JsFunction.XOP_IF, imm);
+          break;
+        default:
+          if (!isSupported(op)) {
+            return false;
+          }
+          add(start, pc, op, imm);
+      }
+    }
+    indexOf[end] = count;
+    pcs[count] = end;
+
+    isTarget = new boolean[count + 1];
+    for (int i = 0; i < count; i++) {
+      if (isJump(ops[i])) {
+        int target = targets[i];
+        if (target < 0 || target > end || indexOf[target] == -1) {
+          return false;
+        }
+        isTarget[indexOf[target]] = true;
+      }
+    }
+    return true;
+  }
+  /**
+   * Expands the register instruction of bytecode format 1 starting at the
+   * given pc into the equivalent stack instructions. Returns the pc after
+   * the instruction, or -1 if it is malformed.
+   */
+  private int expandRegisterInstruction(int start, int pc, int opcode) {
+    int size = opcode >= JsFunction.ROP_BRANCH ? 4 : opcode == JsFunction.ROP_MOVE ? 2 : 3;
+    if (opcode > JsFunction.ROP_LAST || pc + size > byteCode.length) {
+      return -1;
+    }
+    int end = pc + size;
+    if (opcode >= JsFunction.ROP_BRANCH) {
+      int offset = (byteCode[pc + 2] << 8) | (byteCode[pc + 3] & 255);
+      add(start, end, XOP | JsFunction.XOP_LCL_GET, byteCode[pc] & 255);
+      if ((opcode & JsFunction.ROP_BRANCH_IMM) != 0) {
+        add(start, end, XOP | JsFunction.XOP_PUSH_INT, byteCode[pc + 1]);
+      } else {
+        add(start, end, XOP | JsFunction.XOP_LCL_GET, byteCode[pc + 1] & 255);
+      }
+      add(start, end, JsFunction.REGISTER_CONDITIONS[(opcode - JsFunction.ROP_BRANCH) >> 2], 0);
+      if ((opcode & JsFunction.ROP_BRANCH_UNLESS) != 0) {
+        add(start, end, JsFunction.OP_NOT, 0);
+      }
+      add(start, end, XOP | JsFunction.XOP_IF, offset);
+      return end;
+    }
+    int d = byteCode[pc] & 255;
+    if (opcode == JsFunction.ROP_MOVE) {
+      add(start, end, XOP | JsFunction.XOP_LCL_GET, byteCode[pc + 1] & 255);
+    } else if (opcode == JsFunction.ROP_LOAD_INT) {
+      add(start, end, XOP | JsFunction.XOP_PUSH_INT,
+          (byteCode[pc + 1] << 8) | (byteCode[pc + 2] & 255));
+    } else if (opcode < JsFunction.ROP_MOVE
+        && (opcode & 0x0f) < JsFunction.REGISTER_OPERATORS.length) {
+      add(start, end, XOP | JsFunction.XOP_LCL_GET, byteCode[pc + 1] & 255);
+      if (opcode >= JsFunction.ROP_BINARY_IMM) {
+        add(start, end, XOP | JsFunction.XOP_PUSH_INT, byteCode[pc + 2]);
+      } else {
+        add(start, end, XOP | JsFunction.XOP_LCL_GET, byteCode[pc + 2] & 255);
+      }
+      add(start, end, JsFunction.REGISTER_OPERATORS[opcode & 0x0f], 0);
+    } else {
+      return -1;
+    }
+    if (d != JsFunction.REGISTER_PUSH) {
+      add(start, end, XOP | JsFunction.XOP_LCL_SET, d);
+      add(start, end, JsFunction.OP_DROP, 0);
+    }
+    return end;
+  }
+
+
+  /**
+   * Adds a decoded instruction. For jumps, the offset is relative to the end
+   * of the (super)instruction.
+   */
+  private void add(int start, int end, int op, int imm) {
+    pcs[count] = start;
+    ends[count] = end;
+    ops[count] = op;
+    imms[count] = imm;
+    targets[count] = end + imm;
+    count++;
+  }
+
+  private static boolean isJump(int op) {
+    return op == (XOP | JsFunction.XOP_GO) || op == (XOP | JsFunction.XOP_IF)
+        || op == (XOP | JsFunction.XOP_NEXT);
+  }
+
+  private static boolean isSupported(int op) {
+    switch (op) {
+      case JsFunction.OP_NOP:
+      case JsFunction.OP_WITH_START:
+      case JsFunction.OP_WITH_END:
+        return false;
+      case XOP | JsFunction.XOP_TRY_CALL:
+      case XOP | JsFunction.XOP_ADD:
+      case XOP | JsFunction.XOP_PUSH_FN:
+      case XOP | JsFunction.XOP_PUSH_REGEX:
+      case XOP | JsFunction.XOP_PUSH_NUM:
+      case XOP | JsFunction.XOP_GO:
+      case XOP | JsFunction.XOP_IF:
+      case XOP | JsFunction.XOP_CALL:
+      case XOP | JsFunction.XOP_LCL_GET:
+      case XOP | JsFunction.XOP_LCL_SET:
+      case XOP | JsFunction.XOP_NEXT:
+      case XOP | JsFunction.XOP_PUSH_INT:
+      case XOP | JsFunction.XOP_PUSH_STR:
+        return true;
+      default:
+        return op <= JsFunction.OP_PUSH_GLOBAL;
+    }
+  }
+
+  /** Number of stack entries consumed by the given instruction. */
+  private static int pops(int op, int imm) {
+    switch (op) {
+      case XOP | JsFunction.XOP_CALL:
+      case XOP | JsFunction.XOP_TRY_CALL:
+        return imm + 2;
+      case XOP | JsFunction.XOP_ADD:
+      case XOP | JsFunction.XOP_IF:
+      case XOP | JsFunction.XOP_LCL_SET:
+      case XOP | JsFunction.XOP_NEXT:
+      case JsFunction.OP_CTX_GET:
+      case JsFunction.OP_DEC:
+      case JsFunction.OP_DROP:
+      case JsFunction.OP_DUP:
+      case JsFunction.OP_ENUM:
+      case JsFunction.OP_INC:
+      case JsFunction.OP_INV:
+      case JsFunction.OP_NEG:
+      case JsFunction.OP_NEW:
+      case JsFunction.OP_NOT:
+      case JsFunction.OP_RET:
+      case JsFunction.OP_THROW:
+      case JsFunction.OP_TYPEOF:
+        return 1;
+      case JsFunction.OP_ROT:
+      case JsFunction.OP_SET:
+      case JsFunction.OP_SET_KC:
+        return 3;
+      default:
+        return op >= XOP || isPush(op) ? 0 : 2;
+    }
+  }
+
+  /** Number of stack entries produced by the given instruction. */
+  private static int pushes(int op) {
+    switch (op) {
+      case XOP | JsFunction.XOP_IF:
+      case XOP | JsFunction.XOP_GO:
+      case JsFunction.OP_DROP:
+        return 0;
+      case XOP | JsFunction.XOP_TRY_CALL:
+      case XOP | JsFunction.XOP_NEXT:
+      case JsFunction.OP_DUP:
+      case JsFunction.OP_SWAP:
+        return 2;
+      case JsFunction.OP_NEW:
+      case JsFunction.OP_ROT:
+        return 3;
+      case JsFunction.OP_DDUP:
+        return 4;
+      default:
+        return 1;
+    }
+  }
+
+  private static boolean isPush(int op) {
+    switch (op) {
+      case JsFunction.OP_CTX:
+      case JsFunction.OP_NEW_ARR:
+      case JsFunction.OP_NEW_OBJ:
+      case JsFunction.OP_PUSH_FALSE:
+      case JsFunction.OP_PUSH_GLOBAL:
+      case JsFunction.OP_PUSH_NULL:
+      case JsFunction.OP_PUSH_THIS:
+      case JsFunction.OP_PUSH_TRUE:
+      case JsFunction.OP_PUSH_UNDEF:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  /** Returns true if the instruction never continues with the next one. */
+  private static boolean isTerminal(int op) {
+    return op == (XOP | JsFunction.XOP_GO) || op == JsFunction.OP_RET
+        || op == JsFunction.OP_THROW;
+  }
+
+  /**
+   * Computes the stack depth (relative to the initial stack pointer) at each
+   * instruction. Returns false if the depth is not consistent.
+   */
+  private boolean computeDepths() {
+    depths = new int[count + 1];
+    for (int i = 0; i <= count; i++) {
+      depths[i] = -1;
+    }
+    int[] work = new int[count + 1];
+    int workSize = 0;
+    depths[0] = 0;
+    work[workSize++] = 0;
+
+    while (workSize > 0) {
+      int i = work[--workSize];
+      int d = depths[i];
+      if (i == count) {
+        if (exitDepth != -1 && exitDepth != d) {
+          return false;
+        }
+        exitDepth = d;
+        continue;
+      }
+      int op = ops[i];
+      int pops = pops(op, imms[i]);
+      if (pops > d) {
+        return false;
+      }
+      int next = d - pops + pushes(op);
+      maxDepth = Math.max(maxDepth, Math.max(d, next));
+
+      if (isJump(op)) {
+        int t = indexOf[targets[i]];
+        int td = op == (XOP | JsFunction.XOP_IF) ? d - 1 : d;
+        if (depths[t] == -1) {
+          depths[t] = td;
+          work[workSize++] = t;
+        } else if (depths[t] != td) {
+          return false;
+        }
+      }
+      if (!isTerminal(op)) {
+        if (depths[i + 1] == -1) {
+          depths[i + 1] = next;
+          work[workSize++] = i + 1;
+        } else if (depths[i + 1] != next) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns the stack types after executing instruction i with the given
+   * stack types on entry, for the fall-through case.
+   */
+  private byte[] transfer(int i, byte[] in) {
+    int op = ops[i];
+    int imm = imms[i];
+    int d = in.length;
+    int pops = pops(op, imm);
+    byte[] out = new byte[d - pops + pushes(op)];
+    System.arraycopy(in, 0, out, 0, Math.min(d - pops, out.length));
+
+    switch (op) {
+      case XOP | JsFunction.XOP_ADD:
+      case XOP | JsFunction.XOP_PUSH_INT:
+      case XOP | JsFunction.XOP_PUSH_NUM:
+      case JsFunction.OP_AND:
+      case JsFunction.OP_ASR:
+      case JsFunction.OP_DEC:
+      case JsFunction.OP_DIV:
+      case JsFunction.OP_INC:
+      case JsFunction.OP_INV:
+      case JsFunction.OP_MOD:
+      case JsFunction.OP_MUL:
+      case JsFunction.OP_NEG:
+      case JsFunction.OP_OR:
+      case JsFunction.OP_SHL:
+      case JsFunction.OP_SHR:
+      case JsFunction.OP_SUB:
+      case JsFunction.OP_XOR:
+        out[out.length - 1] = NUM;
+        break;
+      case JsFunction.OP_ADD:
+        out[out.length - 1] = in[d - 2] == NUM && in[d - 1] == NUM ? NUM : ANY;
+        break;
+      case XOP | JsFunction.XOP_LCL_GET:
+        out[out.length - 1] = isNumericLocal(imm) ? NUM : ANY;
+        break;
+      case XOP | JsFunction.XOP_LCL_SET:
+        out[d - 1] = in[d - 1];
+        break;
+      case XOP | JsFunction.XOP_NEXT:
+        out[d - 1] = in[d - 1];
+        break;
+      case JsFunction.OP_DUP:
+        out[d - 1] = in[d - 1];
+        out[d] = in[d - 1];
+        break;
+      case JsFunction.OP_DDUP:
+        out[d - 2] = in[d - 2];
+        out[d - 1] = in[d - 1];
+        out[d] = in[d - 2];
+        out[d + 1] = in[d - 1];
+        break;
+      case JsFunction.OP_SWAP:
+        out[d - 2] = in[d - 1];
+        out[d - 1] = in[d - 2];
+        break;
+      case JsFunction.OP_ROT:
+        out[d - 3] = in[d - 1];
+        out[d - 2] = in[d - 3];
+        out[d - 1] = in[d - 2];
+        break;
+      case JsFunction.OP_CTX_SET:
+        out[d - 2] = in[d - 2];
+        break;
+      case JsFunction.OP_SET:
+        out[d - 3] = in[d - 3];
+        break;
+      default:
+        // all other results are of unknown type
+    }
+    return out;
+  }
+
+  private boolean isNumericLocal(int index) {
+    return numericLocals != null && index >= 0 && index < numericLocals.length
+        && numericLocals[index];
+  }
+
+  /**
+   * Determines the local variables that are always assigned a number
+   * before they are read. Only applies to functions with fast locals; the
+   * parameters are excluded because their type is not known.
+   */
+  private void computeNumericLocals() {
+    int parameterCount = fn.template.parameterCount;
+    int localCount = parameterCount + fn.template.varCount;
+    if (fn.template.localNames == null && fn.template.varCount > 0) {
+      numericLocals = new boolean[localCount];
+      for (int i = parameterCount; i < localCount; i++) {
+        numericLocals[i] = true;
+      }
+    }
+
+    boolean changed = true;
+    while (changed) {
+      computeTypes(localCount);
+      changed = false;
+      for (int i = 0; i < count; i++) {
+        int imm = imms[i];
+        if (types[i] == null || !isNumericLocal(imm)) {
+          continue;
+        }
+        if ((ops[i] == (XOP | JsFunction.XOP_LCL_SET)
+              && types[i][depths[i] - 1] != NUM)
+            || (ops[i] == (XOP | JsFunction.XOP_LCL_GET) && !assigned[i][imm])) {
+          numericLocals[imm] = false;
+          changed = true;
+        }
+      }
+    }
+  }
+
+  /**
+   * Computes the types of the stack entries and the set of definitely
+   * assigned locals at each instruction, based on the current assumption
+   * about numeric locals.
+   */
+  private void computeTypes(int localCount) {
+    types = new byte[count + 1][];
+    assigned = new boolean[count + 1][];
+    types[0] = new byte[0];
+    assigned[0] = new boolean[localCount];
+
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (int i = 0; i < count; i++) {
+        if (types[i] == null) {
+          continue;
+        }
+        int op = ops[i];
+        byte[] out = transfer(i, types[i]);
+        boolean[] outAssigned = assigned[i];
+        if (op == (XOP | JsFunction.XOP_LCL_SET) && isNumericLocal(imms[i])
+            && !outAssigned[imms[i]]) {
+          outAssigned = new boolean[localCount];
+          System.arraycopy(assigned[i], 0, outAssigned, 0, localCount);
+          outAssigned[imms[i]] = true;
+        }
+        if (isJump(op)) {
+          byte[] targetTypes = out;
+          if (op == (XOP | JsFunction.XOP_NEXT)) {
+            targetTypes = types[i];
+          }
+          changed |= merge(indexOf[targets[i]], targetTypes, outAssigned);
+        }
+        if (!isTerminal(op)) {
+          changed |= merge(i + 1, out, outAssigned);
+        }
+      }
+    }
+  }
+
+  private boolean merge(int i, byte[] t, boolean[] a) {
+    if (types[i] == null) {
+      types[i] = t;
+      assigned[i] = a;
+      return true;
+    }
+    boolean changed = false;
+    byte[] oldTypes = types[i];
+    for (int j = 0; j < oldTypes.length; j++) {
+      if (oldTypes[j] != t[j] && oldTypes[j] != ANY) {
+        if (!changed) {
+          oldTypes = types[i] = (byte[]) oldTypes.clone();
+        }
+        oldTypes[j] = ANY;
+        changed = true;
+      }
+    }
+    boolean[] oldAssigned = assigned[i];
+    boolean copied = false;
+    for (int j = 0; j < oldAssigned.length; j++) {
+      if (oldAssigned[j] && !a[j]) {
+        if (!copied) {
+          oldAssigned = assigned[i] = (boolean[]) oldAssigned.clone();
+          copied = true;
+        }
+        oldAssigned[j] = false;
+        changed = true;
+      }
+    }
+    return changed;
+  }
+
+  //
+  // code generation
+  //
+
+  private byte[] generate() {
+    synchronized (JitCompiler.class) {
+      className = "com/google/minijoe/jit/Function" + (classCount++);
+    }
+    cw = new ClassFileWriter(className, CODE);
+
+    cw.beginCode();
+    cw.local(ClassFileWriter.ALOAD, THIS);
+    cw.invoke(ClassFileWriter.INVOKESPECIAL, CODE, "<init>", "()V");
+    cw.op(ClassFileWriter.RETURN);
+    cw.endCode(ClassFileWriter.ACC_PUBLIC, "<init>", "()V", 1, 1);
+
+    cw.beginCode();
+
+    int nextSlot = FIRST_FREE;
+    if (numericLocals != null) {
+      localSlots = new int[numericLocals.length];
+      for (int i = 0; i < numericLocals.length; i++) {
+        if (numericLocals[i]) {
+          localSlots[i] = nextSlot;
+          nextSlot += 2;
+          cw.op(ClassFileWriter.DCONST_0);
+          cw.local(ClassFileWriter.DSTORE, localSlots[i]);
+        }
+      }
+    }
+    stackBase = nextSlot;
+    int maxLocals = stackBase + 2 * (maxDepth + 1);
+    cw.pushInt(0);
+    cw.local(ClassFileWriter.ISTORE, PC);
+
+    labels = new int[count + 1];
+    for (int i = 0; i <= count; i++) {
+      labels[i] = isTarget[i] ? cw.newLabel() : -1;
+    }
+    endLabel = labels[count];
+
+    unboxed = new boolean[maxDepth + 1];
+    int start = cw.position();
+    boolean reachable = true;
+
+    for (int i = 0; i < count; i++) {
+      if (labels[i] != -1) {
+        if (reachable) {
+          box(0);
+        } else {
+          for (int j = 0; j < unboxed.length; j++) {
+            unboxed[j] = false;
+          }
+        }
+        cw.bind(labels[i]);
+      }
+      if (depths[i] == -1) {
+        reachable = false;
+        continue;
+      }
+      depth = depths[i];
+      stackTypes = types != null ? types[i] : null;
+      reachable = true;
+      int fused = !isTerminal(ops[i]) ? fusedLength(i) : 0;
+      if (fused > 0) {
+        generateCompareAndBranch(i, fused == 3);
+        i += fused - 1;
+      } else {
+        generate(i);
+      }
+      reachable = !isTerminal(ops[i]);
+    }
+
+    int end = cw.position();
+    if (reachable) {
+      box(0);
+    }
+    if (endLabel != -1) {
+      cw.bind(endLabel);
+    }
+    if (depths[count] != -1) {
+      generateExit();
+    }
+
+    int handler = cw.position();
+    cw.local(ClassFileWriter.ASTORE, EXCEPTION);
+    cw.local(ClassFileWriter.ALOAD, FN);
+    cw.local(ClassFileWriter.ALOAD, EXCEPTION);
+    cw.local(ClassFileWriter.ILOAD, PC);
+    cw.invoke(ClassFileWriter.INVOKESTATIC, RUNTIME, "rethrow",
+        "(" + L_FUNCTION + "Ljava/lang/Exception;I)Ljava/lang/RuntimeException;");
+    cw.op(ClassFileWriter.ATHROW);
+    if (end > start) {
+      cw.addExceptionHandler(start, end, handler, "java/lang/Exception");
+    }
+
+    if (!cw.endCode(ClassFileWriter.ACC_PUBLIC, "run", "(" + L_FUNCTION + L_ARRAY
+        + "II" + L_OBJECT + L_OBJECT + "I)V", 16, maxLocals)) {
+      return null;
+    }
+    return cw.toByteArray();
+  }
+
+  /** Emits the code for the end of the function body. */
+  private void generateExit() {
+    int d = depths[count];
+    if (d == 1) {
+      cw.local(ClassFileWriter.ALOAD, STACK);
+      pushIndex(0);
+      cw.local(ClassFileWriter.ALOAD, STACK);
+      pushBp(-2);
+      cw.invoke(ClassFileWriter.INVOKEVIRTUAL, ARRAY, "copy", "(I" + L_ARRAY + "I)V");
+      cw.op(ClassFileWriter.RETURN);
+    } else if (d == 0) {
+      cw.local(ClassFileWriter.ALOAD, STACK);
+      pushBp(-2);
+      cw.op(ClassFileWriter.ACONST_NULL);
+      cw.invoke(ClassFileWriter.INVOKEVIRTUAL, ARRAY, "setObject", "(ILjava/lang/Object;)V");
+      cw.op(ClassFileWriter.RETURN);
+    } else {
+      cw.local(ClassFileWriter.ALOAD, FN);
+      pushIndex(d);
+      cw.local(ClassFileWriter.ILOAD, BP);
+      cw.local(ClassFileWriter.ILOAD, PARAMETER_COUNT);
+      cw.invoke(ClassFileWriter.INVOKESTATIC, RUNTIME, "stackError",
+          "(" + L_FUNCTION + "III)Ljava/lang/RuntimeException;");
+      cw.op(ClassFileWriter.ATHROW);
+    }
+  }
+
+  /** Pushes the absolute stack index of the given depth. */
+  private void pushIndex(int d) {
+    cw.local(ClassFileWriter.ILOAD, SP);
+    if (d != 0) {
+      cw.pushInt(d);
+      cw.op(ClassFileWriter.IADD);
+    }
+  }
+
+  private void pushBp(int offset) {
+    cw.local(ClassFileWriter.ILOAD, BP);
+    if (offset != 0) {
+      cw.pushInt(offset);
+      cw.op(ClassFileWriter.IADD);
+    }
+  }
+
+  private void setPc(int i) {
+    cw.pushInt(ends[i] - 1);
+    cw.local(ClassFileWriter.ISTORE, PC);
+  }
+
+  private boolean isNumber(int d) {
+    return stackTypes != null && stackTypes[d] == NUM;
+  }
+
+  /** Stores all unboxed stack entries at depth d and above to the stack. */
+  private void box(int d) {
+    for (int j = d; j < unboxed.length; j++) {
+      if (unboxed[j]) {
+        cw.local(ClassFileWriter.ALOAD, STACK);
+        pushIndex(j);
+        cw.local(ClassFileWriter.DLOAD, stackBase + 2 * j);
+        cw.invoke(ClassFileWriter.INVOKEVIRTUAL, ARRAY, "setNumber", "(ID)V");
+        unboxed[j] = false;
+      }
+    }
+  }
+
+  /** Pushes the numeric value of the stack entry at depth d. */
+  private void loadNumber(int d) {
+    if (unboxed[d]) {
+      cw.local(ClassFileWriter.DLOAD, stackBase + 2 * d);
+    } else {
+      cw.local(ClassFileWriter.ALOAD, STACK);
+      pushIndex(d);
+      cw.invoke(ClassFileWriter.INVOKEVIRTUAL, ARRAY, "getNumber", "(I)D");
+    }
+  }
+
+  /** Pops a double and makes it the unboxed stack entry at depth d. */
+  private void storeNumber(int d) {
+    cw.local(ClassFileWriter.DSTORE, stackBase + 2 * d);
+    unboxed[d] = true;
+  }
+
+  /** Calls a JitRuntime method taking the stack and stack pointer. */
+  private void callRuntime(String name) {
+    cw.local(ClassFileWriter.ALOAD, STACK);
+    pushIndex(depth);
+    cw.invoke(ClassFileWriter.INVOKESTATIC, RUNTIME, name, STACK_OP);
+  }
+
+  private void binary(String name) {
+    loadNumber(depth - 2);
+    loadNumber(depth - 1);
+    cw.invoke(ClassFileWriter.INVOKESTATIC, RUNTIME, name, "(DD)D");
+    unboxed[depth - 1] = false;
+    storeNumber(depth - 2);
+  }
+
+  private void binary(int jvmOp) {
+    loadNumber(depth - 2);
+    loadNumber(depth - 1);
+    cw.op(jvmOp);
+    unboxed[depth - 1] = false;
+    storeNumber(depth - 2);
+  }
+
+  /**
+   * Checks whether instruction i is a numeric comparison directly followed
+   * by a conditional branch, optionally with a negation in between. Returns
+   * the number of instructions that can be fused, or 0.
+   */
+  private int fusedLength(int i) {
+    int op = ops[i];
+    if (!(op == JsFunction.OP_LT || op == JsFunction.OP_GT
+        || op == JsFunction.OP_EQEQ || op == JsFunction.OP_EQEQEQ)
+        || !isNumber(depths[i] - 2) || !isNumber(depths[i] - 1)) {
+      return 0;
+    }
+    int j = i + 1;
+    if (j < count && ops[j] == JsFunction.OP_NOT && !isTarget[j]) {
+      j++;
+    }
+    return j < count && ops[j] == (XOP | JsFunction.XOP_IF) && !isTarget[j]
+        ? j - i + 1 : 0;
+  }
+
+  private void generateCompareAndBranch(int i, boolean negated) {
+    int op = ops[i];
+    loadNumber(depth - 2);
+    loadNumber(depth - 1);
+    unboxed[depth - 2] = false;
+    unboxed[depth - 1] = false;
+    // the branch is taken if the condition is false, or true if negated;
+    // comparisons with NaN are always false
+    int branch;
+    if (op == JsFunction.OP_LT) {
+      cw.op(ClassFileWriter.DCMPG);
+      branch = negated ? ClassFileWriter.IFLT : ClassFileWriter.IFGE;
+    } else if (op == JsFunction.OP_GT) {
+      cw.op(ClassFileWriter.DCMPL);
+      branch = negated ? ClassFileWriter.IFGT : ClassFileWriter.IFLE;
+    } else {
+      cw.op(ClassFileWriter.DCMPL);
+      branch = negated ? ClassFileWriter.IFEQ : ClassFileWriter.IFNE;
+    }
+    box(0);
+    cw.jump(branch, labels[indexOf[targets[i + (negated ? 2 : 1)]]]);
+  }
+
+  private void generate(int i) {
+    int op = ops[i];
+    int imm = imms[i];
+    int d = depth;
+    int pops = pops(op, imm);
+
+    switch (op) {
+      case XOP | JsFunction.XOP_PUSH_INT:
+        cw.pushDouble(imm);
+        storeNumber(d);
+        return;
+
+      case XOP | JsFunction.XOP_PUSH_NUM:
+        cw.pushDouble(fn.template.numberLiterals[imm]);
+        storeNumber(d);
+        return;
+
+      case XOP | JsFunction.XOP_ADD:
+        loadNumber(d - 1);
+        cw.pushDouble(imm);
+        cw.op(ClassFileWriter.DADD);
+        storeNumber(d - 1);
+        return;
+
+      case JsFunction.OP_SUB:
+        binary(ClassFileWriter.DSUB);
+        return;
+
+      case JsFunction.OP_MUL:
+        binary(ClassFileWriter.DMUL);
+        return;
+
+      case JsFunction.OP_DIV:
+        binary(ClassFileWriter.DDIV);
+        return;
+
+      case JsFunction.OP_MOD:
+        binary(ClassFileWriter.DREM);
+        return;
+
+      case JsFunction.OP_AND:
+        binary("and");
+        return;
+
+      case JsFunction.OP_OR:
+        binary("or");
+        return;
+
+      case JsFunction.OP_XOR:
+        binary("xor");
+        return;
+
+      case JsFunction.OP_SHL:
+        binary("shl");
+        return;
+
+      case JsFunction.OP_SHR:
+        binary("shr");
+        return;
+
+      case JsFunction.OP_ASR:
+        binary("asr");
+        return;
+
+      case JsFunction.OP_INV:
+        loadNumber(d - 1);
+        cw.invoke(ClassFileWriter.INVOKESTATIC, RUNTIME, "inv", "(D)D");
+        storeNumber(d - 1);
+        return;
+
+      case JsFunction.OP_NEG:
+        loadNumber(d - 1);
+        cw.op(ClassFileWriter.DNEG);
+        storeNumber(d - 1);
+        return;
+
+      case JsFunction.OP_INC:
+      case JsFunction.OP_DEC:
+        loadNumber(d - 1);
+        cw.op(ClassFileWriter.DCONST_1);
+        cw.op(op == JsFunction.OP_INC ? ClassFileWriter.DADD : ClassFileWriter.DSUB);
+        storeNumber(d - 1);
+        return;
+
+      case JsFunction.OP_ADD:
+        if (isNumber(d - 2) && isNumber(d - 1)) {
+          binary(ClassFileWriter.DADD);
+          return;
+        }
+        break;
+
+      case JsFunction.OP_LT:
+      case JsFunction.OP_GT:
+      case JsFunction.OP_EQEQ:
+      case JsFunction.OP_EQEQEQ:
+        if (isNumber(d - 2) && isNumber(d - 1)) {
+          cw.local(ClassFileWriter.ALOAD, STACK);
+          pushIndex(d - 2);
+          loadNumber(d - 2);
+          loadNumber(d - 1);
+          cw.invoke(ClassFileWriter.INVOKESTATIC, RUNTIME,
+              op == JsFunction.OP_LT ? "lessThan"
+                  : op == JsFunction.OP_GT ? "greaterThan" : "numberEquals",
+              "(DD)Ljava/lang/Boolean;");
+          cw.invoke(ClassFileWriter.INVOKEVIRTUAL, ARRAY, "setObject",
+              "(ILjava/lang/Object;)V");
+          unboxed[d - 2] = false;
+          unboxed[d - 1] = false;
+          return;
+        }
+        break;
+
+      case XOP | JsFunction.XOP_LCL_GET:
+        if (isNumericLocal(imm)) {
+          cw.local(ClassFileWriter.DLOAD, localSlots[imm]);
+          storeNumber(d);
+        } else {
+          cw.local(ClassFileWriter.ALOAD, STACK);
+          pushBp(imm);
+          cw.local(ClassFileWriter.ALOAD, STACK);
+          pushIndex(d);
+          cw.invoke(ClassFileWriter.INVOKEVIRTUAL, ARRAY, "copy", "(I" + L_ARRAY + "I)V");
+        }
+        return;
+
+      case XOP | JsFunction.XOP_LCL_SET:
+        if (isNumericLocal(imm)) {
+          loadNumber(d - 1);
+          cw.local(ClassFileWriter.DSTORE, localSlots[imm]);
+        } else {
+          box(d - 1);
+          cw.local(ClassFileWriter.ALOAD, STACK);
+          pushIndex(d - 1);
+          cw.local(ClassFileWriter.ALOAD, STACK);
+          pushBp(imm);
+          cw.invoke(ClassFileWriter.INVOKEVIRTUAL, ARRAY, "copy", "(I" + L_ARRAY + "I)V");
+        }
+        return;
+
+      case JsFunction.OP_DUP:
+        if (unboxed[d - 1]) {
+          cw.local(ClassFileWriter.DLOAD, stackBase + 2 * (d - 1));
+          storeNumber(d);
+        } else {
+          cw.local(ClassFileWriter.ALOAD, STACK);
+          pushIndex(d - 1);
+          cw.local(ClassFileWriter.ALOAD, STACK);
+          pushIndex(d);
+          cw.invoke(ClassFileWriter.INVOKEVIRTUAL, ARRAY, "copy", "(I" + L_ARRAY + "I)V");
+        }
+        return;
+
+      case JsFunction.OP_DROP:
+        unboxed[d - 1] = false;
+        return;
+
+      case JsFunction.OP_SWAP:
+        if (unboxed[d - 2] && unboxed[d - 1]) {
+          cw.local(ClassFileWriter.DLOAD, stackBase + 2 * (d - 2));
+          cw.local(ClassFileWriter.DLOAD, stackBase + 2 * (d - 1));
+          cw.local(ClassFileWriter.DSTORE, stackBase + 2 * (d - 2));
+          cw.local(ClassFileWriter.DSTORE, stackBase + 2 * (d - 1));
+        } else {
+          box(d - 2);
+          cw.local(ClassFileWriter.ALOAD, STACK);
+          pushIndex(d - 1);
+          pushIndex(d - 2);
+          cw.invoke(ClassFileWriter.INVOKEVIRTUAL, ARRAY, "swap", "(II)V");
+        }
+        return;
+
+      case XOP | JsFunction.XOP_GO:
+        box(0);
+        cw.jump(ClassFileWriter.GOTO, labels[indexOf[targets[i]]]);
+        return;
+
+      case XOP | JsFunction.XOP_IF:
+        if (unboxed[d - 1]) {
+          cw.local(ClassFileWriter.DLOAD, stackBase + 2 * (d - 1));
+          cw.invoke(ClassFileWriter.INVOKESTATIC, RUNTIME, "toBoolean", "(D)Z");
+          unboxed[d - 1] = false;
+        } else {
+          cw.local(ClassFileWriter.ALOAD, STACK);
+          pushIndex(d - 1);
+          cw.invoke(ClassFileWriter.INVOKEVIRTUAL, ARRAY, "getBoolean", "(I)Z");
+        }
+        box(0);
+        cw.jump(ClassFileWriter.IFEQ, labels[indexOf[targets[i]]]);
+        return;
+
+      default:
+        // handled below
+    }
+
+    // Generic case: all operands are stored to the stack and the
+    // instruction is implemented by the runtime
+    box(d - pops);
+    setPc(i);
+
+    switch (op) {
+      case XOP | JsFunction.XOP_PUSH_STR:
+        cw.local(ClassFileWriter.ALOAD, STACK);
+        pushIndex(d);
+        cw.local(ClassFileWriter.ALOAD, THIS);
+        cw.op2(ClassFileWriter.GETFIELD, cw.fieldRef(CODE, "strings", "[Ljava/lang/String;"));
+        cw.pushInt(imm);
+        cw.op(ClassFileWriter.AALOAD);
+        cw.invoke(ClassFileWriter.INVOKEVIRTUAL, ARRAY, "setObject", "(ILjava/lang/Object;)V");
+        break;
+
+      case XOP | JsFunction.XOP_PUSH_FN:
+        cw.local(ClassFileWriter.ALOAD, FN);
+        cw.local(ClassFileWriter.ALOAD, STACK);
+        pushIndex(d);
+        cw.local(ClassFileWriter.ALOAD, CONTEXT);
+        cw.pushInt(imm);
+        cw.invoke(ClassFileWriter.INVOKESTATIC, RUNTIME, "pushFunction",
+            "(" + L_FUNCTION + L_ARRAY + "I" + L_OBJECT + "I)V");
+        break;
+
+      case XOP | JsFunction.XOP_PUSH_REGEX:
+        cw.local(ClassFileWriter.ALOAD, FN);
+        cw.local(ClassFileWriter.ALOAD, STACK);
+        pushIndex(d);
+        cw.pushInt(imm);
+        cw.invoke(ClassFileWriter.INVOKESTATIC, RUNTIME, "pushRegExp",
+            "(" + L_FUNCTION + L_ARRAY + "II)V");
+        break;
+
+      case XOP | JsFunction.XOP_CALL:
+      case XOP | JsFunction.XOP_TRY_CALL:
+        cw.local(ClassFileWriter.ALOAD, STACK);
+        pushIndex(d);
+        cw.pushInt(imm);
+        cw.invoke(ClassFileWriter.INVOKESTATIC, RUNTIME,
+            op == (XOP | JsFunction.XOP_CALL) ? "call" : "tryCall",
+            "(" + L_ARRAY + "II)V");
+        break;
+
+      case XOP | JsFunction.XOP_NEXT:
+        box(0);
+        cw.local(ClassFileWriter.ALOAD, STACK);
+        pushIndex(d);
+        cw.invoke(ClassFileWriter.INVOKESTATIC, RUNTIME, "next", "(" + L_ARRAY + "I)Z");
+        cw.jump(ClassFileWriter.IFEQ, labels[indexOf[targets[i]]]);
+        break;
+
+      case JsFunction.OP_GET:
+      case JsFunction.OP_SET:
+      case JsFunction.OP_SET_KC:
+        cw.local(ClassFileWriter.ALOAD, FN);
+        cw.local(ClassFileWriter.ALOAD, STACK);
+        pushIndex(d);
+        cw.pushInt(pcs[i]);
+        cw.invoke(ClassFileWriter.INVOKESTATIC, RUNTIME,
+            op == JsFunction.OP_GET ? "get" : op == JsFunction.OP_SET ? "set" : "setKc",
+            "(" + L_FUNCTION + L_ARRAY + "II)V");
+        break;
+
+      case JsFunction.OP_CTX_GET:
+        cw.local(ClassFileWriter.ALOAD, FN);
+        cw.local(ClassFileWriter.ALOAD, STACK);
+        pushIndex(d);
+        cw.local(ClassFileWriter.ALOAD, CONTEXT);
+        cw.pushInt(pcs[i]);
+        cw.invoke(ClassFileWriter.INVOKESTATIC, RUNTIME, "ctxGet",
+            "(" + L_FUNCTION + L_ARRAY + "I" + L_OBJECT + "I)V");
+        break;
+
+      case JsFunction.OP_CTX_SET:
+        cw.local(ClassFileWriter.ALOAD, STACK);
+        pushIndex(d);
+        cw.local(ClassFileWriter.ALOAD, CONTEXT);
+        cw.invoke(ClassFileWriter.INVOKESTATIC, RUNTIME, "ctxSet",
+            "(" + L_ARRAY + "I" + L_OBJECT + ")V");
+        break;
+
+      case JsFunction.OP_CTX:
+      case JsFunction.OP_PUSH_THIS:
+        cw.local(ClassFileWriter.ALOAD, STACK);
+        pushIndex(d);
+        cw.local(ClassFileWriter.ALOAD, op == JsFunction.OP_CTX ? CONTEXT : THIS_PTR);
+        cw.invoke(ClassFileWriter.INVOKEVIRTUAL, ARRAY, "setObject", "(ILjava/lang/Object;)V");
+        break;
+
+      case JsFunction.OP_PUSH_TRUE:
+      case JsFunction.OP_PUSH_FALSE:
+        cw.local(ClassFileWriter.ALOAD, STACK);
+        pushIndex(d);
+        cw.op2(ClassFileWriter.GETSTATIC, cw.fieldRef("java/lang/Boolean",
+            op == JsFunction.OP_PUSH_TRUE ? "TRUE" : "FALSE", "Ljava/lang/Boolean;"));
+        cw.invoke(ClassFileWriter.INVOKEVIRTUAL, ARRAY, "setObject", "(ILjava/lang/Object;)V");
+        break;
+
+      case JsFunction.OP_PUSH_UNDEF:
+        cw.local(ClassFileWriter.ALOAD, STACK);
+        pushIndex(d);
+        cw.op(ClassFileWriter.ACONST_NULL);
+        cw.invoke(ClassFileWriter.INVOKEVIRTUAL, ARRAY, "setObject", "(ILjava/lang/Object;)V");
+        break;
+
+      case JsFunction.OP_DDUP:
+        cw.local(ClassFileWriter.ALOAD, STACK);
+        pushIndex(d - 2);
+        cw.local(ClassFileWriter.ALOAD, STACK);
+        pushIndex(d);
+        cw.pushInt(2);
+        cw.invoke(ClassFileWriter.INVOKEVIRTUAL, ARRAY, "copy", "(I" + L_ARRAY + "II)V");
+        break;
+
+      case JsFunction.OP_RET:
+        cw.local(ClassFileWriter.ALOAD, STACK);
+        pushIndex(d - 1);
+        cw.local(ClassFileWriter.ALOAD, STACK);
+        pushBp(-2);
+        cw.invoke(ClassFileWriter.INVOKEVIRTUAL, ARRAY, "copy", "(I" + L_ARRAY + "I)V");
+        cw.op(ClassFileWriter.RETURN);
+        break;
+
+      case JsFunction.OP_THROW:
+        cw.local(ClassFileWriter.ALOAD, STACK);
+        pushIndex(d);
+        cw.invoke(ClassFileWriter.INVOKESTATIC, RUNTIME, "throwError",
+            "(" + L_ARRAY + "I)Lcom/google/minijoe/sys/JsException;");
+        cw.op(ClassFileWriter.ATHROW);
+        break;
+
+      case JsFunction.OP_ADD:
+        callRuntime("add");
+        break;
+      case JsFunction.OP_APPEND:
+        callRuntime("append");
+        break;
+      case JsFunction.OP_DEL:
+        callRuntime("delete");
+        break;
+      case JsFunction.OP_ENUM:
+        callRuntime("enumerate");
+        break;
+      case JsFunction.OP_EQEQ:
+        callRuntime("equals");
+        break;
+      case JsFunction.OP_EQEQEQ:
+        callRuntime("strictEquals");
+        break;
+      case JsFunction.OP_GT:
+        callRuntime("greaterThan");
+        break;
+      case JsFunction.OP_LT:
+        callRuntime("lessThan");
+        break;
+      case JsFunction.OP_IN:
+        callRuntime("in");
+        break;
+      case JsFunction.OP_INSTANCEOF:
+        callRuntime("instanceOf");
+        break;
+      case JsFunction.OP_NEW_ARR:
+        callRuntime("newArray");
+        break;
+      case JsFunction.OP_NEW_OBJ:
+        callRuntime("newObject");
+        break;
+      case JsFunction.OP_NEW:
+        callRuntime("newInstance");
+        break;
+      case JsFunction.OP_NOT:
+        callRuntime("not");
+        break;
+      case JsFunction.OP_PUSH_GLOBAL:
+        callRuntime("pushGlobal");
+        break;
+      case JsFunction.OP_PUSH_NULL:
+        callRuntime("pushNull");
+        break;
+      case JsFunction.OP_ROT:
+        callRuntime("rot");
+        break;
+      case JsFunction.OP_TYPEOF:
+        callRuntime("typeOf");
+        break;
+
+      default:
+        throw new IllegalArgumentException("Unsupported op: " + op);
+    }
+  }
+}
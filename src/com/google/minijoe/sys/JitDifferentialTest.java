@@ -0,0 +1,247 @@
+// Copyright 2008 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.minijoe.sys;
+
+import com.google.minijoe.compiler.CompilerException;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Hashtable;
+import java.util.Vector;
+
+/**
+ * Runs a corpus of scripts with the JIT compiler disabled
+ * (minijoe.jit.threshold=-1) and with all functions compiled on their first
+ * call (minijoe.jit.threshold=0), in both the stack and the register byte
+ * code format, each mode in its own VM. The output of a script name.js
+ * must match the file name.expected next to it in every mode, so bugs
+ * shared by the interpreter and the JIT are caught, too. Scripts must not
+ * throw uncaught exceptions. In the modes with minijoe.jit.threshold=0, an
+ * ordinary function must actually get compiled, so a JIT that silently
+ * leaves everything to the interpreter fails, too. Exits with status 1 if
+ * any check fails.
+ *
+ * Usage: JitDifferentialTest [script or directory ...] (default: test)
+ */
+public class JitDifferentialTest {
+
+  /** Compiles every function on its first call. */
+  static final String COMPILE_ALL = "-Dminijoe.jit.threshold=0";
+
+  /** System properties of the child VM in each mode. */
+  static final String[][] MODES = {
+    {"-Dminijoe.jit.threshold=-1"},
+    {COMPILE_ALL},
+    {"-Dminijoe.bytecode=register", "-Dminijoe.jit.threshold=-1"},
+    {"-Dminijoe.bytecode=register", COMPILE_ALL},
+  };
+
+  /** Extension of the file holding the expected output of a script. */
+  static final String EXPECTED_EXTENSION = ".expected";
+
+  /** Marks the start of the output of a script in the child output. */
+  static final String SCRIPT_MARKER = "== ";
+
+  /** Marks an uncaught exception in the child output. */
+  static final String EXCEPTION_MARKER = "!! ";
+
+  /**
+   * Marks the line at the end of the child output telling whether PROBE
+   * was compiled.
+   */
+  static final String COMPILED_MARKER = "## ";
+
+  /** Function that the JIT must be able to compile. */
+  static final String PROBE = "function probe(o, n) { var s = 0;"
+      + " for (var i = 0; i < n; i++) { s = s + o.x * i; } return s; }"
+      + " probe({x: 2}, 3);";
+
+  static String readFile(File file) throws IOException {
+    DataInputStream dis = new DataInputStream(new FileInputStream(file));
+    try {
+      byte[] data = new byte[(int) file.length()];
+      dis.readFully(data);
+      return new String(data, "UTF-8");
+    } finally {
+      dis.close();
+    }
+  }
+
+  /**
+   * Runs in the child VM: evaluates each script in a fresh global and
+   * prints its output after a marker line, then whether the JIT compiled
+   * PROBE.
+   */
+  static void child(String[] files) throws CompilerException, IOException {
+    for (int i = 1; i < files.length; i++) {
+      System.out.println(SCRIPT_MARKER + files[i]);
+      try {
+        Eval.eval(readFile(new File(files[i])), JsSystem.createGlobal());
+        EventLoop.current().run();
+      } catch (Throwable t) {
+        System.out.println(EXCEPTION_MARKER + t);
+      }
+    }
+    JsObject global = JsSystem.createGlobal();
+    Eval.eval(PROBE, global);
+    JitProfile jit = ((JsFunction) global.getObject("probe")).template.jit;
+    System.out.println(COMPILED_MARKER + (jit != null && jit.code != null));
+  }
+
+  /**
+   * Returns the expected output of the given script, or null if there is
+   * no expected output file.
+   */
+  static String readExpected(String script) throws IOException {
+    File file = new File(script.substring(0, script.length() - 3) + EXPECTED_EXTENSION);
+    return file.exists() ? readFile(file) : null;
+  }
+
+  static String describe(String[] mode) {
+    StringBuffer buf = new StringBuffer();
+    for (int i = 0; i < mode.length; i++) {
+      if (i > 0) {
+        buf.append(' ');
+      }
+      buf.append(mode[i]);
+    }
+    return buf.toString();
+  }
+
+  /**
+   * Runs the scripts in a child VM with the given system properties and
+   * returns the output of each script, keyed by file name, and whether
+   * PROBE was compiled, keyed by COMPILED_MARKER.
+   */
+  static Hashtable run(String[] mode, Vector files) throws Exception {
+    Vector command = new Vector();
+    command.addElement(System.getProperty("java.home") + File.separator + "bin"
+        + File.separator + "java");
+    command.addElement("-cp");
+    command.addElement(System.getProperty("java.class.path"));
+    for (int i = 0; i < mode.length; i++) {
+      command.addElement(mode[i]);
+    }
+    command.addElement(JitDifferentialTest.class.getName());
+    command.addElement("--child");
+    for (int i = 0; i < files.size(); i++) {
+      command.addElement(files.elementAt(i));
+    }
+    String[] args = new String[command.size()];
+    command.copyInto(args);
+
+    Process process = new ProcessBuilder(args).redirectErrorStream(true).start();
+    BufferedReader reader = new BufferedReader(
+        new InputStreamReader(process.getInputStream(), "UTF-8"));
+    Hashtable result = new Hashtable();
+    String name = null;
+    StringBuffer output = new StringBuffer();
+    String line;
+    while ((line = reader.readLine()) != null) {
+      if (line.startsWith(COMPILED_MARKER)) {
+        result.put(COMPILED_MARKER, line.substring(COMPILED_MARKER.length()));
+      } else if (line.startsWith(SCRIPT_MARKER)) {
+        if (name != null) {
+          result.put(name, output.toString());
+        }
+        name = line.substring(SCRIPT_MARKER.length());
+        output.setLength(0);
+      } else if (name != null) {
+        output.append(line).append('\n');
+      }
+    }
+    if (name != null) {
+      result.put(name, output.toString());
+    }
+    process.waitFor();
+    return result;
+  }
+
+  static void addScripts(File file, Vector files) {
+    if (file.isDirectory()) {
+      String[] names = file.list();
+      java.util.Arrays.sort(names);
+      for (int i = 0; i < names.length; i++) {
+        if (names[i].endsWith(".js")) {
+          files.addElement(new File(file, names[i]).getPath());
+        }
+      }
+    } else {
+      files.addElement(file.getPath());
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (args.length > 0 && args[0].equals("--child")) {
+      child(args);
+      return;
+    }
+    Vector files = new Vector();
+    if (args.length == 0) {
+      addScripts(new File("test"), files);
+    }
+    for (int i = 0; i < args.length; i++) {
+      addScripts(new File(args[i]), files);
+    }
+
+    Hashtable[] outputs = new Hashtable[MODES.length];
+    int failures = 0;
+    for (int i = 0; i < MODES.length; i++) {
+      outputs[i] = run(MODES[i], files);
+      boolean compileAll = false;
+      for (int j = 0; j < MODES[i].length; j++) {
+        compileAll |= MODES[i][j].equals(COMPILE_ALL);
+      }
+      if (compileAll && !"true".equals(outputs[i].get(COMPILED_MARKER))) {
+        System.out.println("FAIL probe function not compiled with " + describe(MODES[i]));
+        failures++;
+      }
+    }
+
+    for (int i = 0; i < files.size(); i++) {
+      String name = (String) files.elementAt(i);
+      String expected = readExpected(name);
+      String failure = null;
+      if (expected == null) {
+        failure = "no " + EXPECTED_EXTENSION + " file";
+      }
+      for (int j = 0; j < MODES.length && failure == null; j++) {
+        String output = (String) outputs[j].get(name);
+        if (output == null) {
+          failure = "no output with " + describe(MODES[j]);
+        } else if (output.indexOf(EXCEPTION_MARKER) != -1) {
+          failure = "uncaught exception with " + describe(MODES[j]) + ":\n" + output;
+        } else if (!output.equals(expected)) {
+          failure = "expected:\n" + expected
+              + "with " + describe(MODES[j]) + ":\n" + output;
+        }
+      }
+      if (failure == null) {
+        System.out.println("PASS " + name);
+      } else {
+        System.out.println("FAIL " + name + ": " + failure);
+        failures++;
+      }
+    }
+    System.out.println(files.size() - failures + " passed, " + failures + " failed");
+    if (failures > 0) {
+      System.exit(1);
+    }
+  }
+}
@@ -0,0 +1,34 @@
+// Copyright 2008 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.minijoe.sys;
+
+/**
+ * Execution counter and compiled code of a function literal, shared by all
+ * closures created from the literal. The count is not synchronized, since
+ * an occasionally lost update does not matter; the compiled code is
+ * published through a volatile field, as literals may be shared by several
+ * threads.
+ */
+final class JitProfile {
+
+  /** Number of invocations plus backward jumps seen by the interpreter. */
+  int count;
+
+  /** Compiled code, or null if the function has not been compiled (yet). */
+  volatile JitCode code;
+
+  /** Set if the function can't be compiled. */
+  volatile boolean failed;
+}
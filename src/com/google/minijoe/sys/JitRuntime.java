@@ -0,0 +1,348 @@
+// Copyright 2008 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.minijoe.sys;
+
+import java.util.Enumeration;
+
+/**
+ * Operations called from code generated by the JIT compiler. Each method
+ * implements one byte code instruction exactly like the corresponding case
+ * in JsFunction.eval(); sp is the stack pointer before the instruction.
+ *
+ * This class is public because generated classes live in their own class
+ * loader; it is not intended to be used by applications.
+ */
+public final class JitRuntime {
+
+  private JitRuntime() {
+  }
+
+  /** ECMA toInt32, as JsArray.getInt(). */
+  public static int toInt32(double d) {
+    if (Double.isInfinite(d) || Double.isNaN(d)) {
+      return 0;
+    }
+    return (int) (long) d;
+  }
+
+  /** ECMA toBoolean for numbers, as JsArray.getBoolean(). */
+  public static boolean toBoolean(double d) {
+    return d != 0 && !Double.isNaN(d);
+  }
+
+  public static double and(double a, double b) {
+    return toInt32(a) & toInt32(b);
+  }
+
+  public static double or(double a, double b) {
+    return toInt32(a) | toInt32(b);
+  }
+
+  public static double xor(double a, double b) {
+    return toInt32(a) ^ toInt32(b);
+  }
+
+  public static double shl(double a, double b) {
+    return toInt32(a) << (toInt32(b) & 0x1f);
+  }
+
+  public static double shr(double a, double b) {
+    return toInt32(a) >> (toInt32(b) & 0x1f);
+  }
+
+  public static double asr(double a, double b) {
+    return (toInt32(a) & 0xffffffffL) >>> (toInt32(b) & 0x1f);
+  }
+
+  public static double inv(double a) {
+    return ~toInt32(a);
+  }
+
+  public static Boolean lessThan(double a, double b) {
+    return a < b ? Boolean.TRUE : Boolean.FALSE;
+  }
+
+  public static Boolean greaterThan(double a, double b) {
+    return a > b ? Boolean.TRUE : Boolean.FALSE;
+  }
+
+  public static Boolean numberEquals(double a, double b) {
+    return a == b ? Boolean.TRUE : Boolean.FALSE;
+  }
+
+  public static void add(JsArray stack, int sp) {
+    if (stack.isNumberPair(sp - 2)) {
+      stack.setUnboxedNumber(sp - 2,
+          stack.getUnboxedNumber(sp - 2) + stack.getUnboxedNumber(sp - 1));
+    } else if (stack.isNumber(sp - 2) && stack.isNumber(sp - 1)) {
+      stack.setNumber(sp - 2, stack.getNumber(sp - 2) + stack.getNumber(sp - 1));
+    } else {
+      stack.setObject(sp - 2, JsRope.concat(
+          stack.getStringValue(sp - 2), stack.getStringValue(sp - 1)));
+    }
+  }
+
+  public static void append(JsArray stack, int sp) {
+    JsArray arr = (JsArray) stack.getObject(sp - 2);
+    stack.copy(sp - 1, arr, arr.size());
+  }
+
+  public static void ctxGet(JsFunction fn, JsArray stack, int sp,
+      JsObject context, int pc) {
+    if (!fn.getInlineCache(pc).get(context, stack, sp - 1)) {
+      context.vmGetOperation(stack, sp - 1, sp - 1);
+    }
+  }
+
+  public static void ctxSet(JsArray stack, int sp, JsObject context) {
+    context.vmSetOperation(stack, sp - 1, sp - 2);
+  }
+
+  public static void get(JsFunction fn, JsArray stack, int sp, int pc) {
+    if (!fn.getInlineCache(pc).get(stack, sp - 2, sp - 1, sp - 2)) {
+      stack.getJsObject(sp - 2).vmGetOperation(stack, sp - 1, sp - 2);
+    }
+  }
+
+  public static void set(JsFunction fn, JsArray stack, int sp, int pc) {
+    if (!fn.getInlineCache(pc).set(stack, sp - 2, sp - 1, sp - 3)) {
+      stack.getJsObject(sp - 2).vmSetOperation(stack, sp - 1, sp - 3);
+    }
+  }
+
+  public static void setKc(JsFunction fn, JsArray stack, int sp, int pc) {
+    if (!fn.getInlineCache(pc).set(stack, sp - 3, sp - 2, sp - 1)) {
+      stack.getJsObject(sp - 3).vmSetOperation(stack, sp - 2, sp - 1);
+    }
+  }
+
+  public static void delete(JsArray stack, int sp) {
+    stack.setBoolean(sp - 2,
+        stack.getJsObject(sp - 2).delete(stack.getString(sp - 1)));
+  }
+
+  public static void enumerate(JsArray stack, int sp) {
+    stack.setObject(sp - 1, ((JsObject) stack.getObject(sp - 1)).keys());
+  }
+
+  public static void strictEquals(JsArray stack, int sp) {
+    if (stack.getType(sp - 2) != stack.getType(sp - 1)) {
+      stack.setObject(sp - 2, Boolean.FALSE);
+    } else {
+      equals(stack, sp);
+    }
+  }
+
+  public static void equals(JsArray stack, int sp) {
+    int tX = stack.getType(sp - 2);
+    int tY = stack.getType(sp - 1);
+
+    if (tX == tY) {
+      switch (tX) {
+        case JsObject.TYPE_UNDEFINED:
+        case JsObject.TYPE_NULL:
+          stack.setObject(sp - 2, Boolean.TRUE);
+          break;
+
+        case JsObject.TYPE_NUMBER:
+          stack.setBoolean(sp - 2, stack.getNumber(sp - 2) == stack.getNumber(sp - 1));
+          break;
+
+        case JsObject.TYPE_STRING:
+          stack.setBoolean(sp - 2, stack.getString(sp - 2).equals(stack.getString(sp - 1)));
+          break;
+
+        default:
+          stack.setBoolean(sp - 2,
+              stack.getObject(sp - 2).equals(stack.getObject(sp - 1)));
+      }
+    } else {
+      boolean result;
+      if ((tX == JsObject.TYPE_UNDEFINED && tY == JsObject.TYPE_NULL) ||
+          (tX == JsObject.TYPE_NULL && tY == JsObject.TYPE_UNDEFINED)) {
+        result = true;
+      } else if (tX == JsObject.TYPE_NUMBER || tY == JsObject.TYPE_NUMBER) {
+        result = stack.getNumber(sp - 2) == stack.getNumber(sp - 1);
+      } else if ((tX == JsObject.TYPE_STRING && tY == JsObject.TYPE_OBJECT) ||
+          tX == JsObject.TYPE_OBJECT && tY == JsObject.TYPE_STRING) {
+        result = stack.getString(sp - 2).equals(stack.getString(sp - 1));
+      } else {
+        result = false;
+      }
+      stack.setBoolean(sp - 2, result);
+    }
+  }
+
+  public static void greaterThan(JsArray stack, int sp) {
+    if (stack.isNumber(sp - 2) && stack.isNumber(sp - 1)) {
+      stack.setObject(sp - 2, stack.getNumber(sp - 2) > stack.getNumber(sp - 1)
+          ? Boolean.TRUE : Boolean.FALSE);
+    } else {
+      stack.setObject(sp - 2,
+          stack.getString(sp - 2).compareTo(stack.getString(sp - 1)) > 0
+          ? Boolean.TRUE : Boolean.FALSE);
+    }
+  }
+
+  public static void lessThan(JsArray stack, int sp) {
+    if (stack.isNumber(sp - 2) && stack.isNumber(sp - 1)) {
+      stack.setObject(sp - 2, stack.getNumber(sp - 2) < stack.getNumber(sp - 1)
+          ? Boolean.TRUE : Boolean.FALSE);
+    } else {
+      stack.setObject(sp - 2,
+          stack.getString(sp - 2).compareTo(stack.getString(sp - 1)) < 0
+          ? Boolean.TRUE : Boolean.FALSE);
+    }
+  }
+
+  public static void in(JsArray stack, int sp) {
+    Object o = stack.getObject(sp - 1);
+    if (o instanceof JsArray && stack.isNumber(sp - 2)) {
+      int i = stack.getInt(sp - 2);
+      stack.setObject(sp - 2, i >= 0 && i <= ((JsArray) o).size()
+          ? Boolean.TRUE : Boolean.FALSE);
+    } else if (o instanceof JsObject) {
+      stack.setObject(sp - 2,
+          ((JsObject) o).getRawInPrototypeChain(stack.getString(sp - 2)) == null
+          ? Boolean.TRUE : Boolean.FALSE);
+    } else {
+      stack.setObject(sp - 2, Boolean.FALSE);
+    }
+  }
+
+  public static void instanceOf(JsArray stack, int sp) {
+    Object o = stack.getObject(sp - 2);
+    JsObject p = stack.getJsObject(sp - 1);
+    if (p instanceof JsFunction && o instanceof JsObject) {
+      JsObject j = ((JsObject) o);
+      p = ((JsFunction) p).prototype;
+      while (j.__proto__ != null && j.__proto__ != p) {
+        j = j.__proto__;
+      }
+      stack.setBoolean(sp - 2, j != null);
+    } else {
+      stack.setObject(sp - 2, Boolean.FALSE);
+    }
+  }
+
+  public static void newArray(JsArray stack, int sp) {
+    stack.setObject(sp, new JsArray());
+  }
+
+  public static void newObject(JsArray stack, int sp) {
+    stack.setObject(sp, new JsObject(JsObject.OBJECT_PROTOTYPE));
+  }
+
+  public static void newInstance(JsArray stack, int sp) {
+    JsFunction constructor = ((JsFunction) stack.getObject(sp - 1));
+    JsObject ctx = constructor.newInstance();
+    stack.setObject(sp - 1, ctx);
+    stack.setObject(sp, ctx);
+    stack.setObject(sp + 1, constructor);
+  }
+
+  public static void not(JsArray stack, int sp) {
+    stack.setObject(sp - 1, stack.getBoolean(sp - 1) ? Boolean.FALSE : Boolean.TRUE);
+  }
+
+  public static void pushGlobal(JsArray stack, int sp) {
+    stack.setObject(sp, stack.getObject(0));
+  }
+
+  public static void pushNull(JsArray stack, int sp) {
+    stack.setObject(sp, JsSystem.JS_NULL);
+  }
+
+  public static void pushFunction(JsFunction fn, JsArray stack, int sp,
+      JsObject context, int index) {
+    stack.setObject(sp, new JsFunction(fn.getFunctionLiteral(index), context));
+  }
+
+  public static void pushRegExp(JsFunction fn, JsArray stack, int sp, int index) {
+    stack.setObject(sp, new JsRegExp(fn.getRegExpPattern(index)));
+  }
+
+  public static void rot(JsArray stack, int sp) {
+    stack.copy(sp - 3, stack, sp - 2, 3);
+    stack.copy(sp, stack, sp - 3);
+  }
+
+  public static void typeOf(JsArray stack, int sp) {
+    stack.setObject(sp - 1, JsObject.TYPE_NAMES[stack.getType(sp - 1)]);
+  }
+
+  public static void call(JsArray stack, int sp, int count) {
+    sp = sp - count - 2;
+    JsFunction m = (JsFunction) stack.getObject(sp + 1);
+    m.eval(stack, sp, count);
+  }
+
+  public static void tryCall(JsArray stack, int sp, int count) {
+    try {
+      sp = sp - count - 2;
+      JsFunction m = (JsFunction) stack.getObject(sp + 1);
+      m.eval(stack, sp, count);
+      stack.setBoolean(sp + 1, true);
+    } catch (JsException e) {
+      stack.setObject(sp, e.getError());
+      stack.setBoolean(sp + 1, false);
+    } catch (Exception e) {
+      stack.setObject(sp, new JsError(e));
+      stack.setBoolean(sp + 1, false);
+    }
+  }
+
+  /**
+   * Implements XOP_NEXT; returns false if the enumeration is exhausted.
+   */
+  public static boolean next(JsArray stack, int sp) {
+    Enumeration e = (Enumeration) stack.getObject(sp - 1);
+    if (e.hasMoreElements()) {
+      stack.setObject(sp, e.nextElement());
+      return true;
+    }
+    return false;
+  }
+
+  public static JsException throwError(JsArray stack, int sp) {
+    return new JsException(stack.getJsObject(sp - 1));
+  }
+
+  /**
+   * Converts an exception thrown by compiled code in the same way as the
+   * exception handler of the interpreter loop.
+   */
+  public static RuntimeException rethrow(JsFunction fn, Exception e, int pc) {
+    JsException jse;
+    if (e instanceof JsException) {
+      jse = (JsException) e;
+    } else {
+      e.printStackTrace();
+      jse = new JsException(e);
+    }
+    if (jse.pc == -1) {
+      jse.pc = pc;
+      jse.lineNumber = fn.getLineNumber(pc);
+    }
+    return jse;
+  }
+
+  public static RuntimeException stackError(JsFunction fn, int sp, int bp,
+      int actualParameterCount) {
+    return new RuntimeException("too much or too little on the stack; sp: "
+        + sp + " bp: " + bp + " varCount: " + fn.template.varCount + " parCount: "
+        + actualParameterCount);
+  }
+}
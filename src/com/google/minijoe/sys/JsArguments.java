@@ -50,7 +50,7 @@ public class JsArguments extends JsObject {
 
     if (old instanceof Integer){
       stack.setObject(keyIndex, 
-          function.localNames[((Integer) old).intValue()]);
+          function.template.localNames[((Integer) old).intValue()]);
       context.vmSetOperation(stack, keyIndex, valueIndex);
     } else {
       super.vmSetOperation(stack, keyIndex, valueIndex);
@@ -67,7 +67,7 @@ public class JsArguments extends JsObject {
 
     if (old instanceof Integer){
       stack.setObject(keyIndex, 
-          function.localNames[((Integer) old).intValue()]);
+          function.template.localNames[((Integer) old).intValue()]);
       context.vmGetOperation(stack, keyIndex, valueIndex);
     } else {
       super.vmGetOperation(stack, keyIndex, valueIndex);
@@ -15,6 +15,7 @@
 package com.google.minijoe.sys;
 
 import java.util.Enumeration;
+import java.util.Hashtable;
 import java.util.Vector;
 
 /**
@@ -23,11 +24,38 @@ import java.util.Vector;
  * This class has convenience methods to set and get primitive values and
  * Javascript objects. Types are converted accordingly.
  * 
+ * Depending on the contents, elements are stored in one of four kinds of
+ * storage: numbers only (a double array), objects only (an object array),
+ * mixed (both arrays, with a marker in the object array for numbers; this
+ * is what the interpreter stack uses) or sparse (a hashtable from index to
+ * value, for large indices with few elements). The kind changes
+ * automatically when a value or index does not fit the current kind.
+ * Frozen arrays, such as the ones shared by realms, throw a TypeError on
+ * any modification.
+ *
  * @author Stefan Haustein
  */
 public class JsArray extends JsObject {
 
   private static final int INITIAL_SPACE = 16;
+
+  /**
+   * Writing an index more than this beyond the allocated space switches
+   * the array to sparse storage.
+   */
+  private static final int MAX_GAP = 1024;
+
+  /** Storage kind: numbers only, in the numbers array. */
+  static final int KIND_DOUBLE = 0;
+
+  /** Storage kind: no numbers, objects array only. */
+  static final int KIND_OBJECT = 1;
+
+  /** Storage kind: both arrays; NUMBER_MARKER in objects for numbers. */
+  static final int KIND_MIXED = 2;
+
+  /** Storage kind: hashtable from Integer index to value. */
+  static final int KIND_SPARSE = 3;
   
   private static final int ID_JOIN = 405;
   private static final int ID_POP = 406;
@@ -39,41 +67,59 @@ public class JsArray extends JsObject {
   private static final int ID_UNSHIFT = 413;
 
   public static final JsObject PROTOTYPE = new JsObject(OBJECT_PROTOTYPE)
-      .addVar("length", new JsFunction(ID_LENGTH, -1))
-      .addVar("concat", new JsFunction(ID_CONCAT, 1))
-      .addVar("join", new JsFunction(ID_JOIN, 0))
-      .addVar("pop", new JsFunction(ID_POP, 0))
-      .addVar("push", new JsFunction(ID_PUSH, 1))
-      .addVar("reverse", new JsFunction(ID_REVERSE, 0))
-      .addVar("shift", new JsFunction(ID_SHIFT, 0))
-      .addVar("slice", new JsFunction(ID_SLICE, 2))
-      .addVar("sort", new JsFunction(ID_SORT, 1))
-      .addVar("splice", new JsFunction(ID_SPLICE, 2))
-      .addVar("unshift", new JsFunction(ID_UNSHIFT, 1))
+      .addVar("length", new JsFunction(new Native(ID_LENGTH), new Native(ID_LENGTH_SET)))
+      .addVar("concat", new JsFunction(new Native(ID_CONCAT), 1))
+      .addVar("join", new JsFunction(new Native(ID_JOIN), 0))
+      .addVar("pop", new JsFunction(new Native(ID_POP), 0))
+      .addVar("push", new JsFunction(new Native(ID_PUSH), 1))
+      .addVar("reverse", new JsFunction(new Native(ID_REVERSE), 0))
+      .addVar("shift", new JsFunction(new Native(ID_SHIFT), 0))
+      .addVar("slice", new JsFunction(new Native(ID_SLICE), 2))
+      .addVar("sort", new JsFunction(new Native(ID_SORT), 1))
+      .addVar("splice", new JsFunction(new Native(ID_SPLICE), 2))
+      .addVar("unshift", new JsFunction(new Native(ID_UNSHIFT), 1))
       ;
 
   /**
    * Marker object, used to indicate that the actual value is contained in
-   * the longs array.
+   * the numbers array.
    */
   private static final Object NUMBER_MARKER = new Object();
 
   /**
-   * Objects contained in this array.
+   * Storage kind, one of the KIND_XXX constants. New arrays start out
+   * empty with KIND_DOUBLE and no storage allocated.
    */
-  private Object[] objects = new Object[INITIAL_SPACE];
+  private int kind = KIND_DOUBLE;
 
   /**
-   * numeric values contained in this array, represented as 64 bit fixed point
-   * value (16 bit fraction).
+   * Objects contained in this array; null for KIND_DOUBLE and KIND_SPARSE.
    */
-  private double[] numbers = new double[INITIAL_SPACE];
+  private Object[] objects;
+
+  /**
+   * Numeric values contained in this array; null for KIND_OBJECT and
+   * KIND_SPARSE.
+   */
+  private double[] numbers;
+
+  /**
+   * Elements of a sparse array, boxed, indexed by Integer. Undefined
+   * elements are not stored.
+   */
+  private Hashtable sparse;
 
   /**
    * Active size of this array.
    */
   private int size;
 
+  /**
+   * Number of JIT compiled functions running on this array while it is the
+   * stack of an evaluation; see JitCompiler.MAX_DEPTH.
+   */
+  int jitDepth;
+
   /**
    * Creates a new empty array.
    */
@@ -91,10 +137,10 @@ public class JsArray extends JsObject {
     if (i >= size) {
       return false;
     }
-    Object o = objects[i];
+    Object o = kind == KIND_MIXED ? objects[i] : rawAt(i);
 
     if (o == NUMBER_MARKER) {
-      double d = numbers[i];
+      double d = numberAt(i);
       return d != 0 && !Double.isNaN(d);
     }
     if (o == Boolean.TRUE) {
@@ -120,8 +166,15 @@ public class JsArray extends JsObject {
     if (i >= size){
       return 0;
     }
-    Object o = objects[i];
-    return o == NUMBER_MARKER ? numbers[i] : JsSystem.toNumber(o);
+    if (kind == KIND_MIXED) {
+      Object o = objects[i];
+      return o == NUMBER_MARKER ? numbers[i] : JsSystem.toNumber(o);
+    }
+    if (kind == KIND_DOUBLE) {
+      return numbers[i];
+    }
+    Object o = rawAt(i);
+    return o == NUMBER_MARKER ? numberAt(i) : JsSystem.toNumber(o);
   }
 
   /** 
@@ -151,8 +204,18 @@ public class JsArray extends JsObject {
    */
   public final Object getObject(int i) {
     if(i >= size) return null;
-    Object o = objects[i];
-    return o == NUMBER_MARKER ? new Double(numbers[i]) : o;
+    if (kind == KIND_MIXED) {
+      Object o = objects[i];
+      return o == NUMBER_MARKER ? JsSystem.valueOf(numbers[i]) : o;
+    }
+    switch (kind) {
+      case KIND_DOUBLE:
+        return JsSystem.valueOf(numbers[i]);
+      case KIND_OBJECT:
+        return objects[i];
+      default:
+        return sparse.get(new Integer(i));
+    }
   }
 
   public String getString(int i){
@@ -173,74 +236,329 @@ public class JsArray extends JsObject {
    * Set the fix point value at array index i to v
    */
   public final void setNumber(int i, double v) {
-    if (i >= size) {
-      setObject(i, null);
+    checkWritable();
+    if (i < size) {
+      if (kind == KIND_MIXED) {
+        objects[i] = NUMBER_MARKER;
+        numbers[i] = v;
+        return;
+      }
+      if (kind == KIND_DOUBLE) {
+        numbers[i] = v;
+        return;
+      }
     }
-    objects[i] = NUMBER_MARKER;
-    numbers[i] = v;
+    store(i, NUMBER_MARKER, v);
   }
 
   /**
-   * Set the object at the given index. For Long objects, the LONG_MARKER is set
-   * in the object array and the longValue is stored in longs. In contrast to 
-   * Java arrays, the array grows automatically.
+   * Set the object at the given index. For Double objects, the NUMBER_MARKER
+   * is set in the object array and the value is stored in numbers. In
+   * contrast to Java arrays, the array grows automatically.
    */
   public final void setObject(int i, Object v) {
-    // System.out.println("size: "+size+" arr.len: "+objects.length+" i: "+i);
+    checkWritable();
+    if (v instanceof Double) {
+      setNumber(i, ((Double) v).doubleValue());
+    } else if (i < size && (kind == KIND_MIXED || kind == KIND_OBJECT)) {
+      objects[i] = v;
+    } else {
+      store(i, v, 0);
+    }
+  }
+
+  /**
+   * Stores a value at index i, changing the storage kind or growing the
+   * array as necessary. o is NUMBER_MARKER if the value is the number d.
+   */
+  private void store(int i, Object o, double d) {
+    boolean isNumber = o == NUMBER_MARKER;
+
+    if (kind != KIND_SPARSE && i >= capacity() + MAX_GAP) {
+      toSparse();
+    }
+    if (kind == KIND_SPARSE) {
+      storeSparse(i, isNumber ? JsSystem.valueOf(d) : o);
+      return;
+    }
+
+    // holes (i > size) are undefined, which a double array can't represent
+    if ((isNumber ? kind == KIND_OBJECT : kind == KIND_DOUBLE)
+        || (i > size && kind == KIND_DOUBLE)) {
+      if (size > 0) {
+        convert(KIND_MIXED);
+      } else if (!isNumber) {
+        convert(KIND_OBJECT);
+      } else {
+        convert(i == 0 ? KIND_DOUBLE : KIND_MIXED);
+      }
+    }
+
     if (i >= size) {
+      ensureCapacity(i + 1);
       size = i + 1;
-      if (i >= objects.length) {
-        double[] newNums = new double[i * 3 / 2];
-        System.arraycopy(numbers, 0, newNums, 0, numbers.length);
-        numbers = newNums;
-        Object[] newObjects = new Object[numbers.length];
-        System.arraycopy(objects, 0, newObjects, 0, objects.length);
-        objects = newObjects;
-      }
     }
-    if (v instanceof Double) {
-      numbers[i] = ((Double) v).doubleValue();
-      objects[i] = NUMBER_MARKER;
+    switch (kind) {
+      case KIND_DOUBLE:
+        numbers[i] = d;
+        break;
+      case KIND_OBJECT:
+        objects[i] = o;
+        break;
+      default:
+        objects[i] = o;
+        numbers[i] = d;
+    }
+  }
+
+  private void storeSparse(int i, Object v) {
+    Integer key = new Integer(i);
+    if (v == null) {
+      sparse.remove(key);
     } else {
-      objects[i] = v;
+      sparse.put(key, v);
+    }
+    if (i >= size) {
+      size = i + 1;
+    }
+    if (v != null && sparse.size() > MAX_GAP && sparse.size() * 2 > size) {
+      densify();
+    }
+  }
+
+  /**
+   * Returns the number of elements that fit into the allocated storage.
+   */
+  private int capacity() {
+    switch (kind) {
+      case KIND_OBJECT:
+        return objects == null ? 0 : objects.length;
+      case KIND_SPARSE:
+        return 0;
+      default:
+        return numbers == null ? 0 : numbers.length;
+    }
+  }
+
+  /**
+   * Makes sure the storage can hold at least n elements. Not applicable to
+   * sparse arrays.
+   */
+  private void ensureCapacity(int n) {
+    int capacity = capacity();
+    if (n <= capacity) {
+      return;
+    }
+    int newCapacity = Math.max(INITIAL_SPACE, n * 3 / 2);
+    if (kind != KIND_OBJECT) {
+      double[] newNums = new double[newCapacity];
+      if (numbers != null) {
+        System.arraycopy(numbers, 0, newNums, 0, size);
+      }
+      numbers = newNums;
+    }
+    if (kind != KIND_DOUBLE) {
+      Object[] newObjects = new Object[newCapacity];
+      if (objects != null) {
+        System.arraycopy(objects, 0, newObjects, 0, size);
+      }
+      objects = newObjects;
+    }
+  }
+
+  /**
+   * Changes the storage kind of a dense array. Empty arrays may change to
+   * any dense kind; otherwise, only the transition to KIND_MIXED is
+   * supported.
+   */
+  private void convert(int newKind) {
+    if (size == 0) {
+      numbers = null;
+      objects = null;
+      sparse = null;
+    } else if (kind == KIND_DOUBLE) {
+      objects = new Object[numbers.length];
+      for (int i = 0; i < size; i++) {
+        objects[i] = NUMBER_MARKER;
+      }
+    } else if (kind == KIND_OBJECT) {
+      numbers = new double[objects.length];
+    }
+    kind = newKind;
+  }
+
+  /**
+   * Moves all elements to a hashtable.
+   */
+  private void toSparse() {
+    Hashtable table = new Hashtable();
+    for (int i = 0; i < size; i++) {
+      Object v = getObject(i);
+      if (v != null) {
+        table.put(new Integer(i), v);
+      }
+    }
+    sparse = table;
+    objects = null;
+    numbers = null;
+    kind = KIND_SPARSE;
+  }
+
+  /**
+   * Moves the elements of a sparse array back to dense storage, using the
+   * most compact kind that can hold them.
+   */
+  private void densify() {
+    boolean numbersOnly = sparse.size() == size;
+    boolean objectsOnly = true;
+    for (Enumeration e = sparse.elements(); e.hasMoreElements();) {
+      if (e.nextElement() instanceof Double) {
+        objectsOnly = false;
+      } else {
+        numbersOnly = false;
+      }
+    }
+
+    Hashtable table = sparse;
+    sparse = null;
+    kind = numbersOnly ? KIND_DOUBLE : objectsOnly ? KIND_OBJECT : KIND_MIXED;
+    ensureCapacity(size);
+
+    for (Enumeration e = table.keys(); e.hasMoreElements();) {
+      Integer key = (Integer) e.nextElement();
+      int i = key.intValue();
+      Object v = table.get(key);
+      if (v instanceof Double) {
+        if (kind == KIND_MIXED) {
+          objects[i] = NUMBER_MARKER;
+        }
+        numbers[i] = ((Double) v).doubleValue();
+      } else {
+        objects[i] = v;
+      }
+    }
+  }
+
+  /**
+   * Returns the value at index i, which must be smaller than size, with
+   * NUMBER_MARKER in place of numbers.
+   */
+  private Object rawAt(int i) {
+    switch (kind) {
+      case KIND_DOUBLE:
+        return NUMBER_MARKER;
+      case KIND_SPARSE:
+        Object o = sparse.get(new Integer(i));
+        return o instanceof Double ? NUMBER_MARKER : o;
+      default:
+        return objects[i];
     }
   }
 
+  /**
+   * Returns the number at index i, where rawAt(i) is NUMBER_MARKER.
+   */
+  private double numberAt(int i) {
+    return kind == KIND_SPARSE
+        ? ((Double) sparse.get(new Integer(i))).doubleValue() : numbers[i];
+  }
+
+  /**
+   * Returns the string value at index i like getString(), but without
+   * flattening ropes. Used for concatenation.
+   */
+  final Object getStringValue(int i) {
+    Object o = getRawObject(i);
+    return o instanceof String || o instanceof JsRope ? o : getString(i);
+  }
+
   /**
    * Swap the values at indices i1 and i2. i1 and i2 both must be smaller than
    * size.
    */
   public void swap(int i1, int i2) {
-    double f = numbers[i1];
-    Object o = objects[i1];
-    numbers[i1] = numbers[i2];
-    objects[i1] = objects[i2];
-    numbers[i2] = f;
-    objects[i2] = o;
+    checkWritable();
+    if (kind == KIND_SPARSE) {
+      Object o = getObject(i1);
+      setObject(i1, getObject(i2));
+      setObject(i2, o);
+      return;
+    }
+    if (numbers != null) {
+      double f = numbers[i1];
+      numbers[i1] = numbers[i2];
+      numbers[i2] = f;
+    }
+    if (objects != null) {
+      Object o = objects[i1];
+      objects[i1] = objects[i2];
+      objects[i2] = o;
+    }
   }
 
   /**
-   * Copy len values from index from to index to. The ranges may overlap, but
-   * Max(from, to)+len must be smaller than size.
+   * Copy len values from index from to index to. The ranges may overlap.
+   * Elements beyond the size of this array are copied as undefined; the
+   * target array grows as necessary.
    * 
    * @param from source index
    * @param to target index
    * @param len number of elements to copy
    */
   public void copy(int from, JsArray target, int to, int len) {
-    if (target.size < to + len) {
-      target.setObject(to + len - 1, null);
+    target.checkWritable();
+    if (len <= 0) {
+      return;
+    }
+    // an empty target takes over the storage kind, unless mixed: for
+    // copies from the stack, the values determine the most compact kind
+    if (target.size == 0 && to == 0 && (kind == KIND_DOUBLE || kind == KIND_OBJECT)
+        && target.kind != kind) {
+      target.convert(kind);
     }
     
-    int maxIdx = Math.min(size, from + len);
-    int l = Math.max(0, maxIdx - from);
+    int l = Math.max(0, Math.min(size, from + len) - from);
     
-    System.arraycopy(numbers, from, target.numbers, to, l);
-    System.arraycopy(objects, from, target.objects, to, l);
+    if (l > 0 && kind == target.kind && kind != KIND_SPARSE
+        && to <= target.size) {
+      target.ensureCapacity(to + l);
+      if (numbers != null) {
+        System.arraycopy(numbers, from, target.numbers, to, l);
+      }
+      if (objects != null) {
+        System.arraycopy(objects, from, target.objects, to, l);
+      }
+      if (target.size < to + l) {
+        target.size = to + l;
+      }
+    } else if (kind == KIND_SPARSE && target != this) {
+      int end = Math.min(target.size, to + l);
+      for (int i = to; i < end; i++) {
+        target.setObject(i, null);
+      }
+      for (Enumeration e = sparse.keys(); e.hasMoreElements();) {
+        int i = ((Integer) e.nextElement()).intValue();
+        if (i >= from && i < from + l) {
+          target.setObject(to + i - from, sparse.get(new Integer(i)));
+        }
+      }
+    } else if (target == this && to > from) {
+      for (int i = l - 1; i >= 0; i--) {
+        copy(from + i, target, to + i);
+      }
+    } else {
+      for (int i = 0; i < l; i++) {
+        copy(from + i, target, to + i);
+      }
+    }
     
-    for(int i = to + l; i < maxIdx; i++){
+    int end = Math.min(target.size, to + len);
+    for (int i = to + l; i < end; i++) {
       target.setObject(i, null);
     }
+    if (target.size < to + len) {
+      target.setSize(to + len);
+    }
   }
 
   /**
@@ -248,15 +566,52 @@ public class JsArray extends JsObject {
    * "target". 
    */
   public void copy(int from, JsArray target, int to) {
-    if (from >= size) {
+    target.checkWritable();
+    if (kind == KIND_MIXED && target.kind == KIND_MIXED
+        && from < size && to < target.size) {
+      target.numbers[to] = numbers[from];
+      target.objects[to] = objects[from];
+    } else if (from >= size) {
       target.setObject(to, null);
+    } else {
+      Object o = rawAt(from);
+      if (o == NUMBER_MARKER) {
+        target.setNumber(to, numberAt(from));
+      } else {
+        target.setObject(to, o);
+      }
+    }
+  }
+
+  /**
+   * Moves the elements from index "from" to the end of the array to index
+   * "to", growing or shrinking the array accordingly. Used to open or close
+   * gaps for shift, unshift and splice.
+   */
+  private void moveElements(int from, int to) {
+    checkWritable();
+    if (from == to) {
       return;
     }    
-    if (to >= target.size) {
-      target.setObject(to, null);
+    int newSize = size + to - from;
+    if (kind == KIND_SPARSE) {
+      Hashtable table = new Hashtable();
+      int keep = Math.min(from, to);
+      for (Enumeration e = sparse.keys(); e.hasMoreElements();) {
+        Integer key = (Integer) e.nextElement();
+        int i = key.intValue();
+        if (i < keep) {
+          table.put(key, sparse.get(key));
+        } else if (i >= from) {
+          table.put(new Integer(i + to - from), sparse.get(key));
+        }
+      }
+      sparse = table;
+      size = newSize;
+    } else {
+      copy(from, this, to, size - from);
+      setSize(newSize);
     }
-    target.numbers[to] = numbers[from];
-    target.objects[to] = objects[from];
   }
 
   /** 
@@ -278,6 +633,63 @@ public class JsArray extends JsObject {
     return buf.toString();
   }
 
+  /**
+   * Returns the object stored at index i without boxing numbers. Used by
+   * the inline caches of the interpreter to inspect keys and receivers.
+   */
+  final Object getRawObject(int i) {
+    if (i >= size) {
+      return null;
+    }
+    return kind == KIND_MIXED ? objects[i] : rawAt(i);
+  }
+
+  /**
+   * Returns true if the values at indices i and i + 1 are both unboxed
+   * numbers. Used by the interpreter to take the typed fast path for
+   * arithmetic and comparison operators.
+   */
+  final boolean isNumberPair(int i) {
+    if (i + 1 >= size) {
+      return false;
+    }
+    return kind == KIND_MIXED
+        ? objects[i] == NUMBER_MARKER && objects[i + 1] == NUMBER_MARKER
+        : kind == KIND_DOUBLE;
+  }
+
+  /**
+   * Returns true if the value at index i is an unboxed number.
+   */
+  final boolean isUnboxedNumber(int i) {
+    if (i >= size) {
+      return false;
+    }
+    return kind == KIND_MIXED ? objects[i] == NUMBER_MARKER
+        : kind == KIND_DOUBLE;
+  }
+
+  /**
+   * Returns the number at index i without any conversion. Only valid if
+   * isUnboxedNumber(i) is true.
+   */
+  final double getUnboxedNumber(int i) {
+    return numbers[i];
+  }
+
+  /**
+   * Sets the number at index i, which must be smaller than size.
+   */
+  final void setUnboxedNumber(int i, double v) {
+    checkWritable();
+    if (kind == KIND_MIXED) {
+      objects[i] = NUMBER_MARKER;
+      numbers[i] = v;
+    } else {
+      setNumber(i, v);
+    }
+  }
+
   /**
    * Determines whether the value can be converted to a number in a
    * meaningful way (used to decide whether the plus operator operates
@@ -287,7 +699,7 @@ public class JsArray extends JsObject {
     if (i >= size) {
       return true;
     }
-    Object o = objects[i];
+    Object o = kind == KIND_MIXED ? objects[i] : rawAt(i);
     return o == NUMBER_MARKER || o == Boolean.TRUE || o == Boolean.FALSE || 
       (o instanceof JsDate);
   }
@@ -299,13 +711,13 @@ public class JsArray extends JsObject {
     if (i >= size) {
       return false;
     }
-    Object o = objects[i];
+    Object o = kind == KIND_MIXED ? objects[i] : rawAt(i);
     if(o == NUMBER_MARKER) {
-      double d = numbers[i];
+      double d = numberAt(i);
       return d >= 0 && (d == (int) d);
     }
-    if(o instanceof String) {
-      String s = (String) o;
+    if(o instanceof String || o instanceof JsRope) {
+      String s = o.toString();
       if(s.length() == 0) return false;
       for(int j = 0; j < s.length(); j++){
         char c = s.charAt(j);
@@ -339,9 +751,21 @@ public class JsArray extends JsObject {
       v.addElement(e.nextElement());
     }
 
-    for(int i = 0; i < size; i++){
-      if(objects[i] != null) {
-        v.addElement(new Double(i));
+    if (kind == KIND_SPARSE) {
+      int[] indices = new int[sparse.size()];
+      int count = 0;
+      for (Enumeration e = sparse.keys(); e.hasMoreElements();) {
+        indices[count++] = ((Integer) e.nextElement()).intValue();
+      }
+      java.util.Arrays.sort(indices);
+      for (int i = 0; i < count; i++) {
+        v.addElement(JsSystem.valueOf(indices[i]));
+      }
+    } else {
+      for(int i = 0; i < size; i++){
+        if(rawAt(i) != null) {
+          v.addElement(JsSystem.valueOf(i));
+        }
       }
     }
     
@@ -368,20 +792,59 @@ public class JsArray extends JsObject {
    * @return true if the array content at the given index is null or undefined
    */
   public boolean isNull(int i) {
-    return i >= size || objects[i] == null || objects [i] == JsSystem.JS_NULL;
+    if (i >= size) {
+      return true;
+    }
+    Object o = kind == KIND_MIXED ? objects[i] : rawAt(i);
+    return o == null || o == JsSystem.JS_NULL;
+  }
+
+  /**
+   * Native method of arrays, bound to its JsFunction at registration.
+   */
+  static final class Native extends NativeMethod {
+    private final int id;
+
+    Native(int id) {
+      this.id = id;
+    }
+
+    public void invoke(JsObject thisPtr, JsArray stack, int sp, int parCount) {
+      if (!(thisPtr instanceof JsArray)
+          || !((JsArray) thisPtr).evalArrayNative(id, stack, sp, parCount)) {
+        // other receivers and ids keep the behavior of the id based dispatch
+        thisPtr.evalNative(id, stack, sp, parCount);
+      }
+    }
+  }
+
+  /**
+   * Dispatches the ids of natives not bound to a NativeMethod.
+   */
+  public void evalNative(int index, JsArray stack, int sp, int parCount) {
+    if (!evalArrayNative(index, stack, sp, parCount)) {
+      super.evalNative(index, stack, sp, parCount);
+    }
   }
 
   /**
    * Java implementations of JS array members and methods.
    */
-  public void evalNative(int index, JsArray stack, 
-      int sp, int parCount) {
+  final boolean evalArrayNative(int index, JsArray stack, int sp, int parCount) {
     switch (index) {
       
       case ID_CONCAT:
         JsArray array = new JsArray();
         copy(0, array, 0, size);
-        stack.copy(sp+2, array, size, parCount);
+        for (int i = 0; i < parCount; i++) {
+          Object o = stack.getObject(sp + 2 + i);
+          if (o instanceof JsArray) {
+            JsArray a = (JsArray) o;
+            a.copy(0, array, array.size, a.size);
+          } else {
+            stack.copy(sp + 2 + i, array, array.size);
+          }
+        }
         stack.setObject(sp, array);
         break;
       
@@ -433,8 +896,7 @@ public class JsArray extends JsObject {
         }
         else {
           copy(0, stack, sp);
-          copy(1, this, 0, size-1);
-          setSize(size - 1);
+          moveElements(1, 0);
         }
         break;
         
@@ -445,7 +907,7 @@ public class JsArray extends JsObject {
           start = Math.max(size + start, 0);
         }
         if(end < 0) {
-          end = Math.max(size + start, 0);
+          end = Math.max(size + end, 0);
         }
         if(start > size){
           start = size;
@@ -473,28 +935,32 @@ public class JsArray extends JsObject {
         break;
         
       case ID_SPLICE:
-        array = new JsArray();
         start = stack.getInt(sp + 2);
-        int delCount = stack.getInt(sp + 3);
         if(start < 0){
-          start = size - start;
+          start = Math.max(size + start, 0);
+        } else if (start > size) {
+          start = size;
         }
+        int delCount = parCount < 2 ? size - start
+            : Math.min(Math.max(stack.getInt(sp + 3), 0), size - start);
         int itemCount = Math.max(0, parCount - 2);
-        copy(0, array, 0, start);
-        stack.copy(sp + 4, array, start, itemCount);
-        copy(start + delCount, array, start + itemCount, size - (start + delCount));
+        array = new JsArray();
+        copy(start, array, 0, delCount);
+        moveElements(start + delCount, start + itemCount);
+        stack.copy(sp + 4, this, start, itemCount);
         stack.setObject(sp, array);
         break;
         
       case ID_UNSHIFT:
-        copy(0, this, parCount, size);
+        moveElements(0, parCount);
         stack.copy(sp + 2, this, 0, parCount);
-        stack.setInt(sp, parCount);
+        stack.setInt(sp, size);
         break;
         
       default:
-        super.evalNative(index, stack, sp, parCount);
+        return false;
     }
+    return true;
   }
 
   /**
@@ -506,7 +972,7 @@ public class JsArray extends JsObject {
   private void sort(int left, int right) {
 
     if(right > left + 1){
-       int pivotIndex = left + JsSystem.random.nextInt(right-left);
+       int pivotIndex = left + JsSystem.getRandom().nextInt(right-left);
        String pivotValue = getString(pivotIndex);
        swap(pivotIndex, right-1);
        int storeIndex = left;
@@ -534,7 +1000,7 @@ public class JsArray extends JsObject {
       JsArray stack, int sp) {
 
     if(right > left + 1){
-       int pivotIndex = left + JsSystem.random.nextInt(right-left);
+       int pivotIndex = left + JsSystem.getRandom().nextInt(right-left);
        swap(pivotIndex, right-1);
        int storeIndex = left;
        
@@ -557,14 +1023,48 @@ public class JsArray extends JsObject {
   }
   
   /**
-   * Sets the size of the array to the given new size.
+   * Sets the size of the array to the given new size. New elements are
+   * undefined.
    * 
    * @param newLen the new array size
    */
   public void setSize(int newLen) {
-    if (objects.length < newLen) {
-      setObject(newLen - 1, null);
-    } else {
+    checkWritable();
+    if (newLen < size) {
+      if (kind == KIND_SPARSE) {
+        Vector removed = new Vector();
+        for (Enumeration e = sparse.keys(); e.hasMoreElements();) {
+          Integer key = (Integer) e.nextElement();
+          if (key.intValue() >= newLen) {
+            removed.addElement(key);
+          }
+        }
+        for (int i = 0; i < removed.size(); i++) {
+          sparse.remove(removed.elementAt(i));
+        }
+        size = newLen;
+        if (size <= MAX_GAP) {
+          densify();
+        }
+        return;
+      }
+      // clear references, so truncated elements don't reappear on growth
+      if (objects != null) {
+        for (int i = newLen; i < size; i++) {
+          objects[i] = null;
+        }
+      }
+      size = newLen;
+    } else if (newLen > size) {
+      if (kind != KIND_SPARSE && newLen > capacity() + MAX_GAP) {
+        toSparse();
+      }
+      if (kind == KIND_DOUBLE) {
+        convert(size == 0 ? KIND_OBJECT : KIND_MIXED);
+      }
+      if (kind != KIND_SPARSE) {
+        ensureCapacity(newLen);
+      }
       size = newLen;
     }
   }
@@ -587,8 +1087,8 @@ public class JsArray extends JsObject {
    * @return type 
    */
   public int getType(int i) {
-    if (i > size) return TYPE_UNDEFINED;
-    Object o = objects[i];
+    if (i >= size) return TYPE_UNDEFINED;
+    Object o = rawAt(i);
     if (o == NUMBER_MARKER) {
       return TYPE_NUMBER;
     }
@@ -601,7 +1101,7 @@ public class JsArray extends JsObject {
     if (o == JsSystem.JS_NULL) {
       return TYPE_NULL;
     }
-    if (o instanceof String) {
+    if (o instanceof String || o instanceof JsRope) {
       return TYPE_STRING;
     }
     if (o instanceof JsFunction) {
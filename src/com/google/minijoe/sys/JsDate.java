@@ -69,45 +69,46 @@ public class JsDate extends JsObject {
    * Prototype for JS Date instances.
    */
   public static final JsObject DATE_PROTOTYPE = new JsDate(OBJECT_PROTOTYPE)
-      .addVar("toDateString", new JsFunction(ID_TO_DATE_STRING, 0))
-      .addVar("toTimeString", new JsFunction(ID_TO_TIME_STRING, 0))
-      .addVar("toLocaleDateString", new JsFunction(ID_TO_LOCALE_DATE_STRING, 0))
-      .addVar("toLocaleTimeString", new JsFunction(ID_TO_LOCALE_TIME_STRING, 0))
-      .addVar("getTime", new JsFunction(ID_GET_TIME, 0))
-      .addVar("getFullYear", new JsFunction(ID_GET_FULL_YEAR, 0))
-      .addVar("getUTCFullYear", new JsFunction(ID_GET_UTC_FULL_YEAR, 0))
-      .addVar("getMonth", new JsFunction(ID_GET_MONTH, 0))
-      .addVar("getUTCMonth", new JsFunction(ID_GET_UTC_MONTH, 0))
-      .addVar("getDate", new JsFunction(ID_GET_DATE, 0))
-      .addVar("getUTCDate", new JsFunction(ID_GET_UTC_DATE, 0))
-      .addVar("getDay", new JsFunction(ID_GET_DAY, 0))
-      .addVar("getUTCDay", new JsFunction(ID_GET_UTC_DAY, 0))
-      .addVar("getHours", new JsFunction(ID_GET_HOURS, 0))
-      .addVar("getUTCHours", new JsFunction(ID_GET_UTC_HOURS, 0))
-      .addVar("getMinutes", new JsFunction(ID_GET_MINUTES, 0))
-      .addVar("getUTCMinutes", new JsFunction(ID_GET_UTC_MINUTES, 0))
-      .addVar("getSeconds", new JsFunction(ID_GET_SECONDS, 0))
-      .addVar("getUTCSeconds", new JsFunction(ID_GET_UTC_SECONDS, 0))
-      .addVar("getMilliseconds", new JsFunction(ID_GET_MILLISECONDS, 0))
-      .addVar("getUTCMilliseconds", new JsFunction(ID_GET_UTC_MILLISECONDS, 0))
-      .addVar("getTimezoneOffset", new JsFunction(ID_GET_TIMEZONE_OFFSET, 0))
-      .addVar("setTime", new JsFunction(ID_SET_TIME, 1))
-      .addVar("setMilliseconds", new JsFunction(ID_SET_MILLISECONDS, 1))
-      .addVar("setUTCMilliseconds", new JsFunction(ID_SET_UTC_MILLISECONDS, 1))
-      .addVar("setSeconds", new JsFunction(ID_SET_SECONDS, 2))
-      .addVar("setUTCSeconds", new JsFunction(ID_SET_UTC_SECONDS, 2))
-      .addVar("setMinutes", new JsFunction(ID_SET_MINUTES, 3))
-      .addVar("setUTCMinutes", new JsFunction(ID_SET_UTC_MINUTES, 3))
-      .addVar("setHours", new JsFunction(ID_SET_HOURS, 1))
-      .addVar("setUTCHours", new JsFunction(ID_SET_UTC_HOURS, 1))
-      .addVar("setDate", new JsFunction(ID_SET_DATE, 1))
-      .addVar("setUTCDate", new JsFunction(ID_SET_UTC_DATE, 1))
-      .addVar("setMonth", new JsFunction(ID_SET_MONTH, 1))
-      .addVar("setUTCMonth", new JsFunction(ID_SET_UTC_MONTH, 1))
-      .addVar("setFullYear", new JsFunction(ID_SET_FULL_YEAR, 1))
-      .addVar("setUTCFullYear", new JsFunction(ID_SET_UTC_FULL_YEAR, 1))
-      .addVar("toUTCString", new JsFunction(ID_TO_UTC_STRING, 0))
-      .addVar("toGMTString", new JsFunction(ID_TO_GMT_STRING, 0));
+      .addVar("toDateString", new JsFunction(new Native(ID_TO_DATE_STRING), 0))
+      .addVar("toTimeString", new JsFunction(new Native(ID_TO_TIME_STRING), 0))
+      .addVar("toLocaleDateString", new JsFunction(new Native(ID_TO_LOCALE_DATE_STRING), 0))
+      .addVar("toLocaleTimeString", new JsFunction(new Native(ID_TO_LOCALE_TIME_STRING), 0))
+      .addVar("valueOf", new JsFunction(new Native(ID_VALUE_OF), 0))
+      .addVar("getTime", new JsFunction(new Native(ID_GET_TIME), 0))
+      .addVar("getFullYear", new JsFunction(new Native(ID_GET_FULL_YEAR), 0))
+      .addVar("getUTCFullYear", new JsFunction(new Native(ID_GET_UTC_FULL_YEAR), 0))
+      .addVar("getMonth", new JsFunction(new Native(ID_GET_MONTH), 0))
+      .addVar("getUTCMonth", new JsFunction(new Native(ID_GET_UTC_MONTH), 0))
+      .addVar("getDate", new JsFunction(new Native(ID_GET_DATE), 0))
+      .addVar("getUTCDate", new JsFunction(new Native(ID_GET_UTC_DATE), 0))
+      .addVar("getDay", new JsFunction(new Native(ID_GET_DAY), 0))
+      .addVar("getUTCDay", new JsFunction(new Native(ID_GET_UTC_DAY), 0))
+      .addVar("getHours", new JsFunction(new Native(ID_GET_HOURS), 0))
+      .addVar("getUTCHours", new JsFunction(new Native(ID_GET_UTC_HOURS), 0))
+      .addVar("getMinutes", new JsFunction(new Native(ID_GET_MINUTES), 0))
+      .addVar("getUTCMinutes", new JsFunction(new Native(ID_GET_UTC_MINUTES), 0))
+      .addVar("getSeconds", new JsFunction(new Native(ID_GET_SECONDS), 0))
+      .addVar("getUTCSeconds", new JsFunction(new Native(ID_GET_UTC_SECONDS), 0))
+      .addVar("getMilliseconds", new JsFunction(new Native(ID_GET_MILLISECONDS), 0))
+      .addVar("getUTCMilliseconds", new JsFunction(new Native(ID_GET_UTC_MILLISECONDS), 0))
+      .addVar("getTimezoneOffset", new JsFunction(new Native(ID_GET_TIMEZONE_OFFSET), 0))
+      .addVar("setTime", new JsFunction(new Native(ID_SET_TIME), 1))
+      .addVar("setMilliseconds", new JsFunction(new Native(ID_SET_MILLISECONDS), 1))
+      .addVar("setUTCMilliseconds", new JsFunction(new Native(ID_SET_UTC_MILLISECONDS), 1))
+      .addVar("setSeconds", new JsFunction(new Native(ID_SET_SECONDS), 2))
+      .addVar("setUTCSeconds", new JsFunction(new Native(ID_SET_UTC_SECONDS), 2))
+      .addVar("setMinutes", new JsFunction(new Native(ID_SET_MINUTES), 3))
+      .addVar("setUTCMinutes", new JsFunction(new Native(ID_SET_UTC_MINUTES), 3))
+      .addVar("setHours", new JsFunction(new Native(ID_SET_HOURS), 1))
+      .addVar("setUTCHours", new JsFunction(new Native(ID_SET_UTC_HOURS), 1))
+      .addVar("setDate", new JsFunction(new Native(ID_SET_DATE), 1))
+      .addVar("setUTCDate", new JsFunction(new Native(ID_SET_UTC_DATE), 1))
+      .addVar("setMonth", new JsFunction(new Native(ID_SET_MONTH), 1))
+      .addVar("setUTCMonth", new JsFunction(new Native(ID_SET_UTC_MONTH), 1))
+      .addVar("setFullYear", new JsFunction(new Native(ID_SET_FULL_YEAR), 1))
+      .addVar("setUTCFullYear", new JsFunction(new Native(ID_SET_UTC_FULL_YEAR), 1))
+      .addVar("toUTCString", new JsFunction(new Native(ID_TO_UTC_STRING), 0))
+      .addVar("toGMTString", new JsFunction(new Native(ID_TO_GMT_STRING), 0));
 
   Calendar time = Calendar.getInstance();
 
@@ -119,9 +120,37 @@ public class JsDate extends JsObject {
   }
 
   /**
-   * Java implementation of JS date members.
+   * Native method of dates, bound to its JsFunction at registration.
+   */
+  static final class Native extends NativeMethod {
+    private final int id;
+
+    Native(int id) {
+      this.id = id;
+    }
+
+    public void invoke(JsObject thisPtr, JsArray stack, int sp, int parCount) {
+      if (!(thisPtr instanceof JsDate)
+          || !((JsDate) thisPtr).evalDateNative(id, stack, sp, parCount)) {
+        // other receivers and ids keep the behavior of the id based dispatch
+        thisPtr.evalNative(id, stack, sp, parCount);
+      }
+    }
+  }
+
+  /**
+   * Dispatches the ids of natives not bound to a NativeMethod.
    */
   public void evalNative(int index, JsArray stack, int sp, int parCount) {
+    if (!evalDateNative(index, stack, sp, parCount)) {
+      super.evalNative(index, stack, sp, parCount);
+    }
+  }
+
+  /**
+   * Java implementation of JS date members.
+   */
+  final boolean evalDateNative(int index, JsArray stack, int sp, int parCount) {
     switch (index) {
 
       // static members
@@ -348,8 +377,9 @@ public class JsDate extends JsObject {
         break;
 
       default:
-        super.evalNative(index, stack, sp, parCount);
+        return false;
     }
+    return true;
   }
 
   int get(boolean utc, int field) {
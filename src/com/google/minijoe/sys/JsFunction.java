@@ -14,8 +14,13 @@
 package com.google.minijoe.sys;
 
 import java.io.DataInputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Enumeration;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * Javascript function and bytecode interpreter implementation.
@@ -80,6 +85,18 @@ public class JsFunction extends JsObject {
   public static final int OP_TYPEOF = 0x32;
   public static final int OP_PUSH_GLOBAL = 0x33;
 
+  // superinstructions, generated by the peephole optimizer of the compiler
+  public static final int XOP_UNLESS_GT = 0xD2 >>> 1; // jump if a > b
+  public static final int XOP_UNLESS_LT = 0xD4 >>> 1; // jump if a < b
+  public static final int XOP_IF_GT = 0xD6 >>> 1;  // jump unless a > b
+  public static final int XOP_IF_LT = 0xD8 >>> 1;  // jump unless a < b
+  public static final int XOP_UNLESS = 0xDA >>> 1; // jump if stacktop is true
+  public static final int XOP_LCL_DEC = 0xDC >>> 1;
+  public static final int XOP_LCL_INC = 0xDE >>> 1;
+  public static final int XOP_LCL_STORE = 0xE0 >>> 1; // set local and drop
+  public static final int XOP_GET_PROP = 0xE2 >>> 1; // get constant property
+  public static final int XOP_GET_VAR = 0xE4 >>> 1;  // get constant variable
+
   public static final int XOP_TRY_CALL = 0xE6 >>> 1;
   public static final int XOP_ADD = 0xE8 >>> 1;  // add immediate to stacktop
   public static final int XOP_PUSH_FN = 0xEA >>> 1;
@@ -87,18 +104,57 @@ public class JsFunction extends JsObject {
   public static final int XOP_GO = 0xEE >>> 1;
   public static final int XOP_IF = 0xF0 >>> 1;
   public static final int XOP_CALL = 0xF2 >>> 1;
-//                           unused: 0x0F4
+  public static final int XOP_PUSH_REGEX = 0xF4 >>> 1;
   public static final int XOP_LCL_GET = 0xF6 >>> 1;
   public static final int XOP_LCL_SET = 0xF8 >>> 1;
   public static final int XOP_NEXT = 0xFA >>> 1;
   public static final int XOP_PUSH_INT = 0xFC >>> 1;
   public static final int XOP_PUSH_STR = 0xFE >>> 1;
 
+  /**
+   * Register instructions, only present in code of bytecode format 1. The
+   * registers are the local variable slots of functions with fast locals,
+   * addressed by unsigned byte operands; the destination REGISTER_PUSH
+   * pushes the result on the stack instead. Binary instructions have the
+   * operands destination, source and source or signed byte immediate, and
+   * apply REGISTER_OPERATORS[opcode & 0x0f]. Branches have a source, a
+   * source or immediate and a 16 bit offset relative to the end of the
+   * instruction; they evaluate REGISTER_CONDITIONS[(opcode - ROP_BRANCH) >> 2] and
+   * jump if the result is false, or true for the "unless" variants.
+   */
+  public static final int ROP_BINARY = 0x40;      // d, a, b
+  public static final int ROP_BINARY_IMM = 0x50;  // d, a, imm8
+  public static final int ROP_MOVE = 0x60;        // d, a
+  public static final int ROP_LOAD_INT = 0x61;    // d, imm16
+  public static final int ROP_BRANCH = 0x68;      // a, b, offset16
+  public static final int ROP_BRANCH_UNLESS = 0x02;
+  public static final int ROP_BRANCH_IMM = 0x01;  // a, imm8, offset16
+  public static final int ROP_LAST = 0x77;
+
+  public static final int REGISTER_PUSH = 0xff;
+
+  public static final int[] REGISTER_OPERATORS = {
+    OP_ADD, OP_SUB, OP_MUL, OP_DIV, OP_MOD, OP_AND, OP_OR, OP_XOR, OP_SHL,
+    OP_SHR, OP_ASR, OP_LT, OP_GT, OP_EQEQ, OP_EQEQEQ
+  };
+
+  public static final int[] REGISTER_CONDITIONS = {
+    OP_LT, OP_GT, OP_EQEQ, OP_EQEQEQ
+  };
+
+  /** Version byte of the file header for stack only bytecode. */
+  public static final int FORMAT_STACK = 0;
+
+  /** Version byte of the file header for bytecode with register instructions. */
+  public static final int FORMAT_REGISTER = 1;
+
   public static final int BLOCK_COMMENT = 0x00;
   public static final int BLOCK_GLOBAL_STRING_TABLE = 0x10;
   public static final int BLOCK_NUMBER_LITERALS = 0x20;
   public static final int BLOCK_STRING_LITERALS = 0x30;
+  public static final int BLOCK_REGEX_LITERALS = 0x40;
   public static final int BLOCK_FUNCTION_LITERALS = 0x50;
+  public static final int BLOCK_INDEXED_FUNCTION_LITERALS = 0x51;
   public static final int BLOCK_LOCAL_VARIABLE_NAMES = 0x60;
   public static final int BLOCK_BYTE_CODE = 0x80;
   public static final int BLOCK_LINE_NUMBERS = 0xe0;
@@ -106,48 +162,58 @@ public class JsFunction extends JsObject {
 
   static final int END_MARKER = 0x0ff;
 
+  /** Stack pointer value marking that OP_RET has stored the result. */
+  private static final int RETURNED = -1;
+
+  /**
+   * Whether nested function literals of programs loaded from a buffer are
+   * decoded on first use; set the system property "minijoe.lazy" to false
+   * to decode everything up front.
+   */
+  static final boolean LAZY_LITERALS =
+      !"false".equals(System.getProperty("minijoe.lazy"));
+
   static final int ID_PROTOTYPE = 100;
   static final int ID_PROTOTYPE_SET = 101;
   static final int ID_APPLY = 102;
 
   public static final JsObject FUNCTION_PROTOTYPE =
     new JsObject(OBJECT_PROTOTYPE)
-        .addVar("prototype", new JsFunction(ID_PROTOTYPE, -1))
-        .addVar("length", new JsFunction(ID_LENGTH, -1))
-        .addVar("apply", new JsFunction(ID_APPLY, 1))
+        .addVar("prototype", new JsFunction(new Native(ID_PROTOTYPE), null))
+        .addVar("length", new JsFunction(new Native(ID_LENGTH), null))
+        .addVar("apply", new JsFunction(new Native(ID_APPLY), 1))
         ;
 
-  /** Number of declared parameters; -1 for native getter/setter */
+  /**
+   * Number of declared parameters of a native; -1 for native getter/setter.
+   * Functions defined in script code take it from their template.
+   */
   int expectedParameterCount;
 
-  /** Number of local variables  */
-  private int varCount;
-
-  /** Byte code containing the implementation of this function */
-  private byte[] byteCode;
+  /** Code of this function; null if it is implemented in Java. */
+  FunctionTemplate template;
 
   /** native method index if this function is implemented in Java */
   int index;
 
-  String[] localNames;
-
-  /** String literal table, used when putting strings on the stack. */
-  private String[] stringLiterals;
-
-  /** function literal table, used when putting strings on the stack. */
-  private JsFunction[] functionLiterals;
+  /**
+   * Bound implementation if this function is implemented in Java, replacing
+   * the index; for native properties, the getter.
+   */
+  NativeMethod nativeMethod;
 
-  /** number literal table, used when putting strings on the stack. */
-  private double[] numberLiterals;
+  /** Bound setter implementation if this function is a native property. */
+  NativeMethod nativeSetter;
 
   /**
    * Prototype object if this function is a constructor. Currently not used;
-   * required to implement the JS prototype property.
+   * required to implement the JS prototype property. Created on first
+   * access for functions defined in script code.
    */
-  private JsObject prototype;
+  JsObject prototype;
 
   /** Factory to use if this is a native constructor. */
-  private JsObjectFactory factory;
+  JsObjectFactory factory;
 
   /** Object factory id if this is a native constructor. */
   int factoryTypeId;
@@ -155,7 +221,11 @@ public class JsFunction extends JsObject {
   /** Evaluation context for this function. */
   private JsObject context;
 
-  private int[] lineNumbers;
+  /**
+   * Name of a native, set when it is added to an object. Functions defined
+   * in script code take it from their template.
+   */
+  String name;
   
   public String description;
   
@@ -166,12 +236,65 @@ public class JsFunction extends JsObject {
   public static Object exec(DataInputStream dis, JsObject context)
       throws IOException{
 
-    //TODO check magic
-    for (int i = 0; i < 8; i++){
-      dis.read();
+    readHeader(dis);
+    return exec(new JsFunction(dis, null), context);
+  }
+
+  /**
+   * Reads the file header, returning the bytecode format given by its
+   * version byte.
+   */
+  static int readHeader(DataInputStream dis) throws IOException {
+    StringBuffer magic = new StringBuffer(7);
+    for (int i = 0; i < 7; i++) {
+      magic.append((char) dis.read());
+    }
+    int format = dis.read();
+    if (!"MiniJoe".equals(magic.toString())) {
+      throw new IOException("Magic does not match \"MiniJoe\"!");
     }
+    if (format != FORMAT_STACK && format != FORMAT_REGISTER) {
+      throw new IOException("Unsupported bytecode format: " + format);
+    }
+    return format;
+  }
 
-    JsFunction main = new JsFunction(new JsFunction(dis, null), context);
+  /**
+   * Loads a compiled program, including the file header, from the given
+   * buffer. Nested function literals are decoded when they are first used,
+   * so only the parts of the buffer for functions that are actually
+   * created are read. The buffer must not be modified afterwards.
+   */
+  public static JsFunction load(ByteBuffer code) throws IOException {
+    ByteBufferInputStream source = new ByteBufferInputStream(code, 0);
+    DataInputStream dis = new DataInputStream(source);
+    readHeader(dis);
+    return new JsFunction(new FunctionTemplate(dis, null,
+        LAZY_LITERALS ? source : null), null);
+  }
+
+  /**
+   * Loads a compiled program from the given file. The file is memory
+   * mapped, so with lazy decoding, only the pages containing the main
+   * function and functions that are actually created are read.
+   */
+  public static JsFunction load(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      return load(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+    } finally {
+      // the mapping stays valid after the channel is closed
+      raf.close();
+    }
+  }
+
+  /**
+   * Runs the main function literal of a program in the given context. The
+   * literal is not modified and may be executed any number of times.
+   */
+  public static Object exec(JsFunction literal, JsObject context) {
+    JsFunction main = new JsFunction(literal, context);
 
     JsArray stack = new JsArray();
     stack.setObject(0, context);
@@ -183,6 +306,22 @@ public class JsFunction extends JsObject {
     return stack.getObject(3);
   }
 
+  /**
+   * Calls this function from Java, with the given global object as "this",
+   * and returns the result. Used to deliver callbacks from the event loop.
+   */
+  Object call(JsObject global, Object[] arguments) {
+    JsArray stack = new JsArray();
+    stack.setObject(0, global);
+    stack.setObject(1, global);
+    stack.setObject(2, this);
+    for (int i = 0; i < arguments.length; i++) {
+      stack.setObject(3 + i, arguments[i]);
+    }
+    eval(stack, 1, arguments.length);
+    return stack.getObject(1);
+  }
+
   /**
    * Constructor for functions implemented in Java.
    */
@@ -204,23 +343,48 @@ public class JsFunction extends JsObject {
 	    this.description = desc;
    }  
 
+  /**
+   * Constructor for functions implemented by the given native method.
+   */
+  public JsFunction(NativeMethod method, int parCount) {
+    this(ID_NOOP, parCount);
+    this.nativeMethod = method;
+  }
+
+  /**
+   * Constructor for documented functions implemented by the given native
+   * method.
+   */
+  public JsFunction(NativeMethod method, int parCount, String desc) {
+    this(method, parCount);
+    this.description = desc;
+  }
+
+  /**
+   * Constructor for native properties. The setter is called with the value
+   * to assign at stack[sp + 0].
+   */
+  public JsFunction(NativeMethod getter, NativeMethod setter) {
+    this(getter, -1);
+    this.nativeSetter = setter;
+  }
+
   /**
    * Creates a new function from the given function literal and context.
    */
   public JsFunction(JsFunction literal, JsObject context){
-    super(literal.__proto__);
-    this.byteCode = literal.byteCode;
+    this(literal.template, context);
+  }
+
+  /**
+   * Creates a closure of the given template in the given context. Only the
+   * two references are stored; the prototype object and the properties are
+   * created when they are first needed.
+   */
+  JsFunction(FunctionTemplate template, JsObject context) {
+    super(FUNCTION_PROTOTYPE);
+    this.template = template;
     this.context = context;
-    this.functionLiterals = literal.functionLiterals;
-    this.localNames = literal.localNames;
-    this.numberLiterals = literal.numberLiterals;
-    this.expectedParameterCount = literal.expectedParameterCount;
-    this.prototype = literal.prototype;
-    this.stringLiterals = literal.stringLiterals;
-    this.varCount = literal.varCount;
-    this.factory = JsSystem.getInstance();
-    this.factoryTypeId = JsSystem.FACTORY_ID_OBJECT;
-    this.lineNumbers = literal.lineNumbers;
   }
 
 
@@ -241,6 +405,17 @@ public class JsFunction extends JsObject {
     this.factoryTypeId = factoryTypeId;
   }
 
+  /**
+   * Constructor for constructors implemented by the given native method.
+   */
+  public JsFunction(JsObjectFactory factory, int factoryTypeId,
+      JsObject prototype, NativeMethod constructor, int parCount) {
+    this(constructor, parCount);
+    this.prototype = prototype;
+    this.factory = factory;
+    this.factoryTypeId = factoryTypeId;
+  }
+
   /**
    * Constructs a function literal from the serialized binary form including the
    * string table. Please note that function literals cannot be invoked
@@ -252,90 +427,33 @@ public class JsFunction extends JsObject {
    */
   public JsFunction(DataInputStream dis, String[] globalStringTable)
       throws IOException {
-    super(FUNCTION_PROTOTYPE);
-    // __proto__ above, prototype below...
-    this.prototype = new JsObject(OBJECT_PROTOTYPE);
-
-    byte[] buf = null;
-    int flags = 0;
-
-    loop:
-    while (true){
-      int blockType = dis.read();
-      int count;
-      switch(blockType){
-      case BLOCK_COMMENT:
-        count = dis.readUnsignedShort();
-        if (buf == null || buf.length < count){
-          buf = new byte[count];
-        }
-        dis.readFully(buf, 0, count);
-        break;
-      case BLOCK_GLOBAL_STRING_TABLE:
-        count = dis.readUnsignedShort();
-        globalStringTable = new String[count];
-        for (int i = 0; i < count; i++){
-          globalStringTable[i] = dis.readUTF();
-        }
-        break;
-      case BLOCK_STRING_LITERALS:
-        count = dis.readUnsignedShort();
-        stringLiterals = new String[count];
-        for (int i = 0; i < count; i++){
-          stringLiterals[i] = globalStringTable[dis.readShort()];
-        }
-        break;
-      case BLOCK_NUMBER_LITERALS:
-        count = dis.readUnsignedShort();
-        numberLiterals = new double[count];
-        for (int i = 0; i < count; i++){
-          numberLiterals[i] = dis.readDouble();
-        }
-        break;
-      case BLOCK_FUNCTION_LITERALS:
-        count = dis.readUnsignedShort();
-        functionLiterals = new JsFunction[count];
-        for (int i = 0; i < count; i++){
-          functionLiterals[i] = new JsFunction(dis, globalStringTable);
-        }
-        break;
-      case BLOCK_LOCAL_VARIABLE_NAMES:
-        count = dis.readUnsignedShort();
-        localNames = new String[count];
-        for (int i = 0; i < count; i++) {
-          localNames[i] = globalStringTable[dis.readShort()];
-        }
-        break;
-      case BLOCK_BYTE_CODE:
-        varCount = dis.readUnsignedShort();
-        expectedParameterCount = dis.readUnsignedShort();
-        varCount -= expectedParameterCount;
-        flags = dis.read();
-        byteCode = new byte[dis.readShort()];
-        dis.readFully(byteCode);
-        break;
-      case BLOCK_LINE_NUMBERS:
-        count = dis.readUnsignedShort();
-        lineNumbers = new int[count * 2];
-        for (int i = 0; i < count; i++) {
-          lineNumbers[i << 1] = dis.readUnsignedShort();
-          lineNumbers[(i << 1) + 1] = dis.readUnsignedShort();
-        }
-        break;
-      case END_MARKER:
-        break loop;
-      default:
-        throw new IOException("Illegal Block type "
-            + Integer.toString(blockType, 16));
-      }
+    this(new FunctionTemplate(dis, globalStringTable, null), null);
+  }
+
+  /**
+   * Calls the Java implementation of this function, or the getter of this
+   * native property, for the given receiver. Bound natives are called
+   * directly; others are dispatched by index through evalNative().
+   */
+  final void invokeNative(JsObject thisPtr, JsArray stack, int sp, int parCount) {
+    if (nativeMethod != null) {
+      nativeMethod.invoke(thisPtr, stack, sp, parCount);
+    } else {
+      thisPtr.evalNative(index, stack, sp, parCount);
     }
+  }
 
-    if ((flags & 1) == 0) {
-      if (localNames == null) {
-        localNames = new String[0];
+  /**
+   * Calls the setter of this native property for the given receiver, with
+   * the value to assign at stack[sp].
+   */
+  final void invokeSetter(JsObject thisPtr, JsArray stack, int sp) {
+    if (nativeMethod != null) {
+      if (nativeSetter != null) {
+        nativeSetter.invoke(thisPtr, stack, sp, 0);
       }
     } else {
-      localNames = null;
+      thisPtr.evalNative(index + 1, stack, sp, 0);
     }
   }
 
@@ -343,571 +461,1168 @@ public class JsFunction extends JsObject {
    * Evaluate this function. The this-pointer, function object and parameters
    * must be on stack (sp + 0 = context, sp + 1=function, sp + 2 = first param
    * etc.). The result is expected at sp + 0.
+   *
+   * Calls from interpreted code to other interpreted functions do not
+   * recurse: the state of the caller is saved in a CallFrame, the callee
+   * becomes the current function, and returning restores the caller.
+   * Only natives and JIT compiled functions are called through Java.
    */
   public void eval(JsArray stack, int sp, int actualParameterCount) {
-    for (int i = actualParameterCount; i < expectedParameterCount; i++) {
-      stack.setObject(sp + i + 2, null);
-    }
-
     JsObject thisPtr = stack.getJsObject(sp);
 
-    if (byteCode == null) {
-      thisPtr.evalNative(index, stack, sp, actualParameterCount);
+    if (template == null) {
+      for (int i = actualParameterCount; i < expectedParameterCount; i++) {
+        stack.setObject(sp + i + 2, null);
+      }
+      if (ExecutionStats.ENABLED) {
+        long start = System.nanoTime();
+        try {
+          invokeNative(thisPtr, stack, sp, actualParameterCount);
+        } finally {
+          ExecutionStats.nativeCall(this, System.nanoTime() - start);
+        }
+        return;
+      }
+      invokeNative(thisPtr, stack, sp, actualParameterCount);
       return;
     }
 
     // sp initially points to context
     // bp points to parameter 0. context is at bp-2, lambda at bp-1
 
-    sp += 2;
-    int bp = sp;
+    int bp = sp + 2;
+    JsObject context = enterFrame(stack, bp, actualParameterCount);
+    sp = bp + getFrameSize();
 
-    JsObject context;
+    Profiler.Stack profile = Profiler.active ? Profiler.enter(this) : null;
+    int frame = profile == null ? 0 : profile.depth - 1;
 
-    // note: arguments available here only!
-    if (localNames != null){
-      context = new JsObject(JsObject.OBJECT_PROTOTYPE);
-      context.scopeChain = this.context;
-      JsArguments args = new JsArguments(this, context);
-      for (int i = 0; i < expectedParameterCount; i++) {
-        context.addVar(localNames[i], stack.getObject(sp + i));
-        args.addVar("" + i, new Integer(i));
+    JitProfile jit = template.jit;
+    if (jit != null && stack.jitDepth < JitCompiler.MAX_DEPTH) {
+      if (jit.code == null && !jit.failed
+          && ++jit.count > JitCompiler.THRESHOLD) {
+        JitCompiler.compile(this, jit);
       }
-      for (int i = expectedParameterCount; i < this.localNames.length; i++) {
-        context.addVar(localNames[i], null);
-      }
-      for (int i = expectedParameterCount; i < actualParameterCount; i++) {
-        args.setObject(""+i, stack.getObject(bp+i));
+      if (jit.code != null) {
+        stack.jitDepth++;
+        try {
+          jit.code.run(this, stack, bp, sp, context, thisPtr,
+              actualParameterCount);
+        } finally {
+          stack.jitDepth--;
+          if (profile != null) {
+            profile.depth = frame;
+          }
+        }
+        return;
       }
-      args.setNumber("length", actualParameterCount);
-      args.setObject("callee", this);
-      context.addVar("arguments", args);
-    } else {
-      context = this.context;
-      sp += expectedParameterCount + varCount;
     }
 
+    // state of the current function; the callers within this invocation
+    // are saved in frames[0 .. depth - 1]
+    JsFunction fn = this;
+    byte[] byteCode = template.byteCode;
+    AtomicReferenceArray inlineCaches = template.inlineCaches;
+    String[] stringLiterals = template.stringLiterals;
+    double[] numberLiterals = template.numberLiterals;
     int initialSp = sp;
-    int opcode;
-    byte[] byteCode = this.byteCode;
     int pc = 0;
     int end = byteCode.length;
+    int previousOpcode = -1;
+    CallFrame[] frames = null;
+    int depth = 0;
 
-    try {
-      while (pc < end) {
-        opcode = byteCode[pc++];
+    int opcode;
+    InlineCache ic;
+    CallFrame f;
+
+    while (true) {
+      try {
+        while (true) {
+          if (pc >= end) {
+            // sp is RETURNED after OP_RET, which has stored the result already
+            if (sp == initialSp + 1) {
+              stack.copy(sp - 1, stack, bp - 2);
+            } else if (sp == initialSp) {
+              stack.setObject(bp - 2, null);
+            } else if (sp != RETURNED) {
+              throw new RuntimeException("too much or too little on the stack; sp: "
+                  + sp + " bp: " + bp + " varCount: " + fn.template.varCount + " parCount: "
+                  + actualParameterCount);
+            }
+            if (profile != null) {
+              profile.depth = frame;
+            }
+            if (depth == 0) {
+              return;
+            }
+
+            // return to the caller
+            f = frames[--depth];
+            fn = f.function;
+            jit = fn.template.jit;
+            byteCode = fn.template.byteCode;
+            inlineCaches = fn.template.inlineCaches;
+            stringLiterals = fn.template.stringLiterals;
+            numberLiterals = fn.template.numberLiterals;
+            end = byteCode.length;
+            pc = f.pc;
+            bp = f.bp;
+            sp = f.sp;
+            initialSp = f.initialSp;
+            context = f.context;
+            thisPtr = f.thisPtr;
+            actualParameterCount = f.parameterCount;
+            profile = f.profile;
+            frame = f.profileFrame;
+            previousOpcode = f.previousOpcode;
+            f.function = null;
+            f.context = null;
+            f.thisPtr = null;
+            if (f.tryCall) {
+              stack.setBoolean(sp + 1, true);
+              sp += 2;
+            } else {
+              sp++;
+            }
+            continue;
+          }
 
-        if (opcode < 0){
-          int imm;
+          if (profile != null) {
+            profile.pcs[frame] = pc;
+          }
+          opcode = byteCode[pc++];
 
-          if ((opcode & 1) == 0){
-            imm = byteCode[pc++];
-          } else {
-            imm =  (byteCode[pc] << 8) | (byteCode[pc + 1] & 255);
-            pc += 2;
+          if (ExecutionStats.ENABLED) {
+            ExecutionStats.opcode(previousOpcode, opcode);
+            previousOpcode = opcode;
           }
 
-          switch ((opcode & 0x0ff) >>> 1) {
-            case XOP_ADD:
-              stack.setNumber(sp - 1, stack.getNumber(sp - 1) + imm);
-              break;
+          if (opcode < 0){
+            int imm;
+
+            if ((opcode & 1) == 0){
+              imm = byteCode[pc++];
+            } else {
+              imm =  (byteCode[pc] << 8) | (byteCode[pc + 1] & 255);
+              pc += 2;
+            }
+
+            switch ((opcode & 0x0ff) >>> 1) {
+              case XOP_ADD:
+                if (stack.isUnboxedNumber(sp - 1)) {
+                  stack.setUnboxedNumber(sp - 1, stack.getUnboxedNumber(sp - 1) + imm);
+                } else {
+                  stack.setNumber(sp - 1, stack.getNumber(sp - 1) + imm);
+                }
+                break;
 
-            case XOP_TRY_CALL:
-              try {
+              case XOP_TRY_CALL:
+              case XOP_CALL:
                 sp = sp - imm - 2; // on stack: context, lambda, params
-                JsFunction m = (JsFunction) stack.getObject(sp + 1);
-                m.eval(stack, sp, imm);
-                stack.setBoolean(sp + 1, true);
-                sp += 2;
-              } catch (JsException e) {
-                stack.setObject(sp++, e.getError());
-                stack.setBoolean(sp++, false); // not successfull
-              } catch (Exception e) {
-                stack.setObject(sp++, new JsError(e));
-                stack.setBoolean(sp++, false); // not successfull
-              }
-              break;
-
-            case XOP_CALL:
-              sp = sp - imm - 2; // on stack: context, lambda, params
-              JsFunction m = (JsFunction) stack.getObject(sp + 1);
-              m.eval(stack, sp++, imm);
-              // System.out.println("Ret val received: "
-              //  + stack.getObject(sp-1)+" sp: "+sp);
-              break;
-
-            case XOP_PUSH_FN:
-              stack.setObject(sp++,
-                  new JsFunction(functionLiterals[imm], context));
-              break;
-
-            case XOP_GO:
-              pc += imm;
-              break;
-
-            case XOP_IF:
-              if (!stack.getBoolean(--sp)) {
+                boolean tryCall = (opcode & 0x0ff) >>> 1 == XOP_TRY_CALL;
+                Object callee = stack.getObject(sp + 1);
+                JsFunction m = callee instanceof JsFunction ? (JsFunction) callee : null;
+
+                if (m == null || m.template == null || (m.template.jit != null
+                    && stack.jitDepth < JitCompiler.MAX_DEPTH
+                    && (m.template.jit.code != null || !m.template.jit.failed
+                    && m.template.jit.count >= JitCompiler.THRESHOLD))) {
+                  // natives and (about to be) compiled code run on the Java
+                  // stack, the latter up to JitCompiler.MAX_DEPTH levels;
+                  // the cast fails for values that are not functions
+                  if (!tryCall) {
+                    ((JsFunction) callee).eval(stack, sp++, imm);
+                    // System.out.println("Ret val received: "
+                    //  + stack.getObject(sp-1)+" sp: "+sp);
+                    break;
+                  }
+                  try {
+                    ((JsFunction) callee).eval(stack, sp, imm);
+                    stack.setBoolean(sp + 1, true);
+                    sp += 2;
+                  } catch (JsException e) {
+                    stack.setObject(sp++, e.getError());
+                    stack.setBoolean(sp++, false); // not successfull
+                  } catch (Exception e) {
+                    stack.setObject(sp++, new JsError(e));
+                    stack.setBoolean(sp++, false); // not successfull
+                  }
+                  break;
+                }
+
+                // save the caller
+                if (frames == null) {
+                  frames = new CallFrame[16];
+                } else if (depth == frames.length) {
+                  CallFrame[] newFrames = new CallFrame[depth * 2];
+                  System.arraycopy(frames, 0, newFrames, 0, depth);
+                  frames = newFrames;
+                }
+                f = frames[depth];
+                if (f == null) {
+                  f = frames[depth] = new CallFrame();
+                }
+                depth++;
+                f.function = fn;
+                f.pc = pc;
+                f.bp = bp;
+                f.sp = sp;
+                f.initialSp = initialSp;
+                f.context = context;
+                f.thisPtr = thisPtr;
+                f.parameterCount = actualParameterCount;
+                f.profile = profile;
+                f.profileFrame = frame;
+                f.previousOpcode = previousOpcode;
+                f.tryCall = tryCall;
+
+                // enter the callee
+                fn = m;
+                actualParameterCount = imm;
+                thisPtr = stack.getJsObject(sp);
+                bp = sp + 2;
+                context = fn.enterFrame(stack, bp, imm);
+                sp = bp + fn.getFrameSize();
+                profile = Profiler.active ? Profiler.enter(fn) : null;
+                frame = profile == null ? 0 : profile.depth - 1;
+                jit = fn.template.jit;
+                if (jit != null) {
+                  jit.count++;
+                }
+                byteCode = fn.template.byteCode;
+                inlineCaches = fn.template.inlineCaches;
+                stringLiterals = fn.template.stringLiterals;
+                numberLiterals = fn.template.numberLiterals;
+                initialSp = sp;
+                pc = 0;
+                end = byteCode.length;
+                previousOpcode = -1;
+                break;
+
+              case XOP_PUSH_FN:
+                stack.setObject(sp++,
+                    new JsFunction(fn.template.getFunctionLiteral(imm), context));
+                break;
+
+              case XOP_PUSH_REGEX:
+                stack.setObject(sp++, new JsRegExp(fn.getRegExpPattern(imm)));
+                break;
+
+              case XOP_GO:
                 pc += imm;
+                if (imm < 0 && jit != null) {
+                  jit.count++;
+                }
+                break;
+
+              case XOP_IF:
+                if (!stack.getBoolean(--sp)) {
+                  pc += imm;
+                }
+                break;
+
+              case XOP_UNLESS:
+                if (stack.getBoolean(--sp)) {
+                  pc += imm;
+                  if (imm < 0 && jit != null) {
+                    jit.count++;
+                  }
+                }
+                break;
+
+              case XOP_IF_LT:
+                sp -= 2;
+                if (!lessThan(stack, sp, sp + 1)) {
+                  pc += imm;
+                }
+                break;
+
+              case XOP_IF_GT:
+                sp -= 2;
+                if (!lessThan(stack, sp + 1, sp)) {
+                  pc += imm;
+                }
+                break;
+
+              case XOP_UNLESS_LT:
+                sp -= 2;
+                if (lessThan(stack, sp, sp + 1)) {
+                  pc += imm;
+                  if (imm < 0 && jit != null) {
+                    jit.count++;
+                  }
+                }
+                break;
+
+              case XOP_UNLESS_GT:
+                sp -= 2;
+                if (lessThan(stack, sp + 1, sp)) {
+                  pc += imm;
+                  if (imm < 0 && jit != null) {
+                    jit.count++;
+                  }
+                }
+                break;
+
+              case XOP_PUSH_INT:
+                stack.setNumber(sp++, imm);
+                break;
+
+              case XOP_LCL_GET:
+                stack.copy(bp + imm, stack, sp++);
+                break;
+
+  //          case XOP_LOCAL_INC:
+  //          stack.setFP(sp - 1, stack.getFP(sp - 1)
+  //          + stack.getFP(bp + imm));
+  //          // fall-through!
+              case XOP_LCL_SET:
+                stack.copy(sp - 1, stack, bp + imm);
+                break;
+
+              case XOP_LCL_STORE:
+                stack.copy(--sp, stack, bp + imm);
+                break;
+
+              case XOP_LCL_INC:
+              case XOP_LCL_DEC:
+                int delta = (opcode & 0x0ff) >>> 1 == XOP_LCL_INC ? 1 : -1;
+                if (stack.isUnboxedNumber(bp + imm)) {
+                  stack.setUnboxedNumber(bp + imm, stack.getUnboxedNumber(bp + imm) + delta);
+                } else {
+                  stack.setNumber(bp + imm, stack.getNumber(bp + imm) + delta);
+                }
+                break;
+
+              case XOP_GET_VAR:
+                if (ExecutionStats.ENABLED) {
+                  ExecutionStats.scopeLookup(context, stringLiterals[imm]);
+                }
+                // the inline cache is indexed by the pc of the opcode
+                ic = fn.getInlineCache(pc - ((opcode & 1) == 0 ? 2 : 3));
+                stack.setObject(sp, stringLiterals[imm]);
+                if (!ic.get(context, stack, sp)) {
+                  context.vmGetOperation(stack, sp, sp);
+                }
+                sp++;
+                break;
+
+              case XOP_GET_PROP:
+                ic = fn.getInlineCache(pc - ((opcode & 1) == 0 ? 2 : 3));
+                stack.setObject(sp, stringLiterals[imm]);
+                if (!ic.get(stack, sp - 1, sp, sp - 1)) {
+                  stack.getJsObject(sp - 1).vmGetOperation(stack, sp, sp - 1);
+                }
+                break;
+
+              case XOP_NEXT:
+                Enumeration e = (Enumeration) stack.getObject(sp - 1);
+                if (e.hasMoreElements()){
+                  stack.setObject(sp++, e.nextElement());
+                } else {
+                  pc += imm;
+                }
+                break;
+              case XOP_PUSH_NUM:
+                stack.setNumber(sp++, numberLiterals[imm]);
+                break;
+
+              case XOP_PUSH_STR:
+                // System.out.println("String:" + stringList[(int)param]);
+                stack.setObject(sp++, stringLiterals[imm]);
+                break;
+
+              default:
+                throw new RuntimeException("Illegal opcode: "
+                    + Integer.toString(opcode&0xff, 16) + " par: " + imm);
+            } // switch
+          } else if (opcode >= ROP_BINARY) {
+            // register instructions of bytecode format 1
+            if (opcode >= ROP_BRANCH) {
+              int a = bp + (byteCode[pc] & 255);
+              int b;
+              if ((opcode & ROP_BRANCH_IMM) == 0) {
+                b = bp + (byteCode[pc + 1] & 255);
+              } else {
+                b = sp + 1;
+                stack.setNumber(b, byteCode[pc + 1]);
               }
-              break;
-
-            case XOP_PUSH_INT:
-              stack.setNumber(sp++, imm);
-              break;
-
-            case XOP_LCL_GET:
-              stack.copy(bp + imm, stack, sp++);
-              break;
-
-//          case XOP_LOCAL_INC:
-//          stack.setFP(sp - 1, stack.getFP(sp - 1)
-//          + stack.getFP(bp + imm));
-//          // fall-through!
-            case XOP_LCL_SET:
-              stack.copy(sp - 1, stack, bp + imm);
-              break;
-
-            case XOP_NEXT:
-              Enumeration e = (Enumeration) stack.getObject(sp - 1);
-              if (e.hasMoreElements()){
-                stack.setObject(sp++, e.nextElement());
+              int imm = (byteCode[pc + 2] << 8) | (byteCode[pc + 3] & 255);
+              pc += 4;
+              boolean condition;
+              int operator = REGISTER_CONDITIONS[(opcode - ROP_BRANCH) >> 2];
+              if (operator == OP_LT) {
+                condition = lessThan(stack, a, b);
+              } else if (operator == OP_GT) {
+                condition = lessThan(stack, b, a);
+              } else if (stack.isUnboxedNumber(a) && stack.isUnboxedNumber(b)) {
+                condition = stack.getUnboxedNumber(a) == stack.getUnboxedNumber(b);
               } else {
+                registerOperation(operator, stack, a, b, sp);
+                condition = stack.getBoolean(sp);
+              }
+              if (condition == ((opcode & ROP_BRANCH_UNLESS) != 0)) {
                 pc += imm;
+                if (imm < 0 && jit != null) {
+                  jit.count++;
+                }
               }
-              break;
-            case XOP_PUSH_NUM:
-              stack.setNumber(sp++, numberLiterals[imm]);
-              break;
-
-            case XOP_PUSH_STR:
-              // System.out.println("String:" + stringList[(int)param]);
-              stack.setObject(sp++, stringLiterals[imm]);
-              break;
-
-            default:
-              throw new RuntimeException("Illegal opcode: "
-                  + Integer.toString(opcode&0xff, 16) + " par: " + imm);
-          } // switch
-        } else {
-          switch (opcode) {
-
-            case OP_ADD:
-              if (stack.isNumber(sp - 2) && stack.isNumber(sp - 1)) {
-                stack.setNumber(sp - 2,
-                    stack.getNumber(sp - 2) + stack.getNumber(sp - 1));
+            } else if (opcode >= ROP_MOVE) {
+              int d = byteCode[pc] & 255;
+              int target = d == REGISTER_PUSH ? sp++ : bp + d;
+              if (opcode == ROP_MOVE) {
+                stack.copy(bp + (byteCode[pc + 1] & 255), stack, target);
+                pc += 2;
               } else {
-                stack.setObject(sp - 2,
-                    stack.getString(sp - 2)  +  stack.getString(sp - 1));
+                stack.setNumber(target,
+                    (byteCode[pc + 1] << 8) | (byteCode[pc + 2] & 255));
+                pc += 3;
               }
-              sp--;
-              break;
-
-            case OP_AND:
-              stack.setNumber(sp - 2, stack.getInt(sp - 2) & stack.getInt(sp - 1));
-              sp--;
-              break;
-
-
-            case OP_APPEND:
-              JsArray arr = (JsArray) stack.getObject(sp - 2);
-              stack.copy(sp - 1, arr, arr.size());
-              // ((Array)
-              // stack.getObject(sp-2)).addElement(stack.getObject(sp-1));
-              sp--;
-              break;
-
-            case OP_ASR:
-              stack.setNumber(sp - 2,
-                  (stack.getInt(sp - 2) & 0xffffffffL) >>> (stack.getInt(sp - 1) & 0x1f));
-              sp--;
-              break;
-
-            case OP_CTX_GET:
-              context.vmGetOperation(stack, sp - 1, sp - 1);
-              break;
-
-            case OP_CTX_SET:
-              context.vmSetOperation(stack, sp - 1, sp - 2);
-              sp--; // take away name, not value
-              break;
-
-            case OP_CTX:
-              stack.setObject(sp++, context);
-              break;
-
-            case OP_DEC:
-              stack.setNumber(sp - 1, stack.getNumber(sp - 1) - 1);
-              break;
-
-            case OP_DEL:
-              stack.setBoolean(sp - 2,  stack.getJsObject(sp - 2).delete(stack.getString(sp - 1)));
-              sp--;
-              break;
-
-            case OP_DIV:
-              stack.setNumber(sp - 2, stack.getNumber(sp - 2) / stack.getNumber(sp - 1) );
-              sp--;
-              break;
-
-            case OP_DROP:
-              sp--;
-              break;
-
-            case OP_DUP:
-              stack.copy(sp - 1, stack, sp);
-              sp++;
-              break;
+            } else {
+              int d = byteCode[pc] & 255;
+              int a = bp + (byteCode[pc + 1] & 255);
+              int b;
+              if (opcode >= ROP_BINARY_IMM) {
+                b = sp + 1;
+                stack.setNumber(b, byteCode[pc + 2]);
+              } else {
+                b = bp + (byteCode[pc + 2] & 255);
+              }
+              pc += 3;
+              int target = d == REGISTER_PUSH ? sp++ : bp + d;
+              int operator = REGISTER_OPERATORS[opcode & 0x0f];
+              if (stack.isUnboxedNumber(a) && stack.isUnboxedNumber(b)) {
+                double x = stack.getUnboxedNumber(a);
+                double y = stack.getUnboxedNumber(b);
+                switch (operator) {
+                  case OP_ADD: stack.setNumber(target, x + y); break;
+                  case OP_SUB: stack.setNumber(target, x - y); break;
+                  case OP_MUL: stack.setNumber(target, x * y); break;
+                  case OP_DIV: stack.setNumber(target, x / y); break;
+                  case OP_MOD: stack.setNumber(target, x % y); break;
+                  case OP_AND: stack.setNumber(target, JitRuntime.and(x, y)); break;
+                  case OP_OR: stack.setNumber(target, JitRuntime.or(x, y)); break;
+                  case OP_XOR: stack.setNumber(target, JitRuntime.xor(x, y)); break;
+                  case OP_SHL: stack.setNumber(target, JitRuntime.shl(x, y)); break;
+                  case OP_SHR: stack.setNumber(target, JitRuntime.shr(x, y)); break;
+                  case OP_ASR: stack.setNumber(target, JitRuntime.asr(x, y)); break;
+                  case OP_LT: stack.setObject(target, JitRuntime.lessThan(x, y)); break;
+                  case OP_GT: stack.setObject(target, JitRuntime.greaterThan(x, y)); break;
+                  default: stack.setObject(target, JitRuntime.numberEquals(x, y));
+                }
+              } else if (target == sp - 1) {
+                registerOperation(operator, stack, a, b, target);
+              } else {
+                registerOperation(operator, stack, a, b, sp);
+                stack.copy(sp, stack, target);
+              }
+            }
+          } else {
+            switch (opcode) {
+
+              case OP_ADD:
+                if (stack.isNumberPair(sp - 2)) {
+                  stack.setUnboxedNumber(sp - 2,
+                      stack.getUnboxedNumber(sp - 2) + stack.getUnboxedNumber(sp - 1));
+                } else if (stack.isNumber(sp - 2) && stack.isNumber(sp - 1)) {
+                  stack.setNumber(sp - 2,
+                      stack.getNumber(sp - 2) + stack.getNumber(sp - 1));
+                } else {
+                  stack.setObject(sp - 2, JsRope.concat(
+                      stack.getStringValue(sp - 2), stack.getStringValue(sp - 1)));
+                }
+                sp--;
+                break;
 
-            case OP_DDUP:
-              stack.copy(sp - 2, stack, sp, 2);
-              sp += 2;
-              break;
+              case OP_AND:
+                stack.setNumber(sp - 2, stack.getInt(sp - 2) & stack.getInt(sp - 1));
+                sp--;
+                break;
 
-            case OP_ENUM:
-              stack.setObject(sp-1, ((JsObject) stack.getObject(sp-1)).keys());
-              break;
 
-            case OP_EQEQEQ:
-              if (stack.getType(sp - 2) != stack.getType(sp - 1)){
+              case OP_APPEND:
+                JsArray arr = (JsArray) stack.getObject(sp - 2);
+                stack.copy(sp - 1, arr, arr.size());
+                // ((Array)
+                // stack.getObject(sp-2)).addElement(stack.getObject(sp-1));
                 sp--;
-                stack.setObject(sp - 1, Boolean.FALSE);
                 break;
-              }
-              // fall-trough
 
-            case OP_EQEQ:
-              // System.out.println(""+stack.getObject(sp-2)+ " = "+
-              // stack.getObject(sp-1));
+              case OP_ASR:
+                stack.setNumber(sp - 2,
+                    (stack.getInt(sp - 2) & 0xffffffffL) >>> (stack.getInt(sp - 1) & 0x1f));
+                sp--;
+                break;
 
-              int tX = stack.getType(sp - 2);
-              int tY = stack.getType(sp - 1);
+              case OP_CTX_GET:
+                if (ExecutionStats.ENABLED) {
+                  ExecutionStats.scopeLookup(context, stack.getString(sp - 1));
+                }
+                ic = (InlineCache) inlineCaches.get(pc - 1);
+                if (ic == null) {
+                  ic = fn.template.getInlineCache(pc - 1);
+                }
+                if (!ic.get(context, stack, sp - 1)) {
+                  context.vmGetOperation(stack, sp - 1, sp - 1);
+                }
+                break;
 
-              if (tX == tY) {
-                switch(tX) {
-                  case TYPE_UNDEFINED:
-                  case TYPE_NULL:
-                    stack.setObject(sp - 2, Boolean.TRUE);
-                    break;
+              case OP_CTX_SET:
+                context.vmSetOperation(stack, sp - 1, sp - 2);
+                sp--; // take away name, not value
+                break;
 
-                  case TYPE_NUMBER:
-                    stack.setBoolean(sp - 2,
-                        stack.getNumber(sp - 2) == stack.getNumber(sp - 1));
-                    break;
+              case OP_CTX:
+                stack.setObject(sp++, context);
+                break;
 
-                  default:
-                    stack.setBoolean(sp - 2,
-                        stack.getObject(sp - 2).equals(
-                            stack.getObject(sp - 1)));
+              case OP_DEC:
+                if (stack.isUnboxedNumber(sp - 1)) {
+                  stack.setUnboxedNumber(sp - 1, stack.getUnboxedNumber(sp - 1) - 1);
+                } else {
+                  stack.setNumber(sp - 1, stack.getNumber(sp - 1) - 1);
                 }
-              } else {
-                boolean result;
-                if ((tX == TYPE_UNDEFINED && tY == TYPE_NULL) ||
-                    (tX == TYPE_NULL && tY == TYPE_UNDEFINED)) {
-                  result = true;
-                } else if (tX == TYPE_NUMBER || tY == TYPE_NUMBER) {
-                  result = stack.getNumber(sp - 2) == stack.getNumber(sp - 1);
-                } else if ((tX == TYPE_STRING && tY == TYPE_OBJECT) ||
-                    tX == TYPE_OBJECT && tY == TYPE_STRING) {
-                  result = stack.getString(sp - 2)
-                      .equals(stack.getString(sp - 1));
+                break;
+
+              case OP_DEL:
+                stack.setBoolean(sp - 2,  stack.getJsObject(sp - 2).delete(stack.getString(sp - 1)));
+                sp--;
+                break;
+
+              case OP_DIV:
+                stack.setNumber(sp - 2, stack.getNumber(sp - 2) / stack.getNumber(sp - 1) );
+                sp--;
+                break;
+
+              case OP_DROP:
+                sp--;
+                break;
+
+              case OP_DUP:
+                stack.copy(sp - 1, stack, sp);
+                sp++;
+                break;
+
+              case OP_DDUP:
+                stack.copy(sp - 2, stack, sp, 2);
+                sp += 2;
+                break;
+
+              case OP_ENUM:
+                stack.setObject(sp-1, ((JsObject) stack.getObject(sp-1)).keys());
+                break;
+
+              case OP_EQEQEQ:
+                if (stack.isNumberPair(sp - 2)) {
+                  stack.setObject(sp - 2, stack.getUnboxedNumber(sp - 2) ==
+                      stack.getUnboxedNumber(sp - 1) ? Boolean.TRUE : Boolean.FALSE);
+                  sp--;
+                  break;
+                }
+                if (stack.getType(sp - 2) != stack.getType(sp - 1)){
+                  sp--;
+                  stack.setObject(sp - 1, Boolean.FALSE);
+                  break;
+                }
+                // fall-trough
+
+              case OP_EQEQ:
+                // System.out.println(""+stack.getObject(sp-2)+ " = "+
+                // stack.getObject(sp-1));
+
+                if (stack.isNumberPair(sp - 2)) {
+                  stack.setObject(sp - 2, stack.getUnboxedNumber(sp - 2) ==
+                      stack.getUnboxedNumber(sp - 1) ? Boolean.TRUE : Boolean.FALSE);
+                  sp--;
+                  break;
+                }
+
+                int tX = stack.getType(sp - 2);
+                int tY = stack.getType(sp - 1);
+
+                if (tX == tY) {
+                  switch(tX) {
+                    case TYPE_UNDEFINED:
+                    case TYPE_NULL:
+                      stack.setObject(sp - 2, Boolean.TRUE);
+                      break;
+
+                    case TYPE_NUMBER:
+                      stack.setBoolean(sp - 2,
+                          stack.getNumber(sp - 2) == stack.getNumber(sp - 1));
+                      break;
+
+                    case TYPE_STRING:
+                      stack.setBoolean(sp - 2,
+                          stack.getString(sp - 2).equals(stack.getString(sp - 1)));
+                      break;
+
+                    default:
+                      stack.setBoolean(sp - 2,
+                          stack.getObject(sp - 2).equals(
+                              stack.getObject(sp - 1)));
+                  }
                 } else {
-                  result = false;
+                  boolean result;
+                  if ((tX == TYPE_UNDEFINED && tY == TYPE_NULL) ||
+                      (tX == TYPE_NULL && tY == TYPE_UNDEFINED)) {
+                    result = true;
+                  } else if (tX == TYPE_NUMBER || tY == TYPE_NUMBER) {
+                    result = stack.getNumber(sp - 2) == stack.getNumber(sp - 1);
+                  } else if ((tX == TYPE_STRING && tY == TYPE_OBJECT) ||
+                      tX == TYPE_OBJECT && tY == TYPE_STRING) {
+                    result = stack.getString(sp - 2)
+                        .equals(stack.getString(sp - 1));
+                  } else {
+                    result = false;
+                  }
+                  stack.setBoolean(sp - 2, result);
                 }
-                stack.setBoolean(sp - 2, result);
-              }
-              sp--;
-              break;
-
-            case OP_GET:
-              JsObject ctx = stack.getJsObject(sp - 2);
-//          System.out.println("GetMember ctx: "+ctx);
-//          System.out.println("GetMember name: " + stack.getObject(sp - 1));
-              ctx.vmGetOperation(stack, sp - 1, sp - 2);
-              sp--;
-              break;
-
-            case OP_GT:
-              if (stack.isNumber(sp - 2) && stack.isNumber(sp - 1)) {
-                stack.setObject(sp - 2,
-                    stack.getNumber(sp - 2) > stack.getNumber(sp - 1)
-                      ? Boolean.TRUE
-                      : Boolean.FALSE);
-              } else {
-                stack.setObject(sp - 2,
-                    stack.getString(sp - 2).compareTo(stack.getString(sp - 1)) 
-                    > 0 ? Boolean.TRUE : Boolean.FALSE);
-              }
-              sp--;
-              break;
-
-            case OP_IN:
-              Object o = stack.getObject(sp - 1);
-              if (o instanceof JsArray && stack.isNumber(sp - 2)) {
-                int i = stack.getInt(sp - 2);
-                stack.setObject(sp -2,
-                    i >= 0 && i <= ((JsArray) o).size()
-                        ? Boolean.TRUE
-                        : Boolean.FALSE);
                 sp--;
                 break;
-              }
-              if (o instanceof JsObject) {
-                stack.setObject(sp - 2,
-                    ((JsObject) o).getRawInPrototypeChain(stack.getString(sp-2)) == null
+
+              case OP_GET:
+                ic = (InlineCache) inlineCaches.get(pc - 1);
+                if (ic == null) {
+                  ic = fn.template.getInlineCache(pc - 1);
+                }
+                JsObject ctx;
+                if (!ic.get(stack, sp - 2, sp - 1, sp - 2)) {
+                  ctx = stack.getJsObject(sp - 2);
+  //          System.out.println("GetMember ctx: "+ctx);
+  //          System.out.println("GetMember name: " + stack.getObject(sp - 1));
+                  ctx.vmGetOperation(stack, sp - 1, sp - 2);
+                }
+                sp--;
+                break;
+
+              case OP_GT:
+                if (stack.isNumberPair(sp - 2)) {
+                  stack.setObject(sp - 2, stack.getUnboxedNumber(sp - 2) >
+                      stack.getUnboxedNumber(sp - 1) ? Boolean.TRUE : Boolean.FALSE);
+                } else if (stack.isNumber(sp - 2) && stack.isNumber(sp - 1)) {
+                  stack.setObject(sp - 2,
+                      stack.getNumber(sp - 2) > stack.getNumber(sp - 1)
                         ? Boolean.TRUE
                         : Boolean.FALSE);
+                } else {
+                  stack.setObject(sp - 2,
+                      stack.getString(sp - 2).compareTo(stack.getString(sp - 1)) 
+                      > 0 ? Boolean.TRUE : Boolean.FALSE);
+                }
                 sp--;
                 break;
-              }
-              stack.setObject(sp - 2, Boolean.FALSE);
-              sp--;
-              break;
-
-            case OP_INC:
-              stack.setNumber(sp - 1, stack.getNumber(sp - 1) + 1);
-              break;
-
-            case OP_INV:
-              stack.setInt(sp - 1, ~stack.getInt(sp - 1));
-              break;
-
-            case OP_LT:
-              if (stack.isNumber(sp - 2) && stack.isNumber(sp - 1)) {
-                stack.setObject(sp - 2, stack.getNumber(sp - 2) < 
-                    stack.getNumber(sp - 1) ? Boolean.TRUE : Boolean.FALSE);
-              } else {
-                stack.setObject(sp - 2, stack.getString(sp - 2).
-                    compareTo(stack.getString(sp - 1)) < 0
-                    ? Boolean.TRUE : Boolean.FALSE);
-              }
-              sp--;
-              break;
-              
-            case OP_MOD:
-              stack.setNumber(sp - 2,
-                  (stack.getNumber(sp - 2) % (stack.getNumber(sp - 1))));
-              sp--;
-              break;
-
-            case OP_MUL:
-              stack.setNumber(sp - 2, stack.getNumber(sp - 2) * stack
-                  .getNumber(sp - 1));
-              sp--;
-              break;
-
-            case OP_NEW_ARR:
-              stack.setObject(sp++, new JsArray());
-              break;
-
-            case OP_NEW:
-              JsFunction constructor = ((JsFunction) stack.getObject(sp - 1));
-              ctx = constructor.factory.newInstance(constructor.factoryTypeId);
-              stack.setObject(sp - 1, ctx);
-              stack.setObject(sp++, ctx);
-              stack.setObject(sp++, constructor);
-              break;
-
-            case OP_NEW_OBJ:
-              stack.setObject(sp++, new JsObject(OBJECT_PROTOTYPE));
-              break;
-
-            case OP_NEG:
-              stack.setNumber(sp - 1, -stack.getNumber(sp - 1));
-              break;
-
-            case OP_NOT:
-              stack.setObject(sp - 1, stack.getBoolean(sp - 1) ? Boolean.FALSE
-                  : Boolean.TRUE);
-              break;
-
-            case OP_OR:
-              stack.setNumber(sp - 2, stack.getInt(sp - 2) | stack.getInt(sp - 1));
-              sp--;
-              break;
-
-            case OP_PUSH_FALSE:
-              stack.setObject(sp++, Boolean.FALSE);
-              break;
-
-            case OP_PUSH_GLOBAL:
-              stack.setObject(sp++, stack.getObject(0));
-              break;
-
-            case OP_PUSH_NULL:
-              stack.setObject(sp++, JsSystem.JS_NULL);
-              break;
-
-            case OP_PUSH_THIS:
-              stack.setObject(sp++, thisPtr);
-              break;
-
-            case OP_PUSH_TRUE:
-              stack.setObject(sp++, Boolean.TRUE);
-              break;
-
-            case OP_PUSH_UNDEF:
-              stack.setObject(sp++, null);
-              break;
-
-            case OP_RET:
-              // System.out.println("sp: "+sp+" returning:
-              // "+stack.getObject(sp-1));
-              stack.copy(sp - 1, stack, bp - 2);
-              return;
 
-            case OP_ROT:
-              stack.copy(sp - 3, stack, sp - 2, 3);
-              stack.copy(sp, stack, sp - 3);
-              break;
-
-            case OP_SET_KC:
-              // ctx: sp-3
-              // property name: sp-2
-              // value to set: sp-1;
-
-              ctx = stack.getJsObject(sp - 3);
-              ctx.vmSetOperation(stack, sp - 2, sp - 1);
-
-              // key = (String) stack.getObject(sp-2);
-              // Object curr = ctx.getRaw(key);
-              // System.out.println("SetMember KC ctx: "+ctx);
-              // System.out.println("SetMember name: "+stack.getObject(sp-2));
-              // System.out.println("SetMember value: "+stack.getObject(sp-1));
-
-              sp -= 2; // leave value on the stack(!)
-              break;
-
-            case OP_SET:
-              ctx = stack.getJsObject(sp - 2);
-              ctx.vmSetOperation(stack, sp - 1, sp - 3);
-
-              // key = (String) stack.getObject(sp-1);
-              // curr = ctx.getRaw(key);
-
-              // System.out.println("SetMember KV ctx: "+ctx);
-              // System.out.println("SetMember name: "+stack.getObject(sp-1));
-              // System.out.println("SetMember value: "+stack.getObject(sp-3));
-
-              sp -= 2; // leave value on the stack(!)
-              break;
-
-            case OP_SHR:
-              stack.setNumber(sp - 2, stack.getInt(sp - 2) >> (stack.getInt(sp - 1) & 0x1f));
-              sp--;
-              break;
-
-            case OP_SHL:
-              stack.setNumber(sp - 2, stack.getInt(sp - 2) << (stack.getInt(sp - 1) & 0x1f));
-              sp--;
-              break;
-
-            case OP_SUB:
-              stack.setNumber(sp - 2, stack.getNumber(sp - 2) - stack.getNumber(sp - 1));
-              sp--;
-              break;
-
-            case OP_SWAP:
-              stack.swap(sp - 1, sp - 2);
-              break;
-
-            case OP_THROW:
-              // line number is added in try..catch below
-              throw new JsException(stack.getJsObject(sp));
-
-            case OP_WITH_START:
-              JsObject nc = new JsObject((JsObject) stack.getObject(sp - 1));
-              nc.scopeChain = context;
-              context = nc;
-              sp--;
-              break;
-
-            case OP_WITH_END:
-              context = context.scopeChain;
-              break;
-
-            case OP_TYPEOF:
-              stack.setObject(sp - 1, TYPE_NAMES[stack.getType(sp-1)]);
-              break;
-
-            case OP_INSTANCEOF:
-              o = stack.getObject(sp - 2);
-              JsObject p = stack.getJsObject(sp - 1);
-              if (p instanceof JsFunction && o instanceof JsObject) {
-                JsObject j = ((JsObject) o);
-                p = ((JsFunction) p).prototype;
-                while (j.__proto__ != null && j.__proto__ != p){
-                  j = j.__proto__;
-                }
-                stack.setBoolean(sp - 2, j != null);
-              } else {
+              case OP_IN:
+                Object o = stack.getObject(sp - 1);
+                if (o instanceof JsArray && stack.isNumber(sp - 2)) {
+                  int i = stack.getInt(sp - 2);
+                  stack.setObject(sp -2,
+                      i >= 0 && i <= ((JsArray) o).size()
+                          ? Boolean.TRUE
+                          : Boolean.FALSE);
+                  sp--;
+                  break;
+                }
+                if (o instanceof JsObject) {
+                  stack.setObject(sp - 2,
+                      ((JsObject) o).getRawInPrototypeChain(stack.getString(sp-2)) == null
+                          ? Boolean.TRUE
+                          : Boolean.FALSE);
+                  sp--;
+                  break;
+                }
                 stack.setObject(sp - 2, Boolean.FALSE);
-              }
-              sp--;
-              break;
+                sp--;
+                break;
+
+              case OP_INC:
+                if (stack.isUnboxedNumber(sp - 1)) {
+                  stack.setUnboxedNumber(sp - 1, stack.getUnboxedNumber(sp - 1) + 1);
+                } else {
+                  stack.setNumber(sp - 1, stack.getNumber(sp - 1) + 1);
+                }
+                break;
+
+              case OP_INV:
+                stack.setInt(sp - 1, ~stack.getInt(sp - 1));
+                break;
+
+              case OP_LT:
+                if (stack.isNumberPair(sp - 2)) {
+                  stack.setObject(sp - 2, stack.getUnboxedNumber(sp - 2) <
+                      stack.getUnboxedNumber(sp - 1) ? Boolean.TRUE : Boolean.FALSE);
+                } else if (stack.isNumber(sp - 2) && stack.isNumber(sp - 1)) {
+                  stack.setObject(sp - 2, stack.getNumber(sp - 2) < 
+                      stack.getNumber(sp - 1) ? Boolean.TRUE : Boolean.FALSE);
+                } else {
+                  stack.setObject(sp - 2, stack.getString(sp - 2).
+                      compareTo(stack.getString(sp - 1)) < 0
+                      ? Boolean.TRUE : Boolean.FALSE);
+                }
+                sp--;
+                break;
+              
+              case OP_MOD:
+                stack.setNumber(sp - 2,
+                    (stack.getNumber(sp - 2) % (stack.getNumber(sp - 1))));
+                sp--;
+                break;
+
+              case OP_MUL:
+                stack.setNumber(sp - 2, stack.getNumber(sp - 2) * stack
+                    .getNumber(sp - 1));
+                sp--;
+                break;
+
+              case OP_NEW_ARR:
+                stack.setObject(sp++, new JsArray());
+                break;
+
+              case OP_NEW:
+                JsFunction constructor = ((JsFunction) stack.getObject(sp - 1));
+                ctx = constructor.newInstance();
+                stack.setObject(sp - 1, ctx);
+                stack.setObject(sp++, ctx);
+                stack.setObject(sp++, constructor);
+                break;
+
+              case OP_NEW_OBJ:
+                stack.setObject(sp++, new JsObject(OBJECT_PROTOTYPE));
+                break;
+
+              case OP_NEG:
+                stack.setNumber(sp - 1, -stack.getNumber(sp - 1));
+                break;
+
+              case OP_NOT:
+                stack.setObject(sp - 1, stack.getBoolean(sp - 1) ? Boolean.FALSE
+                    : Boolean.TRUE);
+                break;
+
+              case OP_OR:
+                stack.setNumber(sp - 2, stack.getInt(sp - 2) | stack.getInt(sp - 1));
+                sp--;
+                break;
+
+              case OP_PUSH_FALSE:
+                stack.setObject(sp++, Boolean.FALSE);
+                break;
+
+              case OP_PUSH_GLOBAL:
+                stack.setObject(sp++, stack.getObject(0));
+                break;
+
+              case OP_PUSH_NULL:
+                stack.setObject(sp++, JsSystem.JS_NULL);
+                break;
 
-            case OP_XOR:
-              stack.setNumber(sp - 2, stack.getInt(sp-2) ^ stack.getInt(sp-1));
-              sp--;
-              break;
+              case OP_PUSH_THIS:
+                stack.setObject(sp++, thisPtr);
+                break;
+
+              case OP_PUSH_TRUE:
+                stack.setObject(sp++, Boolean.TRUE);
+                break;
+
+              case OP_PUSH_UNDEF:
+                stack.setObject(sp++, null);
+                break;
+
+              case OP_RET:
+                // System.out.println("sp: "+sp+" returning:
+                // "+stack.getObject(sp-1));
+                stack.copy(sp - 1, stack, bp - 2);
+                sp = RETURNED;
+                pc = end;
+                break;
 
-            default:
-              throw new RuntimeException("Illegal opcode: '" + ((char) opcode)
-                  + "'/" + opcode);
+              case OP_ROT:
+                stack.copy(sp - 3, stack, sp - 2, 3);
+                stack.copy(sp, stack, sp - 3);
+                break;
+
+              case OP_SET_KC:
+                // ctx: sp-3
+                // property name: sp-2
+                // value to set: sp-1;
+
+                ic = (InlineCache) inlineCaches.get(pc - 1);
+                if (ic == null) {
+                  ic = fn.template.getInlineCache(pc - 1);
+                }
+                if (!ic.set(stack, sp - 3, sp - 2, sp - 1)) {
+                  ctx = stack.getJsObject(sp - 3);
+                  ctx.vmSetOperation(stack, sp - 2, sp - 1);
+                }
+
+                // key = (String) stack.getObject(sp-2);
+                // Object curr = ctx.getRaw(key);
+                // System.out.println("SetMember KC ctx: "+ctx);
+                // System.out.println("SetMember name: "+stack.getObject(sp-2));
+                // System.out.println("SetMember value: "+stack.getObject(sp-1));
+
+                sp -= 2; // leave value on the stack(!)
+                break;
+
+              case OP_SET:
+                ic = (InlineCache) inlineCaches.get(pc - 1);
+                if (ic == null) {
+                  ic = fn.template.getInlineCache(pc - 1);
+                }
+                if (!ic.set(stack, sp - 2, sp - 1, sp - 3)) {
+                  ctx = stack.getJsObject(sp - 2);
+                  ctx.vmSetOperation(stack, sp - 1, sp - 3);
+                }
+
+                // key = (String) stack.getObject(sp-1);
+                // curr = ctx.getRaw(key);
+
+                // System.out.println("SetMember KV ctx: "+ctx);
+                // System.out.println("SetMember name: "+stack.getObject(sp-1));
+                // System.out.println("SetMember value: "+stack.getObject(sp-3));
+
+                sp -= 2; // leave value on the stack(!)
+                break;
+
+              case OP_SHR:
+                stack.setNumber(sp - 2, stack.getInt(sp - 2) >> (stack.getInt(sp - 1) & 0x1f));
+                sp--;
+                break;
+
+              case OP_SHL:
+                stack.setNumber(sp - 2, stack.getInt(sp - 2) << (stack.getInt(sp - 1) & 0x1f));
+                sp--;
+                break;
+
+              case OP_SUB:
+                stack.setNumber(sp - 2, stack.getNumber(sp - 2) - stack.getNumber(sp - 1));
+                sp--;
+                break;
+
+              case OP_SWAP:
+                stack.swap(sp - 1, sp - 2);
+                break;
+
+              case OP_THROW:
+                // line number is added in try..catch below
+                throw new JsException(stack.getJsObject(sp - 1));
+
+              case OP_WITH_START:
+                JsObject nc = new JsObject((JsObject) stack.getObject(sp - 1));
+                nc.scopeChain = context;
+                context = nc;
+                sp--;
+                break;
+
+              case OP_WITH_END:
+                context = context.scopeChain;
+                break;
+
+              case OP_TYPEOF:
+                stack.setObject(sp - 1, TYPE_NAMES[stack.getType(sp-1)]);
+                break;
+
+              case OP_INSTANCEOF:
+                o = stack.getObject(sp - 2);
+                JsObject p = stack.getJsObject(sp - 1);
+                if (p instanceof JsFunction && o instanceof JsObject) {
+                  JsObject j = ((JsObject) o);
+                  p = ((JsFunction) p).prototype;
+                  while (j.__proto__ != null && j.__proto__ != p){
+                    j = j.__proto__;
+                  }
+                  stack.setBoolean(sp - 2, j != null);
+                } else {
+                  stack.setObject(sp - 2, Boolean.FALSE);
+                }
+                sp--;
+                break;
+
+              case OP_XOR:
+                stack.setNumber(sp - 2, stack.getInt(sp-2) ^ stack.getInt(sp-1));
+                sp--;
+                break;
+
+              default:
+                throw new RuntimeException("Illegal opcode: '" + ((char) opcode)
+                    + "'/" + opcode);
+            }
+          }
+        }
+      } catch (Exception e) {
+        JsException jse;
+        if(e instanceof JsException) {
+          jse = (JsException) e;
+        } else {
+          e.printStackTrace();
+          jse = new JsException(e);
+        }
+        if(jse.pc == -1) {
+          jse.pc = pc - 1;
+          jse.lineNumber = fn.getLineNumber(pc - 1);
+        }
+
+        // unwind to the innermost XOP_TRY_CALL of this invocation
+        while (true) {
+          if (profile != null) {
+            profile.depth = frame;
+          }
+          if (depth == 0) {
+            throw jse;
           }
+          f = frames[--depth];
+          profile = f.profile;
+          frame = f.profileFrame;
+          if (f.tryCall) {
+            break;
+          }
+          f.function = null;
+          f.context = null;
+          f.thisPtr = null;
         }
+
+        fn = f.function;
+        jit = fn.template.jit;
+        byteCode = fn.template.byteCode;
+        inlineCaches = fn.template.inlineCaches;
+        stringLiterals = fn.template.stringLiterals;
+        numberLiterals = fn.template.numberLiterals;
+        end = byteCode.length;
+        pc = f.pc;
+        bp = f.bp;
+        sp = f.sp;
+        initialSp = f.initialSp;
+        context = f.context;
+        thisPtr = f.thisPtr;
+        actualParameterCount = f.parameterCount;
+        previousOpcode = f.previousOpcode;
+        f.function = null;
+        f.context = null;
+        f.thisPtr = null;
+        stack.setObject(sp++, jse.getError());
+        stack.setBoolean(sp++, false); // not successfull
       }
-    } catch (Exception e) {
-      JsException jse;
-      if(e instanceof JsException) {
-        jse = (JsException) e;
-      } else {
-        e.printStackTrace();
-        jse = new JsException(e);
+    }
+  }
+
+  /**
+   * Prepares the stack frame for an interpreted call of this function with
+   * parameter 0 at bp: missing parameters are set to undefined and local
+   * variables are initialized. Returns the context for the call, which is
+   * a new object holding the parameters and variables unless all are kept
+   * on the stack.
+   */
+  JsObject enterFrame(JsArray stack, int bp, int actualParameterCount) {
+    FunctionTemplate template = this.template;
+    int expectedParameterCount = template.parameterCount;
+    String[] localNames = template.localNames;
+    for (int i = actualParameterCount; i < expectedParameterCount; i++) {
+      stack.setObject(bp + i, null);
+    }
+
+    JsObject context;
+
+    // note: arguments available here only!
+    if (localNames != null && template.noArguments) {
+      context = new JsObject(JsObject.OBJECT_PROTOTYPE);
+      context.scopeChain = this.context;
+      for (int i = 0; i < localNames.length; i++) {
+        context.addVar(localNames[i], 
+            i < expectedParameterCount ? stack.getObject(bp + i) : null);
       }
-      if(jse.pc == -1) {
-        jse.pc = pc - 1;
-        jse.lineNumber = getLineNumber(pc - 1);
+    } else if (localNames != null){
+      context = new JsObject(JsObject.OBJECT_PROTOTYPE);
+      context.scopeChain = this.context;
+      JsArguments args = new JsArguments(this, context);
+      for (int i = 0; i < expectedParameterCount; i++) {
+        context.addVar(localNames[i], stack.getObject(bp + i));
+        args.addVar(Atoms.indexKey(i), new Integer(i));
+      }
+      for (int i = expectedParameterCount; i < localNames.length; i++) {
+        context.addVar(localNames[i], null);
       }
-      throw jse;
-    } 
-
-    if (sp == initialSp + 1) {
-//    System.out.println("sp: "+sp+" returning: "+stack.getObject(sp-1));
-      stack.copy(sp - 1, stack, bp - 2);
-    } else if (sp == initialSp) {
-//    System.out.println("sp: "+sp+" returning NULL");
-      stack.setObject(bp - 2, null);
+      for (int i = expectedParameterCount; i < actualParameterCount; i++) {
+        args.setObject(Atoms.indexKey(i), stack.getObject(bp+i));
+      }
+      args.setNumber("length", actualParameterCount);
+      args.setObject("callee", this);
+      context.addVar("arguments", args);
     } else {
-      throw new RuntimeException("too much or too little on the stack; sp: "
-          + sp + " bp: " + bp + " varCount: " + varCount + " parCount: "
-          + actualParameterCount);
+      context = this.context;
+      int sp = bp + getFrameSize();
+      for (int i = bp + expectedParameterCount; i < sp; i++) {
+        stack.setObject(i, null);
+      }
     }
-    return;
+    return context;
+  }
+
+  /**
+   * Returns the number of stack slots used for parameters and local
+   * variables; 0 if they are held in a context object.
+   */
+  int getFrameSize() {
+    return template.getFrameSize();
+  }
+
+  /**
+   * Applies the binary operator of the given stack instruction to the stack
+   * entries at the indices a and b for the register instructions, storing
+   * the result at index sp. Entries from sp + 2 on may be overwritten.
+   */
+  static void registerOperation(int operator, JsArray stack, int a, int b, int sp) {
+    stack.copy(b, stack, sp + 1);
+    stack.copy(a, stack, sp);
+    switch (operator) {
+      case OP_ADD:
+        JitRuntime.add(stack, sp + 2);
+        break;
+      case OP_LT:
+        JitRuntime.lessThan(stack, sp + 2);
+        break;
+      case OP_GT:
+        JitRuntime.greaterThan(stack, sp + 2);
+        break;
+      case OP_EQEQ:
+        JitRuntime.equals(stack, sp + 2);
+        break;
+      case OP_EQEQEQ:
+        JitRuntime.strictEquals(stack, sp + 2);
+        break;
+      default:
+        double x = stack.getNumber(sp);
+        double y = stack.getNumber(sp + 1);
+        switch (operator) {
+          case OP_SUB: x = x - y; break;
+          case OP_MUL: x = x * y; break;
+          case OP_DIV: x = x / y; break;
+          case OP_MOD: x = x % y; break;
+          case OP_AND: x = JitRuntime.and(x, y); break;
+          case OP_OR: x = JitRuntime.or(x, y); break;
+          case OP_XOR: x = JitRuntime.xor(x, y); break;
+          case OP_SHL: x = JitRuntime.shl(x, y); break;
+          case OP_SHR: x = JitRuntime.shr(x, y); break;
+          default: x = JitRuntime.asr(x, y);
+        }
+        stack.setNumber(sp, x);
+    }
+  }
+
+  /**
+   * Implements the less than operator for the stack entries at the given
+   * indices, as OP_LT does. a > b is evaluated as b < a.
+   */
+  static boolean lessThan(JsArray stack, int a, int b) {
+    if (stack.isUnboxedNumber(a) && stack.isUnboxedNumber(b)) {
+      return stack.getUnboxedNumber(a) < stack.getUnboxedNumber(b);
+    }
+    if (stack.isNumber(a) && stack.isNumber(b)) {
+      return stack.getNumber(a) < stack.getNumber(b);
+    }
+    return stack.getString(a).compareTo(stack.getString(b)) < 0;
+  }
+
+
+
+
+  /**
+   * Returns the compiled pattern of the regular expression literal with the
+   * given index, compiling it on first use.
+   */
+  RegExpPattern getRegExpPattern(int index) {
+    return template.getRegExpPattern(index);
+  }
+
+  /**
+   * Returns the inline cache for the property access instruction at the
+   * given pc, creating it if necessary.
+   */
+  InlineCache getInlineCache(int pc) {
+    return template.getInlineCache(pc);
+  }
+
+  /**
+   * Returns the function literal with the given index, decoding it first
+   * if necessary.
+   */
+  FunctionTemplate getFunctionLiteral(int i) {
+    return template.getFunctionLiteral(i);
   }
 
   int getLineNumber(int pc) {
-    if(lineNumbers != null && lineNumbers.length > 0) {
-      int i = 0;
-      while(i + 2 < lineNumbers.length && lineNumbers[i+2] <= pc) {
-        i += 2;
-      }
-      return lineNumbers[i + 1];
+    return template == null ? -1 : template.getLineNumber(pc);
+  }
+
+  /**
+   * Returns the name of this function, if known.
+   */
+  String getName() {
+    return template == null ? name : template.name;
+  }
+
+  /**
+   * Returns the prototype property of this function, creating it on first
+   * access for functions defined in script code.
+   */
+  JsObject getPrototype() {
+    if (prototype == null && template != null) {
+      prototype = new JsObject(OBJECT_PROTOTYPE);
     }
-    return -1;
+    return prototype;
   }
-  
-  
+
+  /**
+   * Creates the object for a construction of this function with new.
+   * Functions defined in script code construct plain objects.
+   */
+  JsObject newInstance() {
+    if (factory == null && template != null) {
+      return JsSystem.getInstance().newInstance(JsSystem.FACTORY_ID_OBJECT);
+    }
+    return factory.newInstance(factoryTypeId);
+  }
+
   /**
    * Returns the number of expected (declared) parameters.
    */
   public int getParameterCount(){
-    return expectedParameterCount;
+    return template != null ? template.parameterCount : expectedParameterCount;
+  }
+
+  /**
+   * Native method of functions, bound to its JsFunction at registration.
+   */
+  static final class Native extends NativeMethod {
+    private final int id;
+
+    Native(int id) {
+      this.id = id;
+    }
+
+    public void invoke(JsObject thisPtr, JsArray stack, int sp, int parCount) {
+      if (!(thisPtr instanceof JsFunction)
+          || !((JsFunction) thisPtr).evalFunctionNative(id, stack, sp, parCount)) {
+        // other receivers and ids keep the behavior of the id based dispatch
+        thisPtr.evalNative(id, stack, sp, parCount);
+      }
+    }
+  }
+
+  /**
+   * Dispatches the ids of natives not bound to a NativeMethod.
+   */
+  public void evalNative(int index, JsArray stack, int sp, int parCount) {
+    if (!evalFunctionNative(index, stack, sp, parCount)) {
+      super.evalNative(index, stack, sp, parCount);
+    }
   }
 
-  public void evalNative(int id, JsArray stack, int sp, int pc) {
+  final boolean evalFunctionNative(int id, JsArray stack, int sp, int pc) {
     switch(id){
       case ID_PROTOTYPE:
-        stack.setObject(sp, prototype);
+        stack.setObject(sp, getPrototype());
         break;
 
       case ID_PROTOTYPE_SET:
@@ -921,8 +1636,9 @@ public class JsFunction extends JsObject {
         throw new RuntimeException("NYI");
 
       default:
-        super.evalNative(id, stack, sp, pc);
+        return false;
     }
+    return true;
   }
 
   /**
@@ -930,14 +1646,15 @@ public class JsFunction extends JsObject {
    */
   public String toString() {
     StringBuffer buf = new StringBuffer("function(");
-    for (int i = 0; i < expectedParameterCount; i++) {
+    String[] localNames = template == null ? null : template.localNames;
+    for (int i = 0; i < getParameterCount(); i++) {
       if (i > 0){
         buf.append(", ");
       }
       buf.append(localNames == null ? ("p" + i) : localNames[i]);
     }
     buf.append(") { [");
-    buf.append(byteCode == null ? "native code" : "bytecode");
+    buf.append(template == null ? "native code" : "bytecode");
     buf.append("] }");
     return buf.toString();
   }
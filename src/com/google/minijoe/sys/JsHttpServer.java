@@ -34,10 +34,10 @@ public class JsHttpServer extends JsObject {
    public JsHttpServer(){
 	    super(HTTPSERVER_PROTOTYPE);
 
-	    addVar("start", new JsFunction(ID_START, 1));
-	    addVar("stop", new JsFunction(ID_STOP, 0));
-	    addVar("addOutput", new JsFunction(ID_ADD_OUTPUT, 2));
-	    addVar("create", new JsFunction(ID_CREATE, 0));
+	    addVar("start", new JsFunction(new Native(ID_START), 1));
+	    addVar("stop", new JsFunction(new Native(ID_STOP), 0));
+	    addVar("addOutput", new JsFunction(new Native(ID_ADD_OUTPUT), 2));
+	    addVar("create", new JsFunction(new Native(ID_CREATE), 0));
 	    
 		Properties p = new Properties();
 		p.put("test", "false");
@@ -87,12 +87,56 @@ public class JsHttpServer extends JsObject {
 				event.output().println("<p>Ping OK</p>");
 			}
 		});		
+
+		// profiler control: /profile/start, /profile/stop, /profile/reset,
+		// /profile/stacks (collapsed stacks for flame graphs), /profile/hotspots
+		String[] commands = {"start", "stop", "reset", "stacks", "hotspots"};
+		for (String c : commands) {
+			final String command = c;
+			httpserver.add(new Service() {
+				public String path() {
+					return "/profile/" + command;
+				}
+
+				public void filter(Event event) throws Event, Exception {
+					event.output().print(Profiler.command(command));
+				}
+			});
+		}
 	    }catch(Exception ex){
 	    	ex.printStackTrace();
 	    }
    }
    
+   /**
+    * Native method of HTTP servers, bound to its JsFunction at registration.
+    */
+   static final class Native extends NativeMethod {
+     private final int id;
+
+     Native(int id) {
+       this.id = id;
+     }
+
+     public void invoke(JsObject thisPtr, JsArray stack, int sp, int parCount) {
+       if (!(thisPtr instanceof JsHttpServer)
+           || !((JsHttpServer) thisPtr).evalHttpServerNative(id, stack, sp, parCount)) {
+         // other receivers and ids keep the behavior of the id based dispatch
+         thisPtr.evalNative(id, stack, sp, parCount);
+       }
+     }
+   }
+
+   /**
+    * Dispatches the ids of natives not bound to a NativeMethod.
+    */
    public void evalNative(int index, JsArray stack, int sp, int parCount) {
+     if (!evalHttpServerNative(index, stack, sp, parCount)) {
+       super.evalNative(index, stack, sp, parCount);
+     }
+   }
+
+   final boolean evalHttpServerNative(int index, JsArray stack, int sp, int parCount) {
 	    switch (index) {
 	      case ID_ADD_OUTPUT:
 	    	  try {
@@ -144,8 +188,9 @@ public class JsHttpServer extends JsObject {
 	    	  break;	    	 
 	    	  	    	  
 	      default:
-	          super.evalNative(index, stack, sp, parCount);	    	  
+	          return false;
 	    }
+     return true;
    }
    
 	public static String readFile(String file) throws IOException {
@@ -0,0 +1,692 @@
+// Copyright 2008 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.minijoe.sys;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Enumeration;
+
+/**
+ * Implementation of the JS JSON object. parse() builds JsObject and JsArray
+ * trees in a single pass over a string or a Reader, without an intermediate
+ * document model; stringify() writes into a buffer that is reused by later
+ * calls on the same thread.
+ *
+ * Numbers in arrays are stored unboxed. Property names are atoms, and a name
+ * repeated throughout a document is only created once. The reviver and
+ * replacer arguments and toJSON() methods are not supported.
+ */
+public final class JsJson {
+  static final int ID_PARSE = 700;
+  static final int ID_STRINGIFY = 701;
+
+  /** Number of recently parsed property names remembered; a power of two. */
+  private static final int KEY_CACHE_SIZE = 256;
+
+  /** Size of the buffer used when parsing from a Reader. */
+  private static final int READ_BUFFER_SIZE = 8192;
+
+  /** Output buffers that grew beyond this size are not kept for reuse. */
+  private static final int MAX_REUSED_CAPACITY = 1 << 20;
+
+  /** The Serializer of the current thread. */
+  private static final ThreadLocal SERIALIZER = new ThreadLocal();
+
+  private final char[] buf;
+  private int pos;
+  private int limit;
+  private final Reader reader;
+
+  /** Number of characters read before the current buffer contents. */
+  private int offset;
+
+  private final String[] keys = new String[KEY_CACHE_SIZE];
+  private final StringBuffer sb = new StringBuffer();
+
+  private JsJson(char[] buf, int limit, Reader reader) {
+    this.buf = buf;
+    this.limit = limit;
+    this.reader = reader;
+  }
+
+  /**
+   * Parses the given JSON text. Throws a SyntaxError if the text is not
+   * valid JSON.
+   */
+  public static Object parse(String text) {
+    char[] chars = text.toCharArray();
+    try {
+      return new JsJson(chars, chars.length, null).parseDocument();
+    } catch (IOException e) {
+      // no reader involved
+      throw new RuntimeException(e.toString());
+    }
+  }
+
+  /**
+   * Parses JSON text from the given reader, which is read up to the end.
+   * Throws a SyntaxError if the text is not valid JSON.
+   */
+  public static Object parse(Reader reader) throws IOException {
+    return new JsJson(new char[READ_BUFFER_SIZE], 0, reader).parseDocument();
+  }
+
+  private Object parseDocument() throws IOException {
+    Object value = parseValue();
+    int c = skipWhitespace();
+    if (c != -1) {
+      throw error(c);
+    }
+    return value;
+  }
+
+  /**
+   * Refills the buffer from the reader. Returns false at the end of the
+   * input.
+   */
+  private boolean fill() throws IOException {
+    if (reader == null) {
+      return false;
+    }
+    offset += limit;
+    pos = 0;
+    limit = 0;
+    int n;
+    do {
+      n = reader.read(buf, 0, buf.length);
+    } while (n == 0);
+    if (n < 0) {
+      return false;
+    }
+    limit = n;
+    return true;
+  }
+
+  /**
+   * Returns the next character without consuming it, or -1 at the end of the
+   * input.
+   */
+  private int peek() throws IOException {
+    return pos < limit || fill() ? buf[pos] : -1;
+  }
+
+  /**
+   * Skips whitespace and returns the next character without consuming it,
+   * or -1 at the end of the input.
+   */
+  private int skipWhitespace() throws IOException {
+    while (true) {
+      if (pos == limit && !fill()) {
+        return -1;
+      }
+      char c = buf[pos];
+      if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+        return c;
+      }
+      pos++;
+    }
+  }
+
+  private Object parseValue() throws IOException {
+    int c = skipWhitespace();
+    switch (c) {
+      case '{':
+        return parseObject();
+      case '[':
+        return parseArray();
+      case '"':
+        pos++;
+        return parseString(false);
+      case 't':
+        expect("true");
+        return Boolean.TRUE;
+      case 'f':
+        expect("false");
+        return Boolean.FALSE;
+      case 'n':
+        expect("null");
+        return JsSystem.JS_NULL;
+      default:
+        if (c == '-' || (c >= '0' && c <= '9')) {
+          return JsSystem.valueOf(parseNumber());
+        }
+        throw error(c);
+    }
+  }
+
+  private JsObject parseObject() throws IOException {
+    pos++;
+    JsObject object = new JsObject(JsObject.OBJECT_PROTOTYPE);
+    int c = skipWhitespace();
+    if (c == '}') {
+      pos++;
+      return object;
+    }
+    while (true) {
+      if (c != '"') {
+        throw error(c);
+      }
+      pos++;
+      String key = parseString(true);
+      c = skipWhitespace();
+      if (c != ':') {
+        throw error(c);
+      }
+      pos++;
+      object.addVar(key, parseValue());
+      c = skipWhitespace();
+      if (c == ',') {
+        pos++;
+        c = skipWhitespace();
+      } else if (c == '}') {
+        pos++;
+        return object;
+      } else {
+        throw error(c);
+      }
+    }
+  }
+
+  private JsArray parseArray() throws IOException {
+    pos++;
+    JsArray array = new JsArray();
+    int c = skipWhitespace();
+    if (c == ']') {
+      pos++;
+      return array;
+    }
+    int i = 0;
+    while (true) {
+      c = skipWhitespace();
+      if (c == '-' || (c >= '0' && c <= '9')) {
+        array.setNumber(i++, parseNumber());
+      } else {
+        array.setObject(i++, parseValue());
+      }
+      c = skipWhitespace();
+      if (c == ',') {
+        pos++;
+      } else if (c == ']') {
+        pos++;
+        return array;
+      } else {
+        throw error(c);
+      }
+    }
+  }
+
+  /**
+   * Parses a string; the opening quote has been consumed. Strings without
+   * escapes that are contained in the buffer are taken from it directly.
+   * Property names are returned as atoms.
+   */
+  private String parseString(boolean key) throws IOException {
+    int start = pos;
+    while (pos < limit) {
+      char c = buf[pos];
+      if (c == '"') {
+        String s = key ? key(start, pos - start) : new String(buf, start, pos - start);
+        pos++;
+        return s;
+      }
+      if (c == '\\' || c < ' ') {
+        break;
+      }
+      pos++;
+    }
+
+    // escapes, control characters or the end of the buffer
+    sb.setLength(0);
+    sb.append(buf, start, pos - start);
+    while (true) {
+      if (pos == limit && !fill()) {
+        throw error(-1);
+      }
+      char c = buf[pos];
+      if (c == '"') {
+        pos++;
+        break;
+      }
+      if (c < ' ') {
+        throw error(c);
+      }
+      pos++;
+      if (c == '\\') {
+        if (peek() == -1) {
+          throw error(-1);
+        }
+        c = buf[pos];
+        switch (c) {
+          case '"':
+          case '\\':
+          case '/':
+            break;
+          case 'b':
+            c = '\b';
+            break;
+          case 'f':
+            c = '\f';
+            break;
+          case 'n':
+            c = '\n';
+            break;
+          case 'r':
+            c = '\r';
+            break;
+          case 't':
+            c = '\t';
+            break;
+          case 'u':
+            int v = 0;
+            for (int i = 0; i < 4; i++) {
+              pos++;
+              int d = peek();
+              if (d == -1) {
+                throw error(-1);
+              }
+              d = Character.digit((char) d, 16);
+              if (d < 0) {
+                throw error(buf[pos]);
+              }
+              v = (v << 4) | d;
+            }
+            c = (char) v;
+            break;
+          default:
+            throw error(c);
+        }
+        pos++;
+      }
+      sb.append(c);
+    }
+    return key ? Atoms.intern(sb.toString()) : sb.toString();
+  }
+
+  /**
+   * Returns the atom for the property name at the given buffer position,
+   * looking it up in the key cache first.
+   */
+  private String key(int start, int length) {
+    int h = 0;
+    for (int i = start; i < start + length; i++) {
+      h = 31 * h + buf[i];
+    }
+    int slot = (h ^ (h >>> 16)) & (KEY_CACHE_SIZE - 1);
+    String s = keys[slot];
+    if (s != null && s.hashCode() == h && s.length() == length) {
+      int i = 0;
+      while (i < length && s.charAt(i) == buf[start + i]) {
+        i++;
+      }
+      if (i == length) {
+        return s;
+      }
+    }
+    s = Atoms.intern(new String(buf, start, length));
+    keys[slot] = s;
+    return s;
+  }
+
+  /**
+   * Parses a number. Integers of up to 15 digits contained in the buffer
+   * are converted directly, everything else by NumberConversion.
+   */
+  private double parseNumber() throws IOException {
+    int p = pos;
+    boolean negative = buf[p] == '-';
+    if (negative) {
+      p++;
+    }
+    int digits = p;
+    long value = 0;
+    while (p < limit && p - digits < 16 && buf[p] >= '0' && buf[p] <= '9') {
+      value = value * 10 + (buf[p++] - '0');
+    }
+    int count = p - digits;
+    if (p < limit && count > 0 && count <= 15 && (buf[digits] != '0' || count == 1)) {
+      char c = buf[p];
+      if (c != '.' && c != 'e' && c != 'E' && (c < '0' || c > '9')) {
+        pos = p;
+        return negative ? -(double) value : value;
+      }
+    }
+
+    sb.setLength(0);
+    int c = peek();
+    if (c == '-') {
+      sb.append('-');
+      pos++;
+      c = peek();
+    }
+    if (c == '0') {
+      sb.append('0');
+      pos++;
+      c = peek();
+    } else if (c >= '1' && c <= '9') {
+      c = digits();
+    } else {
+      throw error(c);
+    }
+    if (c == '.') {
+      sb.append('.');
+      pos++;
+      c = peek();
+      if (c < '0' || c > '9') {
+        throw error(c);
+      }
+      c = digits();
+    }
+    if (c == 'e' || c == 'E') {
+      sb.append('e');
+      pos++;
+      c = peek();
+      if (c == '+' || c == '-') {
+        sb.append((char) c);
+        pos++;
+        c = peek();
+      }
+      if (c < '0' || c > '9') {
+        throw error(c);
+      }
+      digits();
+    }
+    return NumberConversion.parseNumber(sb, 0, sb.length());
+  }
+
+  /**
+   * Appends the digits at the current position to sb and returns the
+   * character following them.
+   */
+  private int digits() throws IOException {
+    int c = peek();
+    while (c >= '0' && c <= '9') {
+      sb.append((char) c);
+      pos++;
+      c = peek();
+    }
+    return c;
+  }
+
+  private void expect(String literal) throws IOException {
+    for (int i = 0; i < literal.length(); i++) {
+      int c = peek();
+      if (c != literal.charAt(i)) {
+        throw error(c);
+      }
+      pos++;
+    }
+  }
+
+  private JsException error(int c) {
+    return new JsException(new JsError(JsError.SYNTAX_ERROR_PROTOTYPE, c == -1
+        ? "Unexpected end of JSON input"
+        : "Unexpected token " + (char) c + " in JSON at position " + (offset + pos)));
+  }
+
+  /**
+   * Returns the JSON text for the given value, or null if the value is
+   * undefined or a function. If indent is not null, members of objects and
+   * arrays are written on separate lines, indented by indent per level.
+   * Throws a TypeError for circular structures.
+   */
+  public static String stringify(Object value, String indent) {
+    Serializer serializer = (Serializer) SERIALIZER.get();
+    if (serializer == null) {
+      serializer = new Serializer();
+      SERIALIZER.set(serializer);
+    } else if (serializer.busy) {
+      serializer = new Serializer();
+    }
+    serializer.busy = true;
+    serializer.indent = indent == null || indent.length() == 0 ? null : indent;
+    StringBuffer buf = serializer.buf;
+    buf.setLength(0);
+    try {
+      return serializer.write(value) ? buf.toString() : null;
+    } finally {
+      while (serializer.depth > 0) {
+        serializer.path[--serializer.depth] = null;
+      }
+      if (buf.capacity() > MAX_REUSED_CAPACITY) {
+        serializer.buf = new StringBuffer();
+      }
+      serializer.busy = false;
+    }
+  }
+
+  /**
+   * Writes JSON text. The objects and arrays currently being written are
+   * kept in path for the detection of cycles.
+   */
+  static final class Serializer {
+    StringBuffer buf = new StringBuffer();
+    JsObject[] path = new JsObject[16];
+    int depth;
+    String indent;
+    boolean busy;
+
+    /**
+     * Appends the JSON text for the given value. Returns false and writes
+     * nothing if the value is undefined or a function.
+     */
+    boolean write(Object value) {
+      if (value == null || value instanceof JsFunction) {
+        return false;
+      }
+      if (value == JsSystem.JS_NULL) {
+        buf.append("null");
+      } else if (value instanceof Boolean) {
+        buf.append(((Boolean) value).booleanValue() ? "true" : "false");
+      } else if (value instanceof Double) {
+        writeNumber(((Double) value).doubleValue());
+      } else if (value instanceof JsArray) {
+        writeArray((JsArray) value);
+      } else if (value instanceof JsObject) {
+        JsObject object = (JsObject) value;
+        if (object.value != null) {
+          // Number, String and Boolean objects
+          return write(object.value);
+        }
+        writeObject(object);
+      } else {
+        quote(value.toString());
+      }
+      return true;
+    }
+
+    private void writeNumber(double d) {
+      if (d != d || d == Double.POSITIVE_INFINITY || d == Double.NEGATIVE_INFINITY) {
+        buf.append("null");
+      } else if (d == (int) d) {
+        buf.append((int) d);
+      } else {
+        buf.append(NumberConversion.toString(d));
+      }
+    }
+
+    private void writeArray(JsArray array) {
+      enter(array);
+      buf.append('[');
+      int size = array.size();
+      for (int i = 0; i < size; i++) {
+        if (i > 0) {
+          buf.append(',');
+        }
+        newLine();
+        if (array.getType(i) == JsObject.TYPE_NUMBER) {
+          writeNumber(array.getNumber(i));
+        } else if (!write(array.getObject(i))) {
+          buf.append("null");
+        }
+      }
+      exit();
+      if (size > 0) {
+        newLine();
+      }
+      buf.append(']');
+    }
+
+    private void writeObject(JsObject object) {
+      enter(object);
+      buf.append('{');
+      boolean empty = true;
+      for (Enumeration e = object.keys(); e.hasMoreElements();) {
+        String key = (String) e.nextElement();
+        Object value = object.getObject(key);
+        if (value == null || value instanceof JsFunction) {
+          continue;
+        }
+        if (!empty) {
+          buf.append(',');
+        }
+        newLine();
+        quote(key);
+        buf.append(indent == null ? ":" : ": ");
+        write(value);
+        empty = false;
+      }
+      exit();
+      if (!empty) {
+        newLine();
+      }
+      buf.append('}');
+    }
+
+    private void enter(JsObject object) {
+      for (int i = 0; i < depth; i++) {
+        if (path[i] == object) {
+          throw new JsException(new JsError(JsError.TYPE_ERROR_PROTOTYPE,
+              "Converting circular structure to JSON"));
+        }
+      }
+      if (depth == path.length) {
+        JsObject[] grown = new JsObject[depth * 2];
+        System.arraycopy(path, 0, grown, 0, depth);
+        path = grown;
+      }
+      path[depth++] = object;
+    }
+
+    private void exit() {
+      path[--depth] = null;
+    }
+
+    private void newLine() {
+      if (indent != null) {
+        buf.append('\n');
+        for (int i = 0; i < depth; i++) {
+          buf.append(indent);
+        }
+      }
+    }
+
+    private void quote(String s) {
+      buf.append('"');
+      int start = 0;
+      int len = s.length();
+      for (int i = 0; i < len; i++) {
+        char c = s.charAt(i);
+        if (c >= ' ' && c != '"' && c != '\\') {
+          continue;
+        }
+        buf.append(s, start, i);
+        start = i + 1;
+        switch (c) {
+          case '"':
+            buf.append("\\\"");
+            break;
+          case '\\':
+            buf.append("\\\\");
+            break;
+          case '\b':
+            buf.append("\\b");
+            break;
+          case '\f':
+            buf.append("\\f");
+            break;
+          case '\n':
+            buf.append("\\n");
+            break;
+          case '\r':
+            buf.append("\\r");
+            break;
+          case '\t':
+            buf.append("\\t");
+            break;
+          default:
+            buf.append("\\u00");
+            buf.append(Character.forDigit(c >> 4, 16));
+            buf.append(Character.forDigit(c & 15, 16));
+        }
+      }
+      buf.append(s, start, len);
+      buf.append('"');
+    }
+  }
+
+  /**
+   * Returns the indentation for the space argument of JSON.stringify(): up
+   * to ten blanks for a number, or the first ten characters of a string.
+   */
+  static String indent(Object space) {
+    if (space instanceof JsObject && ((JsObject) space).value != null) {
+      space = ((JsObject) space).value;
+    }
+    if (space instanceof Double) {
+      int n = (int) Math.min(10, ((Double) space).doubleValue());
+      return n < 1 ? null : "          ".substring(0, n);
+    }
+    if (space instanceof String || space instanceof JsRope) {
+      String s = space.toString();
+      return s.length() > 10 ? s.substring(0, 10) : s;
+    }
+    return null;
+  }
+
+  /**
+   * Returns a new JSON object holding parse() and stringify().
+   */
+  static JsObject createJsonObject() {
+    return new JsObject(JsObject.OBJECT_PROTOTYPE)
+        .addVar("parse", new JsFunction(new Native(ID_PARSE), 2))
+        .addVar("stringify", new JsFunction(new Native(ID_STRINGIFY), 3));
+  }
+
+  /**
+   * Native method of the JSON object, bound to its JsFunction at
+   * registration.
+   */
+  static final class Native extends NativeMethod {
+    private final int id;
+
+    Native(int id) {
+      this.id = id;
+    }
+
+    public void invoke(JsObject thisPtr, JsArray stack, int sp, int parCount) {
+      switch (id) {
+        case ID_PARSE:
+          stack.setObject(sp, parse(stack.getString(sp + 2)));
+          break;
+        case ID_STRINGIFY:
+          stack.setObject(sp, stringify(stack.getObject(sp + 2),
+              indent(stack.getObject(sp + 4))));
+          break;
+        default:
+          thisPtr.evalNative(id, stack, sp, parCount);
+      }
+    }
+  }
+}
@@ -3,6 +3,7 @@ package com.google.minijoe.sys;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.Hashtable;
+import java.util.Vector;
 
 /** 
  * Root class for all objects that are accessible via the JavaScript 
@@ -113,6 +114,18 @@ public class JsObject  {
   static final int ID_INIT_DATE = 69;
   
   static final int ID_INIT_SERVER = 90;
+  static final int ID_INIT_REGEXP = 120;
+  static final int ID_INIT_PROMISE = 121;
+
+  // promise statics and timers
+
+  static final int ID_PROMISE_RESOLVE = 122;
+  static final int ID_PROMISE_REJECT = 123;
+  static final int ID_PROMISE_ALL = 124;
+  static final int ID_SET_TIMEOUT = 125;
+  static final int ID_SET_INTERVAL = 126;
+  static final int ID_CLEAR_TIMEOUT = 127;
+  static final int ID_CLEAR_INTERVAL = 128;
 
   // math constants
   
@@ -135,6 +148,7 @@ public class JsObject  {
   //新增加的
   static final int ID_TIMES = 86;
   static final int ID_TOHEX = 87;
+  static final int ID_NUMBER_TO_STRING = 88;
   
   public static final int TYPE_UNDEFINED = 0;
   public static final int TYPE_NULL = 1;
@@ -156,13 +170,13 @@ public class JsObject  {
   //定义Object的prototype
   public static final JsObject OBJECT_PROTOTYPE = 
       new JsObject(null)
-      .addVar("toString", new JsFunction(ID_TO_STRING, 0))
-      .addVar("valueOf", new JsFunction(ID_VALUE_OF, 0))
-      .addVar("toLocaleString", new JsFunction(ID_TO_LOCALE_STRING, 0))
-      .addVar("hasOwnProperty", new JsFunction(ID_HAS_OWN_PROPERTY, 1))
-      .addVar("isPrototypeOf", new JsFunction(ID_IS_PROTOTYPE_OF, 1))
+      .addVar("toString", new JsFunction(new Native(ID_TO_STRING), 0))
+      .addVar("valueOf", new JsFunction(new Native(ID_VALUE_OF), 0))
+      .addVar("toLocaleString", new JsFunction(new Native(ID_TO_LOCALE_STRING), 0))
+      .addVar("hasOwnProperty", new JsFunction(new Native(ID_HAS_OWN_PROPERTY), 1))
+      .addVar("isPrototypeOf", new JsFunction(new Native(ID_IS_PROTOTYPE_OF), 1))
       .addVar("propertyIsEnumerable", 
-          new JsFunction(ID_PROPERTY_IS_ENUMERABLE, 1))
+          new JsFunction(new Native(ID_PROPERTY_IS_ENUMERABLE), 1))
       ;
   
   public static final JsObject BOOLEAN_PROTOTYPE = 
@@ -171,31 +185,33 @@ public class JsObject  {
   //定义Number的prototype
   public static final JsObject NUMBER_PROTOTYPE = 
       new JsObject(OBJECT_PROTOTYPE)
-      .addVar("toFixed", new JsFunction(ID_TO_FIXED, 1))
-      .addVar("toExponential", new JsFunction(ID_TO_EXPONENTIAL, 1))
-      .addVar("toPrecision", new JsFunction(ID_TO_PRECISION, 1))
-      .addVar("times", new JsFunction(ID_TIMES, 1))
-      .addVar("toHex", new JsFunction(ID_TOHEX, 0));
+      .addVar("toString", new JsFunction(new Native(ID_NUMBER_TO_STRING), 1))
+      .addVar("toFixed", new JsFunction(new Native(ID_TO_FIXED), 1))
+      .addVar("toExponential", new JsFunction(new Native(ID_TO_EXPONENTIAL), 1))
+      .addVar("toPrecision", new JsFunction(new Native(ID_TO_PRECISION), 1))
+      .addVar("times", new JsFunction(new Native(ID_TIMES), 1))
+      .addVar("toHex", new JsFunction(new Native(ID_TOHEX), 0));
       ;
 
   public static final JsObject STRING_PROTOTYPE = 
       new JsObject(OBJECT_PROTOTYPE)
-      .addVar("charAt", new JsFunction(ID_CHAR_AT, 1))
-      .addVar("charCodeAt", new JsFunction(ID_CHAR_CODE_AT, 1))
-      .addVar("concat", new JsFunction(ID_CONCAT, 1))
-      .addVar("indexOf", new JsFunction(ID_INDEX_OF, 2))
-      .addVar("lastIndexOf", new JsFunction(ID_LAST_INDEX_OF, 2))
-      .addVar("localeCompare", new JsFunction(ID_LOCALE_COMPARE, 1))
-      .addVar("replace", new JsFunction(ID_REPLACE, 2))
-      .addVar("search", new JsFunction(ID_SEARCH, 1))
-      .addVar("slice", new JsFunction(ID_SLICE, 2))
-      .addVar("split", new JsFunction(ID_SPLIT, 2))
-      .addVar("substring", new JsFunction(ID_SUBSTRING, 2))
-      .addVar("toLowerCase", new JsFunction(ID_TO_LOWER_CASE, 0))
-      .addVar("toLocaleLowerCase", new JsFunction(ID_TO_LOCALE_LOWER_CASE, 0))
-      .addVar("toUpperCase", new JsFunction(ID_TO_UPPER_CASE, 0))
-      .addVar("toLocaleUpperCase", new JsFunction(ID_TO_LOCALE_UPPER_CASE, 0))
-      .addVar("length", new JsFunction(ID_LENGTH, -1))
+      .addVar("charAt", new JsFunction(new Native(ID_CHAR_AT), 1))
+      .addVar("charCodeAt", new JsFunction(new Native(ID_CHAR_CODE_AT), 1))
+      .addVar("concat", new JsFunction(new Native(ID_CONCAT), 1))
+      .addVar("indexOf", new JsFunction(new Native(ID_INDEX_OF), 2))
+      .addVar("lastIndexOf", new JsFunction(new Native(ID_LAST_INDEX_OF), 2))
+      .addVar("localeCompare", new JsFunction(new Native(ID_LOCALE_COMPARE), 1))
+      .addVar("match", new JsFunction(new Native(ID_MATCH), 1))
+      .addVar("replace", new JsFunction(new Native(ID_REPLACE), 2))
+      .addVar("search", new JsFunction(new Native(ID_SEARCH), 1))
+      .addVar("slice", new JsFunction(new Native(ID_SLICE), 2))
+      .addVar("split", new JsFunction(new Native(ID_SPLIT), 2))
+      .addVar("substring", new JsFunction(new Native(ID_SUBSTRING), 2))
+      .addVar("toLowerCase", new JsFunction(new Native(ID_TO_LOWER_CASE), 0))
+      .addVar("toLocaleLowerCase", new JsFunction(new Native(ID_TO_LOCALE_LOWER_CASE), 0))
+      .addVar("toUpperCase", new JsFunction(new Native(ID_TO_UPPER_CASE), 0))
+      .addVar("toLocaleUpperCase", new JsFunction(new Native(ID_TO_LOCALE_UPPER_CASE), 0))
+      .addVar("length", new JsFunction(new Native(ID_LENGTH), null))
       ;
   
   public static final Object[] NO_PARAM = new Object[0];
@@ -203,10 +219,28 @@ public class JsObject  {
   /** Prototype chain */
   protected JsObject __proto__;
   
-  /** Hashtable holding the reverse mapping for native methods. */
-  private Hashtable natives = new Hashtable(10);
-  /** Hashtable holding the properties and values of this object. */
+  /** Hashtable holding the reverse mapping for native methods, created lazily. */
+  private Hashtable natives;
+  /** Shape describing the property layout; null in dictionary mode. */
+  Shape shape;
+  /** Property values of this object, indexed by the slots of the shape. */
+  Object[] slots;
+  /** Hashtable holding the properties and values in dictionary mode. */
   private Hashtable data;
+  /** Number of properties deleted while in shape mode. */
+  private int deletions;
+  /** Root shape for objects using this object as prototype, created lazily. */
+  private Shape derivedRoot;
+  /** 
+   * Incremented whenever an object used as prototype changes structurally,
+   * invalidating all inline caches.
+   */
+  static volatile int prototypeEpoch;
+  /** 
+   * Set for shared builtin objects. Frozen objects reject all modifications
+   * with a TypeError, so they can be used by several realms concurrently.
+   */
+  boolean frozen;
   /** Parent object in scope chain */
   protected JsObject scopeChain;
 
@@ -218,6 +252,55 @@ public class JsObject  {
    */
   public JsObject(JsObject __proto__){
     this.__proto__ = __proto__;
+    this.shape = __proto__ == null ? Shape.ROOT : __proto__.getDerivedRoot();
+  }
+
+  /**
+   * Returns the root shape for objects having this object as prototype.
+   */
+  Shape getDerivedRoot() {
+    Shape root = derivedRoot;
+    if (root == null) {
+      synchronized (this) {
+        if (derivedRoot == null) {
+          derivedRoot = new Shape(this);
+        }
+        root = derivedRoot;
+      }
+    }
+    return root;
+  }
+
+  /**
+   * Invalidates all inline cache entries depending on prototype objects.
+   */
+  static synchronized void invalidatePrototypes() {
+    prototypeEpoch++;
+  }
+
+  /**
+   * Makes this object immutable. Subsequent attempts to add, modify or
+   * delete properties throw a TypeError.
+   */
+  public void freeze() {
+    frozen = true;
+  }
+
+  /**
+   * Throws a TypeError if this object is frozen.
+   */
+  final void checkWritable() {
+    if (frozen) {
+      throw new JsException(new JsError(JsError.TYPE_ERROR_PROTOTYPE,
+          "Cannot modify a frozen builtin object"));
+    }
+  }
+
+  /**
+   * Returns true if this object was frozen.
+   */
+  public boolean isFrozen() {
+    return frozen;
   }
 
   /** 
@@ -225,22 +308,103 @@ public class JsObject  {
    * scope chain or native getters or setters.
    */
   public Object getRawInPrototypeChain(String key){
-    Object result;
-    
-    if (data != null) {
-      result = data.get(key);
-      if (result != null) {
-        return result == UNDEFINED_PLACEHOLDER ? null : result;
+    JsObject o = this;
+    int depth = 0;
+    do {
+      if (o.shape != null) {
+        int i = o.shape.indexOf(key);
+        if (i != -1) {
+          if (ExecutionStats.ENABLED) {
+            ExecutionStats.prototypeLookup(depth);
+          }
+          return o.slots[i];
+        }
+      } else {
+        Object result = o.data.get(key);
+        if (result != null) {
+          if (ExecutionStats.ENABLED) {
+            ExecutionStats.prototypeLookup(depth);
+          }
+          return result == UNDEFINED_PLACEHOLDER ? null : result;
+        }
       }
+      o = o.__proto__;
+      depth++;
+    } while (o != null);
+    if (ExecutionStats.ENABLED) {
+      ExecutionStats.prototypeLookup(depth);
     }
-    
-    if (__proto__ != null) {
-      result = __proto__.getRawInPrototypeChain(key);
-      if (result != null){
-        return result;
+    return null;
+  }
+
+  /**
+   * Determines whether this object has an own property with the given name,
+   * not taking the prototype or scope chain into account.
+   */
+  boolean hasOwnProperty(String key) {
+    return shape != null ? shape.indexOf(key) != -1 : data.get(key) != null;
+  }
+
+  /**
+   * Stores the given value as own property, adding the property if
+   * necessary.
+   */
+  private void putOwn(String key, Object v) {
+    checkWritable();
+    if (shape != null) {
+      int i = shape.indexOf(key);
+      if (i != -1) {
+        slots[i] = v;
+        return;
+      }
+      Shape next = shape.addProperty(key);
+      if (next != null) {
+        addSlot(next, v);
+        return;
       }
+      toDictionary();
+    }
+    data.put(key, v == null ? UNDEFINED_PLACEHOLDER : v);
+    if (derivedRoot != null) {
+      invalidatePrototypes();
+    }
+  }
+
+  /**
+   * Moves this object to the given child shape of its current shape, storing
+   * the given value in the new slot.
+   */
+  void addSlot(Shape next, Object v) {
+    if (slots == null) {
+      slots = new Object[4];
+    } else if (slots.length < next.size) {
+      Object[] newSlots = new Object[slots.length * 2];
+      System.arraycopy(slots, 0, newSlots, 0, slots.length);
+      slots = newSlots;
+    }
+    slots[next.size - 1] = v;
+    shape = next;
+    if (derivedRoot != null) {
+      invalidatePrototypes();
+    }
+  }
+
+  /**
+   * Moves all properties from the slot array to a hashtable. Used when an
+   * object has too many properties or saw too many deletions for the shape
+   * representation to pay off.
+   */
+  private void toDictionary() {
+    data = new Hashtable();
+    for (int i = 0; i < shape.size; i++) {
+      Object v = slots[i];
+      data.put(shape.keyAt(i), v == null ? UNDEFINED_PLACEHOLDER : v);
+    }
+    shape = null;
+    slots = null;
+    if (derivedRoot != null) {
+      invalidatePrototypes();
     }
-    return null;
   }
 
   /**
@@ -255,10 +419,10 @@ public class JsObject  {
       JsFunction nat = (JsFunction) v;
       if (nat.getParameterCount() == -1){
         JsArray stack = new JsArray();
-        evalNative(nat.index, stack, 0, 0);
+        nat.invokeNative(this, stack, 0, 0);
         return stack.getObject(0);
       }
-    } else if (v == null && scopeChain != null) {
+    } else if (v == null && scopeChain != null && !hasOwnProperty(prop)) {
       v = scopeChain.getObject(prop);
     }
     
@@ -341,13 +505,21 @@ public class JsObject  {
    * @return this (for chained calls)
    */
   public JsObject addVar(String prop, Object v){
-    if (data == null){
-      data = new Hashtable();
-    }
-    data.put(prop, v == null ? UNDEFINED_PLACEHOLDER : v);
-    if (v instanceof JsFunction && ((JsFunction) v).index != ID_NOOP) {
-      String key = getNativeKey(((JsFunction) v).factoryTypeId, ((JsFunction) v).index);
+    putOwn(prop, v);
+    if (v instanceof JsFunction && ((JsFunction) v).nativeMethod != null) {
+      // bound natives have no id to look up
+      if (((JsFunction) v).name == null) {
+        ((JsFunction) v).name = prop;
+      }
+    } else if (v instanceof JsFunction && ((JsFunction) v).index != ID_NOOP) {
+      if (((JsFunction) v).template == null && ((JsFunction) v).name == null) {
+        ((JsFunction) v).name = prop;
+      }
+      Integer key = getNativeKey(((JsFunction) v).factoryTypeId, ((JsFunction) v).index);
       if(key != null) {
+        if (natives == null) {
+          natives = new Hashtable(10);
+        }
         if(natives.containsKey(key)) {
           System.out.println("Duplicate native function ID '" +
             ((JsFunction) v).index + "' detected for method '" + prop + "'.");
@@ -366,6 +538,13 @@ public class JsObject  {
     return addVar(prop, new JsFunction(nativePropertyId, parCount));
   }
 
+  /** 
+   * Convenience method for <tt>addVar(prop, new JsFunction(NativeMethod method, int parCount)</tt>
+   */
+  public JsObject addNative(String prop, NativeMethod method, int parCount) {
+    return addVar(prop, new JsFunction(method, parCount));
+  }
+
   /**
    * Get the function's name for a particular ID.
    */
@@ -373,29 +552,33 @@ public class JsObject  {
     return getFunctionNameImpl(getNativeKey(factoryTypeId, index));
   }
 
-  private String getFunctionNameImpl(String key) {
-    String prop = (String) natives.get(key);
+  private String getFunctionNameImpl(Integer key) {
+    String prop = natives == null ? null : (String) natives.get(key);
     if (prop == null && __proto__ != null) {
       prop = __proto__.getFunctionNameImpl(key);
     }
     return prop;
   }
 
-  private String getNativeKey(int factoryTypeId, int index) {
-    return (factoryTypeId <= JsSystem.FACTORY_ID_OBJECT) ?
-      JsSystem.FACTORY_ID_OBJECT + ":" + index : factoryTypeId + ":" + index;
+  private Integer getNativeKey(int factoryTypeId, int index) {
+    if (factoryTypeId <= JsSystem.FACTORY_ID_OBJECT) {
+      factoryTypeId = JsSystem.FACTORY_ID_OBJECT;
+    }
+    return new Integer((factoryTypeId << 16) | (index & 0xffff));
   }
 
   /** 
    * Set the given property to a numeric value.
    */
   public void setNumber(String key, double n) {
-    setObject(key, new Double(n));
+    setObject(key, JsSystem.valueOf(n));
   }
   
   /**
    * Sets the given property to the given value, taking the prototype chain,
-   * scope chain, and setters into account.
+   * scope chain, and setters into account. Frozen objects in the scope chain
+   * are not modified; the property is added to the last object before them
+   * instead, shadowing the frozen value.
    * 
    * @param prop property name
    * @param value value to set
@@ -409,15 +592,13 @@ public class JsObject  {
         JsFunction nat = (JsFunction) old;
         JsArray stack = new JsArray();
         stack.setObject(0, v);
-        evalNative(nat.index + 1, stack, 0, 0);
+        nat.invokeSetter(this, stack, 0);
         return;
-    } else if (old == null && scopeChain != null) {
+    } else if (old == null && scopeChain != null && !scopeChain.frozen
+        && !hasOwnProperty(key)) {
       scopeChain.setObject(key, v);
     } else {
-      if (data == null) {
-        data = new Hashtable();
-      }
-      data.put(key, v == null ? UNDEFINED_PLACEHOLDER : v);
+      putOwn(key, v);
     }
   }
 
@@ -426,10 +607,7 @@ public class JsObject  {
    * prototype or scope chain.
    */
   public Enumeration keys(){
-    if(data == null) {
-      data = new Hashtable();
-    }
-    return data.keys();
+    return shape != null ? shape.keys() : data.keys();
   }
 
   /**
@@ -437,10 +615,14 @@ public class JsObject  {
    * prototype or scope chain.
    */
   public Enumeration elements(){
-    if(data == null) {
-      data = new Hashtable();
+    if (shape == null) {
+      return data.elements();
+    }
+    Vector v = new Vector(shape.size);
+    for (int i = 0; i < shape.size; i++) {
+      v.addElement(slots[i] == null ? UNDEFINED_PLACEHOLDER : slots[i]);
     }
-    return data.elements();
+    return v.elements();
   }
 
   /**
@@ -454,20 +636,44 @@ public class JsObject  {
    * Delete the given property. Returns true if it was actually deleted.
    */
   public boolean delete(String key){
-    if (data == null) {
-      return true;
-    }
-    
     //TODO check whether this covers dontdelete sufficiently
-  
-    Object old = data.get(key);
+    checkWritable();
+
+    Object old;
+    int slot = -1;
+    if (shape != null) {
+      slot = shape.indexOf(key);
+      if (slot == -1) {
+        return true;
+      }
+      old = slots[slot];
+    } else {
+      old = data.get(key);
+    }
+
     boolean isFunc = old instanceof JsFunction;
     if (isFunc && ((JsFunction) old).getParameterCount() == -1){
       return false;
     }
 
-    data.remove(key);
-    if(isFunc) {
+    if (shape == null) {
+      data.remove(key);
+    } else {
+      Shape next = ++deletions > Shape.MAX_DELETIONS
+          ? null : shape.removeProperty(slot);
+      if (next == null) {
+        toDictionary();
+        data.remove(key);
+      } else {
+        System.arraycopy(slots, slot + 1, slots, slot, shape.size - slot - 1);
+        slots[shape.size - 1] = null;
+        shape = next;
+      }
+    }
+    if (derivedRoot != null) {
+      invalidatePrototypes();
+    }
+    if(isFunc && natives != null) {
         natives.remove(getNativeKey(((JsFunction) old).factoryTypeId, ((JsFunction) old).index));
     }
     return true;
@@ -477,9 +683,32 @@ public class JsObject  {
    * Clears all properties.
    */
   public void clear(){
-    if(data != null) {
-      data.clear();
-      data = null;
+    checkWritable();
+    shape = __proto__ == null ? Shape.ROOT : __proto__.getDerivedRoot();
+    slots = null;
+    data = null;
+    deletions = 0;
+    if (derivedRoot != null) {
+      invalidatePrototypes();
+    }
+  }
+
+  /**
+   * Native method of objects, bound to its JsFunction at registration. The
+   * id still selects the implementation in evalObjectNative() or, for
+   * subclasses, evalNative(); see NativeMethod.
+   */
+  static final class Native extends NativeMethod {
+    private final int id;
+
+    Native(int id) {
+      this.id = id;
+    }
+
+    public void invoke(JsObject thisPtr, JsArray stack, int sp, int parCount) {
+      if (!thisPtr.evalObjectNative(id, stack, sp, parCount)) {
+        thisPtr.evalNative(id, stack, sp, parCount);
+      }
     }
   }
 
@@ -489,6 +718,17 @@ public class JsObject  {
    * The assignement value for a setter is stored at stack[sp+0]. 
    */
   public void evalNative(int index, JsArray stack, int sp, int parCount) {
+    if (!evalObjectNative(index, stack, sp, parCount)) {
+      throw new IllegalArgumentException("Unknown native id: " + index 
+          + " this: " + this);
+    }
+  }
+
+  /**
+   * Java implementation of JS object, number, string and global members;
+   * returns false for unknown ids.
+   */
+  final boolean evalObjectNative(int index, JsArray stack, int sp, int parCount) {
     Object obj;
     switch(index) {
       // object methods
@@ -502,6 +742,8 @@ public class JsObject  {
           if (obj instanceof Boolean || obj instanceof Double ||
               obj instanceof String) {
             value = obj;
+          } else if (obj instanceof JsRope) {
+            value = obj.toString();
           } else if (obj instanceof JsObject){
             stack.setObject(sp - 1,  obj);
           }
@@ -521,8 +763,7 @@ public class JsObject  {
         break;
 
       case ID_HAS_OWN_PROPERTY:
-        stack.setBoolean(sp, data != null && 
-            data.get(stack.getString(sp + 2)) != null);
+        stack.setBoolean(sp, hasOwnProperty(stack.getString(sp + 2)));
         break;
         
       case ID_IS_PROTOTYPE_OF:
@@ -549,7 +790,7 @@ public class JsObject  {
         
       case ID_INIT_NUMBER:
         if (isConstruction(stack, sp)) {
-          value = new Double(stack.getNumber(sp + 2));
+          value = JsSystem.valueOf(stack.getNumber(sp + 2));
         } else {
           stack.setNumber(sp, stack.getNumber(sp + 2));
         }
@@ -639,6 +880,63 @@ public class JsObject  {
     	  }
     	 break; 
         
+      case ID_INIT_REGEXP:
+        obj = stack.getObject(sp + 2);
+        RegExpPattern pattern;
+        if (obj instanceof JsRegExp && stack.getObject(sp + 3) == null) {
+          pattern = ((JsRegExp) obj).pattern;
+        } else {
+          pattern = RegExpPattern.compile(
+              obj == null ? "" : JsSystem.toString(obj),
+              stack.getObject(sp + 3) == null ? "" : stack.getString(sp + 3));
+        }
+        if (isConstruction(stack, sp)) {
+          ((JsRegExp) this).init(pattern);
+        } else if (obj instanceof JsRegExp && stack.getObject(sp + 3) == null) {
+          stack.setObject(sp, obj);
+        } else {
+          stack.setObject(sp, new JsRegExp(pattern));
+        }
+        break;
+
+      case ID_INIT_PROMISE:
+        JsPromise promise = isConstruction(stack, sp)
+            ? (JsPromise) this : new JsPromise();
+        promise.init((JsFunction) stack.getObject(sp + 2), stack.getJsObject(0));
+        stack.setObject(sp, promise);
+        break;
+
+      case ID_PROMISE_RESOLVE:
+        stack.setObject(sp, JsPromise.valueOf(stack.getObject(sp + 2)));
+        break;
+
+      case ID_PROMISE_REJECT:
+        promise = new JsPromise();
+        promise.reject(stack.getObject(sp + 2));
+        stack.setObject(sp, promise);
+        break;
+
+      case ID_PROMISE_ALL:
+        stack.setObject(sp, JsPromise.all((JsArray) stack.getObject(sp + 2)));
+        break;
+
+      case ID_SET_TIMEOUT:
+      case ID_SET_INTERVAL:
+        // additional arguments are passed to the callback
+        Object[] arguments = new Object[Math.max(0, parCount - 2)];
+        for (int j = 0; j < arguments.length; j++) {
+          arguments[j] = stack.getObject(sp + 4 + j);
+        }
+        stack.setNumber(sp, EventLoop.current().setTimer(stack.getJsObject(0),
+            (JsFunction) stack.getObject(sp + 2), arguments, stack.getInt(sp + 3),
+            index == ID_SET_INTERVAL));
+        break;
+
+      case ID_CLEAR_TIMEOUT:
+      case ID_CLEAR_INTERVAL:
+        EventLoop.current().clearTimer(stack.getInt(sp + 2));
+        break;
+
       case ID_INIT_DATE:
         // reset to defaults
         if (isConstruction(stack, sp)){
@@ -674,26 +972,13 @@ public class JsObject  {
         break;
         
       case ID_PARSE_INT:
-        String s = stack.getString(sp + 2).trim().toLowerCase();
-        try {
-          if (stack.isNull(sp + 3)) {
-            stack.setInt(sp, s.startsWith("0x") 
-                ? Integer.parseInt(s.substring(2), 16)
-                    : Integer.parseInt(s));
-          } else {
-            stack.setInt(sp, Integer.parseInt(s, stack.getInt(sp + 3)));
-          }
-        } catch (NumberFormatException e) {
-          stack.setInt(sp, 0);
-        }
+        String s = stack.getString(sp + 2);
+        stack.setNumber(sp, NumberConversion.parseInt(s,
+            stack.isNull(sp + 3) ? 0 : stack.getInt(sp + 3)));
         break;
         
       case ID_PARSE_FLOAT:
-        try {
-          stack.setNumber(sp, Double.parseDouble(stack.getString(sp + 2)));
-        } catch (NumberFormatException e) {
-          stack.setNumber(sp, Double.NaN);
-        }
+        stack.setNumber(sp, NumberConversion.parseFloat(stack.getString(sp + 2)));
         break;
         
       case ID_IS_NAN:
@@ -782,7 +1067,7 @@ public class JsObject  {
         break;
         
       case ID_RANDOM:
-        stack.setNumber(sp, JsSystem.random.nextDouble());
+        stack.setNumber(sp, JsSystem.getRandom().nextDouble());
         break;
 
       case ID_ROUND:
@@ -808,7 +1093,8 @@ public class JsObject  {
         for (int i = 0; i < parCount; i++) {
           chars[i] = (char) stack.getInt(sp + 2 + i);
         }
-        stack.setObject(sp, new String(chars));
+        stack.setObject(sp, parCount == 1 ? Atoms.charString(chars[0])
+            : new String(chars));
         break;
         
       // string.prototype methods
@@ -817,7 +1103,7 @@ public class JsObject  {
         s = stack.getString(sp);
         int i = stack.getInt(sp + 2);
         stack.setObject(sp, i < 0 || i >= s.length() 
-            ? "" : s.substring(i, i + 1));
+            ? "" : Atoms.charString(s.charAt(i)));
         break;
         
       case ID_CHAR_CODE_AT:
@@ -828,11 +1114,11 @@ public class JsObject  {
         break;
         
       case ID_CONCAT:
-        buf = new StringBuffer(stack.getString(sp));
+        obj = stack.getStringValue(sp);
         for (i = 0; i < parCount; i++) {
-          buf.append(stack.getString(sp + i + 2));
+          obj = JsRope.concat(obj, stack.getStringValue(sp + i + 2));
         }
-        stack.setObject(sp, buf.toString());
+        stack.setObject(sp, obj);
         break;
         
       case ID_INDEX_OF:
@@ -864,25 +1150,17 @@ public class JsObject  {
         break;
         
       case ID_REPLACE:
-        s = stack.getString(sp);
-        find = stack.getString(sp + 2);
-        String replace = stack.getString(sp + 3);
-        if(!find.equals("")) {
-          StringBuffer sb = new StringBuffer(s);
-          int length = find.length();
-
-          // Parse nodes into vector
-          while ((index = sb.toString().indexOf(find)) >= 0) {
-            sb.delete(index, index + length);
-            sb.insert(index, replace);
-          }
-          stack.setObject(sp, sb.toString());
-          sb = null;
-        }
+        stack.setObject(sp, JsRegExp.replace(stack.getString(sp),
+            stack.getObject(sp + 2), stack.getObject(sp + 3), stack.getObject(0)));
         break;
+
       case ID_MATCH:
+        stack.setObject(sp, JsRegExp.match(stack.getString(sp), stack.getObject(sp + 2)));
+        break;
+
       case ID_SEARCH:
-        throw new RuntimeException("Regexp NYI");
+        stack.setNumber(sp, JsRegExp.search(stack.getString(sp), stack.getObject(sp + 2)));
+        break;
         
       case ID_SLICE:
         s = stack.getString(sp);
@@ -909,12 +1187,16 @@ public class JsObject  {
         
       case ID_SPLIT:
         s = stack.getString(sp);
-        String sep = stack.getString(sp + 2);
         double limit = stack.getNumber(sp + 3);
         if (Double.isNaN(limit) || limit < 1) {
           limit = Double.MAX_VALUE;
         }
-        
+        if (stack.getObject(sp + 2) instanceof JsRegExp) {
+          stack.setObject(sp, JsRegExp.split(s, (JsRegExp) stack.getObject(sp + 2), limit));
+          break;
+        }
+        String sep = stack.getString(sp + 2);
+
         JsArray a = new JsArray();
         if (sep.length() == 0) {
           if(s.length() < limit) {
@@ -971,11 +1253,22 @@ public class JsObject  {
         // cannot be changed!
         break;
 
+      case ID_NUMBER_TO_STRING:
+        double number = JsSystem.toNumber(value);
+        int radix = stack.isNull(sp + 2) ? 10 : stack.getInt(sp + 2);
+        if (radix < 2 || radix > 36) {
+          throw new JsException(new JsError(JsError.RANGE_ERROR_PROTOTYPE,
+              "radix must be between 2 and 36"));
+        }
+        stack.setObject(sp, radix == 10 ? NumberConversion.toString(number)
+            : NumberConversion.toString(number, radix));
+        break;
+
       case ID_TO_EXPONENTIAL:
       case ID_TO_FIXED:
       case ID_TO_PRECISION:
-        stack.setObject(sp, JsSystem.formatNumber(index, 
-            stack.getNumber(sp + 2), stack.getNumber(sp + 3)));
+        stack.setObject(sp, JsSystem.formatNumber(index, JsSystem.toNumber(value),
+            stack.getObject(sp + 2) == null ? Double.NaN : stack.getNumber(sp + 2)));
         break;
         
       //实现times的处理。  
@@ -984,11 +1277,12 @@ public class JsObject  {
 			JsFunction fn = (JsFunction) stack.getObject(sp + 2);
 
 			JsArray stk = new JsArray();
-			stk.setObject(1, this);
-			stk.setObject(2, fn);
 			
 			int times = ((Double) this.value).intValue();//转为int的值
 			for (int idx = 0; idx < times; idx++) {
+				// the return value of the previous call replaces this
+				stk.setObject(1, this);
+				stk.setObject(2, fn);
 				stk.setNumber(3, idx);
 				fn.eval(stk, 1, 1);
 			}    	  
@@ -1097,9 +1391,9 @@ public class JsObject  {
 
                
       default:
-        throw new IllegalArgumentException("Unknown native id: " + index 
-            + " this: " + this);
+        return false;
     }
+    return true;
   }
 
   /** 
@@ -0,0 +1,293 @@
+// Copyright 2008 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.minijoe.sys;
+
+import java.util.Vector;
+
+/**
+ * Javascript Promise object implementation, including the static members
+ * resolve(), reject() and all() of the Promise constructor.
+ *
+ * Reactions registered with then() run as microtasks on the event loop of
+ * the thread that settles the promise, which for promises returned by the
+ * asynchronous natives is the thread running the script. Resolving a
+ * promise with another Promise adopts its state; other "thenable" objects
+ * are treated as plain values.
+ */
+public class JsPromise extends JsObject {
+  private static final int ID_THEN = 600;
+  private static final int ID_CATCH = 601;
+
+  private static final int PENDING = 0;
+  private static final int FULFILLED = 1;
+  private static final int REJECTED = 2;
+
+  /**
+   * Prototype for JS Promise instances.
+   */
+  public static final JsObject PROMISE_PROTOTYPE = new JsObject(OBJECT_PROTOTYPE)
+      .addVar("then", new JsFunction(new Native(ID_THEN), 2))
+      .addVar("catch", new JsFunction(new Native(ID_CATCH), 1));
+
+  private int state = PENDING;
+  private Object value;
+
+  /** Set once the promise has been resolved, possibly with another promise. */
+  private boolean resolved;
+
+  /** Reactions registered while the promise is pending. */
+  private Vector reactions = new Vector();
+
+  /**
+   * Constructs a new pending promise.
+   */
+  public JsPromise() {
+    super(PROMISE_PROTOTYPE);
+  }
+
+  /**
+   * Callback of a promise for another promise, run as microtask once the
+   * source promise is settled. Without handler, the state of the source is
+   * passed on. Elements of Promise.all() collect the value in results.
+   */
+  static final class Reaction implements Runnable {
+    final JsPromise source;
+    final JsPromise target;
+    final JsObject global;
+    final JsFunction onFulfilled;
+    final JsFunction onRejected;
+    JsArray results;
+    int index;
+    int[] remaining;
+
+    Reaction(JsPromise source, JsPromise target, JsObject global,
+        JsFunction onFulfilled, JsFunction onRejected) {
+      this.source = source;
+      this.target = target;
+      this.global = global;
+      this.onFulfilled = onFulfilled;
+      this.onRejected = onRejected;
+    }
+
+    public void run() {
+      if (results != null) {
+        if (source.state == REJECTED) {
+          target.reject(source.value);
+        } else {
+          results.setObject(index, source.value);
+          if (--remaining[0] == 0) {
+            target.resolve(results);
+          }
+        }
+        return;
+      }
+      JsFunction handler = source.state == FULFILLED ? onFulfilled : onRejected;
+      if (handler == null) {
+        target.settle(source.state, source.value);
+        return;
+      }
+      try {
+        target.resolve(handler.call(global, new Object[] {source.value}));
+      } catch (RuntimeException e) {
+        target.reject(reason(e));
+      }
+    }
+  }
+
+  /**
+   * The resolve and reject functions passed to the executor of new Promise().
+   */
+  static final class Resolver extends JsFunction {
+    final JsPromise promise;
+    final boolean reject;
+
+    Resolver(JsPromise promise, boolean reject) {
+      super(ID_NOOP, 1);
+      this.promise = promise;
+      this.reject = reject;
+    }
+
+    public void eval(JsArray stack, int sp, int parCount) {
+      Object value = parCount > 0 ? stack.getObject(sp + 2) : null;
+      if (reject) {
+        promise.reject(value);
+      } else {
+        promise.resolve(value);
+      }
+      stack.setObject(sp, null);
+    }
+  }
+
+  /**
+   * Runs the executor of new Promise(executor) with the resolving functions
+   * of this promise. An exception thrown by the executor rejects the promise.
+   */
+  void init(JsFunction executor, JsObject global) {
+    try {
+      executor.call(global, new Object[] {
+          new Resolver(this, false), new Resolver(this, true)});
+    } catch (RuntimeException e) {
+      reject(reason(e));
+    }
+  }
+
+  /**
+   * Resolves this promise with the given value. If the value is a promise,
+   * this promise follows its state. Has no effect if the promise has already
+   * been resolved.
+   */
+  void resolve(Object value) {
+    if (resolved) {
+      return;
+    }
+    resolved = true;
+    if (value == this) {
+      settle(REJECTED, new JsError(JsError.TYPE_ERROR_PROTOTYPE,
+          "Promise resolved with itself"));
+    } else if (value instanceof JsPromise) {
+      ((JsPromise) value).addReaction(new Reaction((JsPromise) value, this, null, null, null));
+    } else {
+      settle(FULFILLED, value);
+    }
+  }
+
+  /**
+   * Rejects this promise with the given reason, unless it has already been
+   * resolved.
+   */
+  void reject(Object reason) {
+    if (resolved) {
+      return;
+    }
+    resolved = true;
+    settle(REJECTED, reason);
+  }
+
+  private void settle(int state, Object value) {
+    if (this.state != PENDING) {
+      return;
+    }
+    this.state = state;
+    this.value = value;
+    Vector pending = reactions;
+    reactions = null;
+    EventLoop loop = EventLoop.current();
+    for (int i = 0; i < pending.size(); i++) {
+      loop.enqueueMicrotask((Runnable) pending.elementAt(i));
+    }
+  }
+
+  private void addReaction(Reaction reaction) {
+    if (state == PENDING) {
+      reactions.addElement(reaction);
+    } else {
+      EventLoop.current().enqueueMicrotask(reaction);
+    }
+  }
+
+  /**
+   * Returns the promise for the given value: the value itself if it is a
+   * promise, or a promise fulfilled with the value.
+   */
+  static JsPromise valueOf(Object value) {
+    if (value instanceof JsPromise) {
+      return (JsPromise) value;
+    }
+    JsPromise promise = new JsPromise();
+    promise.resolve(value);
+    return promise;
+  }
+
+  /**
+   * Returns the rejection reason for an exception thrown by a callback.
+   */
+  static Object reason(RuntimeException e) {
+    return e instanceof JsException ? ((JsException) e).getError() : new JsError(e);
+  }
+
+  /**
+   * Implements Promise.all(): returns a promise for an array of the values
+   * of all elements of the given array, rejected as soon as one of them is.
+   */
+  static JsPromise all(JsArray values) {
+    JsPromise result = new JsPromise();
+    int count = values.size();
+    JsArray results = new JsArray();
+    if (count == 0) {
+      result.resolve(results);
+      return result;
+    }
+    int[] remaining = {count};
+    for (int i = 0; i < count; i++) {
+      JsPromise element = valueOf(values.getObject(i));
+      Reaction reaction = new Reaction(element, result, null, null, null);
+      reaction.results = results;
+      reaction.index = i;
+      reaction.remaining = remaining;
+      element.addReaction(reaction);
+    }
+    return result;
+  }
+
+  /**
+   * Native method of promises, bound to its JsFunction at registration.
+   */
+  static final class Native extends NativeMethod {
+    private final int id;
+
+    Native(int id) {
+      this.id = id;
+    }
+
+    public void invoke(JsObject thisPtr, JsArray stack, int sp, int parCount) {
+      if (!(thisPtr instanceof JsPromise)
+          || !((JsPromise) thisPtr).evalPromiseNative(id, stack, sp, parCount)) {
+        // other receivers and ids keep the behavior of the id based dispatch
+        thisPtr.evalNative(id, stack, sp, parCount);
+      }
+    }
+  }
+
+  /**
+   * Dispatches the ids of natives not bound to a NativeMethod.
+   */
+  public void evalNative(int index, JsArray stack, int sp, int parCount) {
+    if (!evalPromiseNative(index, stack, sp, parCount)) {
+      super.evalNative(index, stack, sp, parCount);
+    }
+  }
+
+  /**
+   * Java implementation of JS Promise members.
+   */
+  final boolean evalPromiseNative(int index, JsArray stack, int sp, int parCount) {
+    switch (index) {
+      case ID_THEN:
+      case ID_CATCH:
+        Object onFulfilled = index == ID_THEN ? stack.getObject(sp + 2) : null;
+        Object onRejected = stack.getObject(index == ID_THEN ? sp + 3 : sp + 2);
+        JsPromise derived = new JsPromise();
+        addReaction(new Reaction(this, derived, stack.getJsObject(0),
+            onFulfilled instanceof JsFunction ? (JsFunction) onFulfilled : null,
+            onRejected instanceof JsFunction ? (JsFunction) onRejected : null));
+        stack.setObject(sp, derived);
+        break;
+
+      default:
+        return false;
+    }
+    return true;
+  }
+}
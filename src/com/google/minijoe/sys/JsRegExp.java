@@ -0,0 +1,422 @@
+// Copyright 2008 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.minijoe.sys;
+
+/**
+ * Javascript RegExp object implementation. Also contains the regular
+ * expression based parts of String.prototype.match(), search(), replace()
+ * and split().
+ *
+ * The compiled pattern is shared by all RegExp objects created from the
+ * same literal, so evaluating a literal in a loop only allocates the object
+ * holding lastIndex.
+ */
+public class JsRegExp extends JsObject {
+  private static final int ID_EXEC = 500;
+  private static final int ID_TEST = 501;
+  private static final int ID_SOURCE = 502;
+  private static final int ID_SOURCE_SET = 503;
+  private static final int ID_GLOBAL = 504;
+  private static final int ID_GLOBAL_SET = 505;
+  private static final int ID_IGNORE_CASE = 506;
+  private static final int ID_IGNORE_CASE_SET = 507;
+  private static final int ID_MULTILINE = 508;
+  private static final int ID_MULTILINE_SET = 509;
+
+  private static final Double ZERO = JsSystem.valueOf(0);
+
+  /**
+   * Prototype for JS RegExp instances.
+   */
+  public static final JsObject REGEXP_PROTOTYPE = new JsObject(OBJECT_PROTOTYPE)
+      .addVar("exec", new JsFunction(new Native(ID_EXEC), 1))
+      .addVar("test", new JsFunction(new Native(ID_TEST), 1))
+      .addVar("source", new JsFunction(new Native(ID_SOURCE), null))
+      .addVar("global", new JsFunction(new Native(ID_GLOBAL), null))
+      .addVar("ignoreCase", new JsFunction(new Native(ID_IGNORE_CASE), null))
+      .addVar("multiline", new JsFunction(new Native(ID_MULTILINE), null));
+
+  RegExpPattern pattern;
+
+  /**
+   * Constructs a new JS RegExp object; the pattern is set by the
+   * constructor function.
+   */
+  public JsRegExp(JsObject prototype) {
+    super(prototype);
+  }
+
+  /**
+   * Constructs a new JS RegExp object for the given compiled pattern.
+   */
+  JsRegExp(RegExpPattern pattern) {
+    super(REGEXP_PROTOTYPE);
+    init(pattern);
+  }
+
+  void init(RegExpPattern pattern) {
+    this.pattern = pattern;
+    setObject("lastIndex", ZERO);
+  }
+
+  /**
+   * Native method of regular expressions, bound to its JsFunction at registration.
+   */
+  static final class Native extends NativeMethod {
+    private final int id;
+
+    Native(int id) {
+      this.id = id;
+    }
+
+    public void invoke(JsObject thisPtr, JsArray stack, int sp, int parCount) {
+      if (!(thisPtr instanceof JsRegExp)
+          || !((JsRegExp) thisPtr).evalRegExpNative(id, stack, sp, parCount)) {
+        // other receivers and ids keep the behavior of the id based dispatch
+        thisPtr.evalNative(id, stack, sp, parCount);
+      }
+    }
+  }
+
+  /**
+   * Dispatches the ids of natives not bound to a NativeMethod.
+   */
+  public void evalNative(int index, JsArray stack, int sp, int parCount) {
+    if (!evalRegExpNative(index, stack, sp, parCount)) {
+      super.evalNative(index, stack, sp, parCount);
+    }
+  }
+
+  /**
+   * Java implementation of JS RegExp members.
+   */
+  final boolean evalRegExpNative(int index, JsArray stack, int sp, int parCount) {
+    switch (index) {
+      case ID_EXEC:
+        stack.setObject(sp, exec(stack.getString(sp + 2)));
+        break;
+
+      case ID_TEST:
+        stack.setBoolean(sp, test(stack.getString(sp + 2)));
+        break;
+
+      case ID_SOURCE:
+        stack.setObject(sp, pattern.source);
+        break;
+
+      case ID_GLOBAL:
+        stack.setBoolean(sp, pattern.global);
+        break;
+
+      case ID_IGNORE_CASE:
+        stack.setBoolean(sp, pattern.ignoreCase);
+        break;
+
+      case ID_MULTILINE:
+        stack.setBoolean(sp, pattern.multiline);
+        break;
+
+      case ID_SOURCE_SET:
+      case ID_GLOBAL_SET:
+      case ID_IGNORE_CASE_SET:
+      case ID_MULTILINE_SET:
+        // read only
+        break;
+
+      default:
+        return false;
+    }
+    return true;
+  }
+
+  /**
+   * Returns the position where a search starts: lastIndex for global
+   * expressions, 0 otherwise.
+   */
+  private int getStart() {
+    return pattern.global ? getInt("lastIndex") : 0;
+  }
+
+  /**
+   * Finds the next match in the given string, updating lastIndex for
+   * global expressions.
+   */
+  private boolean find(RegExpPattern.Search search) {
+    int start = getStart();
+    if (start >= 0 && search.find(start)) {
+      if (pattern.global) {
+        setNumber("lastIndex", search.end());
+      }
+      return true;
+    }
+    if (pattern.global) {
+      setObject("lastIndex", ZERO);
+    }
+    return false;
+  }
+
+  /**
+   * Implements RegExp.prototype.exec(). Returns the match array or JS_NULL.
+   */
+  Object exec(String s) {
+    RegExpPattern.Search search = pattern.search(s);
+    return find(search) ? createMatchArray(search) : JsSystem.JS_NULL;
+  }
+
+  /**
+   * Implements RegExp.prototype.test().
+   */
+  boolean test(String s) {
+    return find(pattern.search(s));
+  }
+
+  /**
+   * Returns an array holding the matched string and the captured groups of
+   * the current match, and the index and input properties.
+   */
+  private static JsArray createMatchArray(RegExpPattern.Search search) {
+    JsArray a = new JsArray();
+    int count = search.groupCount();
+    for (int i = 0; i <= count; i++) {
+      a.setObject(i, search.group(i));
+    }
+    a.setNumber("index", search.start());
+    a.setObject("input", search.input);
+    return a;
+  }
+
+  /**
+   * Converts the argument of a String method to a RegExp object, creating a
+   * new one if it is not a RegExp already.
+   */
+  static JsRegExp toRegExp(Object o) {
+    if (o instanceof JsRegExp) {
+      return (JsRegExp) o;
+    }
+    return new JsRegExp(RegExpPattern.compile(o == null ? "" : JsSystem.toString(o), ""));
+  }
+
+  /**
+   * Implements String.prototype.match().
+   */
+  static Object match(String s, Object regexp) {
+    JsRegExp re = toRegExp(regexp);
+    if (!re.pattern.global) {
+      return re.exec(s);
+    }
+
+    JsArray result = new JsArray();
+    RegExpPattern.Search search = re.pattern.search(s);
+    int pos = 0;
+    while (search.find(pos)) {
+      result.setObject(result.size(), search.group(0));
+      pos = search.end() == search.start() ? search.end() + 1 : search.end();
+    }
+    re.setObject("lastIndex", ZERO);
+    return result.size() == 0 ? JsSystem.JS_NULL : (Object) result;
+  }
+
+  /**
+   * Implements String.prototype.search().
+   */
+  static int search(String s, Object regexp) {
+    RegExpPattern.Search search = toRegExp(regexp).pattern.search(s);
+    return search.find(0) ? search.start() : -1;
+  }
+
+  /**
+   * Implements String.prototype.replace() in a single pass over the input.
+   * A string pattern replaces all occurrences, as MiniJoe always did; a
+   * regular expression replaces the first match unless it is global.
+   *
+   * @param replacement a function or a string, which may contain the $
+   *     patterns $$, $&amp;, $`, $' and $n
+   * @param global the global object, used as this for function calls
+   */
+  static String replace(String s, Object find, Object replacement, Object global) {
+    RegExpPattern pattern;
+    boolean all;
+    if (find instanceof JsRegExp) {
+      JsRegExp re = (JsRegExp) find;
+      pattern = re.pattern;
+      all = pattern.global;
+      if (all) {
+        re.setObject("lastIndex", ZERO);
+      }
+    } else {
+      String f = JsSystem.toString(find);
+      if (f.length() == 0) {
+        return s;
+      }
+      pattern = RegExpPattern.forString(f);
+      all = true;
+    }
+
+    JsFunction fn = replacement instanceof JsFunction ? (JsFunction) replacement : null;
+    String str = fn == null ? JsSystem.toString(replacement) : null;
+    boolean plain = str != null && str.indexOf('$') == -1;
+    JsArray stack = fn == null ? null : new JsArray();
+
+    RegExpPattern.Search search = pattern.search(s);
+    StringBuffer buf = null;
+    int last = 0;
+    int pos = 0;
+    while (search.find(pos)) {
+      int start = search.start();
+      int end = search.end();
+      if (buf == null) {
+        buf = new StringBuffer(s.length() + 16);
+      }
+      buf.append(s, last, start);
+
+      if (plain) {
+        buf.append(str);
+      } else if (str != null) {
+        appendExpansion(buf, str, search);
+      } else {
+        int count = search.groupCount();
+        stack.setObject(0, global);
+        stack.setObject(1, global);
+        stack.setObject(2, fn);
+        for (int i = 0; i <= count; i++) {
+          stack.setObject(3 + i, search.group(i));
+        }
+        stack.setNumber(4 + count, start);
+        stack.setObject(5 + count, s);
+        fn.eval(stack, 1, count + 3);
+        buf.append(JsSystem.toString(stack.getObject(1)));
+      }
+
+      last = end;
+      if (!all) {
+        break;
+      }
+      pos = end == start ? end + 1 : end;
+    }
+
+    if (buf == null) {
+      return s;
+    }
+    buf.append(s, last, s.length());
+    return buf.toString();
+  }
+
+  /**
+   * Appends the replacement string, expanding $ patterns.
+   */
+  private static void appendExpansion(StringBuffer buf, String str,
+      RegExpPattern.Search search) {
+    int len = str.length();
+    int count = search.groupCount();
+    for (int i = 0; i < len; i++) {
+      char c = str.charAt(i);
+      if (c != '$' || i + 1 == len) {
+        buf.append(c);
+        continue;
+      }
+      char next = str.charAt(i + 1);
+      if (next == '$') {
+        buf.append('$');
+        i++;
+      } else if (next == '&') {
+        buf.append(search.input, search.start(), search.end());
+        i++;
+      } else if (next == '`') {
+        buf.append(search.input, 0, search.start());
+        i++;
+      } else if (next == '\'') {
+        buf.append(search.input, search.end(), search.input.length());
+        i++;
+      } else if (next >= '0' && next <= '9') {
+        int n = next - '0';
+        int digits = 1;
+        if (i + 2 < len) {
+          char third = str.charAt(i + 2);
+          int nn = n * 10 + third - '0';
+          if (third >= '0' && third <= '9' && nn >= 1 && nn <= count) {
+            n = nn;
+            digits = 2;
+          }
+        }
+        if (n >= 1 && n <= count) {
+          String group = search.group(n);
+          if (group != null) {
+            buf.append(group);
+          }
+          i += digits;
+        } else {
+          buf.append(c);
+        }
+      } else {
+        buf.append(c);
+      }
+    }
+  }
+
+  /**
+   * Implements String.prototype.split() for a regular expression separator
+   * in a single pass over the input. Captured groups are included in the
+   * result.
+   */
+  static JsArray split(String s, JsRegExp separator, double limit) {
+    JsArray a = new JsArray();
+    RegExpPattern.Search search = separator.pattern.search(s);
+    int len = s.length();
+
+    if (len == 0) {
+      if (!search.find(0)) {
+        a.setObject(0, s);
+      }
+      return a;
+    }
+
+    int p = 0;
+    int q = 0;
+    while (q < len && search.find(q)) {
+      int start = search.start();
+      int end = search.end();
+      if (start >= len) {
+        break;
+      }
+      if (end == p) {
+        // empty match at the end of the previous one
+        q = start + 1;
+        continue;
+      }
+      a.setObject(a.size(), s.substring(p, start));
+      if (a.size() >= limit) {
+        return a;
+      }
+      int count = search.groupCount();
+      for (int i = 1; i <= count; i++) {
+        a.setObject(a.size(), search.group(i));
+        if (a.size() >= limit) {
+          return a;
+        }
+      }
+      p = end;
+      q = end == start ? end + 1 : end;
+    }
+    a.setObject(a.size(), s.substring(p));
+    return a;
+  }
+
+  /**
+   * Returns the literal representation of this regular expression.
+   */
+  public String toString() {
+    return pattern == null ? "/(?:)/" : pattern.toString();
+  }
+}
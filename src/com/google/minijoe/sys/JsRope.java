@@ -0,0 +1,133 @@
+// Copyright 2008 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.minijoe.sys;
+
+/**
+ * Lazy string concatenation. A rope is a Javascript string value built by
+ * the + operator or String.concat(); it just references both parts, so
+ * building a long string piece by piece takes linear instead of quadratic
+ * time. The characters are only copied when the string content is needed
+ * (toString(), which is what JsArray.getString() and JsSystem.toString()
+ * use), into a single char array of the final size. The flat string is
+ * kept.
+ *
+ * Ropes built by bootstrap scripts are part of the builtins shared by all
+ * realms, so several threads may flatten the same rope at once. The parts
+ * are never modified, and the flat string is published through a volatile
+ * field; a thread that loses the race just computes the same string again.
+ *
+ * Ropes are treated as strings wherever the VM checks for String values.
+ */
+final class JsRope implements CharSequence {
+
+  /**
+   * Concatenations with a shorter result are performed immediately; a rope
+   * would not pay off for them.
+   */
+  static final int MIN_LENGTH = 256;
+
+  /** Left part (String or JsRope). */
+  private final Object left;
+
+  /** Right part (String or JsRope). */
+  private final Object right;
+
+  /** Flat string content; null until needed. */
+  private volatile String flat;
+
+  private final int length;
+
+  private JsRope(Object left, Object right, int length) {
+    this.left = left;
+    this.right = right;
+    this.length = length;
+  }
+
+  /**
+   * Returns the concatenation of a and b, each of which must be a String
+   * or a JsRope.
+   */
+  static Object concat(Object a, Object b) {
+    int lengthA = ((CharSequence) a).length();
+    int lengthB = ((CharSequence) b).length();
+    if (lengthA == 0) {
+      return b;
+    }
+    if (lengthB == 0) {
+      return a;
+    }
+    if (lengthA + lengthB < MIN_LENGTH) {
+      return a.toString().concat(b.toString());
+    }
+    return new JsRope(a, b, lengthA + lengthB);
+  }
+
+  public int length() {
+    return length;
+  }
+
+  public char charAt(int index) {
+    return toString().charAt(index);
+  }
+
+  public CharSequence subSequence(int start, int end) {
+    return toString().substring(start, end);
+  }
+
+  /**
+   * Returns the flat string, copying the characters of all parts into a
+   * single buffer on first use. The tree is traversed right to left with
+   * an explicit stack, so degenerated trees built by long += loops don't
+   * cause deep recursion.
+   */
+  public String toString() {
+    String result = flat;
+    if (result != null) {
+      return result;
+    }
+
+    char[] buf = new char[length];
+    int pos = length;
+    Object[] pending = new Object[16];
+    int count = 0;
+    Object node = this;
+
+    while (true) {
+      String s = node instanceof JsRope ? ((JsRope) node).flat : (String) node;
+      if (s == null) {
+        JsRope rope = (JsRope) node;
+        if (count == pending.length) {
+          Object[] newPending = new Object[count * 2];
+          System.arraycopy(pending, 0, newPending, 0, count);
+          pending = newPending;
+        }
+        pending[count++] = rope.left;
+        node = rope.right;
+      } else {
+        pos -= s.length();
+        s.getChars(0, s.length(), buf, pos);
+        if (count == 0) {
+          break;
+        }
+        node = pending[--count];
+        pending[count] = null;
+      }
+    }
+
+    result = new String(buf);
+    flat = result;
+    return result;
+  }
+}
@@ -46,14 +46,37 @@ public class JsSystem implements JsObjectFactory {
   static final int FACTORY_ID_FUNCTION = 13;
   
   static final int FACTORY_ID_HTTPSERVER = 14;
+  static final int FACTORY_ID_REGEXP = 15;
+  static final int FACTORY_ID_PROMISE = 16;
 
   static final Double NAN = new Double(Double.NaN);
   static final Double INFINITY = new Double(Double.POSITIVE_INFINITY);
   static final double LN2 = 0.6931471805599453;
  
+  /** Smallest integer with a preallocated boxed value. */
+  private static final int SMALL_NUMBER_MIN = -128;
+
+  /** Boxed values of the integers from SMALL_NUMBER_MIN to 1023. */
+  private static final Double[] SMALL_NUMBERS = new Double[1024 - SMALL_NUMBER_MIN];
+
+  static {
+    for (int i = 0; i < SMALL_NUMBERS.length; i++) {
+      SMALL_NUMBERS[i] = new Double(i + SMALL_NUMBER_MIN);
+    }
+  }
+
   static Random random = new Random();
   static JsSystem instance = new JsSystem();
 
+  /**
+   * Returns the random number generator of the realm executing on the
+   * current thread, or the shared generator outside of realms.
+   */
+  static Random getRandom() {
+    Realm realm = Realm.current();
+    return realm == null ? random : realm.random;
+  }
+
   /** 
    * Returns the singleton instance of the factory 
    */
@@ -68,87 +91,99 @@ public class JsSystem implements JsObjectFactory {
     JsObject global = new JsObject(null);
     
     global.addVar("Date", new JsFunction(instance, JsSystem.FACTORY_ID_DATE, 
-        JsDate.DATE_PROTOTYPE, JsObject.ID_INIT_DATE, 7)
-      .addVar("parse", new JsFunction(JsDate.ID_PARSE, 1))
-      .addVar("UTC", new JsFunction(JsDate.ID_UTC, 7)))
-     .addVar("HttpServer", new JsFunction(instance, JsSystem.FACTORY_ID_HTTPSERVER, JsHttpServer.HTTPSERVER_PROTOTYPE, JsObject.ID_INIT_SERVER, 0))
-        .addVar("create", new JsFunction(JsHttpServer.ID_CREATE, 0))
+        JsDate.DATE_PROTOTYPE, new JsObject.Native(JsObject.ID_INIT_DATE), 7)
+      .addVar("parse", new JsFunction(new JsObject.Native(JsDate.ID_PARSE), 1))
+      .addVar("UTC", new JsFunction(new JsObject.Native(JsDate.ID_UTC), 7)))
+     .addVar("HttpServer", new JsFunction(instance, JsSystem.FACTORY_ID_HTTPSERVER, JsHttpServer.HTTPSERVER_PROTOTYPE, new JsObject.Native(JsObject.ID_INIT_SERVER), 0))
+        .addVar("create", new JsFunction(new JsHttpServer.Native(JsHttpServer.ID_CREATE), 0))
+    .addVar("RegExp", new JsFunction(instance, JsSystem.FACTORY_ID_REGEXP,
+        JsRegExp.REGEXP_PROTOTYPE, new JsObject.Native(JsObject.ID_INIT_REGEXP), 2))
+    .addVar("Promise", new JsFunction(instance, JsSystem.FACTORY_ID_PROMISE,
+        JsPromise.PROMISE_PROTOTYPE, new JsObject.Native(JsObject.ID_INIT_PROMISE), 1)
+      .addVar("resolve", new JsFunction(new JsObject.Native(JsObject.ID_PROMISE_RESOLVE), 1))
+      .addVar("reject", new JsFunction(new JsObject.Native(JsObject.ID_PROMISE_REJECT), 1))
+      .addVar("all", new JsFunction(new JsObject.Native(JsObject.ID_PROMISE_ALL), 1)))
     .addVar("Array", new JsFunction(instance, JsSystem.FACTORY_ID_ARRAY, 
-        JsArray.PROTOTYPE, JsObject.ID_INIT_ARRAY, 1))
+        JsArray.PROTOTYPE, new JsObject.Native(JsObject.ID_INIT_ARRAY), 1))
     .addVar("Object", new JsFunction(instance, JsSystem.FACTORY_ID_OBJECT, 
-        JsObject.OBJECT_PROTOTYPE,  JsObject.ID_INIT_OBJECT, 1))
+        JsObject.OBJECT_PROTOTYPE,  new JsObject.Native(JsObject.ID_INIT_OBJECT), 1))
     .addVar("Boolean", new JsFunction(instance, JsSystem.FACTORY_ID_BOOLEAN,
-        JsObject.BOOLEAN_PROTOTYPE, JsObject.ID_INIT_BOOLEAN, 1))
+        JsObject.BOOLEAN_PROTOTYPE, new JsObject.Native(JsObject.ID_INIT_BOOLEAN), 1))
     .addVar("Number", new JsFunction(instance, JsSystem.FACTORY_ID_NUMBER,
-        JsObject.NUMBER_PROTOTYPE, JsObject.ID_INIT_NUMBER, 1)
+        JsObject.NUMBER_PROTOTYPE, new JsObject.Native(JsObject.ID_INIT_NUMBER), 1)
           .addVar("MAX_VALUE", new Double(Double.MAX_VALUE))
           .addVar("MIN_VALUE", new Double(Double.MIN_VALUE))
           .addVar("NaN", NAN)
           .addVar("NEGATIVE_INFINITY", new Double(Double.NEGATIVE_INFINITY))
           .addVar("POSITIVE_INFINITY", INFINITY))
     .addVar("String", new JsFunction(instance, JsSystem.FACTORY_ID_STRING,
-        JsObject.STRING_PROTOTYPE, JsObject.ID_INIT_STRING, 1)
-      .addVar("fromCharCode", new JsFunction(JsObject.ID_FROM_CHAR_CODE, 1)))
+        JsObject.STRING_PROTOTYPE, new JsObject.Native(JsObject.ID_INIT_STRING), 1)
+      .addVar("fromCharCode", new JsFunction(new JsObject.Native(JsObject.ID_FROM_CHAR_CODE), 1)))
     .addVar("Function", new JsFunction(instance, JsSystem.FACTORY_ID_FUNCTION,
-        JsFunction.FUNCTION_PROTOTYPE, JsObject.ID_INIT_FUNCTION, 1)
-      .addVar("fromCharCode", new JsFunction(JsObject.ID_FROM_CHAR_CODE, 1)))
+        JsFunction.FUNCTION_PROTOTYPE, new JsObject.Native(JsObject.ID_INIT_FUNCTION), 1)
+      .addVar("fromCharCode", new JsFunction(new JsObject.Native(JsObject.ID_FROM_CHAR_CODE), 1)))
     .addVar("NaN", NAN)
     .addVar("Infinity", INFINITY)
     .addVar("undefined", null)
-    .addVar("parseInt", new JsFunction(JsObject.ID_PARSE_INT, 2))
-    .addVar("parseFloat", new JsFunction(JsObject.ID_PARSE_FLOAT, 1))
-    .addVar("isNaN", new JsFunction(JsObject.ID_IS_NAN, 1))
-    .addVar("isFinite", new JsFunction(JsObject.ID_IS_FINITE, 1)) 
-    .addVar("decodeURI", new JsFunction(JsObject.ID_DECODE_URI, 1))
-    .addVar("print", new JsFunction(JsObject.ID_PRINT, 1))
+    .addVar("parseInt", new JsFunction(new JsObject.Native(JsObject.ID_PARSE_INT), 2))
+    .addVar("parseFloat", new JsFunction(new JsObject.Native(JsObject.ID_PARSE_FLOAT), 1))
+    .addVar("isNaN", new JsFunction(new JsObject.Native(JsObject.ID_IS_NAN), 1))
+    .addVar("isFinite", new JsFunction(new JsObject.Native(JsObject.ID_IS_FINITE), 1)) 
+    .addVar("decodeURI", new JsFunction(new JsObject.Native(JsObject.ID_DECODE_URI), 1))
+    .addVar("print", new JsFunction(new JsObject.Native(JsObject.ID_PRINT), 1))
+    .addVar("setTimeout", new JsFunction(new JsObject.Native(JsObject.ID_SET_TIMEOUT), 2))
+    .addVar("setInterval", new JsFunction(new JsObject.Native(JsObject.ID_SET_INTERVAL), 2))
+    .addVar("clearTimeout", new JsFunction(new JsObject.Native(JsObject.ID_CLEAR_TIMEOUT), 1))
+    .addVar("clearInterval", new JsFunction(new JsObject.Native(JsObject.ID_CLEAR_INTERVAL), 1))
     .addVar("decodeURIComponent", new JsFunction(
-        JsObject.ID_DECODE_URI_COMPONENT, 1))
-    .addVar("encodeURI", new JsFunction(JsObject.ID_ENCODE_URI, 1))
+        new JsObject.Native(JsObject.ID_DECODE_URI_COMPONENT), 1))
+    .addVar("encodeURI", new JsFunction(new JsObject.Native(JsObject.ID_ENCODE_URI), 1))
     .addVar("encodeURIComponent", new JsFunction(
-        JsObject.ID_ENCODE_URI_COMPONENT, 1))
+        new JsObject.Native(JsObject.ID_ENCODE_URI_COMPONENT), 1))
     .addVar("Error", new JsFunction(instance, FACTORY_ID_ERROR, 
-        JsError.ERROR_PROTOTYPE, JsError.ID_INIT_ERROR, 1))
+        JsError.ERROR_PROTOTYPE, new JsObject.Native(JsError.ID_INIT_ERROR), 1))
     .addVar("EvalError", new JsFunction(instance, FACTORY_ID_EVAL_ERROR, 
-        JsError.EVAL_ERROR_PROTOTYPE, JsError.ID_INIT_ERROR, 1))
+        JsError.EVAL_ERROR_PROTOTYPE, new JsObject.Native(JsError.ID_INIT_ERROR), 1))
     .addVar("RangeError", new JsFunction(instance, FACTORY_ID_RANGE_ERROR, 
-        JsError.RANGE_ERROR_PROTOTYPE, JsError.ID_INIT_ERROR, 1))
+        JsError.RANGE_ERROR_PROTOTYPE, new JsObject.Native(JsError.ID_INIT_ERROR), 1))
     .addVar("ReferenceError", new JsFunction(instance, 
         FACTORY_ID_REFERENCE_ERROR, JsError.REFERENCE_ERROR_PROTOTYPE, 
-        JsError.ID_INIT_ERROR, 1))
+        new JsObject.Native(JsError.ID_INIT_ERROR), 1))
     .addVar("SyntaxError", new JsFunction(instance, FACTORY_ID_SYNTAX_ERROR, 
-        JsError.SYNTAX_ERROR_PROTOTYPE, JsError.ID_INIT_ERROR, 1))
+        JsError.SYNTAX_ERROR_PROTOTYPE, new JsObject.Native(JsError.ID_INIT_ERROR), 1))
     .addVar("TypeError", new JsFunction(instance, FACTORY_ID_TYPE_ERROR, 
-        JsError.TYPE_ERROR_PROTOTYPE, JsError.ID_INIT_ERROR, 1))
+        JsError.TYPE_ERROR_PROTOTYPE, new JsObject.Native(JsError.ID_INIT_ERROR), 1))
+    .addVar("JSON", JsJson.createJsonObject())
     ;
     
     //TODO Math object should be pre-constructed an reused.
     global.addVar("Math", new JsObject(JsObject.OBJECT_PROTOTYPE)
-      .addNative("E", JsObject.ID_E, -1)
-      .addNative("LN10", JsObject.ID_LN10, -1)
-      .addNative("LN2", JsObject.ID_LN2, -1)
-      .addNative("LOG2E", JsObject.ID_LOG2E, -1)
-      .addNative("LOG10E", JsObject.ID_LOG10E, -1)
-      .addNative("PI", JsObject.ID_PI, -1)
-      .addNative("SQRT1_2", JsObject.ID_SQRT1_2, -1)
-      .addNative("SQRT2", JsObject.ID_SQRT2, -1)
-      .addNative("abs", JsObject.ID_ABS, 1)
-      .addNative("acos", JsObject.ID_ACOS, 1)
-      .addNative("asin", JsObject.ID_ASIN, 1)
-      .addNative("atan", JsObject.ID_ATAN, 1)
-      .addNative("atan2", JsObject.ID_ATAN2, 2)
-      .addNative("ceil", JsObject.ID_CEIL, 1)
-      .addNative("cos", JsObject.ID_COS, 1)
-      .addNative("exp", JsObject.ID_EXP, 1)
-      .addNative("floor", JsObject.ID_FLOOR, 1)
-      .addNative("log", JsObject.ID_LOG, 1)
-      .addNative("max", JsObject.ID_MAX, 2)
-      .addNative("min", JsObject.ID_MIN, 2)
-      .addNative("pow", JsObject.ID_POW, 2)
-      .addNative("random", JsObject.ID_RANDOM, 0)
-      .addNative("round", JsObject.ID_ROUND, 1)
-      .addNative("sin", JsObject.ID_SIN, 1)
-      .addNative("sqrt", JsObject.ID_SQRT, 1)
-      .addNative("tan", JsObject.ID_TAN, 1));
+      .addNative("E", new JsObject.Native(JsObject.ID_E), -1)
+      .addNative("LN10", new JsObject.Native(JsObject.ID_LN10), -1)
+      .addNative("LN2", new JsObject.Native(JsObject.ID_LN2), -1)
+      .addNative("LOG2E", new JsObject.Native(JsObject.ID_LOG2E), -1)
+      .addNative("LOG10E", new JsObject.Native(JsObject.ID_LOG10E), -1)
+      .addNative("PI", new JsObject.Native(JsObject.ID_PI), -1)
+      .addNative("SQRT1_2", new JsObject.Native(JsObject.ID_SQRT1_2), -1)
+      .addNative("SQRT2", new JsObject.Native(JsObject.ID_SQRT2), -1)
+      .addNative("abs", new JsObject.Native(JsObject.ID_ABS), 1)
+      .addNative("acos", new JsObject.Native(JsObject.ID_ACOS), 1)
+      .addNative("asin", new JsObject.Native(JsObject.ID_ASIN), 1)
+      .addNative("atan", new JsObject.Native(JsObject.ID_ATAN), 1)
+      .addNative("atan2", new JsObject.Native(JsObject.ID_ATAN2), 2)
+      .addNative("ceil", new JsObject.Native(JsObject.ID_CEIL), 1)
+      .addNative("cos", new JsObject.Native(JsObject.ID_COS), 1)
+      .addNative("exp", new JsObject.Native(JsObject.ID_EXP), 1)
+      .addNative("floor", new JsObject.Native(JsObject.ID_FLOOR), 1)
+      .addNative("log", new JsObject.Native(JsObject.ID_LOG), 1)
+      .addNative("max", new JsObject.Native(JsObject.ID_MAX), 2)
+      .addNative("min", new JsObject.Native(JsObject.ID_MIN), 2)
+      .addNative("pow", new JsObject.Native(JsObject.ID_POW), 2)
+      .addNative("random", new JsObject.Native(JsObject.ID_RANDOM), 0)
+      .addNative("round", new JsObject.Native(JsObject.ID_ROUND), 1)
+      .addNative("sin", new JsObject.Native(JsObject.ID_SIN), 1)
+      .addNative("sqrt", new JsObject.Native(JsObject.ID_SQRT), 1)
+      .addNative("tan", new JsObject.Native(JsObject.ID_TAN), 1));
     
     return global;
   }
@@ -172,12 +207,7 @@ public class JsSystem implements JsObjectFactory {
       return "null";
     }
     if (o instanceof Double) {
-      Double d = (Double) o;
-      if (d.doubleValue() == (long) d.doubleValue()) {
-        return Long.toString((long) d.doubleValue());
-      } else {
-        return Double.toString(d.doubleValue());
-      }
+      return NumberConversion.toString(((Double) o).doubleValue());
     }
     
     //TODO if(o instanceof JsObject) {...}
@@ -190,6 +220,21 @@ public class JsSystem implements JsObjectFactory {
    * except that it does not throw an exception for null or undefined.
    * Instead, null is converted to 0 and undefined is converted to NaN.
    */  
+  /**
+   * Returns a boxed representation of the given number. Small integers
+   * (the typical loop counters and array indices) are shared, so numbers
+   * escaping from the stack into properties or natives don't need to
+   * allocate.
+   */
+  public static Double valueOf(double d) {
+    int i = (int) d;
+    if (i == d && i >= SMALL_NUMBER_MIN && i - SMALL_NUMBER_MIN < SMALL_NUMBERS.length
+        && (i != 0 || 1 / d > 0)) {
+      return SMALL_NUMBERS[i - SMALL_NUMBER_MIN];
+    }
+    return new Double(d);
+  }
+
   public static double toNumber(Object o){
     if (o instanceof Double) {
       return ((Double) o).doubleValue();
@@ -198,11 +243,10 @@ public class JsSystem implements JsObjectFactory {
       return 0;
     }
     if (o instanceof String) {
-      try {
-        return Double.parseDouble((String) o);
-      } catch (NumberFormatException e) {
-        return Double.NaN;
-      }
+      return NumberConversion.toNumber((String) o);
+    }
+    if (o instanceof JsRope) {
+      return NumberConversion.toNumber(o.toString());
     }
     if (o instanceof Boolean) {
       return ((Boolean) o).booleanValue() ? 1 : 0;
@@ -239,9 +283,9 @@ public class JsSystem implements JsObjectFactory {
     if (v instanceof JsObject) {
       return (JsObject) v;
     }
-    if (v instanceof String) {
+    if (v instanceof String || v instanceof JsRope) {
       JsObject o = new JsObject(JsObject.STRING_PROTOTYPE);
-      o.value = v;
+      o.value = v.toString();
       return o;
     }
     if (v instanceof Boolean) {
@@ -273,6 +317,10 @@ public class JsSystem implements JsObjectFactory {
         return new JsArray();
       case JsSystem.FACTORY_ID_DATE: 
         return new JsDate(JsDate.DATE_PROTOTYPE);
+      case JsSystem.FACTORY_ID_REGEXP:
+        return new JsRegExp(JsRegExp.REGEXP_PROTOTYPE);
+      case JsSystem.FACTORY_ID_PROMISE:
+        return new JsPromise();
       case JsSystem.FACTORY_ID_BOOLEAN:
         return new JsObject(JsObject.BOOLEAN_PROTOTYPE);
       case JsSystem.FACTORY_ID_NUMBER:
@@ -356,124 +404,29 @@ public class JsSystem implements JsObjectFactory {
   }
   
   /**
-   * Converts a double to a string. This method is based on extracting the
-   * decimal mantisse and exponent from toString(), this should probably
-   * be replaced by a more elegant method... 
+   * Implements toFixed(), toExponential() and toPrecision() of Number
+   * objects. digitsRaw is NaN if the argument is undefined.
    */
   public static String formatNumber(int op, double d, double digitsRaw){
-    String s = Double.toString(d);
-    
-    if (Double.isInfinite(d) || Double.isNaN(d) 
-        || (op == JsObject.ID_TO_PRECISION && Double.isNaN(digitsRaw))) { 
-      return s;
-    }
-    
-    int digits = (int) digitsRaw;
-    
-    StringBuffer buf = new StringBuffer();
-    boolean neg = false;
-    boolean negExp = false;
-    
-    long value = 0;
-    int exp = 0;
-    long subExp = 0;
-    int part = 0;  
-    
-    for (int i = 0; i < s.length(); i++){
-      char c = s.charAt(i);
-      switch(c){
-      case '-': 
-        if (part == 2){
-          negExp = true;
-        } else {
-          neg = true; 
-        }
-        break;
-      case 'e':
-      case 'E':
-        part = 2;
-        break;
-        
-      case '.':
-        part = 1;
-        break;
-      
-      default:
-        if (part == 2) {
-          exp = exp * 10 + (c - 48);
-        } else {
-          buf.append(c);
-          if (part == 1){
-            subExp ++;
-          }
-        }
-      }
-    }
-    
-    while (buf.length() > 1 && buf.charAt(0) == '0'){
-      buf.deleteCharAt(0);
-    }
-
-    if (negExp){
-      exp = -exp;
+    if (op == JsObject.ID_TO_PRECISION && Double.isNaN(digitsRaw)) {
+      return NumberConversion.toString(d);
     }
-    exp -= subExp;
-
-    System.out.println(neg ? "-" : "" + buf + "E" + exp);
-    
-    if (op == JsObject.ID_TO_PRECISION) {
-      if (exp < -6 || exp >= digits) {
-        digits = Math.max(0, digits - 1);
-        op = JsObject.ID_TO_EXPONENTIAL;
-      } else {
-        op = JsObject.ID_TO_FIXED;
-        digits = digits + Math.min(exp, 0);
-      }
+    if (op == JsObject.ID_TO_EXPONENTIAL && Double.isNaN(digitsRaw)) {
+      return NumberConversion.toExponential(d, -1);
     }
-    
-    if (digits < 0){
-      digits = 0;
+    int digits = Double.isNaN(digitsRaw) ? 0 : (int) digitsRaw;
+    int min = op == JsObject.ID_TO_PRECISION ? 1 : 0;
+    if (digits < min || digits > 100) {
+      throw new JsException(new JsError(JsError.RANGE_ERROR_PROTOTYPE,
+          "digits argument must be between " + min + " and 100"));
     }
-    
-    if (op == JsObject.ID_TO_EXPONENTIAL) {
-      while(buf.length() > digits){
-        exp += buf.length() - digits;
-        buf.setLength(digits + 1);
-        long l = Long.parseLong(buf.toString());
-        l = (l + 5) / 10;
-        buf.setLength(0);
-        buf.append(l);
-      }
-      if (buf.length() > 1){
-        buf.insert(1, ".");
-      }
-      exp += buf.length() - 1;
-      return (neg ? "" : "-") + value + "E" + exp;
-    } else {
-      int delta = digits + exp; // 2 digits, exp -5 -> 3 to cut off
-      System.out.println("delta: " + delta);
-      if (delta < 0) {
-        delta = -delta; // delta = digits to cut off
-        if (buf.length() - delta + 1 <= 0){
-          buf.setLength(0);
-        } else {
-          buf.setLength(buf.length() - delta + 1);
-          long l = Long.parseLong(buf.toString());
-          l = (l + 5) / 10;
-          buf.setLength(0);
-          buf.append(l);
-        }
-        while (buf.length() < digits + 1){
-          buf.insert(0, '0');
-        }
-      } else while (delta > 0){
-        buf.append('0');
-        delta--;
-      }
-      
-      buf.insert(buf.length() - digits, '.');
-      
-      return buf.toString();
+    switch (op) {
+      case JsObject.ID_TO_FIXED:
+        return NumberConversion.toFixed(d, digits);
+      case JsObject.ID_TO_EXPONENTIAL:
+        return NumberConversion.toExponential(d, digits);
+      default:
+        return NumberConversion.toPrecision(d, digits);
     }
   }
   
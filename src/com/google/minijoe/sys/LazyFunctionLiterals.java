@@ -0,0 +1,56 @@
+// Copyright 2008 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.minijoe.sys;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Nested function literals of a function that have not been decoded yet.
+ * Records the position of each literal in the code buffer; a literal is
+ * decoded when it is first needed, i.e. on the first XOP_PUSH_FN that
+ * refers to it. Shared by all closures created from the same literal.
+ */
+final class LazyFunctionLiterals {
+
+  private final ByteBuffer code;
+  private final int[] offsets;
+  private final String[] globalStringTable;
+
+  LazyFunctionLiterals(ByteBuffer code, int[] offsets, String[] globalStringTable) {
+    this.code = code;
+    this.offsets = offsets;
+    this.globalStringTable = globalStringTable;
+  }
+
+  /**
+   * Returns literals[i], decoding and storing it first if necessary.
+   */
+  synchronized FunctionTemplate get(AtomicReferenceArray literals, int i) {
+    FunctionTemplate literal = (FunctionTemplate) literals.get(i);
+    if (literal == null) {
+      ByteBufferInputStream source = new ByteBufferInputStream(code, offsets[i]);
+      try {
+        literal = new FunctionTemplate(new DataInputStream(source), globalStringTable, source);
+      } catch (IOException e) {
+        throw new RuntimeException("Corrupt function literal: " + e);
+      }
+      literals.set(i, literal);
+    }
+    return literal;
+  }
+}
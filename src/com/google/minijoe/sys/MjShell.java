@@ -57,9 +57,16 @@ public class MjShell {
 				continue;
 			}
 
+			if (source.startsWith("profile ")) {
+				System.out.println(Profiler.command(source.substring(8)));
+				continue;
+			}
+
 			try {
 				System.out.println("----------");
 				System.out.println(Eval.eval(source, global));
+				// deliver timers and asynchronous results of the input
+				EventLoop.current().run();
 			} catch (Exception e) {
 				err.println(e);
 			}
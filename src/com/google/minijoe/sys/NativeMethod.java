@@ -0,0 +1,46 @@
+// Copyright 2008 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.minijoe.sys;
+
+/**
+ * Java implementation of a native function or property, bound to its
+ * JsFunction once when the function is created. Calls dispatch directly to
+ * invoke(), instead of passing a numeric id down the evalNative() methods
+ * of the class hierarchy of the receiver.
+ *
+ * The built-in classes do not go further than that: each binds a single
+ * Native class per class that still selects the implementation by
+ * switching on the id, in the class that declares it. This is deliberate.
+ * One subclass per native would mean close to two hundred classes, all
+ * loaded when the builtins are set up; method handles stored in fields are
+ * not constants to the JIT, and reflection boxes every argument. The id
+ * switch also keeps evalNative() working for subclasses that override it.
+ * Natives that are added later may implement invoke() directly.
+ *
+ * The calling convention is the one of JsObject.evalNative(): parameters
+ * start at stack[sp + 2]; function and getter results are returned at
+ * stack[sp + 0], where setters also find the value to assign.
+ */
+public abstract class NativeMethod {
+
+  /**
+   * Executes the native for the given receiver. The receiver is not
+   * guaranteed to be of the type the native is registered for, since
+   * natives can be applied to any object.
+   */
+  public abstract void invoke(JsObject thisPtr, JsArray stack, int sp,
+      int parCount);
+}
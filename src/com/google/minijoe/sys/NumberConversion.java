@@ -0,0 +1,698 @@
+// Copyright 2008 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.minijoe.sys;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.MathContext;
+import java.math.RoundingMode;
+
+/**
+ * Conversions between numbers and strings as specified by ECMA-262.
+ *
+ * toString() returns the shortest decimal that converts back to the same
+ * double, formatted like Number.prototype.toString(). Doubles holding int
+ * values take a path that does not allocate for small non-negative values;
+ * all others use the Schubfach algorithm (R. Giulietti, "The Schubfach way
+ * to render doubles"), which needs neither arbitrary precision arithmetic
+ * nor retries.
+ *
+ * The parsers work on character ranges without creating substrings. A
+ * decimal with at most 18 significant digits and a decimal exponent of at
+ * most 22 is converted exactly by one multiplication or division; longer
+ * input falls back to Double.parseDouble(). The compiler converts numeric
+ * literals with parseNumber(), which is also the core of toNumber().
+ */
+public final class NumberConversion {
+
+  /** Powers of ten that are exactly representable as double. */
+  private static final double[] POWERS_OF_TEN = {
+      1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+      1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+
+  /** Fraction digits tried before the general double to string algorithm. */
+  private static final int MAX_FAST_FRACTION_DIGITS = 9;
+
+  private static final double TWO_53 = 9007199254740992.0;
+
+  /** Significant digits accumulated in a long while parsing. */
+  private static final int MAX_DIGITS = 18;
+
+  private static final int Q_MIN = -1074;
+  private static final long C_MIN = 1L << 52;
+  private static final long C_TINY = 3;
+  private static final int K_MIN = -324;
+  private static final int K_MAX = 292;
+  private static final long MASK_63 = (1L << 63) - 1;
+
+  private NumberConversion() {
+  }
+
+  /**
+   * Approximations g of the powers 10^-k for K_MIN <= k <= K_MAX, with
+   * 2^125 <= g < 2^126 after scaling by a power of two, split into the
+   * upper and lower 63 bits. In a class of its own, so the table is only
+   * computed when the first non-integer is converted.
+   */
+  static final class Powers {
+    static final long[] G = new long[2 * (K_MAX - K_MIN + 1)];
+
+    static {
+      for (int k = K_MIN; k <= K_MAX; k++) {
+        int r = flog2pow10(-k) - 125;
+        BigInteger num = k < 0 ? BigInteger.TEN.pow(-k) : BigInteger.ONE;
+        BigInteger den = k > 0 ? BigInteger.TEN.pow(k) : BigInteger.ONE;
+        if (r < 0) {
+          num = num.shiftLeft(-r);
+        } else {
+          den = den.shiftLeft(r);
+        }
+        BigInteger g = num.divide(den).add(BigInteger.ONE);
+        G[2 * (k - K_MIN)] = g.shiftRight(63).longValue();
+        G[2 * (k - K_MIN) + 1] = g.longValue() & MASK_63;
+      }
+    }
+  }
+
+  /**
+   * Returns the string for the given number, as Number.prototype.toString()
+   * without radix.
+   */
+  public static String toString(double d) {
+    int i = (int) d;
+    if (i == d) {
+      return i >= 0 ? Atoms.indexKey(i) : Integer.toString(i);
+    }
+    if (d != d) {
+      return "NaN";
+    }
+    if (d == Double.POSITIVE_INFINITY || d == Double.NEGATIVE_INFINITY) {
+      return d > 0 ? "Infinity" : "-Infinity";
+    }
+    boolean negative = d < 0;
+    double abs = negative ? -d : d;
+
+    // Most numbers in scripts have few fraction digits. For the smallest j
+    // for which some f / 10^j with f < 2^53 converts back to d, f is the
+    // shortest decimal; both f and 10^j are exact, so the division rounds
+    // correctly. When d 10^j is close to a tie between two values of f,
+    // the closer one is left to the general algorithm.
+    for (int j = 1; j <= MAX_FAST_FRACTION_DIGITS; j++) {
+      double p = abs * POWERS_OF_TEN[j];
+      if (p >= TWO_53) {
+        break;
+      }
+      double f = Math.floor(p + 0.5);
+      if (f / POWERS_OF_TEN[j] == abs) {
+        if (Math.abs(p - f) > 0.4) {
+          break;
+        }
+        return format(negative, (long) f, -j);
+      }
+    }
+
+    long bits = Double.doubleToRawLongBits(d);
+    long t = bits & (C_MIN - 1);
+    int bq = (int) (bits >>> 52) & 0x7ff;
+    if (bq != 0) {
+      int mq = -Q_MIN + 1 - bq;
+      long c = C_MIN | t;
+      if (0 < mq && mq < 53) {
+        long f = c >> mq;
+        if (f << mq == c) {
+          // an integer below 2^53
+          return format(negative, f, 0);
+        }
+      }
+      return toDecimal(negative, -mq, c);
+    }
+    // subnormal; the two smallest magnitudes are below the precision of the
+    // table, their shortest representations are 5e-324 and 1e-323
+    return t < C_TINY
+        ? format(negative, t == 1 ? 5 : 1, t == 1 ? -324 : -323)
+        : toDecimal(negative, Q_MIN, t);
+  }
+
+  /**
+   * Computes the shortest decimal within the rounding interval of c 2^q
+   * (Schubfach) and returns its string representation.
+   */
+  private static String toDecimal(boolean negative, int q, long c) {
+    int out = (int) c & 1;
+    long cb = c << 2;
+    long cbr = cb + 2;
+    long cbl;
+    int k;
+    if (c != C_MIN || q == Q_MIN) {
+      cbl = cb - 2;
+      k = flog10pow2(q);
+    } else {
+      // the interval is asymmetric at powers of two
+      cbl = cb - 1;
+      k = flog10threeQuartersPow2(q);
+    }
+    int h = q + flog2pow10(-k) + 2;
+
+    long g1 = Powers.G[2 * (k - K_MIN)];
+    long g0 = Powers.G[2 * (k - K_MIN) + 1];
+
+    long vb = roundOdd(g1, g0, cb << h);
+    long vbl = roundOdd(g1, g0, cbl << h);
+    long vbr = roundOdd(g1, g0, cbr << h);
+
+    long s = vb >> 2;
+    if (s >= 100) {
+      // try one digit less first
+      long sp10 = 10 * multiplyHigh(s, 115292150460684698L << 4);
+      long tp10 = sp10 + 10;
+      boolean upin = vbl + out <= sp10 << 2;
+      boolean wpin = (tp10 << 2) + out <= vbr;
+      if (upin != wpin) {
+        return format(negative, upin ? sp10 : tp10, k);
+      }
+    }
+
+    long t = s + 1;
+    boolean uin = vbl + out <= s << 2;
+    boolean win = (t << 2) + out <= vbr;
+    if (uin != win) {
+      return format(negative, uin ? s : t, k);
+    }
+    long cmp = vb - (s + t << 1);
+    return format(negative, cmp < 0 || cmp == 0 && (s & 1) == 0 ? s : t, k);
+  }
+
+  /**
+   * Returns the product of g = g1 2^63 + g0 and cp, divided by 2^127 and
+   * rounded to odd.
+   */
+  private static long roundOdd(long g1, long g0, long cp) {
+    long x1 = multiplyHigh(g0, cp);
+    long y0 = g1 * cp;
+    long y1 = multiplyHigh(g1, cp);
+    long z = (y0 >>> 1) + x1;
+    long vbp = y1 + (z >>> 63);
+    return vbp | (z & MASK_63) + MASK_63 >>> 63;
+  }
+
+  /**
+   * Returns the upper 64 bits of the 128 bit product of x and y.
+   */
+  private static long multiplyHigh(long x, long y) {
+    long x1 = x >> 32;
+    long x2 = x & 0xFFFFFFFFL;
+    long y1 = y >> 32;
+    long y2 = y & 0xFFFFFFFFL;
+    long z2 = x2 * y2;
+    long t = x1 * y2 + (z2 >>> 32);
+    long z1 = (t & 0xFFFFFFFFL) + x2 * y1;
+    return x1 * y1 + (t >> 32) + (z1 >> 32);
+  }
+
+  /** Returns floor(e log10(2)) for |e| <= 5456721. */
+  private static int flog10pow2(int e) {
+    return (int) (e * 661971961083L >> 41);
+  }
+
+  /** Returns floor(e log10(2) + log10(3/4)) for |e| <= 2924. */
+  private static int flog10threeQuartersPow2(int e) {
+    return (int) (e * 661971961083L - 274743187321L >> 41);
+  }
+
+  /** Returns floor(e log2(10)) for |e| <= 1233. */
+  private static int flog2pow10(int e) {
+    return (int) (e * 913124641741L >> 38);
+  }
+
+  /**
+   * Formats the number f 10^e, 0 < f < 10^17, according to the rules of
+   * Number.prototype.toString().
+   */
+  private static String format(boolean negative, long f, int e) {
+    char[] buf = new char[32];
+
+    // the digits of f end at index 25, leaving room for a prefix; the lower
+    // eight are split off, so the digit loops work on ints
+    int end = 25;
+    int pos = end;
+    if (f >= 100000000) {
+      long high = f / 100000000;
+      int low = (int) (f - high * 100000000);
+      for (int i = 0; i < 8; i++) {
+        buf[--pos] = (char) ('0' + low % 10);
+        low /= 10;
+      }
+      f = high;
+    }
+    int v = (int) f;
+    do {
+      buf[--pos] = (char) ('0' + v % 10);
+      v /= 10;
+    } while (v != 0);
+    while (buf[end - 1] == '0') {
+      end--;
+      e++;
+    }
+    int k = end - pos;
+    int n = e + k;
+
+    int len = 0;
+    if (negative) {
+      buf[len++] = '-';
+    }
+    // the digits are moved towards the start, never overlapping unread ones
+    if (k <= n && n <= 21) {
+      while (pos < end) {
+        buf[len++] = buf[pos++];
+      }
+      for (int i = k; i < n; i++) {
+        buf[len++] = '0';
+      }
+    } else if (0 < n && n <= 21) {
+      for (int i = 0; i < n; i++) {
+        buf[len++] = buf[pos++];
+      }
+      buf[len++] = '.';
+      while (pos < end) {
+        buf[len++] = buf[pos++];
+      }
+    } else if (-6 < n && n <= 0) {
+      buf[len++] = '0';
+      buf[len++] = '.';
+      for (int i = n; i < 0; i++) {
+        buf[len++] = '0';
+      }
+      while (pos < end) {
+        buf[len++] = buf[pos++];
+      }
+    } else {
+      buf[len++] = buf[pos++];
+      if (k > 1) {
+        buf[len++] = '.';
+        while (pos < end) {
+          buf[len++] = buf[pos++];
+        }
+      }
+      buf[len++] = 'e';
+      int exp = n - 1;
+      buf[len++] = exp < 0 ? '-' : '+';
+      exp = Math.abs(exp);
+      if (exp >= 100) {
+        buf[len++] = (char) ('0' + exp / 100);
+      }
+      if (exp >= 10) {
+        buf[len++] = (char) ('0' + exp / 10 % 10);
+      }
+      buf[len++] = (char) ('0' + exp % 10);
+    }
+    return new String(buf, 0, len);
+  }
+
+  /**
+   * Converts the range of s to a number if it is a decimal literal as
+   * defined by StrDecimalLiteral: an optional sign followed by "Infinity"
+   * or decimal digits with an optional fraction and exponent. Returns NaN
+   * for any other input.
+   */
+  public static double parseNumber(CharSequence s, int start, int end) {
+    return parse(s, start, end, false);
+  }
+
+  /**
+   * Converts a string to a number as the ToNumber operation: surrounding
+   * white space is ignored, the empty string is 0, and hexadecimal integers
+   * with prefix 0x are accepted in addition to decimal literals.
+   */
+  public static double toNumber(CharSequence s) {
+    int start = 0;
+    int end = s.length();
+    while (start < end && isWhitespace(s.charAt(start))) {
+      start++;
+    }
+    while (end > start && isWhitespace(s.charAt(end - 1))) {
+      end--;
+    }
+    if (start == end) {
+      return 0;
+    }
+    if (end - start > 2 && s.charAt(start) == '0'
+        && (s.charAt(start + 1) == 'x' || s.charAt(start + 1) == 'X')) {
+      double value = 0;
+      for (int i = start + 2; i < end; i++) {
+        int digit = Character.digit(s.charAt(i), 16);
+        if (digit < 0) {
+          return Double.NaN;
+        }
+        value = value * 16 + digit;
+      }
+      return value;
+    }
+    return parse(s, start, end, false);
+  }
+
+  /**
+   * Implements parseFloat(): converts the longest prefix of s following
+   * leading white space that is a decimal literal, or returns NaN if there
+   * is none.
+   */
+  public static double parseFloat(CharSequence s) {
+    int start = 0;
+    int end = s.length();
+    while (start < end && isWhitespace(s.charAt(start))) {
+      start++;
+    }
+    return parse(s, start, end, true);
+  }
+
+  /**
+   * Implements parseInt(): converts the longest prefix of s following
+   * leading white space and an optional sign that consists of digits in the
+   * given radix, or returns NaN if there is none. Radix 0 stands for an
+   * undefined radix, meaning 16 if the digits start with 0x and 10
+   * otherwise; radixes outside 2..36 give NaN.
+   */
+  public static double parseInt(CharSequence s, int radix) {
+    int i = 0;
+    int end = s.length();
+    while (i < end && isWhitespace(s.charAt(i))) {
+      i++;
+    }
+    boolean negative = false;
+    if (i < end && (s.charAt(i) == '+' || s.charAt(i) == '-')) {
+      negative = s.charAt(i) == '-';
+      i++;
+    }
+    if (radix == 0 || radix == 16) {
+      if (end - i >= 2 && s.charAt(i) == '0'
+          && (s.charAt(i + 1) == 'x' || s.charAt(i + 1) == 'X')) {
+        i += 2;
+        radix = 16;
+      } else if (radix == 0) {
+        radix = 10;
+      }
+    } else if (radix < 2 || radix > 36) {
+      return Double.NaN;
+    }
+    int start = i;
+    long value = 0;
+    boolean exact = true;
+    int digit;
+    while (i < end && (digit = digit(s.charAt(i), radix)) >= 0) {
+      if (exact) {
+        value = value * radix + digit;
+        exact = value < TWO_53;
+      }
+      i++;
+    }
+    if (i == start) {
+      return Double.NaN;
+    }
+    double d = exact ? value
+        : new BigInteger(s.subSequence(start, i).toString(), radix).doubleValue();
+    return negative ? -d : d;
+  }
+
+  /**
+   * Returns the value of the ASCII digit or letter c in the given radix, or
+   * -1 if it is not a digit in that radix.
+   */
+  private static int digit(char c, int radix) {
+    int digit;
+    if (c >= '0' && c <= '9') {
+      digit = c - '0';
+    } else if (c >= 'a' && c <= 'z') {
+      digit = c - 'a' + 10;
+    } else if (c >= 'A' && c <= 'Z') {
+      digit = c - 'A' + 10;
+    } else {
+      return -1;
+    }
+    return digit < radix ? digit : -1;
+  }
+
+  /**
+   * Parses a decimal literal in the given range. If prefix is set, parsing
+   * stops at the first character that does not continue the literal;
+   * otherwise the whole range must be consumed. Returns NaN if there is no
+   * literal.
+   */
+  private static double parse(CharSequence s, int start, int end, boolean prefix) {
+    int i = start;
+    boolean negative = false;
+    if (i < end && (s.charAt(i) == '+' || s.charAt(i) == '-')) {
+      negative = s.charAt(i) == '-';
+      i++;
+    }
+    if (end - i >= 8 && s.charAt(i) == 'I' && startsWith(s, i, "Infinity")) {
+      if (!prefix && i + 8 != end) {
+        return Double.NaN;
+      }
+      return negative ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY;
+    }
+
+    int numberStart = i;
+    long mantissa = 0;
+    int digits = 0;
+    int exponent = 0;
+    boolean exact = true;
+    boolean any = false;
+    char c;
+    while (i < end && (c = s.charAt(i)) >= '0' && c <= '9') {
+      any = true;
+      if (digits < MAX_DIGITS) {
+        mantissa = mantissa * 10 + (c - '0');
+        if (mantissa != 0) {
+          digits++;
+        }
+      } else {
+        exponent++;
+        exact &= c == '0';
+      }
+      i++;
+    }
+    if (i < end && s.charAt(i) == '.') {
+      i++;
+      while (i < end && (c = s.charAt(i)) >= '0' && c <= '9') {
+        any = true;
+        if (digits < MAX_DIGITS) {
+          mantissa = mantissa * 10 + (c - '0');
+          if (mantissa != 0) {
+            digits++;
+          }
+          exponent--;
+        } else {
+          exact &= c == '0';
+        }
+        i++;
+      }
+    }
+    if (!any) {
+      return Double.NaN;
+    }
+    if (i < end && (s.charAt(i) == 'e' || s.charAt(i) == 'E')) {
+      int j = i + 1;
+      boolean negativeExponent = false;
+      if (j < end && (s.charAt(j) == '+' || s.charAt(j) == '-')) {
+        negativeExponent = s.charAt(j) == '-';
+        j++;
+      }
+      if (j < end && (c = s.charAt(j)) >= '0' && c <= '9') {
+        int e = 0;
+        while (j < end && (c = s.charAt(j)) >= '0' && c <= '9') {
+          if (e < 100000) {
+            e = e * 10 + (c - '0');
+          }
+          j++;
+        }
+        exponent += negativeExponent ? -e : e;
+        i = j;
+      }
+    }
+    if (!prefix && i != end) {
+      return Double.NaN;
+    }
+
+    double value;
+    if (mantissa == 0) {
+      value = 0;
+    } else if (exact && mantissa < 1L << 53 && exponent >= -22 && exponent <= 22) {
+      value = exponent < 0
+          ? mantissa / POWERS_OF_TEN[-exponent] : mantissa * POWERS_OF_TEN[exponent];
+    } else {
+      value = Double.parseDouble(s.subSequence(numberStart, i).toString());
+    }
+    return negative ? -value : value;
+  }
+
+  private static boolean startsWith(CharSequence s, int start, String prefix) {
+    for (int i = 0; i < prefix.length(); i++) {
+      if (s.charAt(start + i) != prefix.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns true for the white space and line terminator characters of
+   * ECMA-262.
+   */
+  static boolean isWhitespace(char c) {
+    return c <= ' '
+        ? c == ' ' || (c >= '\t' && c <= '\r')
+        : c == '\ufeff' || Character.isSpaceChar(c);
+  }
+
+  /**
+   * Implements Number.prototype.toFixed().
+   */
+  static String toFixed(double d, int fractionDigits) {
+    if (d != d || Math.abs(d) >= 1e21) {
+      return toString(d);
+    }
+    String s = new BigDecimal(Math.abs(d))
+        .setScale(fractionDigits, RoundingMode.HALF_UP).toPlainString();
+    return d < 0 ? "-" + s : s;
+  }
+
+  /**
+   * Implements Number.prototype.toExponential(). fractionDigits is -1 if
+   * undefined, requesting as many digits as necessary.
+   */
+  static String toExponential(double d, int fractionDigits) {
+    if (d != d || Double.isInfinite(d)) {
+      return toString(d);
+    }
+    StringBuffer digits = new StringBuffer();
+    int e = decimalDigits(d, fractionDigits < 0 ? 0 : fractionDigits + 1, digits);
+    StringBuffer buf = new StringBuffer();
+    if (d < 0) {
+      buf.append('-');
+    }
+    buf.append(digits.charAt(0));
+    if (digits.length() > 1) {
+      buf.append('.').append(digits.toString().substring(1));
+    }
+    return buf.append(e < 0 ? "e-" : "e+").append(Math.abs(e)).toString();
+  }
+
+  /**
+   * Implements Number.prototype.toPrecision() for a defined precision.
+   */
+  static String toPrecision(double d, int precision) {
+    if (d != d || Double.isInfinite(d)) {
+      return toString(d);
+    }
+    StringBuffer digits = new StringBuffer();
+    int e = decimalDigits(d, precision, digits);
+    if (e < -6 || e >= precision) {
+      return toExponential(d, precision - 1);
+    }
+    StringBuffer buf = new StringBuffer();
+    if (d < 0) {
+      buf.append('-');
+    }
+    if (e >= 0) {
+      buf.append(digits.toString().substring(0, e + 1));
+      if (e + 1 < precision) {
+        buf.append('.').append(digits.toString().substring(e + 1));
+      }
+    } else {
+      buf.append("0.");
+      for (int i = e + 1; i < 0; i++) {
+        buf.append('0');
+      }
+      buf.append(digits);
+    }
+    return buf.toString();
+  }
+
+  /**
+   * Implements Number.prototype.toString() for a radix other than 10. The
+   * integer part is converted exactly; the fraction gets as many digits as
+   * are needed to tell d from its neighboring doubles, rounding the last
+   * one to even (the algorithm V8 uses).
+   */
+  static String toString(double d, int radix) {
+    if (d != d || Double.isInfinite(d)) {
+      return toString(d);
+    }
+    boolean negative = d < 0;
+    d = Math.abs(d);
+    double integer = Math.floor(d);
+    double fraction = d - integer;
+    double delta = Math.max((Math.nextUp(d) - d) / 2, Double.MIN_VALUE);
+    StringBuffer digits = new StringBuffer();
+    while (fraction >= delta) {
+      fraction *= radix;
+      delta *= radix;
+      int digit = (int) fraction;
+      digits.append(Character.forDigit(digit, radix));
+      fraction -= digit;
+      if ((fraction > 0.5 || (fraction == 0.5 && (digit & 1) != 0))
+          && fraction + delta > 1) {
+        // round up, carrying into the preceding digits
+        while (true) {
+          int last = digits.length() - 1;
+          if (last < 0) {
+            integer++;
+            break;
+          }
+          int carried = Character.digit(digits.charAt(last), radix) + 1;
+          digits.setLength(last);
+          if (carried < radix) {
+            digits.append(Character.forDigit(carried, radix));
+            break;
+          }
+        }
+        break;
+      }
+    }
+    StringBuffer buf = new StringBuffer();
+    if (negative && (integer > 0 || digits.length() > 0)) {
+      buf.append('-');
+    }
+    buf.append(integer < TWO_53 ? Long.toString((long) integer, radix)
+        : new BigDecimal(integer).toBigInteger().toString(radix));
+    if (digits.length() > 0) {
+      buf.append('.').append(digits);
+    }
+    return buf.toString();
+  }
+
+  /**
+   * Appends the significant digits of |d| rounded half up to the given
+   * precision, or the shortest round trip digits for precision 0, and
+   * returns the decimal exponent of the first digit.
+   */
+  private static int decimalDigits(double d, int precision, StringBuffer digits) {
+    if (d == 0) {
+      digits.append('0');
+      while (digits.length() < precision) {
+        digits.append('0');
+      }
+      return 0;
+    }
+    BigDecimal value = precision == 0
+        ? new BigDecimal(toString(Math.abs(d))).stripTrailingZeros()
+        : new BigDecimal(Math.abs(d)).round(new MathContext(precision, RoundingMode.HALF_UP));
+    String unscaled = value.unscaledValue().toString();
+    digits.append(unscaled);
+    while (digits.length() < precision) {
+      digits.append('0');
+    }
+    return unscaled.length() - value.scale() - 1;
+  }
+}
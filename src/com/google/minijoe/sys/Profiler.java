@@ -0,0 +1,359 @@
+// Copyright 2008 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.minijoe.sys;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Vector;
+
+/**
+ * Sampling profiler for scripts. While the profiler is running, each thread
+ * executing scripts maintains a shadow stack of the script functions it is
+ * in, together with the current pc of interpreted frames. A daemon thread
+ * records these stacks at a fixed interval (wall clock time, so threads
+ * waiting in natives are included).
+ *
+ * The profile is available as collapsed stacks, one line per distinct
+ * stack with the number of samples ("outer;inner 42"), which is the input
+ * format of flame graph tools, and as a table of the hottest lines.
+ * Functions are identified by name or, if anonymous, by their first line.
+ * JIT compiled frames have no pc and are attributed to the first line.
+ *
+ * When the profiler is not running, the interpreter only checks a flag
+ * when entering a function.
+ */
+public final class Profiler {
+
+  /** Default sampling interval in milliseconds. */
+  public static final int DEFAULT_INTERVAL = 2;
+
+  private static final String USAGE =
+      "usage: profile start [intervalMillis]|stop|reset|stacks|hotspots";
+
+  /** Set while the profiler is running; checked on function entry. */
+  static volatile boolean active;
+
+  /** Shadow stacks of all threads that ran scripts while profiling. */
+  private static final Vector STACKS = new Vector();
+
+  private static final ThreadLocal CURRENT = new ThreadLocal();
+
+  private static final Object LOCK = new Object();
+
+  /** Number of samples per collapsed stack, as int[1]. */
+  private static Hashtable stackCounts = new Hashtable();
+
+  /** Number of samples per top frame line, as int[1]. */
+  private static Hashtable lineCounts = new Hashtable();
+
+  private static int sampleCount;
+
+  private static Thread sampler;
+
+  private Profiler() {
+  }
+
+  /**
+   * Shadow call stack of one thread. Only written by the owning thread;
+   * the sampler reads it without synchronization, which may yield an
+   * occasional inconsistent sample but never blocks the interpreter.
+   */
+  static final class Stack {
+    final Thread thread;
+    JsFunction[] functions = new JsFunction[32];
+    int[] pcs = new int[32];
+    int depth;
+
+    Stack(Thread thread) {
+      this.thread = thread;
+    }
+  }
+
+  /**
+   * Pushes a frame for the given function onto the shadow stack of the
+   * current thread, returning the stack. The frame index is depth - 1; the
+   * caller restores depth to the frame index when leaving the function.
+   */
+  static Stack enter(JsFunction fn) {
+    Stack stack = (Stack) CURRENT.get();
+    if (stack == null) {
+      stack = new Stack(Thread.currentThread());
+      CURRENT.set(stack);
+      STACKS.addElement(stack);
+    }
+    int depth = stack.depth;
+    if (depth == stack.functions.length) {
+      JsFunction[] functions = new JsFunction[depth * 2];
+      System.arraycopy(stack.functions, 0, functions, 0, depth);
+      int[] pcs = new int[depth * 2];
+      System.arraycopy(stack.pcs, 0, pcs, 0, depth);
+      stack.functions = functions;
+      stack.pcs = pcs;
+    }
+    stack.functions[depth] = fn;
+    stack.pcs[depth] = -1;
+    stack.depth = depth + 1;
+    return stack;
+  }
+
+  /**
+   * Starts profiling with the default interval. Samples collected earlier
+   * are kept; call reset() to discard them.
+   */
+  public static void start() {
+    start(DEFAULT_INTERVAL);
+  }
+
+  /**
+   * Starts profiling, sampling every intervalMillis milliseconds.
+   */
+  public static synchronized void start(final int intervalMillis) {
+    if (sampler != null) {
+      return;
+    }
+    active = true;
+    sampler = new Thread("MiniJoe profiler") {
+      public void run() {
+        while (sampler == this) {
+          try {
+            Thread.sleep(Math.max(1, intervalMillis));
+          } catch (InterruptedException e) {
+            break;
+          }
+          sample();
+        }
+      }
+    };
+    sampler.setDaemon(true);
+    sampler.start();
+  }
+
+  /**
+   * Stops profiling. The collected profile remains available.
+   */
+  public static synchronized void stop() {
+    active = false;
+    if (sampler != null) {
+      Thread t = sampler;
+      sampler = null;
+      t.interrupt();
+    }
+  }
+
+  public static boolean isRunning() {
+    return active;
+  }
+
+  /**
+   * Discards all samples.
+   */
+  public static void reset() {
+    synchronized (LOCK) {
+      stackCounts = new Hashtable();
+      lineCounts = new Hashtable();
+      sampleCount = 0;
+    }
+  }
+
+  public static int getSampleCount() {
+    synchronized (LOCK) {
+      return sampleCount;
+    }
+  }
+
+  /**
+   * Executes a profiler command, as issued from the shell, the profile()
+   * native or the HTTP server, and returns the requested profile or a
+   * status message. Commands are "start [intervalMillis]", "stop", "reset",
+   * "stacks" (collapsed stacks) and "hotspots". Returns a usage message
+   * for unknown commands and invalid intervals.
+   */
+  public static String command(String cmd) {
+    cmd = cmd == null ? "" : cmd.trim();
+    if (cmd.equals("start") || cmd.startsWith("start ")) {
+      int interval = parseInterval(cmd.substring(5).trim());
+      if (interval <= 0) {
+        return USAGE;
+      }
+      start(interval);
+      return "profiler started";
+    } else if (cmd.equals("stop")) {
+      stop();
+      return "profiler stopped, " + getSampleCount() + " samples";
+    } else if (cmd.equals("reset")) {
+      reset();
+      return "profile reset";
+    } else if (cmd.equals("stacks")) {
+      return getCollapsedStacks();
+    } else if (cmd.equals("hotspots")) {
+      return getHotSpots();
+    }
+    return USAGE;
+  }
+
+  /**
+   * Returns the sampling interval given to the start command, the default
+   * interval if it is empty, or -1 if it is not a number.
+   */
+  private static int parseInterval(String interval) {
+    if (interval.length() == 0) {
+      return DEFAULT_INTERVAL;
+    }
+    try {
+      return Integer.parseInt(interval);
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * Records the current stack of all threads running scripts.
+   */
+  static void sample() {
+    synchronized (LOCK) {
+      for (int i = STACKS.size() - 1; i >= 0; i--) {
+        Stack stack = (Stack) STACKS.elementAt(i);
+        if (!stack.thread.isAlive()) {
+          STACKS.removeElementAt(i);
+          continue;
+        }
+        JsFunction[] functions = stack.functions;
+        int[] pcs = stack.pcs;
+        int depth = Math.min(stack.depth, Math.min(functions.length, pcs.length));
+        if (depth == 0) {
+          continue;
+        }
+
+        StringBuffer buf = new StringBuffer();
+        String top = null;
+        int pc = -1;
+        for (int j = 0; j < depth; j++) {
+          JsFunction fn = functions[j];
+          if (fn == null) {
+            continue;
+          }
+          if (buf.length() > 0) {
+            buf.append(';');
+          }
+          top = label(fn);
+          pc = pcs[j];
+          buf.append(top);
+          if (j == depth - 1) {
+            top = top + ":" + (pc < 0 ? fn.getLineNumber(0) : fn.getLineNumber(pc));
+          }
+        }
+        if (top == null) {
+          continue;
+        }
+        count(stackCounts, buf.toString());
+        count(lineCounts, top);
+        sampleCount++;
+      }
+    }
+  }
+
+  private static void count(Hashtable table, String key) {
+    int[] count = (int[]) table.get(key);
+    if (count == null) {
+      table.put(key, new int[] {1});
+    } else {
+      count[0]++;
+    }
+  }
+
+  /**
+   * Returns the name used for the given function in profiles.
+   */
+  static String label(JsFunction fn) {
+    return fn.getName() != null ? fn.getName() : "(anonymous:" + fn.getLineNumber(0) + ")";
+  }
+
+  /**
+   * Returns the profile as collapsed stacks, one line per distinct stack,
+   * outermost frame first, followed by the number of samples. This is the
+   * format consumed by flamegraph.pl and compatible tools.
+   */
+  public static String getCollapsedStacks() {
+    Object[] entries = sortedEntries(stackCounts, false);
+    StringBuffer buf = new StringBuffer();
+    for (int i = 0; i < entries.length; i++) {
+      Object[] entry = (Object[]) entries[i];
+      buf.append(entry[0]).append(' ').append(((int[]) entry[1])[0]).append('\n');
+    }
+    return buf.toString();
+  }
+
+  /**
+   * Returns a table of the lines most samples were taken in, hottest
+   * first, with sample count and percentage.
+   */
+  public static String getHotSpots() {
+    Object[] entries = sortedEntries(lineCounts, true);
+    int total;
+    synchronized (LOCK) {
+      total = Math.max(1, sampleCount);
+    }
+    StringBuffer buf = new StringBuffer("samples       %  location\n");
+    for (int i = 0; i < entries.length; i++) {
+      Object[] entry = (Object[]) entries[i];
+      int count = ((int[]) entry[1])[0];
+      String samples = String.valueOf(count);
+      String percent = String.valueOf(count * 1000L / total / 10.0);
+      pad(buf, samples, 7);
+      pad(buf, percent, 8);
+      buf.append("  ").append(entry[0]).append('\n');
+    }
+    return buf.toString();
+  }
+
+  private static void pad(StringBuffer buf, String s, int width) {
+    for (int i = s.length(); i < width; i++) {
+      buf.append(' ');
+    }
+    buf.append(s);
+  }
+
+  /**
+   * Returns the entries of the given table as {key, int[1]} pairs, sorted
+   * by key or by descending count.
+   */
+  private static Object[] sortedEntries(Hashtable table, final boolean byCount) {
+    Object[] entries;
+    synchronized (LOCK) {
+      entries = new Object[table.size()];
+      int i = 0;
+      for (Enumeration e = table.keys(); e.hasMoreElements();) {
+        Object key = e.nextElement();
+        entries[i++] = new Object[] {key, new int[] {((int[]) table.get(key))[0]}};
+      }
+    }
+    Arrays.sort(entries, new Comparator() {
+      public int compare(Object a, Object b) {
+        Object[] ea = (Object[]) a;
+        Object[] eb = (Object[]) b;
+        if (byCount) {
+          int diff = ((int[]) eb[1])[0] - ((int[]) ea[1])[0];
+          if (diff != 0) {
+            return diff;
+          }
+        }
+        return ((String) ea[0]).compareTo((String) eb[0]);
+      }
+    });
+    return entries;
+  }
+}
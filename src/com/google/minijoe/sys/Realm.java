@@ -0,0 +1,246 @@
+// Copyright 2008 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.minijoe.sys;
+
+import com.google.minijoe.compiler.CompilerException;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Enumeration;
+import java.util.IdentityHashMap;
+import java.util.Random;
+import java.util.StringTokenizer;
+import java.util.Vector;
+
+/**
+ * An isolated environment for running scripts. Realms can execute scripts
+ * on different threads concurrently without any locking.
+ *
+ * All realms share a single global object holding the builtins, which is
+ * created once and then frozen together with all objects reachable from it,
+ * including the builtin prototypes. Each realm has its own global object on
+ * top of the shared one; assignments to global variables, including the
+ * ones shadowing builtins, only modify the realm global (copy on write).
+ * Modifications of frozen objects, such as adding methods to
+ * String.prototype or pushing to a shared array, throw a TypeError; scripts
+ * need to copy shared objects and arrays before modifying them.
+ *
+ * The shared global is a snapshot of the initialized global environment:
+ * it is set up once, by creating the builtins and then running the
+ * bootstrap scripts listed in the system property "minijoe.bootstrap"
+ * (file names separated by the path separator), and is frozen afterwards.
+ * Functions and variables defined by the bootstrap scripts are thus
+ * available in every realm without any per-realm cost. Objects and arrays
+ * created by bootstrap scripts are frozen like the builtins; assigning a
+ * bootstrap variable in a realm adds the new value to the realm global
+ * only. Bootstrap scripts are compiled through the default ScriptCache, so
+ * with a disk tier their byte code is memory mapped and decoded lazily on
+ * later starts. Note that functions of bootstrap scripts resolve global
+ * variables in the shared global, not in the global of the calling realm,
+ * so their assignments to global variables throw a TypeError, too.
+ *
+ * The shared global is created by freezeBuiltins(), which the application
+ * must call before creating the first realm. Since the builtin prototypes
+ * are shared by all globals of the VM, freezing them is an explicit step:
+ * afterwards, modifying a builtin prototype throws a TypeError in the
+ * globals created by Eval.createGlobal() and JsSystem.createGlobal(), too.
+ * Applications that don't use realms never call it, so their builtin
+ * prototypes stay mutable.
+ *
+ * A single realm must not be used by several threads at the same time.
+ */
+public class Realm {
+
+  private static final ThreadLocal CURRENT = new ThreadLocal();
+
+  private static Eval builtins;
+
+  private final Eval global;
+
+  /** Event loop for the timers and asynchronous operations of this realm. */
+  final EventLoop loop = new EventLoop();
+
+  /** Random number generator used by Math.random() and sort(). */
+  final Random random;
+
+  /**
+   * Creates a new realm.
+   *
+   * @throws IllegalStateException if freezeBuiltins() has not been called
+   */
+  public Realm() {
+    this(new Random());
+  }
+
+  /**
+   * Creates a new realm using the given seed for Math.random().
+   *
+   * @throws IllegalStateException if freezeBuiltins() has not been called
+   */
+  public Realm(long seed) {
+    this(new Random(seed));
+  }
+
+  private Realm(Random random) {
+    this.global = new Eval(getBuiltins());
+    this.random = random;
+  }
+
+  /**
+   * Returns the realm executing a script on the current thread, or null.
+   */
+  public static Realm current() {
+    return (Realm) CURRENT.get();
+  }
+
+  /**
+   * Creates the builtins shared by all realms, runs the bootstrap scripts
+   * and freezes the result, including the builtin prototypes of all globals
+   * of the VM. Must be called before the first realm is created; later
+   * calls have no effect.
+   */
+  public static synchronized void freezeBuiltins() {
+    if (builtins == null) {
+      Eval b = new Eval();
+      String bootstrap = System.getProperty("minijoe.bootstrap");
+      if (bootstrap != null && bootstrap.length() > 0) {
+        runBootstrapScripts(b, bootstrap);
+      }
+      freeze(b);
+      builtins = b;
+    }
+  }
+
+  /**
+   * Returns the shared builtins created by freezeBuiltins().
+   */
+  static synchronized Eval getBuiltins() {
+    if (builtins == null) {
+      throw new IllegalStateException("Realm.freezeBuiltins() has not been called");
+    }
+    return builtins;
+  }
+
+  private static void runBootstrapScripts(Eval global, String files) {
+    Object previous = CURRENT.get();
+    CURRENT.set(null);
+    try {
+      StringTokenizer tokens = new StringTokenizer(files, File.pathSeparator);
+      while (tokens.hasMoreTokens()) {
+        String name = tokens.nextToken();
+        try {
+          ScriptCache.getDefault().eval(readFile(new File(name)), global);
+          EventLoop.current().run();
+        } catch (CompilerException e) {
+          throw new RuntimeException("Bootstrap script " + name + ": " + e.getMessage());
+        } catch (IOException e) {
+          throw new RuntimeException("Bootstrap script " + name + ": " + e);
+        }
+      }
+    } finally {
+      CURRENT.set(previous);
+    }
+  }
+
+  private static String readFile(File file) throws IOException {
+    DataInputStream dis = new DataInputStream(new FileInputStream(file));
+    try {
+      byte[] data = new byte[(int) file.length()];
+      dis.readFully(data);
+      return new String(data, "UTF-8");
+    } finally {
+      dis.close();
+    }
+  }
+
+  /**
+   * Freezes the given object and all objects reachable from it via
+   * properties, prototypes, the scope chain and constructor prototypes.
+   */
+  private static void freeze(JsObject root) {
+    IdentityHashMap visited = new IdentityHashMap();
+    Vector todo = new Vector();
+    todo.addElement(root);
+    while (!todo.isEmpty()) {
+      JsObject o = (JsObject) todo.lastElement();
+      todo.removeElementAt(todo.size() - 1);
+      if (visited.containsKey(o)) {
+        continue;
+      }
+      visited.put(o, o);
+      o.freeze();
+
+      if (o.__proto__ != null) {
+        todo.addElement(o.__proto__);
+      }
+      if (o.scopeChain != null) {
+        todo.addElement(o.scopeChain);
+      }
+      if (o instanceof JsFunction && ((JsFunction) o).prototype != null) {
+        todo.addElement(((JsFunction) o).prototype);
+      }
+      for (Enumeration e = o.elements(); e.hasMoreElements();) {
+        Object v = e.nextElement();
+        if (v instanceof JsObject) {
+          todo.addElement(v);
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the global object of this realm.
+   */
+  public JsObject getGlobal() {
+    return global;
+  }
+
+  /**
+   * Compiles (using the default script cache) and runs the given source in
+   * the global scope of this realm, followed by the event loop of the
+   * realm, so timers and asynchronous operations started by the script
+   * have completed when this method returns. If the script or one of its
+   * callbacks throws an exception, the remaining timers and tasks of the
+   * realm are discarded, and operations still in flight are abandoned.
+   */
+  public Object eval(String source) throws CompilerException, IOException {
+    Object previous = CURRENT.get();
+    CURRENT.set(this);
+    boolean completed = false;
+    try {
+      Object result = ScriptCache.getDefault().eval(source, global);
+      loop.run();
+      completed = true;
+      return result;
+    } finally {
+      if (!completed) {
+        loop.clear();
+      }
+      CURRENT.set(previous);
+    }
+  }
+
+  /**
+   * Removes all global variables defined by scripts and all timers and
+   * tasks of the realm, and abandons operations still in flight, so the
+   * realm can be reused for unrelated scripts.
+   */
+  public void reset() {
+    global.clear();
+    loop.clear();
+  }
+}
@@ -0,0 +1,70 @@
+// Copyright 2008 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.minijoe.sys;
+
+import java.util.Vector;
+
+/**
+ * Pool of realms for running independent scripts, e.g. one per request.
+ * Realms are reset when they are returned, so each acquired realm starts
+ * with a pristine global scope. Realm.freezeBuiltins() must have been
+ * called before the first realm is acquired.
+ */
+public class RealmPool {
+
+  private final Vector idle = new Vector();
+  private final int maxIdle;
+
+  /**
+   * Creates a new pool keeping at most maxIdle unused realms.
+   */
+  public RealmPool(int maxIdle) {
+    this.maxIdle = maxIdle;
+  }
+
+  /**
+   * Returns an unused realm, creating a new one if the pool is empty.
+   */
+  public Realm acquire() {
+    synchronized (idle) {
+      int size = idle.size();
+      if (size > 0) {
+        Realm realm = (Realm) idle.elementAt(size - 1);
+        idle.removeElementAt(size - 1);
+        return realm;
+      }
+    }
+    return new Realm();
+  }
+
+  /**
+   * Resets the given realm and returns it to the pool.
+   */
+  public void release(Realm realm) {
+    realm.reset();
+    synchronized (idle) {
+      if (idle.size() < maxIdle) {
+        idle.addElement(realm);
+      }
+    }
+  }
+
+  /**
+   * Returns the number of realms available for reuse.
+   */
+  public int getIdleCount() {
+    return idle.size();
+  }
+}
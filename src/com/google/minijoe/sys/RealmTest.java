@@ -0,0 +1,226 @@
+// Copyright 2008 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.minijoe.sys;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+
+/**
+ * Checks that the builtin prototypes stay mutable until
+ * Realm.freezeBuiltins() is called, and that realms are isolated from each
+ * other: shared objects and
+ * arrays of the bootstrap snapshot and the builtin prototypes can't be
+ * modified, globals defined by one realm are not visible in another, and
+ * timers of one realm never run in another one, even if the script that
+ * created them failed. A shared rope can be flattened by several realms at
+ * once. Requests still in flight when a realm is reset
+ * neither delay nor affect the next script of the realm.
+ * Exits with status 1 if any check fails.
+ *
+ * Usage: RealmTest
+ */
+public class RealmTest {
+
+  static final String BOOTSTRAP =
+      "var shared = [1, 2, 3]; var sharedObj = {n: 1};\n"
+      + "var sharedRope = ''; for (var i = 0; i < 1000; i++) { sharedRope += 'x' + i; }\n";
+
+  /** Script reading the shared rope, which flattens it on first use. */
+  static final String ROPE_STATE =
+      "sharedRope.length + ' ' + sharedRope.substring(0, 6)"
+      + " + sharedRope.substring(sharedRope.length - 4)";
+
+  static final int ROPE_THREADS = 8;
+
+  /** Script printing the shared state as seen by a realm. */
+  static final String SHARED_STATE =
+      "shared.length + ' ' + shared.join(',') + ' ' + sharedObj.n";
+
+  /** Delay of the responses of the local HTTP server, in milliseconds. */
+  static final int RESPONSE_DELAY = 500;
+
+  static int failures;
+
+  static void check(String name, Object actual, Object expected) {
+    if (expected.equals(actual)) {
+      System.out.println("PASS " + name);
+    } else {
+      System.out.println("FAIL " + name + ": expected " + expected + ", got " + actual);
+      failures++;
+    }
+  }
+
+  /**
+   * Runs the script in the given realm and checks that it fails with a
+   * TypeError.
+   */
+  static void checkTypeError(Realm realm, String script) {
+    String result;
+    try {
+      result = "no exception, result " + realm.eval(script);
+    } catch (JsException e) {
+      result = e.getMessage().indexOf("TypeError") != -1 ? "TypeError" : e.getMessage();
+    } catch (Exception e) {
+      result = e.toString();
+    }
+    check(script, result, "TypeError");
+  }
+
+  /**
+   * Runs the script in the given realm, which is expected to fail.
+   */
+  static void evalFailing(Realm realm, String script) {
+    try {
+      realm.eval(script);
+      check(script, "no exception", "exception");
+    } catch (Exception e) {
+      check(script, "exception", "exception");
+    }
+  }
+
+  /**
+   * Starts an HTTP server on a free local port that answers every request
+   * after RESPONSE_DELAY milliseconds.
+   */
+  static HttpServer startSlowServer() throws IOException {
+    HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        try {
+          Thread.sleep(RESPONSE_DELAY);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        byte[] body = "late".getBytes("UTF-8");
+        exchange.sendResponseHeaders(200, body.length);
+        exchange.getResponseBody().write(body);
+        exchange.close();
+      }
+    });
+    server.start();
+    return server;
+  }
+
+  public static void main(String[] args) throws Exception {
+    File file = File.createTempFile("bootstrap", ".js");
+    file.deleteOnExit();
+    OutputStream out = new FileOutputStream(file);
+    out.write(BOOTSTRAP.getBytes("UTF-8"));
+    out.close();
+    System.setProperty("minijoe.bootstrap", file.getPath());
+
+    JsObject global = Eval.createGlobal();
+    check("builtin prototypes before freezeBuiltins()", Eval.eval(
+        "String.prototype.bar = 1; var bar = 'x'.bar; delete String.prototype.bar; bar",
+        global), new Double(1));
+    String result;
+    try {
+      new Realm();
+      result = "no exception";
+    } catch (IllegalStateException e) {
+      result = "IllegalStateException";
+    }
+    check("new Realm() before freezeBuiltins()", result, "IllegalStateException");
+
+    Realm.freezeBuiltins();
+    Realm r1 = new Realm();
+    Realm r2 = new Realm();
+    check("bootstrap state", r1.eval(SHARED_STATE), "3 1,2,3 1");
+
+    String[] mutations = {
+      "shared.push(9)", "shared.pop()", "shared.shift()", "shared.unshift(0)",
+      "shared.splice(0, 1)", "shared.splice(1, 0, 7)", "shared.sort()",
+      "shared.sort(function(a, b) { return b - a; })", "shared.reverse()",
+      "shared[0] = 5", "shared[3] = 5", "shared[1000000] = 5", "shared.length = 0",
+      "shared.foo = 1", "sharedObj.n = 2", "sharedObj.m = 2", "delete sharedObj.n",
+      "String.prototype.bar = function() {}", "Array.prototype.push = null"
+    };
+    for (int i = 0; i < mutations.length; i++) {
+      checkTypeError(r1, mutations[i]);
+    }
+    check("shared state after mutations", r2.eval(SHARED_STATE), "3 1,2,3 1");
+
+    r1.eval("var copy = shared.slice(0); copy.push(4); sharedObj = {n: 2};"
+        + " shared = copy;");
+    check("copy on write in r1", r1.eval(SHARED_STATE), "4 1,2,3,4 2");
+    check("copy on write in r2", r2.eval(SHARED_STATE), "3 1,2,3 1");
+
+    r1.eval("var own = 1;");
+    check("realm globals", r2.eval("typeof own"), "undefined");
+
+    final Object[] ropes = new Object[ROPE_THREADS];
+    Thread[] threads = new Thread[ROPE_THREADS];
+    for (int i = 0; i < ROPE_THREADS; i++) {
+      final int index = i;
+      threads[i] = new Thread() {
+        public void run() {
+          try {
+            ropes[index] = new Realm().eval(ROPE_STATE);
+          } catch (Throwable t) {
+            ropes[index] = t;
+          }
+        }
+      };
+    }
+    for (int i = 0; i < ROPE_THREADS; i++) {
+      threads[i].start();
+    }
+    for (int i = 0; i < ROPE_THREADS; i++) {
+      threads[i].join();
+      check("shared rope in thread " + i, ropes[i], "3890 x0x1x2x999");
+    }
+
+    r1.eval("var done = 'no'; setTimeout(function() { done = 'yes'; }, 0);");
+    check("timers", r1.eval("done"), "yes");
+    evalFailing(r1, "setTimeout(function() { leaked = 'from r1'; }, 0); throw 'fail';");
+    r2.eval("var quiet = 1;");
+    check("timers of a failed script", r1.eval("typeof leaked"), "undefined");
+    evalFailing(r1, "setTimeout(function() { throw 'fail'; }, 0);"
+        + " setTimeout(function() { leaked = 'from r1'; }, 1);");
+    r2.eval("var quiet = 2;");
+    check("timers after a failed callback", r1.eval("typeof leaked"), "undefined");
+
+    HttpServer server = startSlowServer();
+    String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+    evalFailing(r1, "httpGetAsync('" + url + "').then(function(body) {"
+        + " leaked = body; }); throw 'fail';");
+    r1.reset();
+    long start = System.currentTimeMillis();
+    r1.eval("var next = 1;");
+    check("script after reset does not wait for a request in flight",
+        String.valueOf(System.currentTimeMillis() - start < RESPONSE_DELAY), "true");
+    Thread.sleep(RESPONSE_DELAY * 2);
+    check("request in flight across reset", r1.eval("typeof leaked"), "undefined");
+    server.stop(0);
+
+    try {
+      result = String.valueOf(Eval.eval("String.prototype.bar = 1", global));
+    } catch (JsException e) {
+      result = e.getMessage().indexOf("TypeError") != -1 ? "TypeError" : e.getMessage();
+    }
+    check("builtin prototypes after freezeBuiltins()", result, "TypeError");
+
+    System.out.println(failures == 0 ? "all passed" : failures + " failed");
+    // the idle threads of the asynchronous http client keep the VM alive
+    System.exit(failures > 0 ? 1 : 0);
+  }
+}
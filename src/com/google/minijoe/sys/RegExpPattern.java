@@ -0,0 +1,351 @@
+// Copyright 2008 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.minijoe.sys;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * A compiled regular expression, shared by all RegExp objects created from
+ * the same literal or source. Instances are immutable and may be used by
+ * several threads; the match state is kept in Search objects.
+ *
+ * Patterns without any special characters, which are the most common case
+ * in practice, are matched with String.indexOf() in linear time. All other
+ * patterns are translated to java.util.regex syntax and compiled once.
+ */
+final class RegExpPattern {
+
+  /** Characters with a special meaning in patterns. */
+  private static final String SPECIAL_CHARS = "\\^$.|?*+()[]{}";
+
+  /** Maximum number of patterns compiled from strings kept in the cache. */
+  private static final int CACHE_SIZE = 64;
+
+  private static final LinkedHashMap CACHE = new LinkedHashMap(16, 0.75f, true) {
+    protected boolean removeEldestEntry(Map.Entry eldest) {
+      return size() > CACHE_SIZE;
+    }
+  };
+
+  final String source;
+  final boolean global;
+  final boolean ignoreCase;
+  final boolean multiline;
+
+  /** The string to search for if the pattern is a plain string; null otherwise. */
+  private final String literal;
+
+  /** The compiled pattern if it is not a plain string; null otherwise. */
+  private final Pattern pattern;
+
+  /** Number of capturing groups. */
+  private final int groupCount;
+
+  private RegExpPattern(String source, String flags) {
+    this.source = source;
+    this.global = flags.indexOf('g') != -1;
+    this.ignoreCase = flags.indexOf('i') != -1;
+    this.multiline = flags.indexOf('m') != -1;
+
+    for (int i = 0; i < flags.length(); i++) {
+      if ("gim".indexOf(flags.charAt(i)) == -1
+          || flags.indexOf(flags.charAt(i)) != i) {
+        throw syntaxError("Invalid regular expression flags: " + flags);
+      }
+    }
+
+    String s = unescapeLiteral(source);
+    if (s != null) {
+      literal = s;
+      pattern = null;
+      groupCount = 0;
+    } else {
+      literal = null;
+      try {
+        pattern = Pattern.compile(translate(source, multiline),
+            (ignoreCase ? Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE : 0)
+            | (multiline ? Pattern.MULTILINE : 0));
+      } catch (PatternSyntaxException e) {
+        throw syntaxError("Invalid regular expression: /" + source + "/: "
+            + e.getDescription());
+      }
+      groupCount = pattern.matcher("").groupCount();
+    }
+  }
+
+  /**
+   * Returns the compiled pattern for the given source and flags. Patterns
+   * created at run time, e.g. by the RegExp constructor, are cached, so
+   * constructing the same regular expression in a loop compiles it only
+   * once. Literals have their own cache slot in the function literal.
+   */
+  static RegExpPattern compile(String source, String flags) {
+    String key = flags + '/' + source;
+    synchronized (CACHE) {
+      RegExpPattern p = (RegExpPattern) CACHE.get(key);
+      if (p != null) {
+        return p;
+      }
+    }
+    RegExpPattern p = new RegExpPattern(source, flags);
+    synchronized (CACHE) {
+      CACHE.put(key, p);
+    }
+    return p;
+  }
+
+  /**
+   * Returns a pattern matching the given string literally, as used when a
+   * string is passed to replace() or split(). No compilation or caching is
+   * needed.
+   */
+  static RegExpPattern forString(String s) {
+    return new RegExpPattern(s);
+  }
+
+  private RegExpPattern(String s) {
+    this.source = s;
+    this.global = false;
+    this.ignoreCase = false;
+    this.multiline = false;
+    this.literal = s;
+    this.pattern = null;
+    this.groupCount = 0;
+  }
+
+  private static JsException syntaxError(String message) {
+    return new JsException(new JsError(JsError.SYNTAX_ERROR_PROTOTYPE, message));
+  }
+
+  /**
+   * Returns the string matched by the given pattern source if it does not
+   * contain any special characters (except for escaped punctuation), or null
+   * otherwise.
+   */
+  private static String unescapeLiteral(String source) {
+    StringBuffer buf = null;
+    for (int i = 0; i < source.length(); i++) {
+      char c = source.charAt(i);
+      if (c == '\\') {
+        if (i + 1 == source.length()) {
+          return null;
+        }
+        char next = source.charAt(++i);
+        if (Character.isLetterOrDigit(next)) {
+          return null;
+        }
+        if (buf == null) {
+          buf = new StringBuffer(source.substring(0, i - 1));
+        }
+        buf.append(next);
+      } else if (SPECIAL_CHARS.indexOf(c) != -1) {
+        return null;
+      } else if (buf != null) {
+        buf.append(c);
+      }
+    }
+    return buf == null ? source : buf.toString();
+  }
+
+  /**
+   * Translates the JS regular expression syntax to java.util.regex syntax.
+   * The syntax is mostly the same; the differences handled here are empty
+   * character classes, characters that are special in Java classes only,
+   * braces that don't form a quantifier and the meaning of '$' without the
+   * multiline flag.
+   */
+  private static String translate(String source, boolean multiline) {
+    StringBuffer buf = new StringBuffer(source.length() + 8);
+    boolean inClass = false;
+    int len = source.length();
+    for (int i = 0; i < len; i++) {
+      char c = source.charAt(i);
+      if (c == '\\') {
+        if (i + 1 < len && inClass && source.charAt(i + 1) == 'b') {
+          // backspace
+          buf.append("\\x08");
+          i++;
+        } else {
+          buf.append(c);
+          if (i + 1 < len) {
+            buf.append(source.charAt(++i));
+          }
+        }
+      } else if (inClass) {
+        if (c == ']') {
+          inClass = false;
+        } else if (c == '[' || c == '&') {
+          buf.append('\\');
+        }
+        buf.append(c);
+      } else if (c == '[') {
+        if (source.startsWith("[]", i)) {
+          buf.append("(?!)");
+          i++;
+        } else if (source.startsWith("[^]", i)) {
+          buf.append("[\\s\\S]");
+          i += 2;
+        } else {
+          inClass = true;
+          buf.append(c);
+        }
+      } else if (c == '{' && !isQuantifier(source, i)) {
+        buf.append("\\{");
+      } else if (c == '$' && !multiline) {
+        buf.append("\\z");
+      } else {
+        buf.append(c);
+      }
+    }
+    return buf.toString();
+  }
+
+  /**
+   * Returns true if the brace at the given position starts a quantifier of
+   * the form {n}, {n,} or {n,m}.
+   */
+  private static boolean isQuantifier(String source, int i) {
+    int j = i + 1;
+    int len = source.length();
+    int digits = 0;
+    while (j < len && Character.isDigit(source.charAt(j))) {
+      j++;
+      digits++;
+    }
+    if (digits == 0) {
+      return false;
+    }
+    if (j < len && source.charAt(j) == ',') {
+      j++;
+      while (j < len && Character.isDigit(source.charAt(j))) {
+        j++;
+      }
+    }
+    return j < len && source.charAt(j) == '}';
+  }
+
+  /**
+   * Returns the flags as they appear after a literal.
+   */
+  String getFlags() {
+    return (global ? "g" : "") + (ignoreCase ? "i" : "") + (multiline ? "m" : "");
+  }
+
+  /**
+   * Returns the number of capturing groups.
+   */
+  int groupCount() {
+    return groupCount;
+  }
+
+  /**
+   * Starts a search in the given input.
+   */
+  Search search(String input) {
+    return new Search(this, input);
+  }
+
+  public String toString() {
+    return "/" + (source.length() == 0 ? "(?:)" : source) + "/" + getFlags();
+  }
+
+  /**
+   * The state of a search of a pattern in a given input. A single search
+   * object is used for all matches in replace(), split() and global match(),
+   * so the input is scanned once.
+   */
+  static final class Search {
+    final String input;
+    private final String literal;
+    private final boolean ignoreCase;
+    private final Matcher matcher;
+    private int start = -1;
+    private int end = -1;
+
+    Search(RegExpPattern p, String input) {
+      this.input = input;
+      this.literal = p.literal;
+      this.ignoreCase = p.ignoreCase;
+      this.matcher = p.pattern == null ? null : p.pattern.matcher(input);
+    }
+
+    /**
+     * Finds the next match starting at or after the given position.
+     */
+    boolean find(int from) {
+      if (from > input.length()) {
+        return false;
+      }
+      if (matcher != null) {
+        if (!matcher.find(from)) {
+          return false;
+        }
+        start = matcher.start();
+        end = matcher.end();
+        return true;
+      }
+
+      int found;
+      if (!ignoreCase) {
+        found = input.indexOf(literal, from);
+      } else {
+        found = -1;
+        int last = input.length() - literal.length();
+        for (int i = from; i <= last; i++) {
+          if (input.regionMatches(true, i, literal, 0, literal.length())) {
+            found = i;
+            break;
+          }
+        }
+      }
+      if (found == -1) {
+        return false;
+      }
+      start = found;
+      end = found + literal.length();
+      return true;
+    }
+
+    /** Start of the last match. */
+    int start() {
+      return start;
+    }
+
+    /** End of the last match. */
+    int end() {
+      return end;
+    }
+
+    /** Number of capturing groups. */
+    int groupCount() {
+      return matcher == null ? 0 : matcher.groupCount();
+    }
+
+    /**
+     * Returns the given group of the last match, or null if the group did not
+     * participate in the match.
+     */
+    String group(int i) {
+      if (i == 0) {
+        return input.substring(start, end);
+      }
+      return matcher.group(i);
+    }
+  }
+}
@@ -0,0 +1,242 @@
+// Copyright 2008 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.minijoe.sys;
+
+import com.google.minijoe.compiler.CompilerException;
+import com.google.minijoe.compiler.Config;
+import com.google.minijoe.compiler.Disassembler;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache for compiled scripts, keyed by a hash of the source code and the
+ * compiler version.
+ *
+ * The first tier keeps the parsed main function literals of the most
+ * recently used scripts in memory; a literal can be executed in any number
+ * of contexts, so a hit skips both compilation and loading. The optional
+ * second tier stores the serialized byte code (the format read by
+ * JsFunction.exec()) in a directory, so compiled scripts survive restarts.
+ * Files of the second tier are memory mapped, and nested functions are
+ * only decoded when they are first used (see JsFunction.load()).
+ *
+ * The default instance used by Eval.eval() and the load() native is
+ * configured by the system properties "minijoe.cache.size" (number of
+ * scripts kept in memory, default 64, 0 disables caching) and
+ * "minijoe.cache.dir" (directory for the disk tier, none by default).
+ */
+public class ScriptCache {
+
+  private static final String SUFFIX = ".mjc";
+
+  private static ScriptCache defaultCache;
+
+  private final int capacity;
+  private final File directory;
+  private final LinkedHashMap entries;
+
+  private int hits;
+  private int diskHits;
+  private int misses;
+
+  /**
+   * Creates a new script cache.
+   *
+   * @param capacity maximum number of compiled scripts kept in memory
+   * @param directory directory for the disk tier; null for memory only
+   */
+  public ScriptCache(int capacity, File directory) {
+    this.capacity = capacity;
+    this.directory = directory;
+    this.entries = new LinkedHashMap(16, 0.75f, true) {
+      protected boolean removeEldestEntry(Map.Entry eldest) {
+        return size() > ScriptCache.this.capacity;
+      }
+    };
+    if (directory != null) {
+      directory.mkdirs();
+    }
+  }
+
+  /**
+   * Returns the cache used by Eval.eval().
+   */
+  public static synchronized ScriptCache getDefault() {
+    if (defaultCache == null) {
+      String dir = System.getProperty("minijoe.cache.dir");
+      defaultCache = new ScriptCache(
+          Integer.getInteger("minijoe.cache.size", 64).intValue(),
+          dir == null ? null : new File(dir));
+    }
+    return defaultCache;
+  }
+
+  /**
+   * Compiles the given source code and executes it in the given context,
+   * reusing a cached compilation result if possible.
+   */
+  public Object eval(String source, JsObject context)
+      throws CompilerException, IOException {
+    return JsFunction.exec(getMain(source), context);
+  }
+
+  /**
+   * Returns the main function literal for the given source code, compiling
+   * it if it is not found in the cache.
+   */
+  public JsFunction getMain(String source) throws CompilerException, IOException {
+    String key = getKey(source);
+    JsFunction main;
+    synchronized (this) {
+      main = (JsFunction) entries.get(key);
+      if (main != null) {
+        hits++;
+        return main;
+      }
+    }
+
+    File file = directory == null ? null : new File(directory, key + SUFFIX);
+    if (file != null && file.exists()) {
+      try {
+        main = JsFunction.load(file);
+        synchronized (this) {
+          diskHits++;
+        }
+      } catch (IOException e) {
+        // corrupt or truncated; compile again below
+        main = null;
+      }
+    }
+
+    if (main == null) {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      Eval.compile(source, baos);
+      byte[] code = baos.toByteArray();
+      if (Config.DEBUG_DISSASSEMBLY) {
+        new Disassembler(new DataInputStream(new ByteArrayInputStream(code))).dump();
+      }
+      main = JsFunction.load(ByteBuffer.wrap(code));
+      if (file != null) {
+        writeFile(file, code);
+      }
+      synchronized (this) {
+        misses++;
+      }
+    }
+
+    synchronized (this) {
+      if (capacity > 0) {
+        entries.put(key, main);
+      }
+    }
+    return main;
+  }
+
+  /**
+   * Writes the compiled script to a temporary file first, so concurrent
+   * readers never see a partial file.
+   */
+  private static void writeFile(File file, byte[] code) {
+    File tmp = new File(file.getPath() + "." + Thread.currentThread().getId() + ".tmp");
+    try {
+      FileOutputStream fos = new FileOutputStream(tmp);
+      try {
+        fos.write(code);
+      } finally {
+        fos.close();
+      }
+      if (!tmp.renameTo(file)) {
+        tmp.delete();
+      }
+    } catch (IOException e) {
+      // the disk tier is best effort only
+      tmp.delete();
+    }
+  }
+
+  /**
+   * Returns the cache key for the given source: the hex encoded SHA-1 hash
+   * of the compiler version, the bytecode format and the source.
+   */
+  static String getKey(String source) {
+    try {
+      MessageDigest md = MessageDigest.getInstance("SHA-1");
+      md.update((byte) Config.COMPILER_VERSION);
+      md.update((byte) (Config.REGISTER_BYTECODE ? 1 : 0));
+      byte[] hash = md.digest(source.getBytes("UTF-8"));
+      StringBuffer buf = new StringBuffer(hash.length * 2);
+      for (int i = 0; i < hash.length; i++) {
+        buf.append(Character.forDigit((hash[i] >> 4) & 15, 16));
+        buf.append(Character.forDigit(hash[i] & 15, 16));
+      }
+      return buf.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e.toString());
+    } catch (UnsupportedEncodingException e) {
+      throw new RuntimeException(e.toString());
+    }
+  }
+
+  /**
+   * Removes all entries from the memory tier and resets the counters. The
+   * disk tier is not affected.
+   */
+  public synchronized void clear() {
+    entries.clear();
+    hits = 0;
+    diskHits = 0;
+    misses = 0;
+  }
+
+  /** Number of lookups served from memory. */
+  public synchronized int getHits() {
+    return hits;
+  }
+
+  /** Number of lookups served from the disk tier. */
+  public synchronized int getDiskHits() {
+    return diskHits;
+  }
+
+  /** Number of lookups that required compilation. */
+  public synchronized int getMisses() {
+    return misses;
+  }
+
+  /** Number of scripts currently held in memory. */
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  public synchronized String toString() {
+    StringBuffer buf = new StringBuffer("ScriptCache{size=");
+    buf.append(entries.size());
+    buf.append(", hits=").append(hits);
+    buf.append(", diskHits=").append(diskHits);
+    buf.append(", misses=").append(misses);
+    return buf.append('}').toString();
+  }
+}
@@ -0,0 +1,192 @@
+// Copyright 2008 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.minijoe.sys;
+
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.NoSuchElementException;
+
+/**
+ * Hidden class describing the property layout of a JsObject. Objects that
+ * have the same prototype and received their properties in the same order
+ * share a shape and store the property values in a flat slot array, indexed
+ * by the position of the key in the shape.
+ *
+ * Shapes are immutable; adding a property moves the object to a child shape.
+ * Transitions are cached, so all objects built the same way end up with the
+ * identical shape instance.
+ */
+final class Shape {
+
+  /** Maximum number of properties before an object falls back to a dictionary. */
+  static final int MAX_PROPERTIES = 128;
+
+  /** Maximum number of deletions before an object falls back to a dictionary. */
+  static final int MAX_DELETIONS = 8;
+
+  /** Maximum number of distinct transitions of a non-root shape. */
+  static final int MAX_TRANSITIONS = 64;
+
+  /** Maximum number of distinct transitions of a root shape. */
+  static final int MAX_ROOT_TRANSITIONS = 1024;
+
+  /** Shapes up to this size are searched linearly. */
+  private static final int LINEAR_SEARCH_LIMIT = 8;
+
+  private static final String[] NO_KEYS = new String[0];
+
+  /** Root shape for objects without prototype. */
+  static final Shape ROOT = new Shape(null);
+
+  /** The prototype shared by all objects with this shape. */
+  final JsObject proto;
+
+  /** The parent shape, null for root shapes. */
+  final Shape parent;
+
+  /** Number of properties (and used slots) described by this shape. */
+  final int size;
+
+  /** Property names, indexed by slot. */
+  private final String[] keys;
+
+  /** Key to slot mapping for larger shapes, null for small ones. */
+  private final Hashtable index;
+
+  /** Cached child shapes, created lazily. */
+  private Hashtable transitions;
+
+  /**
+   * Creates a new root shape for objects with the given prototype.
+   */
+  Shape(JsObject proto) {
+    this.proto = proto;
+    this.parent = null;
+    this.size = 0;
+    this.keys = NO_KEYS;
+    this.index = null;
+  }
+
+  private Shape(Shape parent, String key) {
+    this.proto = parent.proto;
+    this.parent = parent;
+    this.size = parent.size + 1;
+    this.keys = new String[size];
+    System.arraycopy(parent.keys, 0, keys, 0, parent.size);
+    keys[parent.size] = key;
+
+    if (size > LINEAR_SEARCH_LIMIT) {
+      index = new Hashtable(size * 2);
+      for (int i = 0; i < size; i++) {
+        index.put(keys[i], new Integer(i));
+      }
+    } else {
+      index = null;
+    }
+  }
+
+  /**
+   * Returns the slot index of the given key, or -1 if the key is not part of
+   * this shape.
+   */
+  int indexOf(String key) {
+    if (index != null) {
+      Integer i = (Integer) index.get(key);
+      return i == null ? -1 : i.intValue();
+    }
+    String[] keys = this.keys;
+    for (int i = 0; i < keys.length; i++) {
+      if (keys[i] == key) {
+        return i;
+      }
+    }
+    for (int i = 0; i < keys.length; i++) {
+      if (keys[i].equals(key)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the key stored at the given slot.
+   */
+  String keyAt(int i) {
+    return keys[i];
+  }
+
+  /**
+   * Returns the shape resulting from adding the given key to this shape, or
+   * null if the object should be converted to a dictionary instead. The key
+   * must not be contained in this shape.
+   */
+  Shape addProperty(String key) {
+    if (size >= MAX_PROPERTIES) {
+      return null;
+    }
+    synchronized (this) {
+      if (transitions == null) {
+        transitions = new Hashtable();
+      }
+      Shape next = (Shape) transitions.get(key);
+      if (next == null) {
+        if (transitions.size() >=
+            (parent == null ? MAX_ROOT_TRANSITIONS : MAX_TRANSITIONS)) {
+          return null;
+        }
+        next = new Shape(this, Atoms.intern(key));
+        transitions.put(next.keys[size], next);
+      }
+      return next;
+    }
+  }
+
+  /**
+   * Returns the shape of an object with this shape after the key at the
+   * given slot was removed, or null if the object should be converted to
+   * a dictionary instead. The slots following the removed one move down by
+   * one.
+   */
+  Shape removeProperty(int slot) {
+    Shape result = this;
+    while (result.size > slot) {
+      result = result.parent;
+    }
+    for (int i = slot + 1; i < size && result != null; i++) {
+      result = result.addProperty(keys[i]);
+    }
+    return result;
+  }
+
+  /**
+   * Returns an enumeration of the keys of this shape, in insertion order.
+   */
+  Enumeration keys() {
+    return new Enumeration() {
+      int i;
+
+      public boolean hasMoreElements() {
+        return i < size;
+      }
+
+      public Object nextElement() {
+        if (i >= size) {
+          throw new NoSuchElementException();
+        }
+        return keys[i++];
+      }
+    };
+  }
+}
@@ -0,0 +1,13 @@
+print([1, "a", null].join(","));
+var a = [1,2,3]; a[10] = 5; print(a.length); print(a[5]);
+var b = []; for (var i = 0; i < 50; i++) b.push(i * 0.5); print(b.pop()); print(b.shift()); print(b.length);
+print(b.slice(1, 3).join(",")); print([1,2].concat([3], 4).length);
+var c = [5, 3, 9, 1]; c.sort(function(x, y) { return x - y; }); print(c.join(","));
+c.reverse(); print(c.join(","));
+var sp = [1,2,3,4,5]; print(sp.splice(1, 2).join(","));
+print([1,2,3].length);
+var srt = [3,1,2]; srt.sort(); print(srt.join("-"));
+var arr = [1, 2, 3];
+var j = 0;
+for (var i = 0; i < 3; i++) { j = j + arr.length; arr.push(i); }
+print("arr " + j + " " + arr.join(","));
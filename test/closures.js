@@ -0,0 +1,48 @@
+// Locals that are declared but still undefined belong to their own scope;
+// reading or assigning them must not reach variables of the same name in
+// enclosing scopes.
+function check(name, actual, expected) {
+  if (actual !== expected) {
+    throw new Error(name + ": expected " + expected + ", got " + actual);
+  }
+  print(name + " " + actual);
+}
+
+var n = "global";
+function makeCounter() {
+  var n;
+  var count = function() { n = n + 1; return n; };
+  n = 0;
+  return count;
+}
+var c1 = makeCounter();
+var c2 = makeCounter();
+c1(); c1();
+check("first counter", c1(), 3);
+check("second counter", c2(), 1);
+check("global after counters", n, "global");
+
+function readUndefined() {
+  var n;
+  var get = function() { return n; };
+  return get();
+}
+check("undefined local", typeof readUndefined(), "undefined");
+
+function assignFromClosure() {
+  var n;
+  var set = function(v) { n = v; };
+  set("inner");
+  return n;
+}
+check("assigned local", assignFromClosure(), "inner");
+check("global after assignment", n, "global");
+
+function nested() {
+  var n = "outer local";
+  return (function() {
+    var n;
+    return function() { return n; };
+  })()();
+}
+check("nested undefined local", typeof nested(), "undefined");
@@ -0,0 +1,38 @@
+function outer(a, b) {
+  var c = a + b;
+  function helper(x) { return x * 2; }
+  var sq = function(y) { return y * y; };
+  var t = 0;
+  for (var i = 0; i < 3; i++) { t = t + helper(i) + sq(i); }
+  return t + c;
+}
+print("outer " + outer(1, 2));
+function counter() {
+  var n = 0;
+  return function() { n = n + 1; return n; };
+}
+var ct = counter(); ct(); ct();
+print("counter " + ct());
+function rec(k) {
+  function f(m) { return m <= 1 ? 1 : m * f(m - 1); }
+  return f(k);
+}
+print("rec " + rec(5));
+function args() { return arguments.length + arguments[0]; }
+print("args " + args(3, 4, 5));
+function noargs(a) { var q = function() { return 1; }; return a + q(); }
+print("noargs " + noargs(4));
+function forin(o) {
+  var s = ""; var k;
+  for (k in o) { s = s + k; }
+  for (var j in o) { s = s + j; }
+  return s;
+}
+var fo = new Object(); fo.p = 1;
+print("forin " + forin(fo));
+function shadow() { var g2 = 5; var f = function() { return typeof g2; }; return f(); }
+print("shadow " + shadow());
+function named() { var h = function hh(n) { return n; }; return h(7) + typeof hh; }
+print("named " + named());
+function catcher() { var r = 0; try { throw 3; } catch (e) { r = e; } return r; }
+print("catch " + catcher());
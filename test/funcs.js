@@ -0,0 +1,35 @@
+function fib(n) { return n < 2 ? n : fib(n - 1) + fib(n - 2); }
+print(fib(20));
+function sum() { var s = 0; for (var i = 0; i < arguments.length; i++) s += arguments[i]; return s; }
+print(sum(1, 2, 3, 4));
+function args2(a, b) { arguments[0] = 9; return a + b + arguments.length; }
+print(args2(1, 2));
+function mk(n) { var c = n; return function() { c++; return c; }; }
+var f = mk(10); f(); print(f());
+function outer() { var x = 1; function inner() { return x + 1; } x = 5; return inner(); }
+print(outer());
+function w(o) { with (o) { return a + b; } }
+print(w({a: 1, b: 2}));
+function tc() { try { throw "bad"; } catch (e) { return "caught " + e; } }
+print(tc());
+function tf() { var r = ""; try { r += "t"; } finally { r += "f"; } return r; }
+print(tf());
+function opt(a, b) { return typeof b; } print(opt(1));
+function rec(n) { if (n == 0) return 0; return 1 + rec(n - 1); } print(rec(500));
+var cbs = []; for (var i = 0; i < 3; i++) { cbs.push(function(x) { return x * 2; }); }
+print(cbs[2](21));
+function loop() { var t = 0; for (var i = 0; i < 100000; i++) { t = t + i; } return t; } print(loop());
+function fl() { var x = 0.5; var y = 1.25; for (var i = 0; i < 10; i++) { x = x * 1.5 + y / 2; } return x; } print(fl());
+function locs(a, b, c) { var d = a * b; var e = d - c; return e % 7; } print(locs(6, 7, 3));
+print((function(){ return this; })() != null);
+var cnt = 0; Number(4).times(function(i) { cnt += i; }); print(cnt);
+var ft = function(n) { return n <= 1 ? 1 : n * ft(n - 1); }; print(ft(10));
+function gt(a,b){ return [a>b, a>=b, a<b, a<=b, a==b, a!=b, a===b, a!==b].join(","); } print(gt(1,2)); print(gt(2,2)); print(gt("a","b"));
+var x = 5; x = (1, 2); print(x);
+print(1 << 4); print(-16 >> 2); print(-16 >>> 28); print(5 & 3); print(5 | 3); print(5 ^ 3); print(~5);
+print(7 / 2); print(-7 % 3); print(-(3)); print(!0); print(void 0);
+var sw = function(v) { switch (v) { case 1: return "one"; case "2": return "two"; default: return "other"; } };
+print(sw(1) + sw("2") + sw(3));
+var i2 = 0; do { i2++; } while (i2 < 5); print(i2);
+var i3 = 0; while (true) { if (++i3 > 7) break; } print(i3);
+lbl: for (var a = 0; a < 3; a++) { for (var b = 0; b < 3; b++) { if (b == 1) continue lbl; } } print(a);
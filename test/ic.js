@@ -0,0 +1,34 @@
+function mk(a, b) { var o = new Object(); o.a = a; o.b = b; return o; }
+var objs = new Object(); objs[0] = mk(1, 2); objs[1] = mk(3, 4);
+var q = new Object(); q.b = 9; q.a = 8; objs[2] = q;
+var r = new Object(); r.c = 1; r.a = 5; objs[3] = r;
+var s = new Object(); s.z = 1; s.y = 2; s.a = 6; objs[4] = s;
+var t = new Object(); t.a = 7; t.x = 1; t.w = 2; objs[5] = t;
+var sum = 0;
+for (var k = 0; k < 3; k++) {
+  for (var i = 0; i < 6; i++) { if (objs[i]) sum = sum + objs[i].a; }
+}
+print("poly " + sum);
+var p = new Object();
+for (var i = 0; i < 5; i++) { p.v = i; p.w = i * 2; }
+print("set " + p.v + " " + p.w);
+var str = "hello";
+var cs = "";
+for (var i = 0; i < 5; i++) { cs = cs + str.charAt(i) + str.length; }
+print("str " + cs);
+var u = new Object();
+var savedToString = Object.prototype.toString;
+for (var i = 0; i < 3; i++) { print("toString " + typeof u.toString); if (i == 1) { Object.prototype.toString = 5; } }
+// the builtin prototypes are shared by all globals of the VM
+Object.prototype.toString = savedToString;
+var d = new Object(); d.a = 1; d.b = 2;
+for (var i = 0; i < 3; i++) { print("del " + d.a); delete d.a; }
+var g = 1;
+function rg() { return g; }
+for (var i = 0; i < 3; i++) { print("glob " + rg()); g = g + 1; }
+var n = 3.5;
+for (var i = 0; i < 2; i++) { print("num " + typeof n.toString); }
+var und;
+for (var i = 0; i < 2; i++) { print("und " + und); und = 4; }
+var h = new Object(); h.k = 1;
+for (var i = 0; i < 3; i++) { var key = i == 1 ? "m" : "k"; h[key] = i; print("dyn " + h[key] + h.k); }
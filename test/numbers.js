@@ -0,0 +1,13 @@
+print("1" + 2 + 3); print(1 + 2 + "3"); print("5" * "2"); print("5" - 2);
+print(12 + ""); print(1.5 + ""); print(0.1 + 0.2); print(1e21 + ""); print(-0 + ""); print(100 / 3);
+print(123456789 * 1000); print(1 / 0); print(-1 / 0); print(0 / 0);
+print(parseInt("42")); print(parseInt("0x1f")); print(parseInt("ff", 16)); print(parseFloat("3.25"));
+print(isNaN("abc")); print(isFinite(1));
+var n = 255; print(n.toString());
+print(parseInt("12px")); print(parseInt("-12px")); print(parseInt("1.5")); print(parseInt("abc"));
+print(parseInt("4294967296")); print(parseInt("  +7 ")); print(parseInt("0x")); print(parseInt("11", 2));
+print(parseInt("7", 37)); print(parseInt("9007199254740993")); print(1 / parseInt("-0"));
+print((255).toString(16)); print((255).toString(2)); print((-255).toString(36)); print(n.toString(10));
+print((0.5).toString(2)); print((0.1).toString(2)); print((3.75).toString(16)); print((4294967296).toString(16));
+print((0 / 0).toString(2));
+try { (1).toString(1); } catch (e) { print(e.name); }
@@ -0,0 +1,26 @@
+var o = {a: 1, b: "two", c: null};
+print(o.a + " " + o.b + " " + o.c + " " + o.d);
+o.d = 4; o.a = 10;
+print(o.a + o.d);
+var keys = ""; for (var k in o) keys = keys + k + ","; print(keys.length);
+print(delete o.b); print(o.b);
+var cnt = 0; for (var k in o) cnt++; print(cnt);
+function P(x) { this.x = x; }
+P.prototype.getX = function() { return this.x; };
+var p = new P(5); print(p.x);
+var proto = {getX: function() { return this.x; }};
+function mkP(x) { var r = new Object(); r.x = x; return r; }
+print(proto.getX());
+print(p.hasOwnProperty("x")); print(p.hasOwnProperty("getX"));
+var recs = {}; for (var i = 0; i < 100; i++) { recs["r" + i] = {id: i, name: "n" + i, v: i * 2}; }
+var s = 0; for (var i = 0; i < 100; i++) { s += recs["r" + i].v; } print(s);
+var big = {}; for (var i = 0; i < 200; i++) { big["k" + i] = i; }
+var t = 0; for (var i = 0; i < 200; i++) { t += big["k" + i]; } print(t);
+for (var i = 0; i < 150; i++) { delete big["k" + i]; }
+var c2 = 0; for (var k in big) c2++; print(c2); print(big.k199); print(big.k3);
+var e = {}; e.x = undefined; print(e.hasOwnProperty("x")); print(typeof e.x);
+print("x" in e);
+var z = {toString: function() { return "Z!"; }}; print("" + z.toString());
+var m = Math.max(3, 9); print(m); print(Math.PI > 3);
+print("abc".length);
+o.a++; print(o.a); o.a += 5; print(o.a);
@@ -0,0 +1,9 @@
+// Recursion much deeper than the Java stack allows; compiled functions must
+// leave deep calls to the interpreter.
+function rec(n) { if (n == 0) return 0; return 1 + rec(n - 1); }
+print(rec(100000));
+function even(n) { return n == 0 ? true : odd(n - 1); }
+function odd(n) { return n == 0 ? false : even(n - 1); }
+print(even(50001));
+function sum(a, n) { return n == 0 ? a.length : sum(a.concat([n]), n - 1); }
+print(sum([], 2000));
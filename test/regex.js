@@ -0,0 +1,22 @@
+var s = "The quick brown fox jumps over the lazy dog";
+print(s.match(/o\w/g));
+print(s.match(/(qu)(i)ck/)[0] + " " + s.match(/(qu)(i)ck/)[2] + " " + s.match(/(qu)(i)ck/).index);
+print(s.search(/fox/) + " " + s.search(/cat/) + " " + s.search("b.own"));
+print(s.replace(/o/g, "0"));
+print(s.replace(/(\w+) (\w+)/, "$2 $1 [$&] $$"));
+print(s.replace(/\b\w/g, function(m, i) { return "<" + m + ">"; }));
+print("a.b.c".replace(".", "-") + " " + "aaa".replace("a", "aa"));
+print("a, b,c ,d".split(/\s*,\s*/));
+print("a1b2c3".split(/(\d)/) + " " + "a1b2c3".split(/\d/, 2));
+print("abc".split(/(?:)/) + " " + "".split(/x/).length + " " + "".split(/(?:)/).length);
+var re = /a(b)?/g; var m; var out = "";
+while ((m = re.exec("ab a ab")) != null) { out = out + m[0] + "@" + m.index + "/" + re.lastIndex + " "; }
+print(out);
+print(/^\d+$/.test("12345") + " " + /^\d+$/.test("12a45") + " " + /HELLO/i.test("say hello"));
+var r2 = new RegExp("w(or)ld", "i"); print(r2.source + " " + r2.global + " " + r2.ignoreCase + " " + r2 + " " + RegExp("x+").test("axxb"));
+print("x/y/z".replace(/\//g, "|") + " " + "a[b]c".replace(/[\[\]]/g, "") + " " + "tab\there".replace(/[\t]/, " "));
+var a = 10, b = 2; var g = 5; print(a / b / g); var c = a /b/ g; print(c);
+print("line1\nline2".match(/^line\d$/gm) + " " + "line1\nline2".match(/^line\d$/g));
+var n = 0; for (var i = 0; i < 100; i++) { if (/x+y/.test("xxy")) n++; } print(n);
+try { RegExp("(", ""); } catch (e) { print(e.name); }
+print("$1.00".replace(/\$/, "USD ") + " " + "aXbX".replace(/x/ig, "$'"));
@@ -0,0 +1,14 @@
+var s = "Hello, World";
+print(s.charAt(4)); print(s.charCodeAt(0)); print(s.indexOf("o")); print(s.indexOf("o", 5)); print(s.lastIndexOf("o"));
+print(s.substring(7)); print(s.substring(7, 9)); print(s.slice(-5)); print(s.slice(0, 5));
+print(s.split(", ").length); print("a,b,,c".split(",").join("|")); print("abc".split("").join("."));
+print(s.replace("l", "L")); print("aaa".replace("a", "b"));
+print(s.toUpperCase()); print(s.toLowerCase());
+print("x".concat("y", "z"));
+var h = ""; for (var i = 0; i < 1000; i++) { h += "<tr>" + i + "</tr>"; } print(h.length);
+print(h.substring(0, 20));
+print("abc" < "abd"); print("b" > "a");
+print(String.fromCharCode(72, 105));
+print(typeof "s"); print(typeof 1); print(typeof {}); print(typeof null); print(typeof undefined); print(typeof print);
+print(("ab" + "cd").length);
+print("abc" == "abc"); print("1" == 1);
@@ -0,0 +1,4 @@
+function f(x) { var y = 1; if (x > 1) throw new Error("big " + x); return y + x; }
+function g() { var u; return typeof u; }
+try { print(f(1)); f(5); } catch (e) { print("caught " + e.message); }
+print(g());